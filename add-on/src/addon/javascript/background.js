@@ -95,6 +95,30 @@ let waitingPorts = new Map();
  */
 let ports = new Map();
 
+/**
+ * The database ID of the song last loaded, as sent by the interface. This is attached to playback
+ * updates so that the interface can tell which of its songs they refer to.
+ */
+let loadedSongId = 0;
+
+/**
+ * The ID of the tab playing the current song, or null if no song is loaded.
+ */
+let playerTab = null;
+
+/**
+ * The song opened ahead of time in a hidden, muted tab, or null if there is none. This holds the
+ * "tabId", "url", and "songId" of the song, and a "ready" promise that resolves once the tab has
+ * connected and been paused.
+ */
+let prefetched = null;
+
+/**
+ * How long to wait for a prefetched tab to finish loading once its song is played, in milliseconds.
+ * If it takes longer, the song is opened in a new tab instead.
+ */
+const PREFETCH_TIMEOUT = 10000;
+
 /**
  * Obtains the host name of a URL
  */
@@ -300,6 +324,18 @@ function setupTab(port)
             }
             else if (message.type == "update")
             {
+                /*
+                 * A prefetched tab should stay quiet until it is swapped in.
+                 */
+                if (port.sender.tab.id != playerTab)
+                {
+                    logger.trace("Ignoring update from tab %d", port.sender.tab.id);
+                    return;
+                }
+                if (message.data && message.data.type == "edu.regis.universeplayer.PlaybackInfo")
+                {
+                    message.data.songId = loadedSongId;
+                }
                 returnValue = {
                     "messageNum": -1,
                     "message": message.data
@@ -455,28 +491,13 @@ function (message, returnValue) {
                 return queryTab(tab, message);
             });
         case "CommandLoadSong":
-            returnValue = () => {
-                if (message.song)
-                {
-                    browser.tabs.create({url: message.song});
-                }
-            }
-            if (tabPort)
-            {
-                logger.log("Replacing tab");
-                /*
-                 * Closes the existing tab first
-                 */
-                returnValue = browser.tabs.remove(tabPort.sender.tab.id).then(returnValue);
-            }
-            else
-            {
-                logger.log("Opening tab");
-                returnValue = returnValue();
-            }
+            returnValue = loadSong(message);
+            break;
+        case "CommandPrefetchSong":
+            returnValue = prefetchSong(message);
             break;
         case "QueryStatus":
-            if (!tabPort)
+            if (playerTab == null || !ports.has(playerTab))
             {
                 returnValue = "EMPTY";
                 break;
@@ -485,7 +506,12 @@ function (message, returnValue) {
         case "QueryLength":
         case "CommandSetPlayback":
         case "CommandSeek":
-            returnValue = queryTab(message);
+            if (playerTab == null)
+            {
+                returnValue = Promise.reject(new ReferenceError("No song is loaded"));
+                break;
+            }
+            returnValue = queryTab(playerTab, message);
             break;
         case "CommandQuit":
             returnValue = quit();
@@ -494,7 +520,8 @@ function (message, returnValue) {
             logger.error("Error message %o", message);
             if (message.forward)
             {
-                returnValue = queryTab(message);
+                returnValue = playerTab != null ? queryTab(playerTab, message) :
+                        Promise.reject(new ReferenceError("No song is loaded"));
             }
             else
             {
@@ -515,6 +542,126 @@ function (message, returnValue) {
     return returnValue;
 }];
 
+/**
+ * Opens a song in the player tab, closing the song that was playing. If the song was prefetched,
+ * its tab is swapped in and started instead of loading the page again.
+ *
+ * @param {object} message  The CommandLoadSong message. If it has no song, the player tab is
+ *                          closed.
+ * @return {Promise}        A promise for when the song has been opened.
+ */
+function loadSong(message)
+{
+    let closing = playerTab != null ? browser.tabs.remove(playerTab) : Promise.resolve();
+    let next = prefetched;
+    playerTab = null;
+    loadedSongId = message.songId || 0;
+    if (!message.song)
+    {
+        return closing;
+    }
+    if (next && next.url == message.song)
+    {
+        logger.log("Swapping in prefetched tab %d", next.tabId);
+        prefetched = null;
+        /*
+         * A page that never connects would otherwise leave the song silent for good.
+         */
+        let timeout = new Promise((resolve, reject) => setTimeout(() => reject(
+                new Error("Timed out waiting for the prefetched tab")), PREFETCH_TIMEOUT));
+        return closing.then(() => Promise.race([next.ready, timeout])).then(() => {
+            playerTab = next.tabId;
+            return browser.tabs.show(next.tabId).then(() => browser.tabs.update(next.tabId, {
+                active: true,
+                muted: false
+            })).then(() => queryTab(next.tabId, {
+                type: "edu.regis.universeplayer.browserCommands.CommandSeek",
+                time: 0
+            })).then(() => queryTab(next.tabId, {
+                type: "edu.regis.universeplayer.browserCommands.CommandSetPlayback",
+                status: "PLAY"
+            }));
+        }, error => {
+            logger.warn("Could not swap in prefetched tab %d, opening the song again: %o",
+                    next.tabId, error);
+            waitingPorts.delete(next.tabId);
+            browser.tabs.remove(next.tabId);
+            return openSong(message.song);
+        });
+    }
+    return closing.then(() => openSong(message.song));
+}
+
+/**
+ * Opens a song in a new player tab.
+ *
+ * @param {string} song The URL of the song.
+ * @return {Promise}    A promise for when the tab has been opened.
+ */
+function openSong(song)
+{
+    logger.log("Opening tab");
+    return browser.tabs.create({url: song}).then(tab => {
+        playerTab = tab.id;
+    });
+}
+
+/**
+ * Opens a song in a hidden, muted tab so that it is ready to play once it is loaded. Any song
+ * prefetched before is closed.
+ *
+ * @param {object} message  The CommandPrefetchSong message. If it has no song, the prefetched tab
+ *                          is closed.
+ * @return {Promise}        A promise for when the tab has been opened. The page may still be
+ *                          loading.
+ */
+function prefetchSong(message)
+{
+    let closing = Promise.resolve();
+    if (prefetched && prefetched.url == message.song)
+    {
+        return closing;
+    }
+    if (prefetched)
+    {
+        waitingPorts.delete(prefetched.tabId);
+        closing = browser.tabs.remove(prefetched.tabId);
+        prefetched = null;
+    }
+    if (!message.song)
+    {
+        return closing;
+    }
+    return closing.then(() => browser.tabs.create({
+        url: message.song,
+        active: false
+    })).then(tab => {
+        let entry = {
+            "tabId": tab.id,
+            "url": message.song,
+            "songId": message.songId || 0
+        };
+        /*
+         * The page may start playing on its own once it loads, so pause it as soon as it
+         * connects.
+         */
+        entry.ready = new Promise((resolve, reject) => {
+            waitingPorts.set(tab.id, {
+                "resolve": () => queryTab(tab.id, {
+                    type: "edu.regis.universeplayer.browserCommands.CommandSetPlayback",
+                    status: "PAUSE"
+                }).then(resolve, reject),
+                "reject": reject
+            });
+        });
+        prefetched = entry;
+        logger.log("Prefetching %s in tab %d", message.song, tab.id);
+        return browser.tabs.update(tab.id, {
+            muted: true
+        }).then(() => browser.tabs.hide(tab.id));
+    });
+}
+
 /**
  * Closes all tabs in the browser, thus closing the entire browser.
  *
@@ -15,6 +15,7 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 
 public class ConfigManager
 {
@@ -120,6 +121,17 @@ public class ConfigManager
         return dataDir;
     }
 
+    /**
+     * Points the application at another data storage directory. This method
+     * is meant for testing only.
+     *
+     * @param dir - The directory to use, or null to go back to the default.
+     */
+    public static void setDataDir(File dir)
+    {
+        dataDir = dir;
+    }
+
     /**
      * Obtains the configuration directory for the application, creating it if
      * needed.
@@ -187,6 +199,26 @@ public class ConfigManager
                     ".home") + File.separator + "Music" + File.pathSeparator + System
                     .getProperty("user.home") + File.separator + "My Music");
             defaultProps.setProperty("musicExclude", "");
+            defaultProps.setProperty("missingGraceDays", "30");
+            defaultProps.setProperty("gapless", "true");
+            defaultProps.setProperty("crossfadeSeconds", "0");
+            defaultProps.setProperty("crossfadeCurve", "equal_power");
+            defaultProps.setProperty("seekInterval", "100");
+            defaultProps.setProperty("audioBufferMillis", "2000");
+            defaultProps.setProperty("audioLatencyMillis", "100");
+            defaultProps.setProperty("decodeCache", "false");
+            defaultProps.setProperty("decodeCacheMegabytes", "2048");
+            defaultProps.setProperty("browserStateMillis", "1000");
+            defaultProps.setProperty("replayGain", "off");
+            defaultProps.setProperty("preampDb", "0");
+            defaultProps.setProperty("equalizer", "");
+            defaultProps.setProperty("limiter", "true");
+            defaultProps.setProperty("visualiser", "true");
+            defaultProps.setProperty("visualiserFps", "30");
+            defaultProps.setProperty("renderThreads", "4");
+            defaultProps.setProperty("streamPort", "0");
+            defaultProps.setProperty("recordFile", "");
+            defaultProps.setProperty("sinkBacklogMillis", "2000");
             props = new Properties(defaultProps);
             if (propsFile.exists())
             {
@@ -267,6 +299,331 @@ public class ConfigManager
         return musicIgnoreDirs;
     }
 
+    /**
+     * Obtains how long a song file may be missing before it is removed from
+     * the database. Until then, the song is restored as it was if the file
+     * shows up again.
+     *
+     * @return The grace period, in milliseconds.
+     */
+    public static long getMissingGracePeriod()
+    {
+        try
+        {
+            return TimeUnit.DAYS.toMillis(Long.parseLong(getProperties()
+                    .getProperty("missingGraceDays").trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid grace period {}", getProperties()
+                    .getProperty("missingGraceDays"), e);
+            return TimeUnit.DAYS.toMillis(30);
+        }
+    }
+
+    /**
+     * Checks whether the next song should be loaded ahead of time, so that it
+     * starts the moment the current song ends.
+     *
+     * @return Whether gapless playback is enabled.
+     */
+    public static boolean isGapless()
+    {
+        return Boolean.parseBoolean(getProperties().getProperty("gapless")
+                                                   .trim());
+    }
+
+    /**
+     * Obtains how long one song fades into the next.
+     *
+     * @return The length of the crossfade in milliseconds, or 0 if songs do
+     * not fade.
+     */
+    public static long getCrossfadeDuration()
+    {
+        try
+        {
+            return Math.max(0, Math.round(Double.parseDouble(getProperties()
+                    .getProperty("crossfadeSeconds").trim()) * 1000));
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid crossfade length {}", getProperties()
+                    .getProperty("crossfadeSeconds"), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Obtains the name of the shape songs fade in and out with, such as
+     * "linear" or "equal_power".
+     *
+     * @return The name of the crossfade curve.
+     */
+    public static String getCrossfadeCurve()
+    {
+        return getProperties().getProperty("crossfadeCurve");
+    }
+
+    /**
+     * Obtains the shortest time allowed between two seeks while the progress
+     * bar is being dragged.
+     *
+     * @return The interval between seeks, in milliseconds.
+     */
+    public static int getSeekInterval()
+    {
+        try
+        {
+            return Math.max(0, Integer.parseInt(getProperties()
+                    .getProperty("seekInterval").trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid seek interval {}", getProperties()
+                    .getProperty("seekInterval"), e);
+            return 100;
+        }
+    }
+
+    /**
+     * Obtains how much decoded audio the built-in player keeps ready ahead
+     * of what is playing. This is only used when VLC is not installed.
+     *
+     * @return The size of the buffer, in milliseconds of audio.
+     */
+    public static int getAudioBufferMillis()
+    {
+        return getMillis("audioBufferMillis", 2000);
+    }
+
+    /**
+     * Obtains how much audio the built-in player hands to the sound card at
+     * once. Smaller values make pausing and seeking quicker to be heard, but
+     * are more likely to stutter. This is only used when VLC is not
+     * installed.
+     *
+     * @return The output latency, in milliseconds.
+     */
+    public static int getAudioLatencyMillis()
+    {
+        return getMillis("audioLatencyMillis", 100);
+    }
+
+    /**
+     * Checks whether local songs should be decoded ahead of time and kept on
+     * disk, so that they start and seek without waiting on the original
+     * file.
+     *
+     * @return Whether the decoded audio cache is enabled.
+     */
+    public static boolean isDecodeCacheEnabled()
+    {
+        return Boolean.parseBoolean(getProperties().getProperty("decodeCache")
+                                                   .trim());
+    }
+
+    /**
+     * Obtains the most disk space the decoded audio cache may use.
+     *
+     * @return The size of the cache, in bytes.
+     */
+    public static long getDecodeCacheSize()
+    {
+        try
+        {
+            return Math.max(0, Long.parseLong(getProperties()
+                    .getProperty("decodeCacheMegabytes").trim())) * 1024 * 1024;
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid decode cache size {}", getProperties()
+                    .getProperty("decodeCacheMegabytes"), e);
+            return 2048L * 1024 * 1024;
+        }
+    }
+
+    /**
+     * Obtains how long the state the browser last reported is trusted while
+     * a song is playing. The browser reports the position several times a
+     * second while playing, so going this long without hearing from it
+     * means it has to be asked directly.
+     *
+     * @return How long the reported state is current, in milliseconds.
+     */
+    public static int getBrowserStateMillis()
+    {
+        return getMillis("browserStateMillis", 1000);
+    }
+
+    /**
+     * Obtains which ReplayGain tags the built-in player evens out volume
+     * with. This is only used when VLC is not installed.
+     *
+     * @return "track", "album", or "off".
+     */
+    public static String getReplayGain()
+    {
+        return getProperties().getProperty("replayGain").trim();
+    }
+
+    /**
+     * Obtains how much the built-in player boosts or cuts the volume before
+     * the equalizer. This is only used when VLC is not installed.
+     *
+     * @return The gain, in decibels.
+     */
+    public static float getPreamp()
+    {
+        try
+        {
+            return Float.parseFloat(getProperties().getProperty("preampDb")
+                                                   .trim());
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid preamp {}", getProperties()
+                    .getProperty("preampDb"), e);
+            return 0;
+        }
+    }
+
+    /**
+     * Obtains the bands of the built-in player's equalizer. Bands are
+     * separated by commas, and each is written as
+     * {@code type:frequency:gain:q}, where the type is "peak", "lowshelf", or
+     * "highshelf" and the gain is in decibels. This is only used when VLC is
+     * not installed.
+     *
+     * @return The equalizer bands, or an empty string for none.
+     */
+    public static String getEqualizer()
+    {
+        return getProperties().getProperty("equalizer");
+    }
+
+    /**
+     * Checks whether the built-in player should keep the preamp, equalizer,
+     * and ReplayGain from pushing audio into clipping.
+     *
+     * @return Whether the limiter is enabled.
+     */
+    public static boolean isLimiterEnabled()
+    {
+        return Boolean.parseBoolean(getProperties().getProperty("limiter")
+                                                   .trim());
+    }
+
+    /**
+     * Checks whether the spectrum visualiser should be shown. It only works
+     * with the built-in player, which is used when VLC is not installed.
+     *
+     * @return Whether the visualiser is enabled.
+     */
+    public static boolean isVisualiserEnabled()
+    {
+        return Boolean.parseBoolean(getProperties().getProperty("visualiser")
+                                                   .trim());
+    }
+
+    /**
+     * Obtains how many times a second the spectrum visualiser is updated.
+     *
+     * @return The frame rate, between 1 and 60.
+     */
+    public static int getVisualiserFps()
+    {
+        return Math.min(60, getMillis("visualiserFps", 30));
+    }
+
+    /**
+     * Obtains how many songs are decoded at once when rendering the queue to
+     * a file. Each one holds a few seconds of audio in memory while it waits
+     * to be mixed.
+     *
+     * @return The number of songs to decode at once.
+     */
+    public static int getRenderThreads()
+    {
+        return getMillis("renderThreads", 4);
+    }
+
+    /**
+     * Obtains the port the built-in player streams what it plays on over
+     * HTTP, so that it can be heard elsewhere. This is only used when VLC is
+     * not installed, or when streaming or recording is turned on.
+     *
+     * @return The port, or 0 if streaming is turned off.
+     */
+    public static int getStreamPort()
+    {
+        try
+        {
+            int port = Integer.parseInt(getProperties()
+                    .getProperty("streamPort").trim());
+            if (port >= 0 && port <= 65535)
+            {
+                return port;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid streamPort {}", getProperties()
+                    .getProperty("streamPort"), e);
+        }
+        return 0;
+    }
+
+    /**
+     * Obtains the WAV file the built-in player records what it plays to.
+     * This is only used when VLC is not installed, or when streaming or
+     * recording is turned on.
+     *
+     * @return The file, or null if recording is turned off.
+     */
+    public static File getRecordFile()
+    {
+        String file = getProperties().getProperty("recordFile").trim();
+        return file.isEmpty() ? null : new File(file);
+    }
+
+    /**
+     * Obtains how far a network stream or recording may fall behind what
+     * the built-in player is playing before audio is skipped for it.
+     *
+     * @return The time, in milliseconds.
+     */
+    public static int getSinkBacklogMillis()
+    {
+        return getMillis("sinkBacklogMillis", 2000);
+    }
+
+    /**
+     * Reads a setting holding a positive number of milliseconds.
+     *
+     * @param property     - The name of the setting.
+     * @param defaultValue - The value to use if the setting is invalid.
+     * @return The value of the setting.
+     */
+    private static int getMillis(String property, int defaultValue)
+    {
+        try
+        {
+            int value = Integer.parseInt(getProperties().getProperty(property)
+                                                        .trim());
+            if (value > 0)
+            {
+                return value;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            logger.error("Invalid {} {}", property, getProperties()
+                    .getProperty(property), e);
+        }
+        return defaultValue;
+    }
+
     /**
      * Checks to see whether a file should be scanned.
      *
@@ -13,6 +13,10 @@ import java.util.EventObject;
 public class PlaybackInfo implements Serializable
 {
     private final Song currentSong;
+    /**
+     * The database ID of the song playing, or 0 if it is not known.
+     */
+    private final int songId;
     /**
      * The time we are currently at in the song, in seconds.
      */
@@ -26,6 +30,7 @@ public class PlaybackInfo implements Serializable
     public PlaybackInfo(Song song, float playTime, PlaybackStatus status)
     {
         this.currentSong = song;
+        this.songId = song != null ? song.id : 0;
         this.playTime = playTime;
         this.status = status;
     }
@@ -40,6 +45,18 @@ public class PlaybackInfo implements Serializable
         return this.currentSong;
     }
     
+    /**
+     * Obtains the ID of the song currently playing. Players that cannot
+     * report the song themselves (such as the browser) echo back the ID they
+     * were given when the song was loaded.
+     *
+     * @return The database ID of the song, or 0 if it is not known.
+     */
+    public int getSongId()
+    {
+        return this.songId;
+    }
+    
     /**
      * Obtains the current play time.
      *
@@ -65,7 +82,8 @@ public class PlaybackInfo implements Serializable
     public String toString()
     {
         return "PlaybackInfo{" +
-                "playTime=" + playTime +
+                "songId=" + songId +
+                ", playTime=" + playTime +
                 ", status=" + status +
                 ", currentSong=" + currentSong +
                 '}';
@@ -20,6 +20,11 @@ public class CommandLoadSong implements BrowserCommand
      * The song to load.
      */
     private URL song;
+    /**
+     * The database ID of the song to load. The browser includes this in the
+     * playback updates it sends back.
+     */
+    private int songId;
     
     /**
      * Used for serialization only. Do not use.
@@ -39,6 +44,18 @@ public class CommandLoadSong implements BrowserCommand
         this.song = song;
     }
     
+    /**
+     * Tells the browser to load a song.
+     *
+     * @param song   - The song to load.
+     * @param songId - The database ID of the song.
+     */
+    public CommandLoadSong(URL song, int songId)
+    {
+        this.song = song;
+        this.songId = songId;
+    }
+    
     /**
      * Tells the browser to load a song.
      *
@@ -64,4 +81,14 @@ public class CommandLoadSong implements BrowserCommand
     {
         return this.song;
     }
+    
+    /**
+     * Obtains the database ID of the song that is to be loaded.
+     *
+     * @return - The song ID, or 0 if it was not provided.
+     */
+    public int getSongId()
+    {
+        return this.songId;
+    }
 }
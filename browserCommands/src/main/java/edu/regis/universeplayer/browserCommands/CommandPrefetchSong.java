@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.browserCommands;
+
+import java.net.URL;
+
+/**
+ * This command tells the browser to open a song in a muted background tab
+ * ahead of time. If a later {@link CommandLoadSong} asks for the same song,
+ * the browser switches to that tab instead of loading the page again.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class CommandPrefetchSong implements BrowserCommand
+{
+    /**
+     * The song to prefetch.
+     */
+    private URL song;
+    /**
+     * The database ID of the song to prefetch.
+     */
+    private int songId;
+
+    /**
+     * Used for serialization only. Do not use.
+     */
+    public CommandPrefetchSong()
+    {
+
+    }
+
+    /**
+     * Tells the browser to prefetch a song.
+     *
+     * @param song   - The song to prefetch, or null to close any tab already
+     *               prefetched.
+     * @param songId - The database ID of the song.
+     */
+    public CommandPrefetchSong(URL song, int songId)
+    {
+        this.song = song;
+        this.songId = songId;
+    }
+
+    @Override
+    public String getCommandName()
+    {
+        return "prefetchSong";
+    }
+
+    /**
+     * Obtains the song that is to be prefetched.
+     *
+     * @return - The song, or null if the prefetched tab should be closed.
+     */
+    public URL getSong()
+    {
+        return this.song;
+    }
+
+    /**
+     * Obtains the database ID of the song that is to be prefetched.
+     *
+     * @return - The song ID, or 0 if it was not provided.
+     */
+    public int getSongId()
+    {
+        return this.songId;
+    }
+}
@@ -5,21 +5,113 @@
 package edu.regis.universeplayer.data;
 
 import java.io.Serializable;
+import java.text.CollationKey;
 import java.util.Arrays;
 import java.util.Objects;
 
 import javax.swing.ImageIcon;
 
+/**
+ * Contains data for an album. Albums can not be changed once they are created,
+ * so they may be freely shared between threads. Use {@link #toBuilder()} to
+ * create a modified copy.
+ */
 public class Album implements Comparable<Album>, Serializable
 {
-    public int id;
-    public String name;
-    public String[] artists;
-    public transient ImageIcon art;
-    public int year;
-    public String[] genres;
-    public int totalTracks;
-    public int totalDiscs;
+    /**
+     * The internal ID representing this album in the database. This is
+     * assigned by the album provider when the album is first written and
+     * never changes afterwards. A value of 0 means that the album has not been
+     * stored.
+     */
+    public final int id;
+    public final String name;
+    /**
+     * The album artists. The array is shared between copies of the album and
+     * must not be modified.
+     */
+    public final String[] artists;
+    public final transient ImageIcon art;
+    public final int year;
+    /**
+     * The album genres. The array is shared between copies of the album and
+     * must not be modified.
+     */
+    public final String[] genres;
+    public final int totalTracks;
+    public final int totalDiscs;
+
+    /**
+     * A cache of the sort key for the album name.
+     */
+    private transient CollationKey nameKey;
+
+    /**
+     * Creates an album from the contents of a builder.
+     *
+     * @param builder - The builder containing the album data.
+     */
+    protected Album(Builder builder)
+    {
+        this.id = builder.id;
+        this.name = builder.name;
+        this.artists = builder.artists;
+        this.art = builder.art;
+        this.year = builder.year;
+        this.genres = builder.genres;
+        this.totalTracks = builder.totalTracks;
+        this.totalDiscs = builder.totalDiscs;
+    }
+
+    /**
+     * Creates a builder initialized with the contents of this album.
+     *
+     * @return A new builder.
+     */
+    public Builder toBuilder()
+    {
+        return new Builder(this);
+    }
+
+    /**
+     * Creates a copy of this album with a different database ID.
+     *
+     * @param id - The new ID.
+     * @return The new album.
+     */
+    public Album withId(int id)
+    {
+        return this.toBuilder().setId(id).build();
+    }
+
+    /**
+     * Obtains the key this album is sorted by. The key is generated the first
+     * time it is needed.
+     *
+     * @return The sort key for the album name, or null if the album has no
+     * name.
+     */
+    public CollationKey getSortKey()
+    {
+        CollationKey key = this.nameKey;
+        if (key == null && this.name != null)
+        {
+            this.nameKey = key = Collation.getKey(this.name);
+        }
+        return key;
+    }
+
+    /**
+     * Checks whether this album contains the same information as another,
+     * regardless of whether either has been stored.
+     *
+     * @param album - The album to compare to.
+     * @return True if every field but the ID matches.
+     */
+    public boolean hasSameData(Album album)
+    {
+        return album != null && year == album.year && totalTracks == album.totalTracks && totalDiscs == album.totalDiscs && Objects.equals(name, album.name) && Arrays.equals(artists, album.artists) && Arrays.equals(genres, album.genres);
+    }
 
     @Override
     public boolean equals(Object o)
@@ -32,12 +124,20 @@ public class Album implements Comparable<Album>, Serializable
         {
             return false;
         }
-        return year == album.year && totalTracks == album.totalTracks && totalDiscs == album.totalDiscs && name.equals(album.name) && Arrays.equals(artists, album.artists) && Arrays.equals(genres, album.genres);
+        if (this.id != 0 || album.id != 0)
+        {
+            return this.id == album.id;
+        }
+        return this.hasSameData(album);
     }
 
     @Override
     public int hashCode()
     {
+        if (this.id != 0)
+        {
+            return this.id;
+        }
         int result = Objects.hash(name, year, totalTracks, totalDiscs);
         result = 31 * result + Arrays.hashCode(artists);
         result = 31 * result + Arrays.hashCode(genres);
@@ -55,7 +155,7 @@ public class Album implements Comparable<Album>, Serializable
             }
             else
             {
-                return this.name.compareToIgnoreCase(o.name);
+                return this.getSortKey().compareTo(o.getSortKey());
             }
         }
         else
@@ -97,4 +197,116 @@ public class Album implements Comparable<Album>, Serializable
 //                ", artists=" + Arrays.toString(artists) +
 //                '}';
     }
+
+    /**
+     * Used to create albums, since an album can not be changed once it is
+     * created.
+     */
+    public static class Builder
+    {
+        private int id;
+        private String name;
+        private String[] artists;
+        private ImageIcon art;
+        private int year;
+        private String[] genres;
+        private int totalTracks;
+        private int totalDiscs;
+
+        /**
+         * Creates an empty builder.
+         */
+        public Builder()
+        {
+        }
+
+        /**
+         * Creates a builder initialized with the contents of an album.
+         *
+         * @param album - The album to copy.
+         */
+        public Builder(Album album)
+        {
+            this.id = album.id;
+            this.name = album.name;
+            this.artists = album.artists;
+            this.art = album.art;
+            this.year = album.year;
+            this.genres = album.genres;
+            this.totalTracks = album.totalTracks;
+            this.totalDiscs = album.totalDiscs;
+        }
+
+        public Builder setId(int id)
+        {
+            this.id = id;
+            return this;
+        }
+
+        public Builder setName(String name)
+        {
+            this.name = name;
+            return this;
+        }
+
+        /**
+         * Sets the album artists. The array is copied, so the caller may
+         * continue to use it.
+         *
+         * @param artists - The album artists.
+         * @return This builder.
+         */
+        public Builder setArtists(String... artists)
+        {
+            this.artists = artists != null ? artists.clone() : null;
+            return this;
+        }
+
+        public Builder setArt(ImageIcon art)
+        {
+            this.art = art;
+            return this;
+        }
+
+        public Builder setYear(int year)
+        {
+            this.year = year;
+            return this;
+        }
+
+        /**
+         * Sets the album genres. The array is copied, so the caller may
+         * continue to use it.
+         *
+         * @param genres - The album genres.
+         * @return This builder.
+         */
+        public Builder setGenres(String... genres)
+        {
+            this.genres = genres != null ? genres.clone() : null;
+            return this;
+        }
+
+        public Builder setTotalTracks(int totalTracks)
+        {
+            this.totalTracks = totalTracks;
+            return this;
+        }
+
+        public Builder setTotalDiscs(int totalDiscs)
+        {
+            this.totalDiscs = totalDiscs;
+            return this;
+        }
+
+        /**
+         * Creates the album.
+         *
+         * @return A new album.
+         */
+        public Album build()
+        {
+            return new Album(this);
+        }
+    }
 }
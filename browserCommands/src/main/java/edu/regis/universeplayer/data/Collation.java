@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import java.text.CollationKey;
+import java.text.Collator;
+
+/**
+ * Provides the locale-aware sort keys used to order albums and songs.
+ * Comparing two {@link CollationKey}s is a simple byte comparison, so callers
+ * are expected to generate a key once and keep it rather than comparing the
+ * strings themselves.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class Collation
+{
+    /**
+     * The collator used for all sort keys. Secondary strength ignores case
+     * but still separates accented letters.
+     */
+    private static final Collator COLLATOR;
+
+    static
+    {
+        COLLATOR = Collator.getInstance();
+        COLLATOR.setStrength(Collator.SECONDARY);
+    }
+
+    private Collation()
+    {
+    }
+
+    /**
+     * Generates a sort key for some text.
+     *
+     * @param text - The text to generate a key for.
+     * @return The sort key, or null if the text is null.
+     */
+    public static CollationKey getKey(String text)
+    {
+        if (text == null)
+        {
+            return null;
+        }
+        synchronized (COLLATOR)
+        {
+            return COLLATOR.getCollationKey(text);
+        }
+    }
+
+    /**
+     * Compares two sort keys, placing null keys last.
+     *
+     * @param key1 - The first key.
+     * @param key2 - The second key.
+     * @return A negative number if the first key comes first, a positive
+     * number if the second key comes first, or 0 if they are equal.
+     */
+    public static int compare(CollationKey key1, CollationKey key2)
+    {
+        if (key1 == null)
+        {
+            return key2 == null ? 0 : 1;
+        }
+        else if (key2 == null)
+        {
+            return -1;
+        }
+        return key1.compareTo(key2);
+    }
+}
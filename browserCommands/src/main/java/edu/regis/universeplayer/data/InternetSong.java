@@ -14,6 +14,7 @@ import java.util.Objects;
 
 /**
  * An internet song is a specific type of song that is accessed from a webpage.
+ * Like all songs, it can not be changed once created.
  */
 public class InternetSong extends Song
 {
@@ -23,7 +24,36 @@ public class InternetSong extends Song
     /**
      * The location of the song.
      */
-    public URL location;
+    public final URL location;
+
+    /**
+     * Creates a song from the contents of a builder.
+     *
+     * @param builder - The builder containing the song data.
+     */
+    protected InternetSong(Builder builder)
+    {
+        super(builder);
+        this.location = builder.location;
+    }
+
+    @Override
+    public Builder toBuilder()
+    {
+        return new Builder(this);
+    }
+
+    @Override
+    public InternetSong withId(int id)
+    {
+        return this.toBuilder().setId(id).build();
+    }
+
+    @Override
+    public InternetSong withAlbum(Album album)
+    {
+        return this.toBuilder().setAlbum(album).build();
+    }
 
     @Override
     public boolean equals(Object o)
@@ -40,12 +70,16 @@ public class InternetSong extends Song
         {
             return false;
         }
-        return Objects.equals(location, that.location);
+        return this.id != 0 || Objects.equals(location, that.location);
     }
 
     @Override
     public int hashCode()
     {
+        if (this.id != 0)
+        {
+            return super.hashCode();
+        }
         return Objects.hash(super.hashCode(), location);
     }
 
@@ -73,4 +107,42 @@ public class InternetSong extends Song
         }
         return compare;
     }
+
+    /**
+     * Used to create internet songs.
+     */
+    public static class Builder extends Song.Builder<Builder>
+    {
+        protected URL location;
+
+        /**
+         * Creates an empty builder.
+         */
+        public Builder()
+        {
+        }
+
+        /**
+         * Creates a builder initialized with the contents of a song.
+         *
+         * @param song - The song to copy.
+         */
+        public Builder(InternetSong song)
+        {
+            super(song);
+            this.location = song.location;
+        }
+
+        public Builder setLocation(URL location)
+        {
+            this.location = location;
+            return this;
+        }
+
+        @Override
+        public InternetSong build()
+        {
+            return new InternetSong(this);
+        }
+    }
 }
@@ -9,27 +9,60 @@ import java.util.Arrays;
 import java.util.Objects;
 
 /**
- * This song represents a song found on the local file system.
+ * This song represents a song found on the local file system. Like all
+ * songs, it can not be changed once created.
  */
 public class LocalSong extends Song
 {
     /**
      * The file the song is stored at.
      */
-    public File file;
+    public final File file;
     /**
      * The format type the song is stored in.
      */
-    public String type;
+    public final String type;
     /**
      * The encoding format the song is recorded in.
      */
-    public String codec;
+    public final String codec;
     /**
      * The last modification time of this song file, as returned by {@link
      * File#lastModified()}.
      */
-    public long lastMod;
+    public final long lastMod;
+
+    /**
+     * Creates a song from the contents of a builder.
+     *
+     * @param builder - The builder containing the song data.
+     */
+    protected LocalSong(Builder builder)
+    {
+        super(builder);
+        this.file = builder.file;
+        this.type = builder.type;
+        this.codec = builder.codec;
+        this.lastMod = builder.lastMod;
+    }
+
+    @Override
+    public Builder toBuilder()
+    {
+        return new Builder(this);
+    }
+
+    @Override
+    public LocalSong withId(int id)
+    {
+        return this.toBuilder().setId(id).build();
+    }
+
+    @Override
+    public LocalSong withAlbum(Album album)
+    {
+        return this.toBuilder().setAlbum(album).build();
+    }
 
     @Override
     public boolean equals(Object o)
@@ -46,12 +79,16 @@ public class LocalSong extends Song
         {
             return false;
         }
-        return file.equals(localSong.file);
+        return this.id != 0 || Objects.equals(file, localSong.file);
     }
 
     @Override
     public int hashCode()
     {
+        if (this.id != 0)
+        {
+            return super.hashCode();
+        }
         return Objects.hash(super.hashCode(), file);
     }
 
@@ -68,4 +105,66 @@ public class LocalSong extends Song
         }
         return compare;
     }
+
+    /**
+     * Used to create local songs.
+     */
+    public static class Builder extends Song.Builder<Builder>
+    {
+        protected File file;
+        protected String type;
+        protected String codec;
+        protected long lastMod;
+
+        /**
+         * Creates an empty builder.
+         */
+        public Builder()
+        {
+        }
+
+        /**
+         * Creates a builder initialized with the contents of a song.
+         *
+         * @param song - The song to copy.
+         */
+        public Builder(LocalSong song)
+        {
+            super(song);
+            this.file = song.file;
+            this.type = song.type;
+            this.codec = song.codec;
+            this.lastMod = song.lastMod;
+        }
+
+        public Builder setFile(File file)
+        {
+            this.file = file;
+            return this;
+        }
+
+        public Builder setType(String type)
+        {
+            this.type = type;
+            return this;
+        }
+
+        public Builder setCodec(String codec)
+        {
+            this.codec = codec;
+            return this;
+        }
+
+        public Builder setLastMod(long lastMod)
+        {
+            this.lastMod = lastMod;
+            return this;
+        }
+
+        @Override
+        public LocalSong build()
+        {
+            return new LocalSong(this);
+        }
+    }
 }
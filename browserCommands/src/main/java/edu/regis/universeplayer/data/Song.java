@@ -5,44 +5,129 @@
 package edu.regis.universeplayer.data;
 
 import java.io.Serializable;
+import java.text.CollationKey;
 import java.util.Arrays;
 import java.util.Objects;
 
 /**
- * Contains data for a song.
+ * Contains data for a song. Songs can not be changed once they are created,
+ * so they may be freely shared between threads. Use {@link #toBuilder()} or
+ * one of the <code>with</code> methods to create a modified copy.
  */
 public class Song implements Comparable<Song>, Serializable
 {
     /**
-     * The internal ID representing this song in the database.
+     * The internal ID representing this song in the database. This is
+     * assigned by the song provider when the song is first written and never
+     * changes afterwards. A value of 0 means that the song has not been
+     * stored.
      */
-    public int id;
+    public final int id;
     /**
      * The name of the song.
      */
-    public String title;
+    public final String title;
     /**
-     * Artists who contributed to the song.
+     * Artists who contributed to the song. The array is shared between copies
+     * of the song and must not be modified.
      */
-    public String[] artists;
+    public final String[] artists;
     /**
      * Which track number in the album the song belongs to.
      */
-    public int trackNum;
+    public final int trackNum;
     /**
      * Which disc
      */
-    public int disc;
+    public final int disc;
     /**
      * How long the song is in milliseconds.
      */
-    public long duration;
+    public final long duration;
 
     /**
      * A reference to the album this song is part of.
      */
-    public Album album;
+    public final Album album;
 
+    /**
+     * A cache of the sort key for the song title.
+     */
+    private transient CollationKey titleKey;
+
+    /**
+     * Creates a song from the contents of a builder.
+     *
+     * @param builder - The builder containing the song data.
+     */
+    protected Song(Builder<?> builder)
+    {
+        this.id = builder.id;
+        this.title = builder.title;
+        this.artists = builder.artists;
+        this.trackNum = builder.trackNum;
+        this.disc = builder.disc;
+        this.duration = builder.duration;
+        this.album = builder.album;
+    }
+
+    /**
+     * Creates a builder initialized with the contents of this song. Any
+     * values that are not changed in the builder are shared with this song.
+     *
+     * @return A new builder.
+     */
+    public Builder<?> toBuilder()
+    {
+        return new Builder<>(this);
+    }
+
+    /**
+     * Creates a copy of this song with a different database ID.
+     *
+     * @param id - The new ID.
+     * @return The new song.
+     */
+    public Song withId(int id)
+    {
+        return this.toBuilder().setId(id).build();
+    }
+
+    /**
+     * Creates a copy of this song that belongs to a different album.
+     *
+     * @param album - The new album.
+     * @return The new song.
+     */
+    public Song withAlbum(Album album)
+    {
+        return this.toBuilder().setAlbum(album).build();
+    }
+
+    /**
+     * Obtains the key this song's title is sorted by. The key is generated
+     * the first time it is needed.
+     *
+     * @return The sort key for the title, or null if the song has no title.
+     */
+    public CollationKey getSortKey()
+    {
+        CollationKey key = this.titleKey;
+        if (key == null && this.title != null)
+        {
+            this.titleKey = key = Collation.getKey(this.title);
+        }
+        return key;
+    }
+
+    /**
+     * Checks whether two songs are the same. Stored songs are compared by
+     * their ID alone, so a song keeps its identity when its metadata is
+     * rescanned. Songs that have not been stored yet are compared by value.
+     *
+     * @param o - The object to compare to.
+     * @return True if both objects represent the same song.
+     */
     @Override
     public boolean equals(Object o)
     {
@@ -50,16 +135,25 @@ public class Song implements Comparable<Song>, Serializable
         {
             return true;
         }
-        if (!(o instanceof Song song))
+        if (o == null || this.getClass() != o.getClass())
         {
             return false;
         }
-        return trackNum == song.trackNum && disc == song.disc && title.equals(song.title) && Arrays.equals(artists, song.artists) && album.equals(song.album);
+        Song song = (Song) o;
+        if (this.id != 0 || song.id != 0)
+        {
+            return this.id == song.id;
+        }
+        return trackNum == song.trackNum && disc == song.disc && Objects.equals(title, song.title) && Arrays.equals(artists, song.artists) && Objects.equals(album, song.album);
     }
 
     @Override
     public int hashCode()
     {
+        if (this.id != 0)
+        {
+            return 31 * this.getClass().hashCode() + this.id;
+        }
         int result = Objects.hash(title, trackNum, disc, album);
         result = 31 * result + Arrays.hashCode(artists);
         return result;
@@ -81,10 +175,8 @@ public class Song implements Comparable<Song>, Serializable
                     comp = Integer.compare(this.trackNum, o.trackNum);
                     if (comp == 0)
                     {
-                        comp = this.title != null ?
-                                (o.title != null ?
-                                        this.title.compareTo(o.title) :
-                                        -1) : o.title != null ? 1 : 0;
+                        comp = Collation.compare(this.getSortKey(),
+                                o.getSortKey());
                     }
                 }
             }
@@ -128,4 +220,110 @@ public class Song implements Comparable<Song>, Serializable
 //                ", album=" + album +
 //                '}';
     }
+
+    /**
+     * Used to create songs, since a song can not be changed once it is
+     * created.
+     *
+     * @param <B> - The type of the builder, so that subclasses can chain
+     *            their own setters.
+     */
+    public static class Builder<B extends Builder<B>>
+    {
+        protected int id;
+        protected String title;
+        protected String[] artists;
+        protected int trackNum;
+        protected int disc;
+        protected long duration;
+        protected Album album;
+
+        /**
+         * Creates an empty builder.
+         */
+        public Builder()
+        {
+        }
+
+        /**
+         * Creates a builder initialized with the contents of a song.
+         *
+         * @param song - The song to copy.
+         */
+        public Builder(Song song)
+        {
+            this.id = song.id;
+            this.title = song.title;
+            this.artists = song.artists;
+            this.trackNum = song.trackNum;
+            this.disc = song.disc;
+            this.duration = song.duration;
+            this.album = song.album;
+        }
+
+        @SuppressWarnings("unchecked")
+        protected B self()
+        {
+            return (B) this;
+        }
+
+        public B setId(int id)
+        {
+            this.id = id;
+            return this.self();
+        }
+
+        public B setTitle(String title)
+        {
+            this.title = title;
+            return this.self();
+        }
+
+        /**
+         * Sets the song artists. The array is copied, so the caller may
+         * continue to use it.
+         *
+         * @param artists - The song artists.
+         * @return This builder.
+         */
+        public B setArtists(String... artists)
+        {
+            this.artists = artists != null ? artists.clone() : null;
+            return this.self();
+        }
+
+        public B setTrackNum(int trackNum)
+        {
+            this.trackNum = trackNum;
+            return this.self();
+        }
+
+        public B setDisc(int disc)
+        {
+            this.disc = disc;
+            return this.self();
+        }
+
+        public B setDuration(long duration)
+        {
+            this.duration = duration;
+            return this.self();
+        }
+
+        public B setAlbum(Album album)
+        {
+            this.album = album;
+            return this.self();
+        }
+
+        /**
+         * Creates the song.
+         *
+         * @return A new song.
+         */
+        public Song build()
+        {
+            return new Song(this);
+        }
+    }
 }
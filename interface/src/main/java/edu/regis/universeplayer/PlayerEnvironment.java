@@ -3,7 +3,9 @@ package edu.regis.universeplayer;
 import edu.regis.universeplayer.data.Queue;
 import edu.regis.universeplayer.data.*;
 import edu.regis.universeplayer.gui.Interface;
+import edu.regis.universeplayer.player.PlaybackClock;
 import edu.regis.universeplayer.player.PlayerManager;
+import edu.regis.universeplayer.player.QueueRenderer;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,9 +14,12 @@ import javax.swing.*;
 import java.io.*;
 import java.net.Socket;
 import java.util.*;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -34,6 +39,8 @@ public class PlayerEnvironment
 
     private static AlbumProvider ALBUMS_INSTANCE;
     private static SongProvider<?> SONGS_INSTANCE;
+    private static FacetIndex FACETS_INSTANCE;
+    private static QueueJournal JOURNAL_INSTANCE;
 
     public static AlbumProvider getAlbums()
     {
@@ -45,6 +52,11 @@ public class PlayerEnvironment
         return SONGS_INSTANCE;
     }
 
+    public static FacetIndex getFacets()
+    {
+        return FACETS_INSTANCE;
+    }
+
     /**
      * Initializes the various components, setting up listeners as needed.
      */
@@ -164,12 +176,6 @@ public class PlayerEnvironment
     {
         logger.info("Starting application {}", cmd);
 
-        /*
-         * Create a new thread to handle new instances of the player.
-         */
-        InstanceConnector connector = new InstanceConnector();
-        new Thread(connector, "InstanceConnector").start();
-
         /*
          * Initialize the song and album collections. Both of these will
          * automatically populate themselves upon construction on separate
@@ -180,57 +186,92 @@ public class PlayerEnvironment
                 new CompiledSongProvider(new LocalSongProvider(ALBUMS_INSTANCE),
                         new InternetSongProvider(ALBUMS_INSTANCE));
 
+        /*
+         * Rendering only needs the saved queue, so none of the players are
+         * started, and nothing listens for the current song changing.
+         */
+        if (cmd.hasOption("render"))
+        {
+            JOURNAL_INSTANCE = new QueueJournal(new File(ConfigManager
+                    .getDataDir(), "queue.journal"));
+            render(cmd, JOURNAL_INSTANCE, SONGS_INSTANCE, System.out);
+            System.exit(0);
+        }
+
+        /*
+         * Create a new thread to handle new instances of the player.
+         */
+        InstanceConnector connector = new InstanceConnector();
+        new Thread(connector, "InstanceConnector").start();
+        /*
+         * The facet index follows both collections as they are populated.
+         */
+        FACETS_INSTANCE = new FacetIndex(SONGS_INSTANCE);
+
         /*
          * Initializes the song queue and the various players used.
          */
         Queue queue = Queue.getInstance();
         PlayerManager playback = PlayerManager.getPlayers();
+        JOURNAL_INSTANCE = new QueueJournal(new File(ConfigManager
+                .getDataDir(), "queue.journal"));
         /*
          * Every time the queue triggers a change, this callback will tell the
-         * player manager to play the next one.
+         * player manager to play the next one. Playing a new song stops the
+         * old one by itself, unless the player already moved on to it
+         * without a gap. Skipping through several songs quickly only loads
+         * the last of them; the loads it replaces are cancelled.
          */
-        queue.addSongChangeListener(queue1 -> ForkJoinPool.commonPool().submit(() ->
+        queue.addSongChangeListener(queue1 ->
         {
-            ForkJoinTask<Void> command = PlayerManager.getPlayers()
-                    .stopSong();
-            if (command != null)
+            Song song = queue1.getCurrentSong();
+            CompletableFuture<Void> command = song == null ? PlayerManager
+                    .getPlayers().stopSong() : PlayerManager.getPlayers()
+                                                            .playSong(song);
+            command.whenComplete((result, e) ->
             {
-                command.join();
-                if (command.isCompletedAbnormally())
+                if (e instanceof CancellationException)
+                {
+                    return;
+                }
+                if (e != null)
                 {
-                    logger.error("Could not run command",
-                            command.getException());
+                    logger.error("Could not run command", e);
                     if (Interface.getInstance() != null)
                     {
                         JOptionPane
                                 .showMessageDialog(Interface.getInstance(),
-                                        command.getException(),
-                                        command.getException().getMessage(),
+                                        e, e.getMessage(),
                                         JOptionPane.ERROR_MESSAGE);
                     }
                 }
-            }
-            if (queue1.getCurrentSong() != null)
-            {
-                command =
-                        PlayerManager.getPlayers()
-                                .playSong(queue1.getCurrentSong());
-                command.join();
-                if (command.isCompletedAbnormally())
+                else if (song != null)
                 {
-                    logger.error("Could not run command",
-                            command.getException());
-                    if (Interface.getInstance() != null)
+                    /*
+                     * Pick up where we left off if this song was playing
+                     * when the program last closed.
+                     */
+                    float position = JOURNAL_INSTANCE.takeResumePosition(song);
+                    if (position > 0)
                     {
-                        JOptionPane
-                                .showMessageDialog(Interface.getInstance(),
-                                        command.getException(),
-                                        command.getException().getMessage(),
-                                        JOptionPane.ERROR_MESSAGE);
+                        PlayerManager.getPlayers().seek(position);
                     }
+                    PlayerManager.getPlayers().prefetch(queue1.getNextSong());
                 }
+            });
+        });
+        /*
+         * Keep the song prefetched for gapless playback in line with the
+         * queue as it is edited.
+         */
+        queue.addQueueChangeListener(event ->
+        {
+            if (PlayerManager.getPlayers().getCurrentSong() != null)
+            {
+                PlayerManager.getPlayers().prefetch(event.getSource()
+                                                         .getNextSong());
             }
-        }));
+        });
         /*
          * Whenever the playback manager finishes a song, this callback will
          * tell the queue to skip to the next song. This triggers the above
@@ -244,8 +285,42 @@ public class PlayerEnvironment
             {
                 Queue.getInstance().skipNext();
             }
+            else if (status.getInfo().getStatus() == PlaybackStatus.PLAYING ||
+                    status.getInfo().getStatus() == PlaybackStatus.PAUSED)
+            {
+                JOURNAL_INSTANCE.recordPosition(status.getInfo().getSong(),
+                        status.getInfo().getPlayTime());
+            }
         });
 
+        /*
+         * Players only send events when playback starts, stops, or pauses, so
+         * the position is saved by checking the clock instead.
+         */
+        AtomicLong lastUpdate = new AtomicLong();
+        Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "Position Journal");
+            thread.setDaemon(true);
+            return thread;
+        }).scheduleWithFixedDelay(() ->
+        {
+            Song song = playback.getCurrentSong();
+            PlaybackClock clock = playback.getClock();
+            if (song != null && clock != null && lastUpdate.getAndSet(clock
+                    .getUpdates()) != clock.getUpdates())
+            {
+                JOURNAL_INSTANCE.recordPosition(song, clock.getPosition());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        /*
+         * Bring back the queue from the last time the program ran. This
+         * happens as the song collections load, and is skipped if the
+         * arguments below change the queue first.
+         */
+        JOURNAL_INSTANCE.restore(queue, SONGS_INSTANCE);
+
         /*
          * Show the GUI, if necessary.
          */
@@ -269,10 +344,36 @@ public class PlayerEnvironment
         Runtime.getRuntime().addShutdownHook(new Thread(() ->
         {
             connector.stop();
+            JOURNAL_INSTANCE.close();
             PlayerManager.getPlayers().shutdownPlayers();
         }));
     }
 
+    /**
+     * Renders the saved queue to a file without starting any players. The
+     * queue is restored first, then changed by any other arguments given,
+     * and then rendered.
+     *
+     * @param cmd     - The arguments, including where to render to.
+     * @param journal - The journal holding the saved queue. It is closed
+     *                once the queue has been rendered.
+     * @param songs   - The collection to find the saved songs in.
+     * @param out     - Where to report progress to.
+     */
+    public static void render(CommandLine cmd, QueueJournal journal,
+                              SongProvider<?> songs, PrintStream out)
+    {
+        try
+        {
+            journal.restore(Queue.getInstance(), songs).join();
+            runArguments(cmd, out, System.in);
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
     private static Options setupCLIArgs()
     {
         if (OPTIONS == null)
@@ -285,6 +386,11 @@ public class PlayerEnvironment
                     .desc("Runs the player without a GUI.")
                     .build();
             OPTIONS.addOption(headless);
+            Option render = Option.builder().longOpt("render")
+                    .hasArg().argName("file")
+                    .desc("Renders the queue, with the crossfade and effects settings, to a WAV or FLAC file, then exits.")
+                    .build();
+            OPTIONS.addOption(render);
             Option help = Option.builder("h").longOpt("help")
                     .desc("Prints this help message.")
                     .build();
@@ -309,6 +415,10 @@ public class PlayerEnvironment
                     .hasArg().argName("time").desc("Seeks the player to the provided time, in seconds.")
                     .build();
             OPTIONS.addOption(seek);
+            Option speed = Option.builder().longOpt("speed")
+                    .hasArg().argName("rate").desc("Sets how fast songs play without changing their pitch, from 0.5 to 2. Defaults to 1.")
+                    .build();
+            OPTIONS.addOption(speed);
             Option clear = Option.builder("c").longOpt("clear")
                     .desc("Clears the queue before adding songs.")
                     .build();
@@ -425,6 +535,11 @@ public class PlayerEnvironment
                             .seek(Float.parseFloat(op.getValue()));
                     out.println("Seeking");
                 }
+                case "speed" -> {
+                    PlayerManager.getPlayers()
+                            .setSpeed(Float.parseFloat(op.getValue()));
+                    out.println("Changing speed");
+                }
                 case "clear" -> {
                     out.println("Clearing");
                     Queue.getInstance().clear();
@@ -468,9 +583,7 @@ public class PlayerEnvironment
                     out.println("Skipping to song");
                 }
                 case "status" -> {
-                    ForkJoinTask<PlaybackStatus> status =
-                            PlayerManager.getPlayers().getStatus();
-                    out.println(status.join());
+                    out.println(PlayerManager.getPlayers().getStatus().join());
                 }
                 case "song" -> {
                     Song song = PlayerManager.getPlayers().getCurrentSong();
@@ -592,13 +705,13 @@ public class PlayerEnvironment
                         }
                     }
 
-                    Album album = new Album();
-                    album.name = albumName;
-                    album.artists = artists;
-                    album.genres = genres;
-                    album.year = year;
-                    album.totalTracks = tracks;
-                    album.totalDiscs = discs;
+                    Album album = new Album.Builder().setName(albumName)
+                                                     .setArtists(artists)
+                                                     .setGenres(genres)
+                                                     .setYear(year)
+                                                     .setTotalTracks(tracks)
+                                                     .setTotalDiscs(discs)
+                                                     .build();
                     out.println(album.toString());
                 }
                 case "add" -> {
@@ -700,6 +813,10 @@ public class PlayerEnvironment
                     Queue.getInstance().addAll(songs);
                 }
             }
+            if (cmd.hasOption("render"))
+            {
+                renderQueue(new File(cmd.getOptionValue("render")), out);
+            }
         }
         catch (Throwable e)
         {
@@ -707,6 +824,24 @@ public class PlayerEnvironment
         }
     }
 
+    /**
+     * Renders the queue to a file, from the current song on, in the order
+     * it would play.
+     *
+     * @param file - The file to render to.
+     * @param out  - Where to report progress to.
+     * @throws IOException - Thrown if the file could not be written.
+     */
+    private static void renderQueue(File file, PrintStream out) throws IOException
+    {
+        QueueRenderer renderer = new QueueRenderer(file);
+        List<Song> songs = Queue.getInstance().getUpcoming();
+        out.println("Rendering " + songs.size() + " songs to " + file);
+        renderer.render(songs);
+        out.printf("Rendered %d songs, %.0f seconds of audio, at %.1f times real time%n",
+                renderer.getSongs(), renderer.getDuration(), renderer.getSpeed());
+    }
+
     /**
      * Prints command line arguments to the error console.
      */
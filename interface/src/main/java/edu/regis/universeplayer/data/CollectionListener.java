@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+/**
+ * A collection listener is used to tell others when an individual item within a
+ * provider's collection has been added, changed, or removed.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public interface CollectionListener
+{
+    /**
+     * Called when an item has been read from the database or written to it.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was added or changed.
+     */
+    <T> void onItemWritten(DataProvider<T> provider, T item);
+
+    /**
+     * Called when an item has been taken out of the collection.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was removed.
+     */
+    <T> void onItemRemoved(DataProvider<T> provider, T item);
+}
@@ -9,7 +9,7 @@ package edu.regis.universeplayer.data;
  */
 public enum CollectionType
 {
-    album(Album.class), artist(String.class), albumArtist(String.class), genre(String.class), year(Integer.class);
+    album(Album.class), artist(String.class), albumArtist(String.class), genre(String.class), year(Integer.class), codec(String.class);
 
     /**
      * The object class for this type.
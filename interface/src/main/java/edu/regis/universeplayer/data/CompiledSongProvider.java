@@ -14,9 +14,11 @@ import java.util.stream.Collectors;
  * @author William Hubbard
  * @version 0.1
  */
-public class CompiledSongProvider implements SongProvider<Song>, UpdateListener
+public class CompiledSongProvider implements SongProvider<Song>, UpdateListener, CollectionListener
 {
     private final LinkedList<UpdateListener> listeners = new LinkedList<>();
+    private final LinkedList<CollectionListener> collectionListeners =
+            new LinkedList<>();
 
     /**
      * A set of all providers we pull from
@@ -55,6 +57,7 @@ public class CompiledSongProvider implements SongProvider<Song>, UpdateListener
                 this.albums = provider.getAlbumProvider();
             }
             provider.addUpdateListener(this);
+            provider.addCollectionListener(this);
             triggerUpdateListeners();
         }
     }
@@ -67,6 +70,7 @@ public class CompiledSongProvider implements SongProvider<Song>, UpdateListener
     public void removeProvider(SongProvider<?> provider)
     {
         provider.removeUpdateListener(this);
+        provider.removeCollectionListener(this);
         this.providers.remove(provider);
     }
 
@@ -208,6 +212,24 @@ public class CompiledSongProvider implements SongProvider<Song>, UpdateListener
         this.listeners.remove(listener);
     }
 
+    @Override
+    public void addCollectionListener(CollectionListener listener)
+    {
+        synchronized (this.collectionListeners)
+        {
+            this.collectionListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeCollectionListener(CollectionListener listener)
+    {
+        synchronized (this.collectionListeners)
+        {
+            this.collectionListeners.remove(listener);
+        }
+    }
+
     /**
      * Triggers all update listeners.
      */
@@ -234,4 +256,54 @@ public class CompiledSongProvider implements SongProvider<Song>, UpdateListener
     {
         this.triggerUpdateListeners();
     }
+
+    /**
+     * Called when an item has been read from the database or written to it.
+     * This forwards the event from the underlying providers.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was added or changed.
+     */
+    @Override
+    public <T> void onItemWritten(DataProvider<T> provider, T item)
+    {
+        CollectionListener[] listeners;
+        if (item instanceof Song)
+        {
+            synchronized (this.collectionListeners)
+            {
+                listeners = this.collectionListeners
+                        .toArray(CollectionListener[]::new);
+            }
+            for (CollectionListener listener : listeners)
+            {
+                listener.onItemWritten(this, (Song) item);
+            }
+        }
+    }
+
+    /**
+     * Called when an item has been removed. This forwards the event from the
+     * underlying providers.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was removed.
+     */
+    @Override
+    public <T> void onItemRemoved(DataProvider<T> provider, T item)
+    {
+        CollectionListener[] listeners;
+        if (item instanceof Song)
+        {
+            synchronized (this.collectionListeners)
+            {
+                listeners = this.collectionListeners
+                        .toArray(CollectionListener[]::new);
+            }
+            for (CollectionListener listener : listeners)
+            {
+                listener.onItemRemoved(this, (Song) item);
+            }
+        }
+    }
 }
@@ -70,4 +70,19 @@ public interface DataProvider<T>
      * @param listener - The listener to remove.
      */
     void removeUpdateListener(UpdateListener listener);
+
+    /**
+     * Adds a listener for individual items being added to or changed within
+     * the collection.
+     *
+     * @param listener - The listener to add.
+     */
+    void addCollectionListener(CollectionListener listener);
+
+    /**
+     * Removes a listener for collection changes.
+     *
+     * @param listener - The listener to remove.
+     */
+    void removeCollectionListener(CollectionListener listener);
 }
@@ -48,4 +48,24 @@ public class DatabaseManager
         }
         return db;
     }
+    
+    /**
+     * Closes the database connection, if it is open. The next call to {@link
+     * #getDb()} opens it again, in the data directory current at that time.
+     */
+    public static synchronized void close()
+    {
+        try
+        {
+            if (db != null)
+            {
+                db.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            logger.error("Could not close the database", e);
+        }
+        db = null;
+    }
 }
@@ -11,23 +11,36 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.Formatter;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 import java.util.regex.Pattern;
 
 /**
  * A default data provider that pulls information from a database.
+ * <p>
+ * Every table managed by a provider has an integer "id" column as its primary
+ * key. These surrogate keys are handed out when an item is first written and
+ * are kept from then on, so they can be used to refer to items across the
+ * database, queue, and browser messages. The first property returned by
+ * {@link #serializeItem(Object)} is the item's natural key (such as a file
+ * path), and is used to match an item to the row it was stored in.
+ * </p>
  */
 public abstract class DatabaseProvider<T> implements DataProvider<T>
 {
@@ -38,12 +51,33 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
 
     protected final ForkJoinPool service = new ForkJoinPool();
     private final LinkedList<UpdateListener> listeners = new LinkedList<>();
+    private final LinkedList<CollectionListener> collectionListeners =
+            new LinkedList<>();
 
     private final AtomicInteger progress = new AtomicInteger(0);
     private final AtomicInteger updating = new AtomicInteger(0);
-    private String updateItem;
+    private volatile String updateItem;
 
-    private final HashSet<T> collection = new HashSet<>();
+    /**
+     * The name of the surrogate key column.
+     */
+    protected static final String ID_COLUMN = "id";
+
+    /**
+     * Maps each item's natural key to the item. Items are never changed once
+     * they are stored here; updates replace the mapping instead, so readers
+     * always see either the old or the new version of an item.
+     */
+    private final ConcurrentHashMap<String, T> items =
+            new ConcurrentHashMap<>();
+    /**
+     * The last ID handed out, or -1 if we have not checked the table yet.
+     */
+    private final AtomicInteger lastId = new AtomicInteger(-1);
+    /**
+     * Whether the table has been created and migrated as needed.
+     */
+    private volatile boolean tableReady = false;
 
     public DatabaseProvider()
     {
@@ -86,17 +120,15 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
     @Override
     public String getUpdateText()
     {
-        synchronized (this.collection)
+        String updateItem = this.updateItem;
+        if (updateItem != null)
         {
-            if (this.updateItem != null)
-            {
-                return new Formatter().format(langs.getString("update" +
-                        ".database"), this.updateItem).toString();
-            }
-            else
-            {
-                return null;
-            }
+            return new Formatter().format(langs.getString("update" +
+                    ".database"), updateItem).toString();
+        }
+        else
+        {
+            return null;
         }
     }
 
@@ -129,6 +161,71 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
                         .getTotalUpdates(), this.getUpdateText()));
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * As with update listeners, these are triggered from whichever thread
+     * wrote the item.
+     * </p>
+     *
+     * @param listener - The listener to add.
+     */
+    @Override
+    public void addCollectionListener(CollectionListener listener)
+    {
+        synchronized (this.collectionListeners)
+        {
+            this.collectionListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeCollectionListener(CollectionListener listener)
+    {
+        synchronized (this.collectionListeners)
+        {
+            this.collectionListeners.remove(listener);
+        }
+    }
+
+    /**
+     * Tells all collection listeners that an item has been added or changed.
+     *
+     * @param item - The item in question.
+     */
+    protected void triggerCollectionListeners(T item)
+    {
+        CollectionListener[] listeners;
+        synchronized (this.collectionListeners)
+        {
+            listeners = this.collectionListeners
+                    .toArray(CollectionListener[]::new);
+        }
+        for (CollectionListener listener : listeners)
+        {
+            listener.onItemWritten(this, item);
+        }
+    }
+
+    /**
+     * Tells all collection listeners that an item has been removed.
+     *
+     * @param item - The item in question.
+     */
+    protected void triggerRemovalListeners(T item)
+    {
+        CollectionListener[] listeners;
+        synchronized (this.collectionListeners)
+        {
+            listeners = this.collectionListeners
+                    .toArray(CollectionListener[]::new);
+        }
+        for (CollectionListener listener : listeners)
+        {
+            listener.onItemRemoved(this, item);
+        }
+    }
+
     /**
      * Obtains the name of
      *
@@ -153,34 +250,194 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
      * ResultSet#next()}!
      *
      * @param result The result that is read from.
+     * @return The item read, or null if the row should be left out of the
+     * collection.
      */
     protected abstract T readResult(ResultSet result) throws SQLException;
 
     /**
-     * Called to obtain the properties of an object to write.
+     * Called when an existing table is opened for the first time, so that
+     * columns added since the table was created can be added to it. The
+     * caller holds the lock on the database.
+     *
+     * @param state   - The statement to run commands through.
+     * @param table   - The name of the table.
+     * @param columns - The columns currently in the table, besides the ID.
+     */
+    protected void migrateTable(Statement state, String table,
+                                Collection<String> columns) throws SQLException
+    {
+    }
+
+    /**
+     * Called to obtain the properties of an object to write. The surrogate ID
+     * should not be included.
      *
      * @param item - The item to serialize.
-     * @return Properties to write.
+     * @return Properties to write. The first property must uniquely identify
+     * the item.
      */
     protected abstract Map<String, Object> serializeItem(T item);
 
     /**
-     * Adds an item to the database.
+     * Obtains the surrogate ID of an item.
+     *
+     * @param item - The item to read.
+     * @return The ID of the item, or 0 if it has not been assigned one.
+     */
+    protected abstract int getId(T item);
+
+    /**
+     * Creates a copy of an item with a surrogate ID assigned.
+     *
+     * @param item - The item to copy.
+     * @param id   - The ID to assign.
+     * @return The copy with the ID assigned.
+     */
+    protected abstract T withId(T item, int id);
+
+    /**
+     * Adds an item to the database. If the item has not been given an ID yet,
+     * a copy of it takes on the ID of the stored item it replaces, or a new
+     * one if there is no such item. The stored item replaces the old one in
+     * the collection immediately, and can be retrieved with {@link
+     * #getItem(String)}.
+     * <p>
+     * If the collection is still being read from the database, this waits
+     * for it to finish, so that an item already in the table is not given a
+     * second ID.
+     * </p>
      *
      * @param item - The item to write.
+     * @return A future that completes once the item is in the database,
+     * returning the stored item.
      */
     public final Future<T> writeItem(T item)
     {
-        synchronized (this.collection)
-        {
-//            logger.debug("Writing {}", item);
-            this.collection.add(item);
-        }
-        WriterAction action = new WriterAction(item);
+        String key = this.getNaturalKey(item);
+        T stored;
+        this.awaitLoad();
+        /*
+         * The ID is picked while the key is locked, so two writers of the
+         * same new item cannot both take a new ID.
+         */
+        stored = this.items.compute(key, (k, existing) -> this.getId(item) !=
+                0 ? item : this.withId(item, existing != null ? this
+                .getId(existing) : this.nextId()));
+//        logger.debug("Writing {}", stored);
+        triggerCollectionListeners(stored);
+        WriterAction action = new WriterAction(stored);
         service.execute(action);
         return action;
     }
 
+    /**
+     * Waits for the collection to be read from the database. This returns
+     * right away on the thread doing the reading, which may write items
+     * itself.
+     */
+    private void awaitLoad()
+    {
+        /*
+         * The reader keeps hold of the lock while the tasks from onComplete
+         * run, and those write items, so only take it if there is something
+         * to wait for. Subclasses count their scans in isUpdating(), so the
+         * load is checked on its own.
+         */
+        if (this.updating.get() == 0 || Thread.holdsLock(this.updating))
+        {
+            return;
+        }
+        synchronized (this.updating)
+        {
+            while (this.updating.get() != 0)
+            {
+                try
+                {
+                    this.updating.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Obtains a stored item by its natural key.
+     *
+     * @param key - The natural key of the item, being the first property
+     *            returned by {@link #serializeItem(Object)} as a string.
+     * @return The current version of the item, or null if there is none.
+     */
+    protected final T getItem(String key)
+    {
+        return this.items.get(key);
+    }
+
+    /**
+     * Adds an item to the collection without writing it to the database. This
+     * is meant for items whose row is already up to date.
+     *
+     * @param item - The item to add. It must already have an ID.
+     */
+    protected final void putItem(T item)
+    {
+        this.items.put(this.getNaturalKey(item), item);
+        triggerCollectionListeners(item);
+    }
+
+    /**
+     * Takes an item out of the collection without touching the database.
+     *
+     * @param key - The natural key of the item.
+     * @return The item removed, or null if there was none.
+     */
+    protected final T removeItem(String key)
+    {
+        T item = this.items.remove(key);
+        if (item != null)
+        {
+            triggerRemovalListeners(item);
+        }
+        return item;
+    }
+
+    /**
+     * Replaces stored items in memory without writing them to the database.
+     * This is meant for changes to things the item refers to, rather than to
+     * the item's own columns.
+     *
+     * @param filter  - Selects which items to replace.
+     * @param replace - Creates the replacement for an item. The replacement
+     *                must have the same natural key.
+     */
+    protected final void replaceItems(Predicate<T> filter,
+                                      UnaryOperator<T> replace)
+    {
+        for (Map.Entry<String, T> entry : this.items.entrySet())
+        {
+            T item = entry.getValue();
+            if (filter.test(item))
+            {
+                T replacement = replace.apply(item);
+                /*
+                 * Items are equal to any other version with the same ID, so
+                 * check that this exact version is still the stored one.
+                 * Otherwise, it was written over while the replacement was
+                 * made, and the newer version wins.
+                 */
+                if (this.items.computeIfPresent(entry.getKey(), (key, stored) ->
+                        stored == item ? replacement : stored) == replacement)
+                {
+                    triggerCollectionListeners(replacement);
+                }
+            }
+        }
+    }
+
     /**
      * Converts a piece of data into a string that will display in the update
      * text.
@@ -201,6 +458,115 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
      */
     protected abstract ForkJoinTask[] onComplete();
 
+    /**
+     * Obtains the natural key of an item, being the first property it
+     * serializes.
+     *
+     * @param item - The item to read.
+     * @return The natural key of the item, as a string.
+     */
+    private String getNaturalKey(T item)
+    {
+        return String.valueOf(this.serializeItem(item).values().stream()
+                                  .findFirst().orElse(null));
+    }
+
+    /**
+     * Hands out a new surrogate ID, reading the highest ID already stored the
+     * first time this is called.
+     *
+     * @return A new ID.
+     */
+    private int nextId()
+    {
+        if (this.lastId.get() < 0)
+        {
+            synchronized (DatabaseManager.getDb())
+            {
+                try (Statement state = DatabaseManager.getDb()
+                                                      .createStatement())
+                {
+                    this.ensureTable(state, getDatabaseTable());
+                    ResultSet result = state.executeQuery("SELECT max(" +
+                            ID_COLUMN + ") FROM " + getDatabaseTable() + ";");
+                    this.lastId.accumulateAndGet(result.next() ?
+                            result.getInt(1) : 0, Math::max);
+                }
+                catch (SQLException e)
+                {
+                    logger.error("Could not read the last ID from {}",
+                            getDatabaseTable(), e);
+                    this.lastId.accumulateAndGet(0, Math::max);
+                }
+            }
+        }
+        return this.lastId.incrementAndGet();
+    }
+
+    /**
+     * Makes sure that the table exists and has a surrogate key column,
+     * copying the data of older tables into a new one if needed. The caller
+     * must hold the lock on the database.
+     *
+     * @param state - The statement to run commands through.
+     * @param table - The name of the table.
+     * @return True if the table already existed.
+     */
+    private boolean ensureTable(Statement state, String table) throws SQLException
+    {
+        ResultSet result;
+        LinkedList<String> columns = new LinkedList<>();
+        boolean hasId = false;
+        String columnList;
+
+        result = state.executeQuery("SELECT name FROM sqlite_master" +
+                " WHERE type='table' AND name='" + table + "';");
+        if (!result.next())
+        {
+            createDatabaseTable(state, table);
+            this.tableReady = true;
+            return false;
+        }
+        if (this.tableReady)
+        {
+            return true;
+        }
+        result = state.executeQuery("PRAGMA table_info(" + table + ");");
+        while (result.next())
+        {
+            if (result.getString("name").equalsIgnoreCase(ID_COLUMN))
+            {
+                hasId = true;
+            }
+            else
+            {
+                columns.add(result.getString("name"));
+            }
+        }
+        if (!hasId)
+        {
+            /*
+             * Tables from before surrogate keys were introduced. The old row
+             * IDs become the new keys.
+             */
+            logger.info("Adding surrogate keys to the {} table.", table);
+            columnList = String.join(", ", columns);
+            state.executeUpdate("ALTER TABLE " + table + " RENAME TO " +
+                    table + "_old;");
+            createDatabaseTable(state, table);
+            state.executeUpdate("INSERT INTO " + table + " (" + ID_COLUMN +
+                    ", " + columnList + ") SELECT rowid, " + columnList +
+                    " FROM " + table + "_old;");
+            state.executeUpdate("DROP TABLE " + table + "_old;");
+        }
+        else
+        {
+            this.migrateTable(state, table, columns);
+        }
+        this.tableReady = true;
+        return true;
+    }
+
     private void createDatabaseTable(Statement state, String table) throws SQLException
     {
         String rawStatement;
@@ -231,10 +597,7 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
     @Override
     public final Set<T> getCollection()
     {
-        synchronized (this.collection)
-        {
-            return new HashSet<>(this.collection);
-        }
+        return new HashSet<>(this.items.values());
     }
 
     private class WriterAction extends ForkJoinTask<T>
@@ -293,79 +656,70 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
         {
             ResultSet result;
             Statement state;
+            PreparedStatement prepState;
+            boolean update;
             String table = getDatabaseTable();
+            Map<String, Object> values = serializeItem(this.item);
 
-            this.string = serializeItem(this.item);
             String index =
-                    this.string.keySet().stream().findFirst().orElse(null);
-            Object indexValue = this.string.get(index);
+                    values.keySet().stream().findFirst().orElse(null);
+            Object indexValue = values.get(index);
+
+            this.string = new LinkedHashMap<>();
+            this.string.put(ID_COLUMN, getId(this.item));
+            this.string.putAll(values);
 
             synchronized (DatabaseManager.getDb())
             {
                 try
                 {
                     state = DatabaseManager.getDb().createStatement();
-                    result = state
-                            .executeQuery("SELECT name FROM sqlite_master" +
-                                    " WHERE type='table' AND name='" + table + "';");
-                    if (!result.next())
-                    {
-                        createDatabaseTable(state, table);
-                    }
-                    PreparedStatement prepState = DatabaseManager.getDb()
-                                                                 .prepareStatement(
-                                                                         "SELECT * FROM " + table + " WHERE " + index + " " +
-                                                                                 "= ?");
+                    ensureTable(state, table);
+                    prepState = DatabaseManager.getDb()
+                                               .prepareStatement(
+                                                       "SELECT " + ID_COLUMN + " FROM " + table + " WHERE " + index + " " +
+                                                               "= ?");
                     prepState.setObject(1, indexValue);
                     result = prepState.executeQuery();
-                    if (result.next())
+                    update = result.next();
+                    if (update)
                     {
                         logger.debug("Updating {}", this.string);
-                        this.string.forEach((key, value) -> {
-                            try
-                            {
-                                PreparedStatement prepState1 =
-                                        DatabaseManager.getDb()
-                                                       .prepareStatement(
-                                                               "UPDATE " + table + " SET " + key +
-                                                                       " = ? WHERE " +
-                                                                       index + " = ?");
-                                prepState1.setObject(1, indexValue);
-                                prepState1.setObject(2, value);
-                            }
-                            catch (SQLException throwables)
-                            {
-                                logger.error("Could not update " + key, throwables);
-                            }
-                        });
+                        prepState = DatabaseManager.getDb()
+                                                   .prepareStatement(
+                                                           "UPDATE " + table + " SET " +
+                                                                   String.join(" = ?, ", this.string
+                                                                           .keySet()) +
+                                                                   " = ? WHERE " + index + " = ?");
                     }
                     else
                     {
                         logger.debug("Inserting {}", this.string);
-                        AtomicInteger i = new AtomicInteger(1);
-                        PreparedStatement finalPrepState = DatabaseManager
-                                .getDb().prepareStatement(
-                                        "INSERT INTO " + table + " VALUES (?" + ", ?"
-                                                .repeat(this.string
-                                                        .size() - 1) +
-                                                ")");
-                        this.string.forEach((key, value) -> {
-                            try
-                            {
-                                finalPrepState
-                                        .setObject(i.getAndIncrement(), value);
-                            }
-                            catch (SQLException throwables)
-                            {
-                                logger.error("Could not update " + key, throwables);
-                            }
-                        });
-                        int count = finalPrepState.executeUpdate();
-                        if (count == 0)
-                        {
-                            logger.error("Failed to insert {}", this.string);
-                        }
+                        prepState = DatabaseManager.getDb()
+                                                   .prepareStatement(
+                                                           "INSERT INTO " + table + " (" +
+                                                                   String.join(", ", this.string
+                                                                           .keySet()) +
+                                                                   ") VALUES (?" + ", ?"
+                                                                   .repeat(this.string
+                                                                           .size() - 1) +
+                                                                   ")");
+                    }
+                    int i = 1;
+                    for (Object value : this.string.values())
+                    {
+                        prepState.setObject(i++, value);
+                    }
+                    if (update)
+                    {
+                        prepState.setObject(i, indexValue);
                     }
+                    int count = prepState.executeUpdate();
+                    if (count == 0)
+                    {
+                        logger.error("Failed to write {}", this.string);
+                    }
+                    state.close();
                 }
                 catch (Exception e)
                 {
@@ -421,14 +775,7 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
                     synchronized (DatabaseManager.getDb())
                     {
                         state = DatabaseManager.getDb().createStatement();
-                        result = state
-                                .executeQuery("SELECT name FROM sqlite_master" +
-                                        " WHERE type='table' AND name='" + table + "';");
-                        if (!result.next())
-                        {
-                            createDatabaseTable(state, table);
-                        }
-                        else
+                        if (ensureTable(state, table))
                         {
                             result = state
                                     .executeQuery("SELECT count(*) FROM " + table + ";");
@@ -439,12 +786,23 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
 
                             while (result.next())
                             {
+                                lastId.accumulateAndGet(result.getInt(ID_COLUMN),
+                                        Math::max);
                                 item = readResult(result);
-                                synchronized (collection)
+                                progress.incrementAndGet();
+                                if (item == null)
+                                {
+                                    continue;
+                                }
+                                updateItem = stringifyResult(item);
+                                /*
+                                 * Anything written while we were loading is
+                                 * newer than what is in the table.
+                                 */
+                                if (items.putIfAbsent(getNaturalKey(item),
+                                        item) == null)
                                 {
-                                    updateItem = stringifyResult(item);
-                                    collection.add(item);
-                                    progress.incrementAndGet();
+                                    triggerCollectionListeners(item);
                                 }
                                 triggerUpdateListeners();
                             }
@@ -459,7 +817,7 @@ public abstract class DatabaseProvider<T> implements DataProvider<T>
                 finally
                 {
                     logger.debug("Query complete, retrieved {} items",
-                            collection.size());
+                            items.size());
 
                     progress.set(0);
                     updating.set(0);
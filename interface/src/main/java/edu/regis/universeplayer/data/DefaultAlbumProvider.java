@@ -90,10 +90,7 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
     @Override
     public Album getAlbumByName(String name)
     {
-        return this.getCollection().stream()
-                   .filter(a -> a.name == null && name == null ||
-                           a.name != null && a.name.equals(name))
-                   .findFirst().orElse(null);
+        return this.getItem(String.valueOf(name));
     }
 
     /**
@@ -178,7 +175,8 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
     @Override
     protected String createDatabaseTable()
     {
-        return "CREATE TABLE albums (album TEXT PRIMARY KEY," +
+        return "CREATE TABLE albums (id INTEGER PRIMARY KEY," +
+                "album TEXT UNIQUE," +
                 "artists TEXT," +
                 "year INTEGER," +
                 "genres TEXT," +
@@ -198,10 +196,10 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
     @Override
     protected Album readResult(ResultSet result) throws SQLException
     {
-        Album album = new Album();
-        album.id = result.getRow();
-        album.name = result.getString("album");
-        album.artists =
+        Album.Builder album = new Album.Builder();
+        album.setId(result.getInt(ID_COLUMN));
+        album.setName(result.getString("album"));
+        album.setArtists(
                 Optional.ofNullable(result.getString("artists"))
                         .map(s -> s.split(";")).stream()
                         .mapMulti((BiConsumer<String[], Consumer<String>>) (strings, objectConsumer) -> {
@@ -212,9 +210,9 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
                                     objectConsumer.accept(string);
                                 }
                             }
-                        }).map(String::trim).toArray(String[]::new);
-        album.year = result.getInt("year");
-        album.genres =
+                        }).map(String::trim).toArray(String[]::new));
+        album.setYear(result.getInt("year"));
+        album.setGenres(
                 Optional.ofNullable(result.getString("genres"))
                         .map(s -> s.split(";")).stream()
                         .mapMulti((BiConsumer<String[], Consumer<String>>) (strings, objectConsumer) -> {
@@ -225,10 +223,10 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
                                     objectConsumer.accept(string);
                                 }
                             }
-                        }).map(String::trim).toArray(String[]::new);
-        album.totalTracks = result.getInt("tracks");
-        album.totalDiscs = result.getInt("discs");
-        return album;
+                        }).map(String::trim).toArray(String[]::new));
+        album.setTotalTracks(result.getInt("tracks"));
+        album.setTotalDiscs(result.getInt("discs"));
+        return album.build();
     }
 
     /**
@@ -252,6 +250,18 @@ public class DefaultAlbumProvider extends DatabaseProvider<Album> implements Alb
         return returnValue;
     }
 
+    @Override
+    protected int getId(Album item)
+    {
+        return item.id;
+    }
+
+    @Override
+    protected Album withId(Album item, int id)
+    {
+        return item.withId(id);
+    }
+
     /**
      * Converts a piece of data into a string that will display in the update
      * text.
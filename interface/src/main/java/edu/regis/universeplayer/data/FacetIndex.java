@@ -0,0 +1,780 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.CollationKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of every song by each of its browsable properties (album, artist,
+ * genre, year, and codec). Each song is given a dense integer id when it is
+ * first seen, and each facet value maps to a {@link SongBitmap} of those ids.
+ * Queries that combine several facets are then answered by intersecting
+ * bitmaps instead of filtering the entire collection.
+ * <p>
+ * The index keeps itself current by listening to the song and album
+ * providers, re-indexing a song every time it (or its album) is written.
+ * </p>
+ * <p>
+ * The index also keeps the ids presorted in each {@link SortOrder}, using
+ * sort keys generated once per song. Views can then walk the presorted ids,
+ * skipping those not in their filter, rather than sorting the songs again.
+ * </p>
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class FacetIndex implements CollectionListener
+{
+    private static final Logger logger =
+            LoggerFactory.getLogger(FacetIndex.class);
+    /**
+     * Filters holding fewer than one in this many songs are sorted by rank on
+     * their own, rather than picked out of the whole presorted order.
+     */
+    private static final int SMALL_FILTER = 8;
+
+    /**
+     * Maps each facet value to the songs that have it.
+     */
+    private final EnumMap<CollectionType, HashMap<Object, SongBitmap>> facets =
+            new EnumMap<>(CollectionType.class);
+    /**
+     * The songs indexed, where the index of each song is its id.
+     */
+    private final ArrayList<Song> songs = new ArrayList<>();
+    /**
+     * The facet values each song was last indexed under, by song id.
+     */
+    private final ArrayList<EnumMap<CollectionType, Set<Object>>> postings =
+            new ArrayList<>();
+    /**
+     * Links each song to its id. As songs are equal by their database key, a
+     * rescanned copy of a song maps to the same id as the original.
+     */
+    private final HashMap<Song, Integer> ids = new HashMap<>();
+    /**
+     * All of the songs indexed.
+     */
+    private final SongBitmap all = new SongBitmap();
+    /**
+     * The sort keys each song was last indexed with, by song id.
+     */
+    private final ArrayList<SongKey> keys = new ArrayList<>();
+    /**
+     * The song ids, presorted in each order.
+     */
+    private final EnumMap<SortOrder, SortedIds> orders =
+            new EnumMap<>(SortOrder.class);
+
+    private final LinkedList<FacetListener> listeners = new LinkedList<>();
+
+    /**
+     * Creates an index that follows the provided collection. Album changes
+     * reach the index through the songs, as the song providers replace every
+     * song of an album when that album is replaced.
+     *
+     * @param songs - The provider to index songs from.
+     */
+    public FacetIndex(DataProvider<? extends Song> songs)
+    {
+        for (CollectionType type : CollectionType.values())
+        {
+            this.facets.put(type, new HashMap<>());
+        }
+        for (SortOrder order : SortOrder.values())
+        {
+            this.orders.put(order, new SortedIds(order));
+        }
+        /*
+         * Attach the listeners before reading the existing collection, so that
+         * nothing written in between is missed. Indexing a song twice is
+         * harmless.
+         */
+        songs.addCollectionListener(this);
+        synchronized (this)
+        {
+            for (Song song : songs.getCollection())
+            {
+                this.index(song, false);
+            }
+            for (SortedIds order : this.orders.values())
+            {
+                order.rebuild(this.all);
+            }
+        }
+        logger.debug("Indexed {} songs", this.songs.size());
+    }
+
+    /**
+     * Obtains the values present for a facet.
+     *
+     * @param type - The facet to look up.
+     * @return Every value of that facet that at least one song has.
+     */
+    public synchronized Set<Object> getValues(CollectionType type)
+    {
+        return new HashSet<>(this.facets.get(type).keySet());
+    }
+
+    /**
+     * Obtains the songs matching a filter.
+     *
+     * @param filter - The values to filter by. A song matches if, for every
+     *               facet in the filter, it has at least one of the values
+     *               listed. Facets that are absent or empty are not
+     *               filtered on.
+     * @return A new bitmap of every matching song id.
+     */
+    public synchronized SongBitmap select(Map<CollectionType, ? extends Collection<?>> filter)
+    {
+        return this.select(filter, null);
+    }
+
+    /**
+     * Counts the songs with each of several values of a facet that match a
+     * filter. The facet being counted is left out of the filter, so that the
+     * counts of the other values of the same facet are unaffected by which of
+     * them are selected. The rest of the filter is only applied once for all
+     * of the values.
+     *
+     * @param type   - The facet being counted.
+     * @param values - The values being counted.
+     * @param filter - The current filter.
+     * @return The number of matching songs for each value, by the value as it
+     * was passed in.
+     */
+    public synchronized Map<Object, Integer> getCounts(CollectionType type, Collection<?> values,
+                                                        Map<CollectionType, ? extends Collection<?>> filter)
+    {
+        HashMap<Object, Integer> counts = new HashMap<>();
+        SongBitmap selected = this.select(filter, type);
+        SongBitmap bitmap;
+        for (Object value : values)
+        {
+            bitmap = this.facets.get(type).get(value);
+            counts.put(value, bitmap == null ? 0 : bitmap.andCardinality(selected));
+        }
+        return counts;
+    }
+
+    /**
+     * Obtains the songs with the given ids.
+     *
+     * @param ids - The song ids to obtain.
+     * @return A list of those songs, in id order.
+     */
+    public synchronized List<Song> getSongs(SongBitmap ids)
+    {
+        ArrayList<Song> songs = new ArrayList<>(ids.getCardinality());
+        ids.forEach(id -> songs.add(this.songs.get(id)));
+        return songs;
+    }
+
+    /**
+     * Obtains songs in sorted order.
+     *
+     * @param order  - The order to sort the songs in.
+     * @param filter - The ids of the songs to obtain.
+     * @return The songs in the filter, sorted.
+     */
+    public synchronized List<Song> getSorted(SortOrder order, SongBitmap filter)
+    {
+        SortedIds sorted = this.orders.get(order);
+        ArrayList<Song> songs = new ArrayList<>(filter.getCardinality());
+        int[] ranks;
+        int count = 0, rank;
+        if (filter.getCardinality() < sorted.size / SMALL_FILTER)
+        {
+            ranks = filter.toArray();
+            for (int id : ranks)
+            {
+                rank = sorted.getRank(id);
+                if (rank >= 0)
+                {
+                    ranks[count++] = rank;
+                }
+            }
+            Arrays.sort(ranks, 0, count);
+            for (int i = 0; i < count; i++)
+            {
+                songs.add(this.songs.get(sorted.ids[ranks[i]]));
+            }
+            return songs;
+        }
+        for (int i = 0; i < sorted.size; i++)
+        {
+            if (filter.contains(sorted.ids[i]))
+            {
+                songs.add(this.songs.get(sorted.ids[i]));
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Obtains the ids of a collection of songs. Songs that have not been
+     * indexed are left out.
+     *
+     * @param songs - The songs to look up.
+     * @return A new bitmap of the song ids.
+     */
+    public synchronized SongBitmap getIds(Collection<? extends Song> songs)
+    {
+        SongBitmap ids = new SongBitmap();
+        Integer id;
+        for (Song song : songs)
+        {
+            id = this.ids.get(song);
+            if (id != null)
+            {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Adds a listener for whenever the index changes.
+     *
+     * @param listener - The listener to add.
+     */
+    public void addFacetListener(FacetListener listener)
+    {
+        synchronized (this.listeners)
+        {
+            this.listeners.add(listener);
+        }
+    }
+
+    /**
+     * Removes a listener for whenever the index changes.
+     *
+     * @param listener - The listener to remove.
+     */
+    public void removeFacetListener(FacetListener listener)
+    {
+        synchronized (this.listeners)
+        {
+            this.listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Triggers all of the facet listeners.
+     */
+    protected void triggerFacetListeners()
+    {
+        FacetListener[] listeners;
+        synchronized (this.listeners)
+        {
+            listeners = this.listeners.toArray(FacetListener[]::new);
+        }
+        for (FacetListener listener : listeners)
+        {
+            listener.onFacetChange(this);
+        }
+    }
+
+    /**
+     * Called when a song or album is written, updating the index to match.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was added or changed.
+     */
+    @Override
+    public <T> void onItemWritten(DataProvider<T> provider, T item)
+    {
+        if (item instanceof Song)
+        {
+            synchronized (this)
+            {
+                this.index((Song) item, true);
+            }
+            this.triggerFacetListeners();
+        }
+    }
+
+    /**
+     * Called when a song is removed, taking it out of the index.
+     *
+     * @param provider - The provider that triggered the listener.
+     * @param item     - The item that was removed.
+     */
+    @Override
+    public <T> void onItemRemoved(DataProvider<T> provider, T item)
+    {
+        if (item instanceof Song)
+        {
+            synchronized (this)
+            {
+                this.unindex((Song) item);
+            }
+            this.triggerFacetListeners();
+        }
+    }
+
+    /**
+     * Intersects the union of each facet in the filter.
+     *
+     * @param filter - The filter to use.
+     * @param skip   - A facet to leave out of the filter. This may be null.
+     * @return A new bitmap of the matching ids.
+     */
+    private SongBitmap select(Map<CollectionType, ? extends Collection<?>> filter,
+                              CollectionType skip)
+    {
+        SongBitmap result = new SongBitmap(this.all);
+        SongBitmap union;
+        SongBitmap bitmap;
+        for (Map.Entry<CollectionType, ? extends Collection<?>> entry : filter
+                .entrySet())
+        {
+            if (entry.getKey() == skip || entry.getValue() == null || entry
+                    .getValue().isEmpty())
+            {
+                continue;
+            }
+            union = new SongBitmap();
+            for (Object value : entry.getValue())
+            {
+                bitmap = this.facets.get(entry.getKey()).get(value);
+                if (bitmap != null)
+                {
+                    union = union.or(bitmap);
+                }
+            }
+            result = result.and(union);
+        }
+        return result;
+    }
+
+    /**
+     * (Re)indexes a song. The caller must hold the lock on this index.
+     *
+     * @param song - The song to index.
+     * @param sort - Whether to put the song in the sort orders. When many
+     *             songs are indexed at once, it is much quicker to leave
+     *             this off and rebuild the orders afterwards.
+     */
+    private void index(Song song, boolean sort)
+    {
+        EnumMap<CollectionType, Set<Object>> previous;
+        EnumMap<CollectionType, Set<Object>> current = getFacetValues(song);
+        Integer id = this.ids.get(song);
+        SongBitmap bitmap;
+
+        if (id == null)
+        {
+            id = this.songs.size();
+            this.ids.put(song, id);
+            this.songs.add(song);
+            this.postings.add(new EnumMap<>(CollectionType.class));
+            this.keys.add(null);
+            this.all.add(id);
+        }
+        else if (sort)
+        {
+            this.songs.set(id, song);
+            for (SortedIds order : this.orders.values())
+            {
+                order.remove(id);
+            }
+        }
+        else
+        {
+            this.songs.set(id, song);
+        }
+        this.keys.set(id, new SongKey(song));
+        if (sort)
+        {
+            for (SortedIds order : this.orders.values())
+            {
+                order.insert(id);
+            }
+        }
+        previous = this.postings.get(id);
+
+        for (Map.Entry<CollectionType, Set<Object>> entry : previous.entrySet())
+        {
+            for (Object value : entry.getValue())
+            {
+                if (!current.get(entry.getKey()).contains(value))
+                {
+                    bitmap = this.facets.get(entry.getKey()).get(value);
+                    bitmap.remove(id);
+                    if (bitmap.isEmpty())
+                    {
+                        this.facets.get(entry.getKey()).remove(value);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<CollectionType, Set<Object>> entry : current.entrySet())
+        {
+            for (Object value : entry.getValue())
+            {
+                this.facets.get(entry.getKey())
+                           .computeIfAbsent(value, v -> new SongBitmap())
+                           .add(id);
+            }
+        }
+        this.postings.set(id, current);
+    }
+
+    /**
+     * Takes a song out of every facet and sort order. Its id is not handed out
+     * again. The caller must hold the lock on the index.
+     *
+     * @param song - The song to remove.
+     */
+    private void unindex(Song song)
+    {
+        Integer id = this.ids.remove(song);
+        SongBitmap bitmap;
+        if (id == null)
+        {
+            return;
+        }
+        for (SortedIds order : this.orders.values())
+        {
+            order.remove(id);
+        }
+        for (Map.Entry<CollectionType, Set<Object>> entry : this.postings
+                .get(id).entrySet())
+        {
+            for (Object value : entry.getValue())
+            {
+                bitmap = this.facets.get(entry.getKey()).get(value);
+                bitmap.remove(id);
+                if (bitmap.isEmpty())
+                {
+                    this.facets.get(entry.getKey()).remove(value);
+                }
+            }
+        }
+        this.all.remove(id);
+        this.postings.set(id, new EnumMap<>(CollectionType.class));
+        this.keys.set(id, null);
+        this.songs.set(id, null);
+    }
+
+    /**
+     * Obtains the values a song should be indexed under.
+     *
+     * @param song - The song to read.
+     * @return The facet values of the song.
+     */
+    private static EnumMap<CollectionType, Set<Object>> getFacetValues(Song song)
+    {
+        EnumMap<CollectionType, Set<Object>> values =
+                new EnumMap<>(CollectionType.class);
+        for (CollectionType type : CollectionType.values())
+        {
+            values.put(type, new HashSet<>());
+        }
+        if (song.artists != null)
+        {
+            Collections.addAll(values.get(CollectionType.artist), song.artists);
+        }
+        if (song instanceof LocalSong && ((LocalSong) song).codec != null)
+        {
+            values.get(CollectionType.codec).add(((LocalSong) song).codec);
+        }
+        if (song.album != null)
+        {
+            /*
+             * Albums are told apart by their IDs, not their names, since
+             * different albums can share a title.
+             */
+            values.get(CollectionType.album).add(song.album);
+            if (song.album.artists != null)
+            {
+                Collections.addAll(values.get(CollectionType.albumArtist),
+                        song.album.artists);
+            }
+            if (song.album.genres != null)
+            {
+                Collections.addAll(values.get(CollectionType.genre),
+                        song.album.genres);
+            }
+            values.get(CollectionType.year).add(song.album.year);
+        }
+        values.values().forEach(set -> set.remove(null));
+        return values;
+    }
+
+    /**
+     * The orders the index keeps songs sorted in.
+     */
+    public enum SortOrder
+    {
+        /**
+         * By album, then disc, track, and title. This matches the natural
+         * ordering of {@link Song}.
+         */
+        album
+                {
+                    @Override
+                    int compare(SongKey key1, SongKey key2)
+                    {
+                        int comp = Collation.compare(key1.album, key2.album);
+                        if (comp == 0)
+                        {
+                            comp = Integer.compare(key1.disc, key2.disc);
+                            if (comp == 0)
+                            {
+                                comp = Integer.compare(key1.track, key2.track);
+                                if (comp == 0)
+                                {
+                                    comp = Collation.compare(key1.title, key2.title);
+                                }
+                            }
+                        }
+                        return comp;
+                    }
+                },
+        /**
+         * By the first artist, then in album order.
+         */
+        artist
+                {
+                    @Override
+                    int compare(SongKey key1, SongKey key2)
+                    {
+                        int comp = Collation.compare(key1.artist, key2.artist);
+                        if (comp == 0)
+                        {
+                            comp = album.compare(key1, key2);
+                        }
+                        return comp;
+                    }
+                },
+        /**
+         * By title alone.
+         */
+        title
+                {
+                    @Override
+                    int compare(SongKey key1, SongKey key2)
+                    {
+                        return Collation.compare(key1.title, key2.title);
+                    }
+                };
+
+        /**
+         * Compares the sort keys of two songs.
+         *
+         * @param key1 - The keys of the first song.
+         * @param key2 - The keys of the second song.
+         * @return A negative number if the first song comes first, a positive
+         * number if the second song comes first, or 0 if they are tied.
+         */
+        abstract int compare(SongKey key1, SongKey key2);
+    }
+
+    /**
+     * The sort keys of a song at the time it was indexed. These are kept
+     * apart from the song so that a song can be found in the sorted arrays
+     * again after its fields have changed.
+     */
+    private static final class SongKey
+    {
+        private final CollationKey album;
+        private final CollationKey artist;
+        private final CollationKey title;
+        private final int disc;
+        private final int track;
+
+        SongKey(Song song)
+        {
+            this.album = song.album != null ? song.album.getSortKey() : null;
+            this.artist = song.artists != null && song.artists.length > 0 ?
+                    Collation.getKey(song.artists[0]) : null;
+            this.title = song.getSortKey();
+            this.disc = song.disc;
+            this.track = song.trackNum;
+        }
+    }
+
+    /**
+     * An array of song ids kept sorted in a single order, with ties broken by
+     * id. Inserting or removing an id shifts everything after it, so the
+     * array is sorted all at once when the index is built, and only kept up
+     * to date one id at a time afterwards. The position of each id is kept
+     * as well, so that a few ids can be put in order without going through
+     * the whole array. The caller must hold the lock on the index.
+     */
+    private class SortedIds
+    {
+        private final SortOrder order;
+        private int[] ids = new int[16];
+        private int size;
+        /**
+         * The index of each id in the array, or -1 for ids not in it.
+         */
+        private int[] ranks = new int[0];
+
+        SortedIds(SortOrder order)
+        {
+            this.order = order;
+        }
+
+        /**
+         * Replaces the contents with a set of ids, sorting them all at once.
+         *
+         * @param ids - The ids to hold. Each must have sort keys.
+         */
+        void rebuild(SongBitmap ids)
+        {
+            Integer[] sorted = Arrays.stream(ids.toArray()).boxed()
+                                     .toArray(Integer[]::new);
+            Arrays.sort(sorted, (id1, id2) -> {
+                int comp = this.order.compare(keys.get(id1), keys.get(id2));
+                return comp != 0 ? comp : Integer.compare(id1, id2);
+            });
+            this.ids = new int[Math.max(16, sorted.length)];
+            for (int i = 0; i < sorted.length; i++)
+            {
+                this.ids[i] = sorted[i];
+            }
+            this.size = sorted.length;
+            this.ranks = new int[0];
+            this.updateRanks(0);
+        }
+
+        /**
+         * Obtains the position of an id in the sorted order.
+         *
+         * @param id - The id to look up.
+         * @return The index of the id, or -1 if it is not present.
+         */
+        int getRank(int id)
+        {
+            return id < this.ranks.length ? this.ranks[id] : -1;
+        }
+
+        /**
+         * Records the positions of the ids from an index onwards, after they
+         * have shifted.
+         *
+         * @param from - The first index that changed.
+         */
+        private void updateRanks(int from)
+        {
+            int length = this.ranks.length;
+            if (length < keys.size())
+            {
+                this.ranks = Arrays.copyOf(this.ranks, Math.max(keys.size(),
+                        length * 2));
+                Arrays.fill(this.ranks, length, this.ranks.length, -1);
+            }
+            for (int i = from; i < this.size; i++)
+            {
+                this.ranks[this.ids[i]] = i;
+            }
+        }
+
+        /**
+         * Inserts an id, using its current sort keys. This takes linear time,
+         * so it is meant for songs changed after the index is built.
+         *
+         * @param id - The id to insert.
+         */
+        void insert(int id)
+        {
+            int index = -this.search(id) - 1;
+            if (this.size == this.ids.length)
+            {
+                this.ids = Arrays.copyOf(this.ids, this.size * 2);
+            }
+            System.arraycopy(this.ids, index, this.ids, index + 1, this.size - index);
+            this.ids[index] = id;
+            this.size++;
+            this.updateRanks(index);
+        }
+
+        /**
+         * Removes an id. The sort keys of the id must not have changed since it
+         * was inserted.
+         *
+         * @param id - The id to remove.
+         */
+        void remove(int id)
+        {
+            int index = this.search(id);
+            if (index >= 0)
+            {
+                System.arraycopy(this.ids, index + 1, this.ids, index, this.size - index - 1);
+                this.size--;
+                this.ranks[id] = -1;
+                this.updateRanks(index);
+            }
+        }
+
+        /**
+         * Performs a binary search for an id.
+         *
+         * @param id - The id to search for.
+         * @return The index of the id, or (-(insertion point) - 1) if it is not
+         * present.
+         */
+        private int search(int id)
+        {
+            SongKey key = keys.get(id);
+            int low = 0, high = this.size - 1, mid, comp;
+            while (low <= high)
+            {
+                mid = (low + high) >>> 1;
+                comp = this.order.compare(keys.get(this.ids[mid]), key);
+                if (comp == 0)
+                {
+                    comp = Integer.compare(this.ids[mid], id);
+                }
+                if (comp < 0)
+                {
+                    low = mid + 1;
+                }
+                else if (comp > 0)
+                {
+                    high = mid - 1;
+                }
+                else
+                {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+    }
+
+    /**
+     * A facet listener is triggered whenever the contents of the index
+     * change.
+     */
+    public interface FacetListener
+    {
+        /**
+         * Called after one or more songs have been re-indexed. Note that this
+         * is called from whichever thread wrote the song.
+         *
+         * @param index - The index that changed.
+         */
+        void onFacetChange(FacetIndex index);
+    }
+}
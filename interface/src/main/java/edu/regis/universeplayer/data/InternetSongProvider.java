@@ -49,9 +49,32 @@ public class InternetSongProvider extends DatabaseProvider<InternetSong> impleme
     public InternetSongProvider(AlbumProvider albums)
     {
         this.albums = albums;
+        this.albums.addCollectionListener(new AlbumListener());
         INSTANCE = this;
     }
 
+    /**
+     * Points songs at the latest version of their album whenever an album is
+     * replaced. Songs only store the album name in the database, so this does
+     * not need to write anything.
+     */
+    private class AlbumListener implements CollectionListener
+    {
+        @Override
+        public <T> void onItemWritten(DataProvider<T> provider, T item)
+        {
+            if (item instanceof Album album)
+            {
+                replaceItems(song -> song.album != null && song.album != album && Objects.equals(song.album.name, album.name), song -> song.withAlbum(album));
+            }
+        }
+
+        @Override
+        public <T> void onItemRemoved(DataProvider<T> provider, T item)
+        {
+        }
+    }
+
     @Override
     public int getUpdateProgress()
     {
@@ -110,7 +133,8 @@ public class InternetSongProvider extends DatabaseProvider<InternetSong> impleme
          * Create the table
          */
         return "CREATE TABLE internet_songs" +
-                "(url TEXT PRIMARY KEY NOT NULL," +
+                "(id INTEGER PRIMARY KEY," +
+                "url TEXT UNIQUE NOT NULL," +
                 "title TEXT," +
                 "artists TEXT," +
                 "track INTEGER," +
@@ -137,27 +161,28 @@ public class InternetSongProvider extends DatabaseProvider<InternetSong> impleme
     @Override
     protected InternetSong readResult(ResultSet result) throws SQLException
     {
-        InternetSong song = new InternetSong();
-        song.location = result.getURL("url");
-        song.title = result.getString("title");
-        song.artists =
+        InternetSong.Builder song = new InternetSong.Builder();
+        song.setId(result.getInt(ID_COLUMN));
+        song.setLocation(result.getURL("url"));
+        song.setTitle(result.getString("title"));
+        song.setArtists(
                 Arrays.stream(result.getString("artists").split(";"))
-                      .map(String::trim).toArray(String[]::new);
-        song.trackNum = result.getInt("track");
-        song.disc = result.getInt("disc");
-        song.duration = result.getLong("duration");
+                      .map(String::trim).toArray(String[]::new));
+        song.setTrackNum(result.getInt("track"));
+        song.setDisc(result.getInt("disc"));
+        song.setDuration(result.getLong("duration"));
         try
         {
             getAlbumProvider().joinUpdate();
-            song.album = getAlbumProvider().getAlbumByName(result.getString(
-                    "album"));
+            song.setAlbum(getAlbumProvider().getAlbumByName(result.getString(
+                    "album")));
         }
         catch (InterruptedException e)
         {
-            logger.error("Couldn't wait for album provider for song {}", song
-                    , e);
+            logger.error("Couldn't wait for album provider for song {}",
+                    result.getURL("url"), e);
         }
-        return song;
+        return song.build();
     }
 
     /**
@@ -182,6 +207,18 @@ public class InternetSongProvider extends DatabaseProvider<InternetSong> impleme
         return map;
     }
 
+    @Override
+    protected int getId(InternetSong item)
+    {
+        return item.id;
+    }
+
+    @Override
+    protected InternetSong withId(InternetSong item, int id)
+    {
+        return item.withId(id);
+    }
+
     /**
      * Converts a piece of data into a string that will display in the update
      * text.
@@ -287,7 +324,7 @@ public class InternetSongProvider extends DatabaseProvider<InternetSong> impleme
             {
                 try
                 {
-                    writeItem(data).get();
+                    data = writeItem(data).get();
                 }
                 catch (InterruptedException | ExecutionException e)
                 {
@@ -13,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
@@ -35,7 +36,19 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
     private static final HashSet<String> formats = new HashSet<>();
     private static final HashSet<String> codecs = new HashSet<>();
 
+    /**
+     * The column holding when a song file was first found missing, or null if
+     * the file is present.
+     */
+    private static final String MISSING_COLUMN = "missing";
+
     private final AlbumProvider albums;
+    /**
+     * Songs whose files have gone missing but have not been purged yet, by
+     * their absolute file path.
+     */
+    private final ConcurrentHashMap<String, Tombstone> tombstones =
+            new ConcurrentHashMap<>();
 
     private final AtomicInteger progress = new AtomicInteger(0);
     private final AtomicInteger updating = new AtomicInteger(0);
@@ -154,6 +167,29 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
     public LocalSongProvider(AlbumProvider albums)
     {
         this.albums = albums;
+        this.albums.addCollectionListener(new AlbumListener());
+    }
+
+    /**
+     * Points songs at the latest version of their album whenever an album is
+     * replaced. Songs only store the album name in the database, so this does
+     * not need to write anything.
+     */
+    private class AlbumListener implements CollectionListener
+    {
+        @Override
+        public <T> void onItemWritten(DataProvider<T> provider, T item)
+        {
+            if (item instanceof Album album)
+            {
+                replaceItems(song -> song.album != null && song.album != album && Objects.equals(song.album.name, album.name), song -> song.withAlbum(album));
+            }
+        }
+
+        @Override
+        public <T> void onItemRemoved(DataProvider<T> provider, T item)
+        {
+        }
     }
 
     @Override
@@ -224,7 +260,8 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
          * Create the table
          */
         return "CREATE TABLE local_songs" +
-                "(file TEXT PRIMARY KEY NOT NULL," +
+                "(id INTEGER PRIMARY KEY," +
+                "file TEXT UNIQUE NOT NULL," +
                 "codec CHAR(5)," +
                 "type CHAR(5)," +
                 "title TEXT," +
@@ -233,7 +270,28 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
                 "disc INTEGER," +
                 "duration BIGINT," +
                 "album TEXT," +
-                "mod BIGINT);";
+                "mod BIGINT," +
+                "missing BIGINT);";
+    }
+
+    /**
+     * Adds the column used to mark missing files to tables from older
+     * versions.
+     *
+     * @param state   - The statement to run commands through.
+     * @param table   - The name of the table.
+     * @param columns - The columns currently in the table, besides the ID.
+     */
+    @Override
+    protected void migrateTable(Statement state, String table,
+                                Collection<String> columns) throws SQLException
+    {
+        if (columns.stream().noneMatch(MISSING_COLUMN::equalsIgnoreCase))
+        {
+            logger.info("Adding the {} column to {}", MISSING_COLUMN, table);
+            state.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " +
+                    MISSING_COLUMN + " BIGINT;");
+        }
     }
 
     /**
@@ -248,30 +306,43 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
     @Override
     protected LocalSong readResult(ResultSet result) throws SQLException
     {
-        LocalSong song = new LocalSong();
-        song.file = new File(result.getString("file"));
-        song.codec = result.getString("codec");
-        song.type = result.getString("type");
-        song.title = result.getString("title");
-        song.artists =
+        long missing = result.getLong(MISSING_COLUMN);
+        boolean tombstoned = !result.wasNull();
+        LocalSong.Builder song = new LocalSong.Builder();
+        song.setId(result.getInt(ID_COLUMN));
+        song.setFile(new File(result.getString("file")));
+        song.setCodec(result.getString("codec"));
+        song.setType(result.getString("type"));
+        song.setTitle(result.getString("title"));
+        song.setArtists(
                 Arrays.stream(result.getString("artists").split(";"))
                       .dropWhile(String::isEmpty)
-                      .map(String::trim).toArray(String[]::new);
-        song.trackNum = result.getInt("track");
-        song.disc = result.getInt("disc");
-        song.duration = result.getLong("duration");
+                      .map(String::trim).toArray(String[]::new));
+        song.setTrackNum(result.getInt("track"));
+        song.setDisc(result.getInt("disc"));
+        song.setDuration(result.getLong("duration"));
         try
         {
             getAlbumProvider().joinUpdate();
-            song.album = getAlbumProvider().getAlbumByName(result.getString(
-                    "album"));
+            song.setAlbum(getAlbumProvider().getAlbumByName(result.getString(
+                    "album")));
         }
         catch (InterruptedException e)
         {
-            logger.error("Couldn't wait for album update for song {}", song, e);
+            logger.error("Couldn't wait for album update for song {}",
+                    result.getString("file"), e);
+        }
+        song.setLastMod(result.getLong("mod"));
+        if (tombstoned)
+        {
+            /*
+             * Keep the song around in case the file comes back.
+             */
+            this.tombstones.put(result.getString("file"),
+                    new Tombstone(song.build(), missing));
+            return null;
         }
-        song.lastMod = result.getLong("mod");
-        return song;
+        return song.build();
     }
 
     /**
@@ -299,6 +370,18 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
         return map;
     }
 
+    @Override
+    protected int getId(LocalSong item)
+    {
+        return item.id;
+    }
+
+    @Override
+    protected LocalSong withId(LocalSong item, int id)
+    {
+        return item.withId(id);
+    }
+
     /**
      * Converts a piece of data into a string that will display in the update
      * text.
@@ -384,12 +467,160 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
         {
             toScan.addAll(task.join());
         }
+        this.reconcile(toScan);
         this.updating.set(toScan.size());
         logger.debug("Scanning {} files", toScan.size());
         return toScan.stream().map(SongScanner::new)
                      .toArray(SongScanner[]::new);
     }
 
+    /**
+     * Compares the songs we know about with the files found while walking the
+     * music folders. Songs whose files are gone are tombstoned, so that they
+     * disappear from the collection but can still be restored as they were.
+     * Tombstoned songs whose files are back are restored without probing
+     * them again, and those that have been missing for longer than the grace
+     * period are purged from the database.
+     *
+     * @param found - Every file found in the music folders.
+     */
+    private void reconcile(List<Path> found)
+    {
+        HashSet<String> paths = new HashSet<>(found.size() * 2);
+        ArrayList<LocalSong> missing = new ArrayList<>();
+        ArrayList<LocalSong> restored = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        long cutoff = now - ConfigManager.getMissingGracePeriod();
+        Album album;
+        int purged;
+
+        for (Path path : found)
+        {
+            paths.add(path.toFile().getAbsolutePath());
+        }
+        for (LocalSong song : this.getCollection())
+        {
+            /*
+             * Only check the disk for songs that the walk didn't turn up,
+             * such as songs outside of the music folders.
+             */
+            if (!paths.contains(song.file.getAbsolutePath()) && !song.file
+                    .exists())
+            {
+                missing.add(song);
+            }
+        }
+        for (Map.Entry<String, Tombstone> entry : this.tombstones.entrySet())
+        {
+            if (paths.contains(entry.getKey()))
+            {
+                restored.add(entry.getValue().song);
+            }
+        }
+        if (missing.isEmpty() && restored.isEmpty() && this.tombstones
+                .values().stream().noneMatch(t -> t.since < cutoff))
+        {
+            return;
+        }
+
+        synchronized (DatabaseManager.getDb())
+        {
+            try (PreparedStatement mark = DatabaseManager.getDb()
+                                                         .prepareStatement("UPDATE " + getDatabaseTable() + " SET " + MISSING_COLUMN + " = ? WHERE " + ID_COLUMN + " = ?");
+                 PreparedStatement purge = DatabaseManager.getDb()
+                                                          .prepareStatement("DELETE FROM " + getDatabaseTable() + " WHERE " + MISSING_COLUMN + " < ?"))
+            {
+                DatabaseManager.getDb().setAutoCommit(false);
+                for (LocalSong song : missing)
+                {
+                    mark.setLong(1, now);
+                    mark.setInt(2, song.id);
+                    mark.addBatch();
+                }
+                for (LocalSong song : restored)
+                {
+                    mark.setNull(1, Types.BIGINT);
+                    mark.setInt(2, song.id);
+                    mark.addBatch();
+                }
+                mark.executeBatch();
+                purge.setLong(1, cutoff);
+                purged = purge.executeUpdate();
+                DatabaseManager.getDb().commit();
+            }
+            catch (SQLException e)
+            {
+                logger.error("Could not reconcile missing songs", e);
+                try
+                {
+                    DatabaseManager.getDb().rollback();
+                }
+                catch (SQLException e2)
+                {
+                    logger.error("Could not roll back", e2);
+                }
+                return;
+            }
+            finally
+            {
+                try
+                {
+                    DatabaseManager.getDb().setAutoCommit(true);
+                }
+                catch (SQLException e)
+                {
+                    logger.error("Could not restore auto-commit", e);
+                }
+            }
+        }
+
+        for (LocalSong song : missing)
+        {
+            if (this.removeItem(song.file.getAbsolutePath()) != null)
+            {
+                this.tombstones.put(song.file.getAbsolutePath(),
+                        new Tombstone(song, now));
+            }
+        }
+        for (LocalSong song : restored)
+        {
+            this.tombstones.remove(song.file.getAbsolutePath());
+            /*
+             * The album may have changed while the song was gone.
+             */
+            if (song.album != null)
+            {
+                album = this.albums.getAlbumByName(song.album.name);
+                if (album != null)
+                {
+                    song = song.withAlbum(album);
+                }
+            }
+            this.putItem(song);
+        }
+        this.tombstones.values().removeIf(t -> t.since < cutoff);
+        logger.info("{} songs missing, {} restored, {} purged", missing.size(),
+                restored.size(), purged);
+    }
+
+    /**
+     * A song whose file has gone missing.
+     */
+    private static final class Tombstone
+    {
+        private final LocalSong song;
+        /**
+         * When the file was first found missing.
+         */
+        private final long since;
+
+        Tombstone(LocalSong song, long since)
+        {
+            this.song = song;
+            this.since = since;
+        }
+    }
+
     private class FolderCounter extends RecursiveTask<List<Path>>
     {
         private final Path source;
@@ -525,11 +756,7 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
             LocalSong existing;
             boolean update;
 
-            existing =
-                    getCollection().stream()
-                                   .filter(f -> f.file.toPath()
-                                                      .equals(this.file))
-                                   .findFirst().orElse(null);
+            existing = getItem(this.file.toFile().getAbsolutePath());
             if (existing != null)
             {
                 /*
@@ -566,7 +793,9 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
             Process process;
             String line, lineData;
             String[] streamData;
-            Album album;
+            Album album, newAlbum;
+            Album.Builder albumBuilder;
+            LocalSong.Builder builder;
             String type;
             String codec = null;
             String[] genre = null;
@@ -798,67 +1027,87 @@ public class LocalSongProvider extends DatabaseProvider<LocalSong> implements So
                 return null;
             }
 
+            /*
+             * Songs and albums can't be changed, so we build new versions of
+             * them and let the providers swap them in.
+             */
             if (write == null)
             {
-                write = new LocalSong();
-                write.file = path.toFile();
-                write.codec = codec;
-                write.type = type;
+                builder = new LocalSong.Builder().setFile(path.toFile())
+                                                 .setCodec(codec)
+                                                 .setType(type);
+            }
+            else
+            {
+                builder = write.toBuilder();
             }
 
-            write.lastMod = Files.getLastModifiedTime(path).toMillis();
+            builder.setLastMod(Files.getLastModifiedTime(path).toMillis());
 
-            write.title = title;
+            builder.setTitle(title);
             if (artist != null && artist.length > 0)
             {
-                write.artists = artist;
+                builder.setArtists(artist);
             }
             if (duration > 0)
             {
-                write.duration = duration;
+                builder.setDuration(duration);
             }
             if (track != null && track.length > 0)
             {
-                write.trackNum = track[0];
+                builder.setTrackNum(track[0]);
             }
             if (disc != null && disc.length > 0)
             {
-                write.disc = disc[0];
+                builder.setDisc(disc[0]);
             }
 
             getAlbumProvider().joinUpdate();
             album = albums.getAlbumByName(albumTitle);
             if (album == null)
             {
-                album = new Album();
-                album.name = albumTitle;
+                albumBuilder = new Album.Builder().setName(albumTitle);
+            }
+            else
+            {
+                albumBuilder = album.toBuilder();
             }
             if (albumArtist != null && albumArtist.length > 0)
             {
-                album.artists = albumArtist;
+                albumBuilder.setArtists(albumArtist);
             }
             if (genre != null && genre.length > 0)
             {
-                album.genres = genre;
+                albumBuilder.setGenres(genre);
             }
             if (year > 0)
             {
-                album.year = year;
+                albumBuilder.setYear(year);
             }
             if (track != null && track.length > 1)
             {
-                album.totalTracks = track[1];
+                albumBuilder.setTotalTracks(track[1]);
             }
             if (disc != null && disc.length > 1)
             {
-                album.totalDiscs = disc[1];
+                albumBuilder.setTotalDiscs(disc[1]);
+            }
+            newAlbum = albumBuilder.build();
+
+            /*
+             * Most songs in an album carry the same tags, so only replace the
+             * album when something actually changed.
+             */
+            if (!newAlbum.hasSameData(album))
+            {
+                getAlbumProvider().writeItem(newAlbum);
+                album = albums.getAlbumByName(albumTitle);
             }
-            write.album = album;
+            builder.setAlbum(album);
 
-            getAlbumProvider().writeItem(album);
-            writeItem(write);
+            writeItem(builder.build());
 
-            return write;
+            return getItem(path.toFile().getAbsolutePath());
         }
     }
 }
@@ -5,19 +5,36 @@
 package edu.regis.universeplayer.data;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A song queue contains a list of songs that are to play, along with a way to
  * order them
+ * <p>
+ * Both the queued order and the play order are kept in order-statistic trees
+ * over shared entries, so inserting, removing, finding the position of an
+ * entry, and moving through the play order all take O(log n) time, even for
+ * very large queues. A freshly shuffled play order is not stored at all, but
+ * computed from the queued order as it is needed.
+ * </p>
+ * <p>
+ * The queue may be used from any thread. Every change is made while holding
+ * the lock on the queue, and listeners are notified after the lock is
+ * released, so they are free to call back into the queue. Code that needs a
+ * consistent view of the whole queue, such as for display, should use {@link
+ * #getSnapshot()} rather than iterating over the queue while other threads
+ * change it.
+ * </p>
  *
  * @author William Hubbard
  * @version 0.1
  */
-public class Queue extends ArrayList<Song>
+public class Queue extends AbstractList<Song> implements RandomAccess
 {
     private static Queue INSTANCE;
     
-    public static Queue getInstance()
+    public static synchronized Queue getInstance()
     {
         if (INSTANCE == null)
         {
@@ -26,42 +43,345 @@ public class Queue extends ArrayList<Song>
         return INSTANCE;
     }
     
-    private final ArrayList<Song> queueOrder = new ArrayList<>();
-    private int currentIndex;
+    private final Random random = new Random();
+    /**
+     * The entries in the order they were queued.
+     */
+    private final RankTree<Entry> queued = new RankTree<>(this.random);
+    /**
+     * The entries in the order they will be played, when shuffling. This is
+     * only filled in once the queue changes while shuffled; until then, the
+     * play order is worked out from the shuffle order.
+     */
+    private final RankTree<Entry> played = new RankTree<>(this.random);
+    /**
+     * Whether the played tree holds the play order.
+     */
+    private boolean materialized;
+    /**
+     * The lazily generated play order, or null if the played tree is used or
+     * we are not shuffling.
+     */
+    private ShuffleOrder order;
+    /**
+     * Every entry for a song, as a song may be queued more than once.
+     */
+    private final HashMap<Song, ArrayList<Entry>> entries = new HashMap<>();
+    /**
+     * The entry scheduled to play, or null if we are before the first song.
+     */
+    private Entry current;
+    /**
+     * Whether the first song added becomes the current song, as is the case
+     * for a new or cleared queue.
+     */
+    private boolean startPending = true;
     private boolean shuffle;
     private boolean repeat;
-    private final Random random = new Random();
+    /**
+     * Counts every change to the queue, including changes to the current
+     * song.
+     */
+    private long version;
+    /**
+     * The snapshot of the current version, or null if it has not been
+     * requested yet.
+     */
+    private volatile Snapshot snapshot;
+    /**
+     * Records changes to the queue on disk, or null if they are not saved.
+     */
+    private QueueJournal journal;
+    /**
+     * The current entry and start flag as of the last record in the journal.
+     */
+    private Entry journaledCurrent;
+    private boolean journaledStart;
+    /**
+     * The changes made since listeners were last told about them.
+     */
+    private ArrayList<QueueChangeEvent.Change> changes = new ArrayList<>();
+    /**
+     * The current entry and song as of the last song change notification.
+     */
+    private Entry notifiedCurrent;
+    private Song notifiedSong;
+    /**
+     * Notifications waiting to be sent, in the order the changes were made.
+     * They are added while holding the lock on the queue and sent after it
+     * is released.
+     */
+    private final ConcurrentLinkedQueue<Runnable> notifications =
+            new ConcurrentLinkedQueue<>();
+    private final Object dispatchLock = new Object();
+    private boolean dispatching;
     
-    private final LinkedList<SongChangeListener> songListeners = new LinkedList<>();
-    private final LinkedList<QueueChangeListener> queueListeners = new LinkedList<>();
+    private final CopyOnWriteArrayList<SongChangeListener> songListeners = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<QueueChangeListener> queueListeners = new CopyOnWriteArrayList<>();
     
     public Queue()
     {
     
     }
     
+    /**
+     * Obtains an unchanging copy of the queue. Snapshots are shared between
+     * callers until the queue changes again, so requesting one is cheap when
+     * nothing has changed.
+     *
+     * @return The state of the queue as of now.
+     */
+    public Snapshot getSnapshot()
+    {
+        Snapshot snapshot = this.snapshot;
+        if (snapshot == null)
+        {
+            synchronized (this)
+            {
+                snapshot = this.snapshot;
+                if (snapshot == null)
+                {
+                    Song[] songs = new Song[this.queued.size()];
+                    int i = 0;
+                    for (Entry entry : this.queued)
+                    {
+                        songs[i++] = entry.song;
+                    }
+                    this.snapshot = snapshot = new Snapshot(this.version,
+                            songs, this.getCurrentIndex(), this.shuffle,
+                            this.repeat);
+                }
+            }
+        }
+        return snapshot;
+    }
+    
+    /**
+     * Obtains the number of changes made to the queue so far.
+     *
+     * @return The current version of the queue.
+     */
+    public synchronized long getVersion()
+    {
+        return this.version;
+    }
+    
+    /**
+     * Marks the queue as changed, recording the current song if it moved and
+     * lining up notifications for listeners. The caller must hold the lock on
+     * the queue, and call {@link #dispatch()} once it is released.
+     */
+    private void changed()
+    {
+        QueueChangeEvent event;
+        this.version++;
+        this.snapshot = null;
+        if (!this.changes.isEmpty())
+        {
+            event = new QueueChangeEvent(this, this.version, this.changes,
+                    this.getCurrentIndex());
+            this.changes = new ArrayList<>();
+            this.notifications.add(() -> this.queueListeners
+                    .forEach(listener -> listener.onQueueChange(event)));
+        }
+        if (this.current != this.notifiedCurrent || this.current != null &&
+                this.current.song != this.notifiedSong)
+        {
+            this.notifiedCurrent = this.current;
+            this.notifiedSong = this.current == null ? null : this.current.song;
+            this.notifications.add(() -> this.songListeners
+                    .forEach(listener -> listener.onSongChange(this)));
+        }
+        if (this.journal != null)
+        {
+            if (this.current != this.journaledCurrent ||
+                    this.startPending != this.journaledStart)
+            {
+                this.journaledCurrent = this.current;
+                this.journaledStart = this.startPending;
+                this.journal.current(this.current == null ? -1 :
+                        this.queued.indexOf(this.current.queuedNode),
+                        this.startPending);
+            }
+            this.journal.compactIfDue();
+        }
+    }
+    
+    /**
+     * Notes a change to the contents of the queue, to be sent to listeners
+     * once the change is complete. Runs of similar changes are combined.
+     *
+     * @param change - The change made.
+     */
+    private void recordChange(QueueChangeEvent.Change change)
+    {
+        if (this.changes.isEmpty() || !this.changes
+                .get(this.changes.size() - 1).merge(change))
+        {
+            this.changes.add(change);
+        }
+    }
+    
+    /**
+     * Sends any waiting notifications to listeners. Notifications are always
+     * sent in the order the changes were made, even when several threads
+     * change the queue at once, so a listener may be called from a thread
+     * other than the one that made the change. If a listener changes the
+     * queue, it is told about that change once every listener has heard
+     * about the first one. This must not be called while holding the lock on
+     * the queue.
+     */
+    private void dispatch()
+    {
+        Runnable notification;
+        synchronized (this.dispatchLock)
+        {
+            if (this.dispatching)
+            {
+                return;
+            }
+            this.dispatching = true;
+            try
+            {
+                while ((notification = this.notifications.poll()) != null)
+                {
+                    notification.run();
+                }
+            }
+            finally
+            {
+                this.dispatching = false;
+            }
+        }
+    }
+    
+    /**
+     * Starts or stops recording changes to the queue. A checkpoint of the
+     * queue is written to the new journal right away.
+     *
+     * @param journal - The journal to record to, or null to stop recording.
+     */
+    synchronized void setJournal(QueueJournal journal)
+    {
+        this.journal = journal;
+        if (journal != null)
+        {
+            this.checkpoint(journal);
+        }
+    }
+    
+    /**
+     * Writes the full state of the queue to a journal.
+     *
+     * @param journal - The journal to write to.
+     */
+    synchronized void checkpoint(QueueJournal journal)
+    {
+        ArrayList<Song> songs = new ArrayList<>(this.size());
+        int[] playOrder = new int[this.size()];
+        int i = 0;
+        for (Entry entry : this.queued)
+        {
+            songs.add(entry.song);
+            playOrder[this.playIndexOf(entry)] = i++;
+        }
+        this.journaledCurrent = this.current;
+        this.journaledStart = this.startPending;
+        journal.writeCheckpoint(songs, playOrder, this.getCurrentIndex(),
+                this.startPending, this.shuffle, this.repeat);
+    }
+    
+    /**
+     * Replaces the contents of the queue with a saved copy, unless the queue
+     * has changed since it was last checked. This takes linear time.
+     *
+     * @param songs           - The songs to queue, in queued order.
+     * @param playOrder       - The index of each song in the play order.
+     *                        This is only used when shuffling.
+     * @param current         - The index of the current song, or -1.
+     * @param startPending    - Whether the next song queued becomes current.
+     * @param shuffle         - Whether the queue is shuffled.
+     * @param repeat          - Whether the queue repeats.
+     * @param expectedVersion - The version the queue must be at.
+     * @return True if the queue was restored, false if it had changed.
+     */
+    boolean restore(List<Song> songs, int[] playOrder, int current,
+                    boolean startPending, boolean shuffle, boolean repeat,
+                    long expectedVersion)
+    {
+        ArrayList<Entry> byQueue = new ArrayList<>(songs.size());
+        ArrayList<Entry> byPlay = new ArrayList<>(songs.size());
+        synchronized (this)
+        {
+            if (this.version != expectedVersion)
+            {
+                return false;
+            }
+            for (Song song : songs)
+            {
+                Entry entry = new Entry(song);
+                byQueue.add(entry);
+                this.entries.computeIfAbsent(song, s -> new ArrayList<>(1))
+                            .add(entry);
+            }
+            for (RankTree.Node<Entry> node : this.queued.build(byQueue))
+            {
+                node.value.queuedNode = node;
+            }
+            this.played.clear();
+            this.order = null;
+            this.materialized = shuffle;
+            if (shuffle)
+            {
+                for (int index : playOrder)
+                {
+                    byPlay.add(byQueue.get(index));
+                }
+                for (RankTree.Node<Entry> node : this.played.build(byPlay))
+                {
+                    node.value.playedNode = node;
+                }
+            }
+            this.shuffle = shuffle;
+            this.repeat = repeat;
+            this.current = current >= 0 ? byQueue.get(current) : null;
+            this.startPending = startPending;
+            this.changes.clear();
+            this.recordChange(QueueChangeEvent.Change.reset(new ArrayList<>(songs)));
+            this.modCount++;
+            this.changed();
+        }
+        this.dispatch();
+        return true;
+    }
+    
     /**
      * Obtains the song scheduled to play.
      *
      * @return The currently playing song.
      */
-    public Song getCurrentSong()
+    public synchronized Song getCurrentSong()
     {
-        if (this.currentIndex < 0 || this.currentIndex >= this.queueOrder.size())
+        if (this.current == null)
         {
             return null;
         }
-        return this.queueOrder.get(currentIndex);
+        return this.current.song;
     }
     
     /**
      * Obtains the song index scheduled to play.
      *
-     * @return The currently playing song index.
+     * @return The currently playing song index, or -1 if there is no current
+     * song.
      */
-    public int getCurrentIndex()
+    public synchronized int getCurrentIndex()
     {
-        return this.indexOf(this.getCurrentSong());
+        if (this.current == null)
+        {
+            return -1;
+        }
+        return this.queued.indexOf(this.current.queuedNode);
     }
     
     /**
@@ -69,7 +389,7 @@ public class Queue extends ArrayList<Song>
      *
      * @return True if the queue loops, false otherwise.
      */
-    public boolean isRepeating()
+    public synchronized boolean isRepeating()
     {
         return this.repeat;
     }
@@ -79,9 +399,14 @@ public class Queue extends ArrayList<Song>
      *
      * @param repeat - Whether the queue loops.
      */
-    public void setRepeat(boolean repeat)
+    public synchronized void setRepeat(boolean repeat)
     {
         this.repeat = repeat;
+        if (this.journal != null)
+        {
+            this.journal.repeated(repeat);
+        }
+        this.changed();
     }
     
     /**
@@ -89,20 +414,23 @@ public class Queue extends ArrayList<Song>
      *
      * @return True if the queue shuffles, false otherwise.
      */
-    public boolean isShuffling()
+    public synchronized boolean isShuffling()
     {
         return this.shuffle;
     }
     
     /**
-     * Sets whether this queue should be shuffled or not.
+     * Sets whether this queue should be shuffled or not. The current song
+     * stays the same. This takes constant time, as the shuffled order is
+     * generated as it is needed.
      *
      * @param shuffle - Whether or not the queue shuffles.
      */
-    public void setShuffle(boolean shuffle)
+    public synchronized void setShuffle(boolean shuffle)
     {
         this.shuffle = shuffle;
-        this.queueOrder.clear();
+        this.reshuffle();
+        this.changed();
     }
     
     /**
@@ -112,41 +440,90 @@ public class Queue extends ArrayList<Song>
      */
     public Song skipNext()
     {
-        int index = this.currentIndex;
-        if (++this.currentIndex >= this.queueOrder.size())
+        Entry old;
+        Song song;
+        int next;
+        boolean changed;
+        synchronized (this)
         {
-            if (this.repeat)
+            old = this.current;
+            if (this.isEmpty())
             {
-                this.currentIndex = 0;
+                return null;
+            }
+            next = this.current == null ? 0 :
+                    this.playIndexOf(this.current) + 1;
+            if (next >= this.size())
+            {
+                if (!this.repeat)
+                {
+                    /*
+                     * Stay on the last song.
+                     */
+                    return null;
+                }
                 /*
                  * Reshuffle the queue as needed.
                  */
-                this.queueOrder.clear();
-                this.getOrder();
-                if (this.currentIndex != index)
+                if (this.shuffle)
                 {
-                    this.triggerSongChangeListeners();
+                    this.reshuffle();
                 }
-                return this.getCurrentSong();
+                next = 0;
             }
-            else
+            this.current = this.playEntry(next);
+            song = this.current.song;
+            changed = this.current != old;
+            if (changed)
+            {
+                this.changed();
+            }
+        }
+        this.dispatch();
+        return song;
+    }
+    
+    /**
+     * Finds the song {@link #skipNext()} would move to, without moving.
+     *
+     * @return The next song, or null if there is none or it is not known yet,
+     * such as when a shuffled queue is about to be shuffled again.
+     */
+    public synchronized Song getNextSong()
+    {
+        int next;
+        if (this.isEmpty())
+        {
+            return null;
+        }
+        next = this.current == null ? 0 : this.playIndexOf(this.current) + 1;
+        if (next >= this.size())
+        {
+            if (!this.repeat || this.shuffle)
             {
-                /*
-                 * Make sure we aren't infinitely increasing the current index.
-                 */
-                this.currentIndex = this.queueOrder.size() - 1;
-                if (this.currentIndex != index)
-                {
-                    this.triggerSongChangeListeners();
-                }
                 return null;
             }
+            next = 0;
         }
-        if (this.currentIndex != index)
+        return this.playEntry(next).song;
+    }
+    
+    /**
+     * Obtains the current song and every song after it, in the order they
+     * will play. Repeating the queue is not followed, so this ends with the
+     * last song in the play order.
+     *
+     * @return The songs still to play, starting with the current one.
+     */
+    public synchronized List<Song> getUpcoming()
+    {
+        ArrayList<Song> songs = new ArrayList<>();
+        for (int i = this.current == null ? 0 : this.playIndexOf(this
+                .current); i < this.size(); i++)
         {
-            this.triggerSongChangeListeners();
+            songs.add(this.playEntry(i).song);
         }
-        return this.getCurrentSong();
+        return songs;
     }
     
     /**
@@ -156,23 +533,40 @@ public class Queue extends ArrayList<Song>
      */
     public Song skipPrev()
     {
-        int index = this.currentIndex;
-        if (--this.currentIndex < 0)
+        Entry old;
+        Song song;
+        int previous;
+        boolean changed;
+        synchronized (this)
         {
-            if (this.repeat)
+            old = this.current;
+            if (this.isEmpty())
             {
-                this.currentIndex = this.queueOrder.size() - 1;
+                return null;
             }
-            else
+            previous = this.current == null ? -1 :
+                    this.playIndexOf(this.current) - 1;
+            if (previous < 0)
             {
-                this.currentIndex = 0;
+                if (this.repeat)
+                {
+                    previous = this.size() - 1;
+                }
+                else
+                {
+                    previous = 0;
+                }
+            }
+            this.current = this.playEntry(previous);
+            song = this.current.song;
+            changed = this.current != old;
+            if (changed)
+            {
+                this.changed();
             }
         }
-        if (this.currentIndex != index)
-        {
-            this.triggerSongChangeListeners();
-        }
-        return this.getCurrentSong();
+        this.dispatch();
+        return song;
     }
     
     /**
@@ -183,279 +577,507 @@ public class Queue extends ArrayList<Song>
      */
     public Song skipToSong(int index)
     {
-        Song song = this.get(index);
-        index = this.queueOrder.indexOf(song);
-        if (this.currentIndex != index)
+        Entry entry;
+        boolean changed;
+        synchronized (this)
         {
-            this.currentIndex = index;
-            this.triggerSongChangeListeners();
+            entry = this.queued.get(index);
+            changed = this.current != entry;
+            if (changed)
+            {
+                this.current = entry;
+                this.changed();
+            }
         }
-        return this.getCurrentSong();
+        this.dispatch();
+        return entry.song;
     }
     
-    private ArrayList<Song> getOrder()
+    /**
+     * Finds where an entry falls in the play order.
+     *
+     * @param entry - The entry to look up.
+     * @return The position of the entry in the play order.
+     */
+    private int playIndexOf(Entry entry)
     {
-        LinkedList<Song> indexesRemaining;
-        if (this.queueOrder.isEmpty())
+        int index;
+        if (this.materialized)
         {
-            this.queueOrder.addAll(this);
-            if (this.shuffle)
-            {
-                indexesRemaining = new LinkedList<>(this.queueOrder);
-                this.queueOrder.clear();
-                while (indexesRemaining.size() > 0)
-                {
-                    this.queueOrder.add(indexesRemaining.remove(random.nextInt(indexesRemaining.size())));
-                }
-            }
+            return this.played.indexOf(entry.playedNode);
         }
-        return this.queueOrder;
+        index = this.queued.indexOf(entry.queuedNode);
+        return this.order != null ? this.order.invert(index) : index;
     }
     
-    @Override
-    public boolean add(Song song)
+    /**
+     * Obtains the entry at a point in the play order.
+     *
+     * @param index - The position in the play order.
+     * @return The entry at that position.
+     */
+    private Entry playEntry(int index)
     {
-        Song oldSong = this.getCurrentSong();
-        int newIndex;
-        if (super.add(song))
+        if (this.materialized)
         {
-            if (this.shuffle)
-            {
-                newIndex = random.nextInt(this.queueOrder.size());
-                if (newIndex <= this.currentIndex)
-                {
-                    this.currentIndex++;
-                }
-                this.queueOrder.add(newIndex, song);
-            }
-            else
-            {
-                this.queueOrder.add(song);
-            }
-            this.triggerQueueChangeListeners();
-            if (this.getCurrentSong() != oldSong)
-            {
-                this.triggerSongChangeListeners();
-            }
-            return true;
+            return this.played.get(index);
         }
-        return false;
+        return this.queued.get(this.order != null ? this.order.apply(index) :
+                index);
     }
     
-    @Override
-    public void add(int index, Song song)
+    /**
+     * Picks a new play order. This only picks a new key for the shuffle
+     * order, so it takes constant time.
+     */
+    private void reshuffle()
+    {
+        this.played.clear();
+        this.materialized = false;
+        this.order = this.shuffle ? new ShuffleOrder(this.size(), this.random) :
+                null;
+        if (this.journal != null)
+        {
+            this.journal.shuffled(this.order);
+        }
+    }
+    
+    /**
+     * Writes the lazily generated shuffle order into the played tree, so that
+     * entries can be added to or removed from it. This takes linear time,
+     * but is only needed for the first change after shuffling.
+     */
+    private void materialize()
+    {
+        ArrayList<Entry> byQueue = new ArrayList<>(this.size());
+        ArrayList<Entry> byPlay = new ArrayList<>(this.size());
+        List<RankTree.Node<Entry>> nodes;
+        for (Entry entry : this.queued)
+        {
+            byQueue.add(entry);
+        }
+        for (int i = 0; i < byQueue.size(); i++)
+        {
+            byPlay.add(byQueue.get(this.order.apply(i)));
+        }
+        nodes = this.played.build(byPlay);
+        for (RankTree.Node<Entry> node : nodes)
+        {
+            node.value.playedNode = node;
+        }
+        this.order = null;
+        this.materialized = true;
+    }
+    
+    /**
+     * Queues a song without notifying anyone.
+     *
+     * @param index - Where in the queue the song goes.
+     * @param song  - The song to queue.
+     */
+    private void insert(int index, Song song)
+    {
+        Entry entry = new Entry(song);
+        if (this.order != null)
+        {
+            this.materialize();
+        }
+        entry.queuedNode = this.queued.insert(index, entry);
+        if (this.materialized)
+        {
+            entry.playedNode = this.played.insert(this.random
+                    .nextInt(this.played.size() + 1), entry);
+        }
+        this.entries.computeIfAbsent(song, s -> new ArrayList<>(1))
+                    .add(entry);
+        if (this.journal != null)
+        {
+            this.journal.inserted(index, this.playIndexOf(entry), song);
+        }
+        this.recordChange(QueueChangeEvent.Change.inserted(index, song));
+        if (this.current == null && this.startPending)
+        {
+            this.current = this.playEntry(0);
+            this.startPending = false;
+        }
+    }
+    
+    /**
+     * Removes an entry without notifying anyone. If it was the current
+     * entry, the entry played before it becomes the current one, so that
+     * skipping forward plays the entry after it.
+     *
+     * @param entry - The entry to remove.
+     */
+    private void delete(Entry entry)
     {
-        Song oldSong = this.getCurrentSong();
-        int newIndex;
-        super.add(index, song);
-        if (this.shuffle)
+        ArrayList<Entry> songEntries = this.entries.get(entry.song);
+        int index = this.queued.indexOf(entry.queuedNode);
+        int previous;
+        if (this.order != null)
         {
-            newIndex = this.random.nextInt(this.queueOrder.size());
+            this.materialize();
         }
-        else
+        if (entry == this.current)
         {
-            newIndex = index;
+            previous = this.playIndexOf(entry) - 1;
+            this.current = previous >= 0 ? this.playEntry(previous) : null;
         }
-        if (newIndex <= this.currentIndex)
+        if (this.journal != null)
         {
-            this.currentIndex++;
+            this.journal.removed(index);
         }
-        this.queueOrder.add(newIndex, song);
-        if (this.getCurrentSong() != oldSong)
+        this.recordChange(QueueChangeEvent.Change.removed(index));
+        this.queued.remove(entry.queuedNode);
+        if (this.materialized)
         {
-            this.triggerSongChangeListeners();
+            this.played.remove(entry.playedNode);
+        }
+        songEntries.remove(entry);
+        if (songEntries.isEmpty())
+        {
+            this.entries.remove(entry.song);
         }
-        this.triggerQueueChangeListeners();
     }
     
     @Override
-    public Song remove(int index)
+    public synchronized Song get(int index)
     {
-        Song removed = super.remove(index);
-        boolean current = this.getCurrentSong() == removed;
-        if (removed != null)
+        return this.queued.get(index).song;
+    }
+    
+    @Override
+    public synchronized int size()
+    {
+        return this.queued.size();
+    }
+    
+    /**
+     * Iterates over a snapshot of the queue, so changes made while iterating
+     * are not seen and do not interfere.
+     *
+     * @return An iterator over the songs currently queued.
+     */
+    @Override
+    public Iterator<Song> iterator()
+    {
+        return this.getSnapshot().getSongs().iterator();
+    }
+    
+    @Override
+    public synchronized int indexOf(Object o)
+    {
+        ArrayList<Entry> songEntries = this.entries.get(o);
+        int index = -1;
+        if (songEntries != null)
         {
-            index = this.queueOrder.indexOf(removed);
-            if (index <= this.currentIndex)
+            for (Entry entry : songEntries)
             {
-                this.currentIndex--;
+                int entryIndex = this.queued.indexOf(entry.queuedNode);
+                if (index == -1 || entryIndex < index)
+                {
+                    index = entryIndex;
+                }
             }
-            this.queueOrder.remove(removed);
-            this.triggerQueueChangeListeners();
-            if (current)
+        }
+        return index;
+    }
+    
+    @Override
+    public synchronized int lastIndexOf(Object o)
+    {
+        ArrayList<Entry> songEntries = this.entries.get(o);
+        int index = -1;
+        if (songEntries != null)
+        {
+            for (Entry entry : songEntries)
             {
-                this.triggerSongChangeListeners();
+                index = Math.max(index, this.queued.indexOf(entry.queuedNode));
             }
         }
-        return removed;
+        return index;
     }
     
     @Override
-    public boolean remove(Object o)
+    public synchronized boolean contains(Object o)
     {
-        int index = this.indexOf(o);
-        boolean removed = this.getCurrentSong() == o;
-        if (super.remove(o))
+        return this.entries.containsKey(o);
+    }
+    
+    @Override
+    public Song set(int index, Song song)
+    {
+        Entry entry;
+        Song old;
+        synchronized (this)
         {
-            if (index <= this.currentIndex)
+            entry = this.queued.get(index);
+            old = entry.song;
+            ArrayList<Entry> songEntries = this.entries.get(old);
+            songEntries.remove(entry);
+            if (songEntries.isEmpty())
             {
-                this.currentIndex--;
+                this.entries.remove(old);
             }
-            this.queueOrder.remove(o);
-            this.triggerQueueChangeListeners();
-            if (removed)
+            entry.song = song;
+            this.entries.computeIfAbsent(song, s -> new ArrayList<>(1))
+                        .add(entry);
+            if (this.journal != null)
             {
-                this.triggerSongChangeListeners();
+                this.journal.replaced(index, song);
             }
-            return true;
+            this.recordChange(QueueChangeEvent.Change.removed(index));
+            this.recordChange(QueueChangeEvent.Change.inserted(index, song));
+            this.changed();
         }
-        return false;
+        this.dispatch();
+        return old;
     }
     
     @Override
-    public void clear()
+    public boolean add(Song song)
     {
-        super.clear();
-        this.queueOrder.clear();
-        this.currentIndex = 0;
-        this.triggerQueueChangeListeners();
-        this.triggerSongChangeListeners();
+        this.addAll(List.of(song));
+        return true;
     }
     
     @Override
-    public boolean addAll(Collection<? extends Song> c)
+    public void add(int index, Song song)
     {
-        int newIndex;
-        int length = this.size();
-        Song oldSong = this.getCurrentSong();
-        if (super.addAll(c))
+        this.addAll(index, List.of(song));
+    }
+    
+    @Override
+    public Song remove(int index)
+    {
+        Entry entry;
+        synchronized (this)
         {
-            for (Song song : c)
-            {
-                if (this.shuffle)
-                {
-                    newIndex = random.nextInt(this.queueOrder.size());
-                    if (newIndex <= this.currentIndex)
-                    {
-                        this.currentIndex++;
-                    }
-                    this.queueOrder.add(newIndex, song);
-                }
-                else
-                {
-                    this.queueOrder.add(song);
-                }
-            }
-            this.triggerQueueChangeListeners();
-            if (this.getCurrentSong() != oldSong)
+            entry = this.queued.get(index);
+            this.delete(entry);
+            this.modCount++;
+            this.changed();
+        }
+        this.dispatch();
+        return entry.song;
+    }
+    
+    @Override
+    public boolean remove(Object o)
+    {
+        int index;
+        synchronized (this)
+        {
+            index = this.indexOf(o);
+            if (index >= 0)
             {
-                this.triggerSongChangeListeners();
+                this.delete(this.queued.get(index));
+                this.modCount++;
+                this.changed();
             }
-            return true;
         }
-        return false;
+        this.dispatch();
+        return index >= 0;
     }
     
-    @Override
-    public boolean addAll(int index, Collection<? extends Song> c)
+    /**
+     * Moves a song to another place in the queue. This does not change the
+     * order songs play in while shuffling.
+     *
+     * @param from - The index of the song to move.
+     * @param to   - The index the song should end up at.
+     */
+    public void move(int from, int to)
     {
-        int newIndex;
-        int i = 0;
-        Song oldSong = this.getCurrentSong();
-        if (super.addAll(index, c))
+        Entry entry;
+        synchronized (this)
         {
-            for (Song song : c)
+            if (to < 0 || to >= this.size())
             {
-                if (this.shuffle)
-                {
-                    newIndex = random.nextInt(this.queueOrder.size());
-                }
-                else
-                {
-                    newIndex = index + i++;
-                }
-                if (newIndex <= this.currentIndex)
-                {
-                    this.currentIndex++;
-                }
-                this.queueOrder.add(newIndex, song);
+                throw new IndexOutOfBoundsException(to);
+            }
+            entry = this.queued.get(from);
+            if (from == to)
+            {
+                return;
             }
-            this.triggerQueueChangeListeners();
-            if (this.getCurrentSong() != oldSong)
+            if (this.order != null)
             {
-                this.triggerSongChangeListeners();
+                this.materialize();
             }
-            return true;
+            this.queued.remove(entry.queuedNode);
+            entry.queuedNode = this.queued.insert(to, entry);
+            if (this.journal != null)
+            {
+                this.journal.moved(from, to);
+            }
+            this.recordChange(QueueChangeEvent.Change.moved(from, to));
+            this.modCount++;
+            this.changed();
         }
-        return false;
+        this.dispatch();
     }
     
     @Override
-    protected void removeRange(int fromIndex, int toIndex)
+    public void clear()
     {
-        Song oldSong = this.getCurrentSong();
-        for (int i = fromIndex; i < toIndex; i++)
+        synchronized (this)
         {
-            this.queueOrder.remove(this.get(i));
-            if (i <= this.currentIndex)
+            this.queued.clear();
+            this.played.clear();
+            this.order = null;
+            this.materialized = this.shuffle;
+            this.entries.clear();
+            this.current = null;
+            this.startPending = true;
+            if (this.journal != null)
             {
-                this.currentIndex--;
+                this.journal.cleared();
             }
+            this.changes.clear();
+            this.recordChange(QueueChangeEvent.Change.reset(new ArrayList<>()));
+            this.modCount++;
+            this.changed();
         }
-        super.removeRange(fromIndex, toIndex);
-        this.triggerQueueChangeListeners();
-        if (this.getCurrentSong() != oldSong)
+        this.dispatch();
+    }
+    
+    @Override
+    public boolean addAll(Collection<? extends Song> c)
+    {
+        return this.insertAll(-1, c);
+    }
+    
+    @Override
+    public boolean addAll(int index, Collection<? extends Song> c)
+    {
+        if (index < 0)
         {
-            this.triggerSongChangeListeners();
+            throw new IndexOutOfBoundsException(index);
         }
+        return this.insertAll(index, c);
     }
     
-    @Override
-    public boolean removeAll(Collection<?> c)
+    /**
+     * Queues several songs at once. Listeners are told about all of them in
+     * a single event.
+     *
+     * @param index - Where in the queue the songs go, or -1 to add them to
+     *              the end. The size can only be checked while holding the
+     *              lock, so appending cannot pass the size in.
+     * @param c     - The songs to queue.
+     * @return True if any songs were queued.
+     */
+    private boolean insertAll(int index, Collection<? extends Song> c)
     {
-        boolean success;
-        Song oldSong = this.getCurrentSong();
-        for (int i = 0, removed = 0; i <= this.currentIndex && i < this.size(); i++)
+        synchronized (this)
         {
-            if (c.contains(this.get(i)))
+            if (index == -1)
+            {
+                index = this.size();
+            }
+            if (index > this.size())
+            {
+                throw new IndexOutOfBoundsException(index);
+            }
+            if (c.isEmpty())
             {
-                this.currentIndex--;
+                return false;
             }
+            for (Song song : c)
+            {
+                this.insert(index++, song);
+            }
+            this.modCount++;
+            this.changed();
         }
-        this.queueOrder.removeAll(c);
-        success = super.removeAll(c);
-        this.triggerQueueChangeListeners();
-        if (this.getCurrentSong() != oldSong)
+        this.dispatch();
+        return true;
+    }
+    
+    @Override
+    protected void removeRange(int fromIndex, int toIndex)
+    {
+        ArrayList<Entry> removed = new ArrayList<>(toIndex - fromIndex);
+        RankTree.Node<Entry> node;
+        if (fromIndex >= toIndex)
         {
-            this.triggerSongChangeListeners();
+            return;
         }
-        return success;
+        synchronized (this)
+        {
+            node = this.queued.getNode(fromIndex);
+            for (int i = fromIndex; i < toIndex; i++)
+            {
+                removed.add(node.value);
+                node = RankTree.next(node);
+            }
+            for (Entry entry : removed)
+            {
+                this.delete(entry);
+            }
+            this.modCount++;
+            this.changed();
+        }
+        this.dispatch();
+    }
+    
+    @Override
+    public boolean removeAll(Collection<?> c)
+    {
+        return this.removeMatching(new HashSet<>(c), true);
     }
     
     @Override
     public boolean retainAll(Collection<?> c)
     {
-        boolean success;
-        Song oldSong = this.getCurrentSong();
-        for (int i = 0, removed = 0; i <= this.currentIndex && i < this.size(); i++)
+        return this.removeMatching(new HashSet<>(c), false);
+    }
+    
+    /**
+     * Removes every song that is or is not in a set. Listeners are told about
+     * all of the removals in a single event.
+     *
+     * @param songs   - The songs to check against.
+     * @param matches - True to remove the songs in the set, false to remove
+     *                the songs that are not.
+     * @return True if any song was removed.
+     */
+    private boolean removeMatching(Set<?> songs, boolean matches)
+    {
+        ArrayList<Entry> removed = new ArrayList<>();
+        synchronized (this)
         {
-            if (!c.contains(this.get(i)))
+            for (Entry entry : this.queued)
             {
-                this.currentIndex--;
+                if (songs.contains(entry.song) == matches)
+                {
+                    removed.add(entry);
+                }
             }
+            if (removed.isEmpty())
+            {
+                return false;
+            }
+            /*
+             * Removing from the back means each removal is reported at the
+             * index the song had before the others were removed, which lets
+             * neighboring removals combine into ranges.
+             */
+            for (int i = removed.size() - 1; i >= 0; i--)
+            {
+                this.delete(removed.get(i));
+            }
+            this.modCount++;
+            this.changed();
         }
-        this.queueOrder.retainAll(c);
-        success = super.retainAll(c);
-        this.triggerQueueChangeListeners();
-        if (this.getCurrentSong() != oldSong)
-        {
-            this.triggerSongChangeListeners();
-        }
-        return success;
+        this.dispatch();
+        return true;
     }
     
     /**
-     * Adds a listener for when the current song changes.
+     * Adds a listener for when the current song changes. Listeners may be
+     * added or removed at any time, including while they are being notified.
      *
      * @param listener - The listener to add.
      */
@@ -475,15 +1097,8 @@ public class Queue extends ArrayList<Song>
     }
     
     /**
-     * Tells all listeners that the song changed.
-     */
-    protected void triggerSongChangeListeners()
-    {
-        this.songListeners.forEach(listener -> listener.onSongChange(this));
-    }
-    
-    /**
-     * Adds a listener for when the queue contents changes.
+     * Adds a listener for when the queue contents changes. Listeners may be
+     * added or removed at any time, including while they are being notified.
      *
      * @param listener - The listener to add.
      */
@@ -502,14 +1117,6 @@ public class Queue extends ArrayList<Song>
         this.queueListeners.remove(listener);
     }
     
-    /**
-     * Tells all listeners that the queue changed.
-     */
-    protected void triggerQueueChangeListeners()
-    {
-        this.queueListeners.forEach(listener -> listener.onQueueChange(this));
-    }
-    
     public interface SongChangeListener extends EventListener
     {
         /**
@@ -525,8 +1132,98 @@ public class Queue extends ArrayList<Song>
         /**
          * Called when the queue contents change.
          *
-         * @param queue - The queue that changed.
+         * @param event - The changes made to the queue.
+         */
+        void onQueueChange(QueueChangeEvent event);
+    }
+    
+    /**
+     * A single spot in the queue. The same song may be queued more than once,
+     * so the queue keeps track of entries rather than songs.
+     */
+    private static final class Entry
+    {
+        private Song song;
+        private RankTree.Node<Entry> queuedNode;
+        private RankTree.Node<Entry> playedNode;
+        
+        Entry(Song song)
+        {
+            this.song = song;
+        }
+    }
+    
+    /**
+     * An unchanging copy of the queue at some point in time.
+     */
+    public static final class Snapshot
+    {
+        private final long version;
+        private final List<Song> songs;
+        private final int currentIndex;
+        private final boolean shuffle;
+        private final boolean repeat;
+        
+        private Snapshot(long version, Song[] songs, int currentIndex,
+                         boolean shuffle, boolean repeat)
+        {
+            this.version = version;
+            this.songs = Collections.unmodifiableList(Arrays.asList(songs));
+            this.currentIndex = currentIndex;
+            this.shuffle = shuffle;
+            this.repeat = repeat;
+        }
+        
+        /**
+         * Obtains the version of the queue this was taken from. Newer
+         * snapshots have higher versions.
+         *
+         * @return The version of the queue.
          */
-        void onQueueChange(Queue queue);
+        public long getVersion()
+        {
+            return this.version;
+        }
+        
+        /**
+         * Obtains the queued songs.
+         *
+         * @return An unmodifiable list of the songs, in queued order.
+         */
+        public List<Song> getSongs()
+        {
+            return this.songs;
+        }
+        
+        /**
+         * Obtains the index of the current song.
+         *
+         * @return The current index, or -1 if there is no current song.
+         */
+        public int getCurrentIndex()
+        {
+            return this.currentIndex;
+        }
+        
+        /**
+         * Obtains the current song.
+         *
+         * @return The current song, or null if there is none.
+         */
+        public Song getCurrentSong()
+        {
+            return this.currentIndex >= 0 ? this.songs
+                    .get(this.currentIndex) : null;
+        }
+        
+        public boolean isShuffling()
+        {
+            return this.shuffle;
+        }
+        
+        public boolean isRepeating()
+        {
+            return this.repeat;
+        }
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
+
+/**
+ * Describes how the contents of a queue changed. A single event may hold
+ * several changes, such as when a number of songs are removed at once. The
+ * changes are listed in the order they were made, so a listener keeping its
+ * own copy of the queue can bring it up to date by applying each of them in
+ * turn.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class QueueChangeEvent extends EventObject
+{
+    private final long version;
+    private final List<Change> changes;
+    private final int currentIndex;
+
+    /**
+     * Creates a new event.
+     *
+     * @param queue        - The queue that changed.
+     * @param version      - The version of the queue after the changes.
+     * @param changes      - The changes made, in order.
+     * @param currentIndex - The index of the current song after the changes.
+     */
+    QueueChangeEvent(Queue queue, long version, List<Change> changes,
+                     int currentIndex)
+    {
+        super(queue);
+        this.version = version;
+        this.changes = Collections.unmodifiableList(changes);
+        this.currentIndex = currentIndex;
+    }
+
+    @Override
+    public Queue getSource()
+    {
+        return (Queue) super.getSource();
+    }
+
+    /**
+     * Obtains the version of the queue once these changes were made.
+     *
+     * @return The version of the queue.
+     */
+    public long getVersion()
+    {
+        return this.version;
+    }
+
+    /**
+     * Obtains the changes made.
+     *
+     * @return The changes, in the order they need to be applied.
+     */
+    public List<Change> getChanges()
+    {
+        return this.changes;
+    }
+
+    /**
+     * Obtains the index of the current song once these changes were made.
+     *
+     * @return The current index, or -1 if there is no current song.
+     */
+    public int getCurrentIndex()
+    {
+        return this.currentIndex;
+    }
+
+    public enum Type
+    {
+        /**
+         * Songs were added at an index.
+         */
+        INSERTED,
+        /**
+         * A range of songs was taken out.
+         */
+        REMOVED,
+        /**
+         * A song was moved from one index to another.
+         */
+        MOVED,
+        /**
+         * The queue was replaced entirely.
+         */
+        RESET
+    }
+
+    /**
+     * A single change to the queue. Changes are not modified once the event
+     * holding them is sent.
+     */
+    public static final class Change
+    {
+        private final Type type;
+        private int index;
+        private int count;
+        private final int target;
+        private final ArrayList<Song> songs;
+
+        private Change(Type type, int index, int count, int target,
+                       ArrayList<Song> songs)
+        {
+            this.type = type;
+            this.index = index;
+            this.count = count;
+            this.target = target;
+            this.songs = songs;
+        }
+
+        /**
+         * Creates a change for a song being added.
+         *
+         * @param index - Where the song was added.
+         * @param song  - The song added.
+         * @return The new change.
+         */
+        static Change inserted(int index, Song song)
+        {
+            ArrayList<Song> songs = new ArrayList<>();
+            songs.add(song);
+            return new Change(Type.INSERTED, index, 1, -1, songs);
+        }
+
+        /**
+         * Creates a change for a song being removed.
+         *
+         * @param index - Where the song was.
+         * @return The new change.
+         */
+        static Change removed(int index)
+        {
+            return new Change(Type.REMOVED, index, 1, -1, null);
+        }
+
+        /**
+         * Creates a change for a song being moved.
+         *
+         * @param from - Where the song was.
+         * @param to   - Where the song is now.
+         * @return The new change.
+         */
+        static Change moved(int from, int to)
+        {
+            return new Change(Type.MOVED, from, 1, to, null);
+        }
+
+        /**
+         * Creates a change for the whole queue being replaced.
+         *
+         * @param songs - The new contents of the queue.
+         * @return The new change.
+         */
+        static Change reset(ArrayList<Song> songs)
+        {
+            return new Change(Type.RESET, 0, songs.size(), -1, songs);
+        }
+
+        /**
+         * Tries to fold another change into this one, so that a run of
+         * single-song changes becomes one change covering a range.
+         *
+         * @param next - The change made right after this one.
+         * @return True if the change was folded into this one.
+         */
+        boolean merge(Change next)
+        {
+            if (this.type != next.type)
+            {
+                return false;
+            }
+            if (this.type == Type.INSERTED && next.index == this.index +
+                    this.count)
+            {
+                this.songs.addAll(next.songs);
+                this.count += next.count;
+                return true;
+            }
+            else if (this.type == Type.REMOVED)
+            {
+                if (next.index == this.index)
+                {
+                    this.count += next.count;
+                    return true;
+                }
+                else if (next.index + next.count == this.index)
+                {
+                    this.index = next.index;
+                    this.count += next.count;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Type getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * Obtains the first index affected. For moves, this is where the song
+         * was moved from.
+         *
+         * @return The index of the change.
+         */
+        public int getIndex()
+        {
+            return this.index;
+        }
+
+        /**
+         * Obtains how many songs were affected.
+         *
+         * @return The number of songs inserted, removed, moved, or in the
+         * queue after a reset.
+         */
+        public int getCount()
+        {
+            return this.count;
+        }
+
+        /**
+         * Obtains where a moved song ended up.
+         *
+         * @return The new index of the song, or -1 if this is not a move.
+         */
+        public int getTarget()
+        {
+            return this.target;
+        }
+
+        /**
+         * Obtains the songs added.
+         *
+         * @return The songs inserted, or the new contents of the queue for a
+         * reset. This is empty for other changes.
+         */
+        public List<Song> getSongs()
+        {
+            return this.songs == null ? Collections.emptyList() :
+                    Collections.unmodifiableList(this.songs);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.type + "[" + this.index + ", " + this.count +
+                    (this.type == Type.MOVED ? " -> " + this.target : "") +
+                    "]";
+        }
+    }
+}
@@ -0,0 +1,1109 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the queue and playback position on disk, so that they survive the
+ * program closing or crashing.
+ * <p>
+ * Rather than rewriting the whole queue whenever it changes, each change is
+ * appended to the end of a journal as one small record. The journal starts
+ * with a checkpoint holding the full state of the queue, and is rewritten as
+ * a new checkpoint once the records after it grow larger than the checkpoint
+ * itself, which keeps the cost of each change constant on average. Every
+ * record carries a checksum, so a record that was only half written when the
+ * program died is simply left out.
+ * </p>
+ * <p>
+ * Songs are stored by their file path or URL, and are looked up again once
+ * the song collection has loaded them. Records are built while the queue is
+ * locked, so they are always in the order the changes were made, but are
+ * written out on the journal's own thread so that the queue is never held
+ * up by the disk. They are handed to the operating system right after they
+ * are built, so they survive the program crashing, but are only forced to
+ * the disk itself when the journal is compacted or closed.
+ * </p>
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class QueueJournal
+{
+    private static final Logger logger =
+            LoggerFactory.getLogger(QueueJournal.class);
+
+    /**
+     * Marks the start of a journal file.
+     */
+    private static final int MAGIC = 0x554D514A;
+    private static final int VERSION = 1;
+
+    private static final byte CHECKPOINT = 0;
+    private static final byte INSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte SET = 3;
+    private static final byte CLEAR = 4;
+    private static final byte SHUFFLE = 5;
+    private static final byte REPEAT = 6;
+    private static final byte CURRENT = 7;
+    private static final byte POSITION = 8;
+    private static final byte MOVE = 9;
+
+    /**
+     * The journal is never compacted while it is smaller than this many
+     * bytes.
+     */
+    private static final long MIN_COMPACT_SIZE = 64 * 1024;
+    /**
+     * The least time between two position records, in nanoseconds.
+     */
+    private static final long POSITION_INTERVAL = 1_000_000_000L;
+
+    private final File file;
+    /**
+     * Builds up the body of each record before it is written.
+     */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+    /**
+     * Writes the records to the file, in the order they were built. Its
+     * thread stops while there is nothing to write.
+     */
+    private final ThreadPoolExecutor writer = new ThreadPoolExecutor(1, 1, 1,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "Queue Journal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The queue being recorded, or null if the journal is not attached yet.
+     * All records are built while holding the lock on this queue.
+     */
+    private volatile Queue queue;
+    /**
+     * The open journal file. This is only used from the writer thread.
+     */
+    private FileChannel channel;
+    /**
+     * The size of the last checkpoint, in bytes.
+     */
+    private long checkpointSize;
+    /**
+     * How many bytes have been appended since the last checkpoint.
+     */
+    private long appended;
+    /**
+     * Whether writing has failed, in which case nothing more is written.
+     */
+    private volatile boolean failed;
+
+    /**
+     * The last known position in the current song, in seconds.
+     */
+    private volatile float position;
+    private volatile long lastPositionWrite;
+    private boolean positionWritten = true;
+
+    /**
+     * The song to resume and the position to resume it at, until the song
+     * starts playing again.
+     */
+    private Song resumeSong;
+    private float resumePosition;
+
+    /**
+     * Creates a new journal.
+     *
+     * @param file - The file to keep the journal in.
+     */
+    public QueueJournal(File file)
+    {
+        this.file = file;
+        this.writer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Loads the queue from the journal, then starts recording changes to it.
+     * Songs are looked up as the song collection loads them, so this returns
+     * right away and the queue is filled in later. If the queue is changed
+     * before then, such as by songs passed on the command line, the saved
+     * queue is thrown out in favor of the new one.
+     *
+     * @param queue - The queue to restore and record.
+     * @param songs - The collection to find the saved songs in.
+     * @return A future that completes once the queue has been restored, or
+     * the saved queue has been thrown out.
+     */
+    public CompletableFuture<Void> restore(Queue queue, SongProvider<?> songs)
+    {
+        Resolver resolver;
+        State state = null;
+        if (this.file.length() > 0)
+        {
+            try
+            {
+                state = this.read();
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not read the queue journal {}",
+                        this.file, e);
+            }
+        }
+        if (state == null)
+        {
+            this.attach(queue);
+            return CompletableFuture.completedFuture(null);
+        }
+        resolver = new Resolver(state, queue, songs);
+        resolver.start();
+        return resolver.restored;
+    }
+
+    /**
+     * Obtains the position to resume a song at, if it was the song playing
+     * when the queue was saved. This only returns the position once, so the
+     * song plays from the start if it is played again later.
+     *
+     * @param song - The song that just started playing.
+     * @return The position to seek to, in seconds, or 0 to play from the
+     * start.
+     */
+    public synchronized float takeResumePosition(Song song)
+    {
+        float position = 0;
+        if (this.resumeSong != null && this.resumeSong.equals(song))
+        {
+            position = this.resumePosition;
+        }
+        this.resumeSong = null;
+        return position;
+    }
+
+    /**
+     * Records how far into the current song playback is. This is called often
+     * as a song plays, so at most one record is written each second.
+     *
+     * @param song     - The song being played.
+     * @param position - The position in the song, in seconds.
+     */
+    public void recordPosition(Song song, float position)
+    {
+        Queue queue = this.queue;
+        if (queue == null)
+        {
+            return;
+        }
+        synchronized (queue)
+        {
+            if (this.queue == null || !Objects.equals(queue.getCurrentSong(),
+                    song))
+            {
+                return;
+            }
+            this.position = position;
+            this.positionWritten = false;
+            if (System.nanoTime() - this.lastPositionWrite >= POSITION_INTERVAL)
+            {
+                this.writePosition();
+                this.compactIfDue();
+            }
+        }
+    }
+
+    /**
+     * Writes any pending position and closes the journal, waiting for
+     * everything recorded to reach the disk. Changes to the queue after this
+     * are not recorded.
+     */
+    public void close()
+    {
+        Queue queue = this.queue;
+        if (queue == null)
+        {
+            return;
+        }
+        synchronized (queue)
+        {
+            if (!this.positionWritten)
+            {
+                this.writePosition();
+            }
+            queue.setJournal(null);
+            this.queue = null;
+        }
+        this.await(this.writer.submit(() -> {
+            try
+            {
+                if (this.channel != null)
+                {
+                    this.channel.force(false);
+                    this.channel.close();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not close the queue journal", e);
+            }
+            this.channel = null;
+        }));
+    }
+
+    /**
+     * Waits for every change recorded so far to be handed to the operating
+     * system.
+     */
+    public void flush()
+    {
+        this.await(this.writer.submit(() -> {
+        }));
+    }
+
+    /**
+     * Waits for a task on the writer thread to finish.
+     *
+     * @param task - The task to wait for.
+     */
+    private void await(Future<?> task)
+    {
+        try
+        {
+            task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+            logger.error("Could not write to the queue journal", e.getCause());
+        }
+    }
+
+    /**
+     * Starts recording a queue. This writes a fresh checkpoint of the queue.
+     *
+     * @param queue - The queue to record.
+     */
+    private void attach(Queue queue)
+    {
+        synchronized (queue)
+        {
+            this.queue = queue;
+            queue.setJournal(this);
+        }
+    }
+
+    /**
+     * Records that a song was queued.
+     *
+     * @param index     - Where the song was queued.
+     * @param playIndex - Where the song falls in the play order.
+     * @param song      - The song queued.
+     */
+    void inserted(int index, int playIndex, Song song)
+    {
+        try
+        {
+            this.bufferOut.writeByte(INSERT);
+            this.bufferOut.writeInt(index);
+            this.bufferOut.writeInt(playIndex);
+            this.bufferOut.writeUTF(getReference(song));
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that a song was taken out of the queue.
+     *
+     * @param index - Where the song was.
+     */
+    void removed(int index)
+    {
+        try
+        {
+            this.bufferOut.writeByte(REMOVE);
+            this.bufferOut.writeInt(index);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that a queued song was replaced with another.
+     *
+     * @param index - Where the song is.
+     * @param song  - The new song.
+     */
+    void replaced(int index, Song song)
+    {
+        try
+        {
+            this.bufferOut.writeByte(SET);
+            this.bufferOut.writeInt(index);
+            this.bufferOut.writeUTF(getReference(song));
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that the queue was emptied.
+     */
+    void cleared()
+    {
+        try
+        {
+            this.bufferOut.writeByte(CLEAR);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that a new play order was picked.
+     *
+     * @param order - The new shuffle order, or null if the queue plays in
+     *              order.
+     */
+    void shuffled(ShuffleOrder order)
+    {
+        try
+        {
+            this.bufferOut.writeByte(SHUFFLE);
+            this.bufferOut.writeBoolean(order != null);
+            if (order != null)
+            {
+                for (long key : order.getKeys())
+                {
+                    this.bufferOut.writeLong(key);
+                }
+            }
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records whether the queue repeats.
+     *
+     * @param repeat - Whether the queue repeats.
+     */
+    void repeated(boolean repeat)
+    {
+        try
+        {
+            this.bufferOut.writeByte(REPEAT);
+            this.bufferOut.writeBoolean(repeat);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that a song was moved within the queue.
+     *
+     * @param from - The index the song was at.
+     * @param to   - The index the song is now at.
+     */
+    void moved(int from, int to)
+    {
+        try
+        {
+            this.bufferOut.writeByte(MOVE);
+            this.bufferOut.writeInt(from);
+            this.bufferOut.writeInt(to);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Records that the current song changed. The position starts over at the
+     * start of the song.
+     *
+     * @param index        - The index of the new current song, or -1 if there
+     *                     is none.
+     * @param startPending - Whether the next song queued becomes current.
+     */
+    void current(int index, boolean startPending)
+    {
+        this.position = 0;
+        this.positionWritten = true;
+        try
+        {
+            this.bufferOut.writeByte(CURRENT);
+            this.bufferOut.writeInt(index);
+            this.bufferOut.writeBoolean(startPending);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Rewrites the journal as a single checkpoint once enough has been
+     * appended since the last one. This must only be called between changes
+     * to the queue.
+     */
+    void compactIfDue()
+    {
+        if (this.queue != null && !this.failed && this.appended > Math
+                .max(MIN_COMPACT_SIZE, this.checkpointSize))
+        {
+            this.queue.checkpoint(this);
+        }
+    }
+
+    /**
+     * Replaces the journal with a checkpoint of the queue. The checkpoint is
+     * built right away, but the file is rewritten on the writer thread.
+     *
+     * @param songs        - The songs in the queue, in queued order.
+     * @param playOrder    - The queued index of each song in the play order.
+     * @param current      - The index of the current song, or -1.
+     * @param startPending - Whether the next song queued becomes current.
+     * @param shuffle      - Whether the queue is shuffled.
+     * @param repeat       - Whether the queue repeats.
+     */
+    void writeCheckpoint(List<Song> songs, int[] playOrder, int current,
+                         boolean startPending, boolean shuffle,
+                         boolean repeat)
+    {
+        Path path = this.file.toPath();
+        Path temp = path.resolveSibling(this.file.getName() + ".tmp");
+        ByteBuffer data;
+        try
+        {
+            this.bufferOut.writeByte(CHECKPOINT);
+            this.bufferOut.writeInt(songs.size());
+            for (Song song : songs)
+            {
+                this.bufferOut.writeUTF(getReference(song));
+            }
+            for (int index : playOrder)
+            {
+                this.bufferOut.writeInt(index);
+            }
+            this.bufferOut.writeInt(current);
+            this.bufferOut.writeBoolean(startPending);
+            this.bufferOut.writeBoolean(shuffle);
+            this.bufferOut.writeBoolean(repeat);
+            this.bufferOut.writeFloat(this.position);
+            data = this.takeRecord(true);
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+            return;
+        }
+        this.checkpointSize = data.limit();
+        this.appended = 0;
+        this.positionWritten = true;
+        this.writer.execute(() -> {
+            if (this.failed)
+            {
+                return;
+            }
+            try
+            {
+                if (this.channel != null)
+                {
+                    this.channel.close();
+                    this.channel = null;
+                }
+                Files.createDirectories(path.getParent());
+                try (FileChannel out = FileChannel.open(temp,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    while (data.hasRemaining())
+                    {
+                        out.write(data);
+                    }
+                    out.force(false);
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                this.channel = FileChannel.open(path, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                logger.debug("Compacted the queue journal to {} bytes",
+                        data.limit());
+            }
+            catch (IOException e)
+            {
+                this.writeFailed(e);
+            }
+        });
+    }
+
+    private void writePosition()
+    {
+        this.lastPositionWrite = System.nanoTime();
+        this.positionWritten = true;
+        try
+        {
+            this.bufferOut.writeByte(POSITION);
+            this.bufferOut.writeFloat(this.position);
+            this.append();
+        }
+        catch (IOException e)
+        {
+            this.fail(e);
+        }
+    }
+
+    /**
+     * Appends the record in the buffer to the journal.
+     */
+    private void append()
+    {
+        ByteBuffer data = this.takeRecord(false);
+        if (this.failed)
+        {
+            return;
+        }
+        this.appended += data.limit();
+        this.writer.execute(() -> {
+            if (this.failed)
+            {
+                return;
+            }
+            try
+            {
+                while (data.hasRemaining())
+                {
+                    this.channel.write(data);
+                }
+            }
+            catch (IOException e)
+            {
+                this.writeFailed(e);
+            }
+        });
+    }
+
+    /**
+     * Frames the record in the buffer with its length and checksum, and
+     * empties the buffer.
+     *
+     * @param header - Whether to put the file header in front of the record.
+     * @return The framed record.
+     */
+    private ByteBuffer takeRecord(boolean header)
+    {
+        byte[] body = this.buffer.toByteArray();
+        ByteBuffer data = ByteBuffer
+                .allocate((header ? 8 : 0) + body.length + 8);
+        this.buffer.reset();
+        this.crc.reset();
+        this.crc.update(body);
+        if (header)
+        {
+            data.putInt(MAGIC);
+            data.putInt(VERSION);
+        }
+        data.putInt(body.length);
+        data.put(body);
+        data.putInt((int) this.crc.getValue());
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Stops recording after a record could not be built, so the queue keeps
+     * working without it. This must be called while holding the lock on the
+     * queue.
+     *
+     * @param e - The error that occurred.
+     */
+    private void fail(IOException e)
+    {
+        this.buffer.reset();
+        this.writer.execute(() -> this.writeFailed(e));
+    }
+
+    /**
+     * Stops recording after a write fails, so the queue keeps working
+     * without it. This must be called from the writer thread.
+     *
+     * @param e - The error that occurred.
+     */
+    private void writeFailed(IOException e)
+    {
+        if (this.failed)
+        {
+            return;
+        }
+        logger.error("Could not write to the queue journal {}, no longer " +
+                "saving the queue", this.file, e);
+        this.failed = true;
+        try
+        {
+            if (this.channel != null)
+            {
+                this.channel.close();
+            }
+        }
+        catch (IOException e2)
+        {
+            logger.error("Could not close the queue journal", e2);
+        }
+        this.channel = null;
+    }
+
+    /**
+     * Reads the journal, replaying each record after the checkpoint. Reading
+     * stops at the first record that is incomplete or does not match its
+     * checksum.
+     *
+     * @return The state of the queue when the last record was written, or
+     * null if the file is not a journal.
+     */
+    private State read() throws IOException
+    {
+        State state = new State();
+        int length;
+        int records = 0;
+        byte[] body;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(this.file))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                logger.warn("{} is not a queue journal", this.file);
+                return null;
+            }
+            while (true)
+            {
+                try
+                {
+                    length = in.readInt();
+                    if (length <= 0 || length > this.file.length())
+                    {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                    this.crc.reset();
+                    this.crc.update(body);
+                    if (in.readInt() != (int) this.crc.getValue())
+                    {
+                        break;
+                    }
+                }
+                catch (EOFException e)
+                {
+                    break;
+                }
+                try
+                {
+                    state.replay(new DataInputStream(
+                            new ByteArrayInputStream(body)));
+                    records++;
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    logger.warn("Skipping the rest of the queue journal " +
+                            "after a bad record", e);
+                    break;
+                }
+            }
+        }
+        logger.debug("Read {} records from the queue journal", records);
+        return state;
+    }
+
+    /**
+     * Obtains the text used to find a song again.
+     *
+     * @param song - The song to refer to.
+     * @return The path or URL of the song.
+     */
+    static String getReference(Song song)
+    {
+        if (song instanceof LocalSong)
+        {
+            return "file:" + ((LocalSong) song).file.getAbsolutePath();
+        }
+        else if (song instanceof InternetSong)
+        {
+            return "url:" + ((InternetSong) song).location;
+        }
+        return "";
+    }
+
+    /**
+     * A single queued song, as read from the journal.
+     */
+    private static class Item
+    {
+        private String reference;
+        private RankTree.Node<Item> queuedNode;
+        private RankTree.Node<Item> playedNode;
+
+        private Item(String reference)
+        {
+            this.reference = reference;
+        }
+    }
+
+    /**
+     * The queue as it is rebuilt from the journal. Unlike the queue itself,
+     * the play order is always stored in full here.
+     */
+    private static class State
+    {
+        private final Random random = new Random();
+        private final RankTree<Item> queued = new RankTree<>(this.random);
+        private final RankTree<Item> played = new RankTree<>(this.random);
+        private Item current;
+        private boolean startPending = true;
+        private boolean shuffle;
+        private boolean repeat;
+        private float position;
+
+        /**
+         * Applies a record.
+         *
+         * @param in - The body of the record.
+         */
+        private void replay(DataInputStream in) throws IOException
+        {
+            ArrayList<Item> items;
+            Item item;
+            int size;
+            int index;
+            switch (in.readByte())
+            {
+            case CHECKPOINT -> {
+                size = in.readInt();
+                items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    items.add(new Item(in.readUTF()));
+                }
+                this.buildQueued(items);
+                items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++)
+                {
+                    items.add(this.queued.get(in.readInt()));
+                }
+                this.buildPlayed(items);
+                index = in.readInt();
+                this.current = index >= 0 ? this.queued.get(index) : null;
+                this.startPending = in.readBoolean();
+                this.shuffle = in.readBoolean();
+                this.repeat = in.readBoolean();
+                this.position = in.readFloat();
+            }
+            case INSERT -> {
+                index = in.readInt();
+                size = in.readInt();
+                item = new Item(in.readUTF());
+                item.queuedNode = this.queued.insert(index, item);
+                item.playedNode = this.played.insert(size, item);
+            }
+            case REMOVE -> {
+                item = this.queued.get(in.readInt());
+                this.queued.remove(item.queuedNode);
+                this.played.remove(item.playedNode);
+            }
+            case SET -> this.queued.get(in.readInt()).reference = in.readUTF();
+            case CLEAR -> {
+                this.queued.clear();
+                this.played.clear();
+                this.current = null;
+                this.startPending = true;
+            }
+            case SHUFFLE -> {
+                this.shuffle = in.readBoolean();
+                items = new ArrayList<>(this.queued.size());
+                for (Item queuedItem : this.queued)
+                {
+                    items.add(queuedItem);
+                }
+                if (this.shuffle)
+                {
+                    long[] keys = new long[ShuffleOrder.ROUNDS];
+                    ShuffleOrder order;
+                    ArrayList<Item> byQueue = items;
+                    for (int i = 0; i < keys.length; i++)
+                    {
+                        keys[i] = in.readLong();
+                    }
+                    order = new ShuffleOrder(byQueue.size(), keys);
+                    items = new ArrayList<>(byQueue.size());
+                    for (int i = 0; i < byQueue.size(); i++)
+                    {
+                        items.add(byQueue.get(order.apply(i)));
+                    }
+                }
+                this.buildPlayed(items);
+            }
+            case REPEAT -> this.repeat = in.readBoolean();
+            case CURRENT -> {
+                index = in.readInt();
+                this.current = index >= 0 ? this.queued.get(index) : null;
+                this.startPending = in.readBoolean();
+                this.position = 0;
+            }
+            case POSITION -> this.position = in.readFloat();
+            case MOVE -> {
+                item = this.queued.get(in.readInt());
+                index = in.readInt();
+                this.queued.remove(item.queuedNode);
+                item.queuedNode = this.queued.insert(index, item);
+                /*
+                 * Without shuffling, songs play in the order they are queued.
+                 */
+                if (!this.shuffle)
+                {
+                    this.played.remove(item.playedNode);
+                    item.playedNode = this.played.insert(index, item);
+                }
+            }
+            default -> throw new IOException("Unknown record type");
+            }
+        }
+
+        private void buildQueued(List<Item> items)
+        {
+            for (RankTree.Node<Item> node : this.queued.build(items))
+            {
+                node.value.queuedNode = node;
+            }
+        }
+
+        private void buildPlayed(List<Item> items)
+        {
+            for (RankTree.Node<Item> node : this.played.build(items))
+            {
+                node.value.playedNode = node;
+            }
+        }
+    }
+
+    /**
+     * Waits for the songs in a saved queue to be loaded, then restores the
+     * queue. Songs that never show up are left out.
+     */
+    private class Resolver implements CollectionListener, UpdateListener
+    {
+        private final State state;
+        private final Queue queue;
+        private final SongProvider<?> songs;
+        /**
+         * The songs still being waited on.
+         */
+        private final Set<String> missing = ConcurrentHashMap.newKeySet();
+        private final ConcurrentHashMap<String, Song> found =
+                new ConcurrentHashMap<>();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final CompletableFuture<Void> restored = new CompletableFuture<>();
+
+        private Resolver(State state, Queue queue, SongProvider<?> songs)
+        {
+            this.state = state;
+            this.queue = queue;
+            this.songs = songs;
+            for (Item item : state.queued)
+            {
+                this.missing.add(item.reference);
+            }
+        }
+
+        private void start()
+        {
+            this.songs.addCollectionListener(this);
+            this.songs.addUpdateListener(this);
+            for (Song song : this.songs.getCollection())
+            {
+                this.resolve(song);
+            }
+            if (this.missing.isEmpty() || !this.songs.isUpdating())
+            {
+                this.finish();
+            }
+        }
+
+        private void resolve(Song song)
+        {
+            String reference = getReference(song);
+            if (this.missing.remove(reference))
+            {
+                this.found.put(reference, song);
+            }
+        }
+
+        @Override
+        public <T> void onItemWritten(DataProvider<T> provider, T item)
+        {
+            if (item instanceof Song)
+            {
+                this.resolve((Song) item);
+                if (this.missing.isEmpty())
+                {
+                    this.finish();
+                }
+            }
+        }
+
+        @Override
+        public <T> void onItemRemoved(DataProvider<T> provider, T item)
+        {
+        }
+
+        @Override
+        public <T> void onUpdate(DataProvider<T> provider, int updated,
+                                 int totalUpdate, String updating)
+        {
+            if (!this.songs.isUpdating())
+            {
+                this.finish();
+            }
+        }
+
+        /**
+         * Restores the queue with the songs found so far.
+         */
+        private void finish()
+        {
+            ArrayList<Song> queued = new ArrayList<>();
+            IdentityHashMap<Item, Integer> indices = new IdentityHashMap<>();
+            int[] playOrder;
+            int current = -1;
+            int i = 0;
+            Song song;
+            Item currentItem = this.state.current;
+            float position = this.state.position;
+            if (!this.done.compareAndSet(false, true))
+            {
+                return;
+            }
+            this.songs.removeCollectionListener(this);
+            this.songs.removeUpdateListener(this);
+            if (!this.missing.isEmpty())
+            {
+                logger.warn("Could not find {} songs from the saved queue",
+                        this.missing.size());
+            }
+
+            for (Item item : this.state.queued)
+            {
+                song = this.found.get(item.reference);
+                if (song != null)
+                {
+                    indices.put(item, queued.size());
+                    queued.add(song);
+                }
+            }
+            playOrder = new int[queued.size()];
+            if (currentItem != null && !indices.containsKey(currentItem))
+            {
+                /*
+                 * Carry on with the next song that is still around.
+                 */
+                position = 0;
+                RankTree.Node<Item> node = currentItem.playedNode;
+                currentItem = null;
+                for (node = RankTree.next(node); node != null && currentItem ==
+                        null; node = RankTree.next(node))
+                {
+                    if (indices.containsKey(node.value))
+                    {
+                        currentItem = node.value;
+                    }
+                }
+            }
+            for (Item item : this.state.played)
+            {
+                Integer index = indices.get(item);
+                if (index != null)
+                {
+                    playOrder[i++] = index;
+                }
+            }
+            if (currentItem != null)
+            {
+                current = indices.get(currentItem);
+            }
+
+            synchronized (QueueJournal.this)
+            {
+                if (current >= 0)
+                {
+                    resumeSong = queued.get(current);
+                    resumePosition = position;
+                }
+            }
+            QueueJournal.this.position = position;
+            if (this.queue.restore(queued, playOrder, current,
+                    this.state.startPending && current < 0,
+                    this.state.shuffle, this.state.repeat, 0))
+            {
+                logger.info("Restored {} songs to the queue", queued.size());
+            }
+            else
+            {
+                logger.info("The queue changed before it could be restored");
+                synchronized (QueueJournal.this)
+                {
+                    resumeSong = null;
+                }
+                QueueJournal.this.position = 0;
+            }
+            attach(this.queue);
+            this.restored.complete(null);
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A sequence of values stored in a randomized binary search tree, ordered by
+ * position rather than by value. Each node tracks the size of its subtree and
+ * its parent, so a value can be found by index, and the index of a node can be
+ * found from the node itself, both in O(log n) expected time. Insertions and
+ * removals anywhere in the sequence take the same time.
+ * <p>
+ * The tree is balanced by randomly choosing which side of a join becomes the
+ * root, weighted by size, so no balancing information is stored besides the
+ * subtree sizes. This class is not thread-safe.
+ * </p>
+ *
+ * @param <E> - The type of values stored.
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class RankTree<E> implements Iterable<E>
+{
+    private final Random random;
+    private Node<E> root;
+
+    /**
+     * Creates an empty tree.
+     *
+     * @param random - The random number generator used to balance the tree.
+     */
+    RankTree(Random random)
+    {
+        this.random = random;
+    }
+
+    /**
+     * Obtains the number of values in the tree.
+     *
+     * @return The size of the tree.
+     */
+    int size()
+    {
+        return size(this.root);
+    }
+
+    /**
+     * Removes every value from the tree.
+     */
+    void clear()
+    {
+        this.root = null;
+    }
+
+    /**
+     * Inserts a value.
+     *
+     * @param index - The position to insert at, from 0 to {@link #size()}.
+     * @param value - The value to insert.
+     * @return The node holding the value, which stays valid until the value
+     * is removed.
+     */
+    Node<E> insert(int index, E value)
+    {
+        Node<E> node = new Node<>(value);
+        Node<E>[] parts;
+        if (index < 0 || index > this.size())
+        {
+            throw new IndexOutOfBoundsException(index);
+        }
+        parts = this.split(this.root, index);
+        this.root = this.join(this.join(parts[0], node), parts[1]);
+        this.root.parent = null;
+        return node;
+    }
+
+    /**
+     * Appends a value to the end of the tree.
+     *
+     * @param value - The value to append.
+     * @return The node holding the value.
+     */
+    Node<E> add(E value)
+    {
+        return this.insert(this.size(), value);
+    }
+
+    /**
+     * Replaces the contents of the tree with a list of values. This takes
+     * linear time.
+     *
+     * @param values - The values to store, in order.
+     * @return The nodes holding each value, in the same order.
+     */
+    List<Node<E>> build(List<E> values)
+    {
+        ArrayList<Node<E>> nodes = new ArrayList<>(values.size());
+        for (E value : values)
+        {
+            nodes.add(new Node<>(value));
+        }
+        this.root = this.build(nodes, 0, nodes.size());
+        if (this.root != null)
+        {
+            this.root.parent = null;
+        }
+        return nodes;
+    }
+
+    /**
+     * Removes a node from the tree.
+     *
+     * @param node - The node to remove. It must belong to this tree.
+     */
+    void remove(Node<E> node)
+    {
+        Node<E> parent = node.parent;
+        Node<E> replacement = this.join(node.left, node.right);
+        if (replacement != null)
+        {
+            replacement.parent = parent;
+        }
+        if (parent == null)
+        {
+            this.root = replacement;
+        }
+        else if (parent.left == node)
+        {
+            parent.left = replacement;
+        }
+        else
+        {
+            parent.right = replacement;
+        }
+        for (Node<E> ancestor = parent; ancestor != null; ancestor =
+                ancestor.parent)
+        {
+            ancestor.size--;
+        }
+        node.left = node.right = node.parent = null;
+        node.size = 1;
+    }
+
+    /**
+     * Obtains the node at a position.
+     *
+     * @param index - The position of the node.
+     * @return The node at that position.
+     */
+    Node<E> getNode(int index)
+    {
+        Node<E> node = this.root;
+        int leftSize;
+        if (index < 0 || index >= this.size())
+        {
+            throw new IndexOutOfBoundsException(index);
+        }
+        while (true)
+        {
+            leftSize = size(node.left);
+            if (index < leftSize)
+            {
+                node = node.left;
+            }
+            else if (index > leftSize)
+            {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+            else
+            {
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Obtains the value at a position.
+     *
+     * @param index - The position of the value.
+     * @return The value at that position.
+     */
+    E get(int index)
+    {
+        return this.getNode(index).value;
+    }
+
+    /**
+     * Finds the position of a node.
+     *
+     * @param node - The node to look up. It must belong to this tree.
+     * @return The position of the node.
+     */
+    int indexOf(Node<E> node)
+    {
+        int index = size(node.left);
+        for (; node.parent != null; node = node.parent)
+        {
+            if (node.parent.right == node)
+            {
+                index += size(node.parent.left) + 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Obtains the node following another.
+     *
+     * @param node - The node to start from.
+     * @return The next node, or null if this was the last one.
+     */
+    static <E> Node<E> next(Node<E> node)
+    {
+        if (node.right != null)
+        {
+            node = node.right;
+            while (node.left != null)
+            {
+                node = node.left;
+            }
+            return node;
+        }
+        while (node.parent != null && node.parent.right == node)
+        {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Obtains the node before another.
+     *
+     * @param node - The node to start from.
+     * @return The previous node, or null if this was the first one.
+     */
+    static <E> Node<E> previous(Node<E> node)
+    {
+        if (node.left != null)
+        {
+            node = node.left;
+            while (node.right != null)
+            {
+                node = node.right;
+            }
+            return node;
+        }
+        while (node.parent != null && node.parent.left == node)
+        {
+            node = node.parent;
+        }
+        return node.parent;
+    }
+
+    /**
+     * Obtains the first node in the tree.
+     *
+     * @return The first node, or null if the tree is empty.
+     */
+    Node<E> first()
+    {
+        Node<E> node = this.root;
+        if (node != null)
+        {
+            while (node.left != null)
+            {
+                node = node.left;
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Iterates through the values in order. Each step takes amortized
+     * constant time. The tree must not be modified while iterating.
+     *
+     * @return An iterator over the values.
+     */
+    @Override
+    public Iterator<E> iterator()
+    {
+        return new Iterator<>()
+        {
+            private Node<E> next = first();
+
+            @Override
+            public boolean hasNext()
+            {
+                return this.next != null;
+            }
+
+            @Override
+            public E next()
+            {
+                Node<E> node = this.next;
+                if (node == null)
+                {
+                    throw new NoSuchElementException();
+                }
+                this.next = RankTree.next(node);
+                return node.value;
+            }
+        };
+    }
+
+    private static int size(Node<?> node)
+    {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Recalculates the size of a node and points its children back to it.
+     *
+     * @param node - The node to update.
+     */
+    private static <E> void update(Node<E> node)
+    {
+        node.size = 1 + size(node.left) + size(node.right);
+        if (node.left != null)
+        {
+            node.left.parent = node;
+        }
+        if (node.right != null)
+        {
+            node.right.parent = node;
+        }
+    }
+
+    /**
+     * Joins two trees, with every value of the first coming before every value
+     * of the second. The root is picked from either side with a probability
+     * proportional to its size, which keeps the tree randomly balanced.
+     *
+     * @param first  - The first tree.
+     * @param second - The second tree.
+     * @return The root of the joined tree.
+     */
+    private Node<E> join(Node<E> first, Node<E> second)
+    {
+        if (first == null)
+        {
+            return second;
+        }
+        if (second == null)
+        {
+            return first;
+        }
+        if (this.random.nextInt(first.size + second.size) < first.size)
+        {
+            first.right = this.join(first.right, second);
+            update(first);
+            return first;
+        }
+        else
+        {
+            second.left = this.join(first, second.left);
+            update(second);
+            return second;
+        }
+    }
+
+    /**
+     * Splits a tree in two.
+     *
+     * @param node  - The root of the tree to split.
+     * @param index - How many values go into the first tree.
+     * @return The roots of the two trees. Either may be null.
+     */
+    private Node<E>[] split(Node<E> node, int index)
+    {
+        Node<E>[] parts;
+        if (node == null)
+        {
+            @SuppressWarnings("unchecked")
+            Node<E>[] empty = (Node<E>[]) new Node<?>[2];
+            return empty;
+        }
+        if (index <= size(node.left))
+        {
+            parts = this.split(node.left, index);
+            node.left = parts[1];
+            update(node);
+            parts[1] = node;
+        }
+        else
+        {
+            parts = this.split(node.right, index - size(node.left) - 1);
+            node.right = parts[0];
+            update(node);
+            parts[0] = node;
+        }
+        if (parts[0] != null)
+        {
+            parts[0].parent = null;
+        }
+        if (parts[1] != null)
+        {
+            parts[1].parent = null;
+        }
+        return parts;
+    }
+
+    /**
+     * Builds a perfectly balanced tree out of nodes.
+     *
+     * @param nodes - The nodes to build from.
+     * @param from  - The first node to use, inclusive.
+     * @param to    - The last node to use, exclusive.
+     * @return The root of the tree.
+     */
+    private Node<E> build(List<Node<E>> nodes, int from, int to)
+    {
+        Node<E> node;
+        int middle;
+        if (from >= to)
+        {
+            return null;
+        }
+        middle = (from + to) >>> 1;
+        node = nodes.get(middle);
+        node.left = this.build(nodes, from, middle);
+        node.right = this.build(nodes, middle + 1, to);
+        update(node);
+        return node;
+    }
+
+    /**
+     * A single position in the tree.
+     *
+     * @param <E> - The type of value stored.
+     */
+    static final class Node<E>
+    {
+        final E value;
+        private Node<E> left;
+        private Node<E> right;
+        private Node<E> parent;
+        private int size = 1;
+
+        private Node(E value)
+        {
+            this.value = value;
+        }
+    }
+}
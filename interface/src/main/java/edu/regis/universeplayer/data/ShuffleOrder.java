@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import java.util.Random;
+
+/**
+ * A random ordering of the positions 0 to n - 1, generated on demand. Rather
+ * than storing a shuffled array, positions are passed through a small Feistel
+ * network keyed by random numbers, which is a bijection on every power of four
+ * that covers n. Results that fall outside of the range are fed back through
+ * the network until they land inside it, which takes fewer than four rounds
+ * on average.
+ * <p>
+ * Creating an order takes constant time and memory no matter how many
+ * positions there are, and both directions of the mapping take constant
+ * time.
+ * </p>
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class ShuffleOrder
+{
+    /**
+     * How many rounds the network uses. Four rounds are enough for the
+     * output to look random.
+     */
+    static final int ROUNDS = 4;
+
+    private final int size;
+    /**
+     * How many bits are in each half of a position.
+     */
+    private final int halfBits;
+    private final int halfMask;
+    private final long[] keys = new long[ROUNDS];
+
+    /**
+     * Creates a new random order.
+     *
+     * @param size   - How many positions there are.
+     * @param random - The source of the keys.
+     */
+    ShuffleOrder(int size, Random random)
+    {
+        this(size);
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            this.keys[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Recreates an order from the keys of another, such as one that was
+     * saved to disk.
+     *
+     * @param size - How many positions there are.
+     * @param keys - The keys of the order, as returned by {@link #getKeys()}.
+     */
+    ShuffleOrder(int size, long[] keys)
+    {
+        this(size);
+        if (keys.length != ROUNDS)
+        {
+            throw new IllegalArgumentException("Expected " + ROUNDS + " " +
+                    "keys, got " + keys.length);
+        }
+        System.arraycopy(keys, 0, this.keys, 0, ROUNDS);
+    }
+
+    private ShuffleOrder(int size)
+    {
+        int bits = 2;
+        this.size = size;
+        while (bits < 32 && 1L << bits < size)
+        {
+            bits += 2;
+        }
+        this.halfBits = bits / 2;
+        this.halfMask = (1 << this.halfBits) - 1;
+    }
+
+    /**
+     * Obtains how many positions are ordered.
+     *
+     * @return The number of positions.
+     */
+    int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * Obtains the keys of the network, which are all that is needed to
+     * recreate the order.
+     *
+     * @return A copy of the keys.
+     */
+    long[] getKeys()
+    {
+        return this.keys.clone();
+    }
+
+    /**
+     * Finds which position comes at a point in the order.
+     *
+     * @param index - The point in the shuffled order.
+     * @return The original position that goes there.
+     */
+    int apply(int index)
+    {
+        checkIndex(index);
+        do
+        {
+            index = this.encrypt(index);
+        }
+        while (index < 0 || index >= this.size);
+        return index;
+    }
+
+    /**
+     * Finds where a position falls in the order. This undoes {@link
+     * #apply(int)}.
+     *
+     * @param index - The original position.
+     * @return The point in the shuffled order it falls at.
+     */
+    int invert(int index)
+    {
+        checkIndex(index);
+        do
+        {
+            index = this.decrypt(index);
+        }
+        while (index < 0 || index >= this.size);
+        return index;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= this.size)
+        {
+            throw new IndexOutOfBoundsException(index);
+        }
+    }
+
+    private int encrypt(int value)
+    {
+        int left = value >>> this.halfBits;
+        int right = value & this.halfMask;
+        int temp;
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            temp = right;
+            right = (left ^ this.round(right, i)) & this.halfMask;
+            left = temp;
+        }
+        return left << this.halfBits | right;
+    }
+
+    private int decrypt(int value)
+    {
+        int left = value >>> this.halfBits;
+        int right = value & this.halfMask;
+        int temp;
+        for (int i = ROUNDS - 1; i >= 0; i--)
+        {
+            temp = left;
+            left = (right ^ this.round(left, i)) & this.halfMask;
+            right = temp;
+        }
+        return left << this.halfBits | right;
+    }
+
+    /**
+     * Scrambles half of a position. This uses the finalizer of the
+     * SplitMix64 generator.
+     *
+     * @param half  - The half to scramble.
+     * @param round - Which round of the network this is.
+     * @return The scrambled bits.
+     */
+    private int round(int half, int round)
+    {
+        long z = half + this.keys[round];
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return (int) (z ^ (z >>> 31));
+    }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.data;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A compressed set of song ids, laid out in the same manner as a roaring
+ * bitmap. Ids are split into a high and low 16 bits. Each distinct high half
+ * gets a container of low halves, which is stored as a sorted array while it
+ * is sparse and as a plain 65536-bit bitmap once it is dense.
+ * <p>
+ * This class is not thread safe.
+ * </p>
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class SongBitmap
+{
+    /**
+     * The most entries an array container may hold before it is turned into a
+     * bitmap container.
+     */
+    private static final int ARRAY_LIMIT = 4096;
+    /**
+     * The number of longs used by a bitmap container.
+     */
+    private static final int BITMAP_WORDS = 1024;
+
+    private int[] keys = new int[4];
+    private Container[] containers = new Container[4];
+    private int size;
+
+    /**
+     * Creates an empty bitmap.
+     */
+    public SongBitmap()
+    {
+    }
+
+    /**
+     * Creates a copy of another bitmap.
+     *
+     * @param other - The bitmap to copy.
+     */
+    public SongBitmap(SongBitmap other)
+    {
+        this.keys = Arrays.copyOf(other.keys, Math.max(4, other.size));
+        this.containers = new Container[this.keys.length];
+        for (int i = 0; i < other.size; i++)
+        {
+            this.containers[i] = other.containers[i].copy();
+        }
+        this.size = other.size;
+    }
+
+    /**
+     * Adds an id to the set.
+     *
+     * @param id - The id to add. This must not be negative.
+     * @return True if the id was not already in the set.
+     */
+    public boolean add(int id)
+    {
+        int index = Arrays.binarySearch(this.keys, 0, this.size, id >>> 16);
+        if (index < 0)
+        {
+            index = -index - 1;
+            if (this.size == this.keys.length)
+            {
+                this.keys = Arrays.copyOf(this.keys, this.size * 2);
+                this.containers = Arrays.copyOf(this.containers, this.size * 2);
+            }
+            System.arraycopy(this.keys, index, this.keys, index + 1, this.size - index);
+            System.arraycopy(this.containers, index, this.containers, index + 1, this.size - index);
+            this.keys[index] = id >>> 16;
+            this.containers[index] = new Container();
+            this.size++;
+        }
+        return this.containers[index].add((char) id);
+    }
+
+    /**
+     * Removes an id from the set.
+     *
+     * @param id - The id to remove.
+     * @return True if the id was in the set.
+     */
+    public boolean remove(int id)
+    {
+        int index = Arrays.binarySearch(this.keys, 0, this.size, id >>> 16);
+        if (index < 0 || !this.containers[index].remove((char) id))
+        {
+            return false;
+        }
+        if (this.containers[index].cardinality == 0)
+        {
+            System.arraycopy(this.keys, index + 1, this.keys, index, this.size - index - 1);
+            System.arraycopy(this.containers, index + 1, this.containers, index, this.size - index - 1);
+            this.containers[--this.size] = null;
+        }
+        return true;
+    }
+
+    /**
+     * Checks to see if an id is in the set.
+     *
+     * @param id - The id to check.
+     * @return True if the id is in the set.
+     */
+    public boolean contains(int id)
+    {
+        int index = Arrays.binarySearch(this.keys, 0, this.size, id >>> 16);
+        return index >= 0 && this.containers[index].contains((char) id);
+    }
+
+    /**
+     * Obtains the number of ids in the set.
+     *
+     * @return The cardinality of the set.
+     */
+    public int getCardinality()
+    {
+        int cardinality = 0;
+        for (int i = 0; i < this.size; i++)
+        {
+            cardinality += this.containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Checks to see if the set is empty.
+     *
+     * @return True if there are no ids in the set.
+     */
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    /**
+     * Creates the intersection of this set and another.
+     *
+     * @param other - The other set.
+     * @return A new bitmap containing the ids found in both sets.
+     */
+    public SongBitmap and(SongBitmap other)
+    {
+        SongBitmap result = new SongBitmap();
+        Container container;
+        int i = 0, j = 0;
+        while (i < this.size && j < other.size)
+        {
+            if (this.keys[i] < other.keys[j])
+            {
+                i++;
+            }
+            else if (this.keys[i] > other.keys[j])
+            {
+                j++;
+            }
+            else
+            {
+                container = this.containers[i].and(other.containers[j]);
+                if (container.cardinality > 0)
+                {
+                    result.append(this.keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the union of this set and another.
+     *
+     * @param other - The other set.
+     * @return A new bitmap containing the ids found in either set.
+     */
+    public SongBitmap or(SongBitmap other)
+    {
+        SongBitmap result = new SongBitmap();
+        int i = 0, j = 0;
+        while (i < this.size || j < other.size)
+        {
+            if (j == other.size || (i < this.size && this.keys[i] < other.keys[j]))
+            {
+                result.append(this.keys[i], this.containers[i].copy());
+                i++;
+            }
+            else if (i == this.size || this.keys[i] > other.keys[j])
+            {
+                result.append(other.keys[j], other.containers[j].copy());
+                j++;
+            }
+            else
+            {
+                result.append(this.keys[i], this.containers[i].or(other.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the size of the intersection between this set and another without
+     * building it.
+     *
+     * @param other - The other set.
+     * @return The number of ids found in both sets.
+     */
+    public int andCardinality(SongBitmap other)
+    {
+        int cardinality = 0;
+        int i = 0, j = 0;
+        while (i < this.size && j < other.size)
+        {
+            if (this.keys[i] < other.keys[j])
+            {
+                i++;
+            }
+            else if (this.keys[i] > other.keys[j])
+            {
+                j++;
+            }
+            else
+            {
+                cardinality += this.containers[i].andCardinality(other.containers[j]);
+                i++;
+                j++;
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * Runs an action for every id in the set, in ascending order.
+     *
+     * @param action - The action to run.
+     */
+    public void forEach(IntConsumer action)
+    {
+        for (int i = 0; i < this.size; i++)
+        {
+            this.containers[i].forEach(this.keys[i] << 16, action);
+        }
+    }
+
+    /**
+     * Obtains every id in the set.
+     *
+     * @return A sorted array of ids.
+     */
+    public int[] toArray()
+    {
+        int[] ids = new int[this.getCardinality()];
+        int[] index = new int[1];
+        this.forEach(id -> ids[index[0]++] = id);
+        return ids;
+    }
+
+    /**
+     * Adds a container to the end of the set. The key must be larger than any
+     * key already present.
+     */
+    private void append(int key, Container container)
+    {
+        if (this.size == this.keys.length)
+        {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.containers = Arrays.copyOf(this.containers, this.size * 2);
+        }
+        this.keys[this.size] = key;
+        this.containers[this.size++] = container;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (!(o instanceof SongBitmap))
+        {
+            return false;
+        }
+        return Arrays.equals(this.toArray(), ((SongBitmap) o).toArray());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(this.toArray());
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(this.toArray());
+    }
+
+    /**
+     * Holds the low 16 bits of every id sharing the same high 16 bits. While
+     * {@link #bits} is null, the ids are kept in the sorted {@link #array}.
+     */
+    private static class Container
+    {
+        private char[] array;
+        private long[] bits;
+        private int cardinality;
+
+        Container()
+        {
+            this.array = new char[4];
+        }
+
+        Container copy()
+        {
+            Container copy = new Container();
+            copy.array = this.array != null ? this.array.clone() : null;
+            copy.bits = this.bits != null ? this.bits.clone() : null;
+            copy.cardinality = this.cardinality;
+            return copy;
+        }
+
+        boolean add(char value)
+        {
+            if (this.bits != null)
+            {
+                long old = this.bits[value >>> 6];
+                this.bits[value >>> 6] |= 1L << value;
+                if (old != this.bits[value >>> 6])
+                {
+                    this.cardinality++;
+                    return true;
+                }
+                return false;
+            }
+            int index = Arrays.binarySearch(this.array, 0, this.cardinality, value);
+            if (index >= 0)
+            {
+                return false;
+            }
+            if (this.cardinality == ARRAY_LIMIT)
+            {
+                this.toBitmap();
+                return this.add(value);
+            }
+            index = -index - 1;
+            if (this.cardinality == this.array.length)
+            {
+                this.array = Arrays.copyOf(this.array, Math.min(ARRAY_LIMIT, this.cardinality * 2));
+            }
+            System.arraycopy(this.array, index, this.array, index + 1, this.cardinality - index);
+            this.array[index] = value;
+            this.cardinality++;
+            return true;
+        }
+
+        boolean remove(char value)
+        {
+            if (this.bits != null)
+            {
+                long old = this.bits[value >>> 6];
+                this.bits[value >>> 6] &= ~(1L << value);
+                if (old == this.bits[value >>> 6])
+                {
+                    return false;
+                }
+                if (--this.cardinality <= ARRAY_LIMIT)
+                {
+                    this.toArray();
+                }
+                return true;
+            }
+            int index = Arrays.binarySearch(this.array, 0, this.cardinality, value);
+            if (index < 0)
+            {
+                return false;
+            }
+            System.arraycopy(this.array, index + 1, this.array, index, this.cardinality - index - 1);
+            this.cardinality--;
+            return true;
+        }
+
+        boolean contains(char value)
+        {
+            if (this.bits != null)
+            {
+                return (this.bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(this.array, 0, this.cardinality, value) >= 0;
+        }
+
+        Container and(Container other)
+        {
+            Container result = new Container();
+            if (this.bits != null && other.bits != null)
+            {
+                result.bits = new long[BITMAP_WORDS];
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                {
+                    result.bits[i] = this.bits[i] & other.bits[i];
+                    result.cardinality += Long.bitCount(result.bits[i]);
+                }
+                result.array = null;
+                if (result.cardinality <= ARRAY_LIMIT)
+                {
+                    result.toArray();
+                }
+            }
+            else if (this.bits != null || other.bits != null)
+            {
+                Container sparse = this.bits == null ? this : other;
+                Container dense = this.bits == null ? other : this;
+                result.array = new char[Math.max(4, sparse.cardinality)];
+                for (int i = 0; i < sparse.cardinality; i++)
+                {
+                    if (dense.contains(sparse.array[i]))
+                    {
+                        result.array[result.cardinality++] = sparse.array[i];
+                    }
+                }
+            }
+            else
+            {
+                result.array = new char[Math.max(4, Math.min(this.cardinality, other.cardinality))];
+                int i = 0, j = 0;
+                while (i < this.cardinality && j < other.cardinality)
+                {
+                    if (this.array[i] < other.array[j])
+                    {
+                        i++;
+                    }
+                    else if (this.array[i] > other.array[j])
+                    {
+                        j++;
+                    }
+                    else
+                    {
+                        result.array[result.cardinality++] = this.array[i];
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return result;
+        }
+
+        Container or(Container other)
+        {
+            Container result = new Container();
+            if (this.bits == null && other.bits == null
+                    && this.cardinality + other.cardinality <= ARRAY_LIMIT)
+            {
+                result.array = new char[Math.max(4, this.cardinality + other.cardinality)];
+                int i = 0, j = 0;
+                while (i < this.cardinality || j < other.cardinality)
+                {
+                    if (j == other.cardinality || (i < this.cardinality && this.array[i] < other.array[j]))
+                    {
+                        result.array[result.cardinality++] = this.array[i++];
+                    }
+                    else if (i == this.cardinality || this.array[i] > other.array[j])
+                    {
+                        result.array[result.cardinality++] = other.array[j++];
+                    }
+                    else
+                    {
+                        result.array[result.cardinality++] = this.array[i];
+                        i++;
+                        j++;
+                    }
+                }
+                return result;
+            }
+            result.array = null;
+            result.bits = new long[BITMAP_WORDS];
+            this.orInto(result.bits);
+            other.orInto(result.bits);
+            for (long word : result.bits)
+            {
+                result.cardinality += Long.bitCount(word);
+            }
+            if (result.cardinality <= ARRAY_LIMIT)
+            {
+                result.toArray();
+            }
+            return result;
+        }
+
+        int andCardinality(Container other)
+        {
+            int cardinality = 0;
+            if (this.bits != null && other.bits != null)
+            {
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                {
+                    cardinality += Long.bitCount(this.bits[i] & other.bits[i]);
+                }
+            }
+            else if (this.bits != null || other.bits != null)
+            {
+                Container sparse = this.bits == null ? this : other;
+                Container dense = this.bits == null ? other : this;
+                for (int i = 0; i < sparse.cardinality; i++)
+                {
+                    if (dense.contains(sparse.array[i]))
+                    {
+                        cardinality++;
+                    }
+                }
+            }
+            else
+            {
+                int i = 0, j = 0;
+                while (i < this.cardinality && j < other.cardinality)
+                {
+                    if (this.array[i] < other.array[j])
+                    {
+                        i++;
+                    }
+                    else if (this.array[i] > other.array[j])
+                    {
+                        j++;
+                    }
+                    else
+                    {
+                        cardinality++;
+                        i++;
+                        j++;
+                    }
+                }
+            }
+            return cardinality;
+        }
+
+        void forEach(int high, IntConsumer action)
+        {
+            if (this.bits != null)
+            {
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                {
+                    long word = this.bits[i];
+                    while (word != 0)
+                    {
+                        action.accept(high | (i << 6) | Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+            }
+            else
+            {
+                for (int i = 0; i < this.cardinality; i++)
+                {
+                    action.accept(high | this.array[i]);
+                }
+            }
+        }
+
+        private void orInto(long[] words)
+        {
+            if (this.bits != null)
+            {
+                for (int i = 0; i < BITMAP_WORDS; i++)
+                {
+                    words[i] |= this.bits[i];
+                }
+            }
+            else
+            {
+                for (int i = 0; i < this.cardinality; i++)
+                {
+                    words[this.array[i] >>> 6] |= 1L << this.array[i];
+                }
+            }
+        }
+
+        private void toBitmap()
+        {
+            this.bits = new long[BITMAP_WORDS];
+            for (int i = 0; i < this.cardinality; i++)
+            {
+                this.bits[this.array[i] >>> 6] |= 1L << this.array[i];
+            }
+            this.array = null;
+        }
+
+        private void toArray()
+        {
+            char[] values = new char[Math.max(4, this.cardinality)];
+            int index = 0;
+            for (int i = 0; i < BITMAP_WORDS; i++)
+            {
+                long word = this.bits[i];
+                while (word != 0)
+                {
+                    values[index++] = (char) ((i << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            this.array = values;
+            this.bits = null;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+import edu.regis.universeplayer.ConfigManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs decoded audio through a series of {@link DspStage}s, such as an
+ * equalizer. The chain converts 16-bit PCM to floating point samples, has
+ * each stage change them in turn, and converts them back, all in place and
+ * without creating any objects once it has been configured.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class DspChain
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(DspChain.class);
+
+    private final SampleKernels kernels;
+    private final List<DspStage> stages = new ArrayList<>();
+    /**
+     * The samples of the block being processed.
+     */
+    private float[] samples = new float[0];
+    private int frameSize;
+
+    /**
+     * Creates an empty chain.
+     *
+     * @param kernels - The loops to convert samples with.
+     */
+    public DspChain(SampleKernels kernels)
+    {
+        this.kernels = kernels;
+    }
+
+    /**
+     * Creates a chain from the settings, for a single song.
+     *
+     * @param song - The song's file, used to read its ReplayGain tags.
+     * @return The chain, which is empty if no processing is turned on.
+     */
+    public static DspChain fromSettings(File song)
+    {
+        SampleKernels kernels = SampleKernels.get();
+        DspChain chain = new DspChain(kernels);
+        String replayGain = ConfigManager.getReplayGain();
+        List<Equalizer.Band> bands = Equalizer.parse(ConfigManager
+                .getEqualizer());
+        if (!replayGain.equalsIgnoreCase("off"))
+        {
+            try
+            {
+                ReplayGain stage = new ReplayGain(kernels, ReplayGain.Mode
+                        .valueOf(replayGain.toUpperCase(Locale.ROOT)));
+                stage.load(song);
+                chain.add(stage);
+            }
+            catch (IllegalArgumentException e)
+            {
+                logger.error("Unknown ReplayGain mode {}", replayGain);
+            }
+        }
+        if (ConfigManager.getPreamp() != 0)
+        {
+            chain.add(new Gain(kernels, ConfigManager.getPreamp()));
+        }
+        if (!bands.isEmpty())
+        {
+            chain.add(new Equalizer(bands));
+        }
+        /*
+         * The limiter is only there to catch what the other stages boost.
+         */
+        if (!chain.isEmpty() && ConfigManager.isLimiterEnabled())
+        {
+            chain.add(new Limiter(kernels, -0.1F, 0.5F));
+        }
+        return chain;
+    }
+
+    /**
+     * Adds a stage to the end of the chain.
+     *
+     * @param stage - The stage to add.
+     * @return This chain.
+     */
+    public DspChain add(DspStage stage)
+    {
+        this.stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Obtains the stages in the chain.
+     *
+     * @return The stages, in the order audio goes through them.
+     */
+    public List<DspStage> getStages()
+    {
+        return Collections.unmodifiableList(this.stages);
+    }
+
+    /**
+     * Checks whether there is anything to do.
+     *
+     * @return True if the chain has no stages, and audio can skip it.
+     */
+    public boolean isEmpty()
+    {
+        return this.stages.isEmpty();
+    }
+
+    /**
+     * Prepares the chain and all of its stages for a stream of audio.
+     *
+     * @param sampleRate - The number of frames per second.
+     * @param channels   - The number of samples in each frame.
+     * @param blockSize  - The most bytes that will be processed at once.
+     *                   Larger blocks are processed a piece at a time.
+     */
+    public void configure(float sampleRate, int channels, int blockSize)
+    {
+        this.frameSize = channels * 2;
+        this.samples = new float[Math.max(1, blockSize / this.frameSize) * channels];
+        for (DspStage stage : this.stages)
+        {
+            stage.configure(sampleRate, channels);
+        }
+    }
+
+    /**
+     * Processes signed 16-bit little-endian PCM in place.
+     *
+     * @param pcm    - The audio data.
+     * @param off    - Where the audio starts in the array.
+     * @param length - How many bytes to process. This must be a whole number
+     *               of frames.
+     */
+    public void process(byte[] pcm, int off, int length)
+    {
+        int count;
+        for (int end = off + length; off < end; off += count * 2)
+        {
+            count = Math.min(this.samples.length, (end - off) / 2);
+            this.kernels.fromPcm16(pcm, off, this.samples, count);
+            for (int i = 0; i < this.stages.size(); i++)
+            {
+                this.stages.get(i).process(this.samples, count);
+            }
+            this.kernels.toPcm16(this.samples, pcm, off, count);
+        }
+    }
+
+    /**
+     * Obtains the size of a frame of audio.
+     *
+     * @return The bytes in each frame, once configured.
+     */
+    public int getFrameSize()
+    {
+        return this.frameSize;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.stages + " using " + this.kernels + " kernels";
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+/**
+ * A single step in a {@link DspChain}, such as an equalizer or a limiter.
+ * Stages work on interleaved samples between -1 and 1, and change them in
+ * place.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public interface DspStage
+{
+    /**
+     * Prepares the stage for a new stream of audio, clearing anything left
+     * over from the last one. This is where a stage should create anything
+     * it needs, since {@link #process(float[], int)} is called for every
+     * block and should not create any objects.
+     *
+     * @param sampleRate - The number of frames per second.
+     * @param channels   - The number of samples in each frame.
+     */
+    void configure(float sampleRate, int channels);
+
+    /**
+     * Processes a block of audio in place.
+     *
+     * @param samples - The interleaved samples, between -1 and 1.
+     * @param length  - How many samples in the array to process. This is
+     *                always a whole number of frames.
+     */
+    void process(float[] samples, int length);
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A parametric equalizer, made of any number of bands that each boost or cut
+ * the frequencies around one point. Every band is a biquad filter, as
+ * described in Robert Bristow-Johnson's "Audio EQ Cookbook". Each sample of
+ * a biquad depends on the ones before it, so the filters run one sample at a
+ * time rather than through the vector kernels.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class Equalizer implements DspStage
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(Equalizer.class);
+
+    /**
+     * The shapes a band can have.
+     */
+    public enum Type
+    {
+        /**
+         * Changes frequencies near the band's frequency.
+         */
+        PEAK,
+        /**
+         * Changes frequencies below the band's frequency.
+         */
+        LOWSHELF,
+        /**
+         * Changes frequencies above the band's frequency.
+         */
+        HIGHSHELF
+    }
+
+    /**
+     * A single band of the equalizer.
+     */
+    public static final class Band
+    {
+        public final Type type;
+        public final float frequency;
+        public final float gain;
+        public final float q;
+
+        /**
+         * Creates a band.
+         *
+         * @param type      - The shape of the band.
+         * @param frequency - The centre or corner frequency, in hertz.
+         * @param gain      - How much to boost the frequencies, in decibels.
+         *                  Negative values cut them.
+         * @param q         - How narrow the band is. Higher values affect
+         *                  fewer frequencies.
+         */
+        public Band(Type type, float frequency, float gain, float q)
+        {
+            this.type = type;
+            this.frequency = frequency;
+            this.gain = gain;
+            this.q = q;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s:%.0f:%.1f:%.2f", this.type.toString()
+                    .toLowerCase(), this.frequency, this.gain, this.q);
+        }
+    }
+
+    private final List<Band> bands;
+    /**
+     * The filter coefficients for each band, as b0, b1, b2, a1, and a2,
+     * divided through by a0.
+     */
+    private float[][] coefficients;
+    /**
+     * The two state values of each band for each channel, laid out as
+     * {@code [band][channel * 2 + n]}.
+     */
+    private float[][] state;
+    private int channels;
+
+    /**
+     * Creates an equalizer.
+     *
+     * @param bands - The bands to apply, in order.
+     */
+    public Equalizer(List<Band> bands)
+    {
+        this.bands = Collections.unmodifiableList(new ArrayList<>(bands));
+    }
+
+    /**
+     * Reads equalizer bands from the settings. Bands are separated by
+     * commas, and each is written as {@code type:frequency:gain:q}, such as
+     * {@code peak:1000:-3:1.4}. The type may be left out for a peak band.
+     *
+     * @param bands - The bands, as written in the settings.
+     * @return The bands that could be read.
+     */
+    public static List<Band> parse(String bands)
+    {
+        List<Band> parsed = new ArrayList<>();
+        String[] parts;
+        Type type;
+        int index;
+        for (String band : bands.split(","))
+        {
+            if (band.isBlank())
+            {
+                continue;
+            }
+            parts = band.trim().split(":");
+            index = parts.length == 4 ? 1 : 0;
+            try
+            {
+                type = index == 1 ? Type.valueOf(parts[0].trim()
+                                                         .toUpperCase(Locale.ROOT)) : Type.PEAK;
+                parsed.add(new Band(type, Float.parseFloat(parts[index]), Float
+                        .parseFloat(parts[index + 1]), Float
+                        .parseFloat(parts[index + 2])));
+            }
+            catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e)
+            {
+                logger.error("Invalid equalizer band {}", band, e);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Obtains the bands of the equalizer.
+     *
+     * @return The bands, in order.
+     */
+    public List<Band> getBands()
+    {
+        return this.bands;
+    }
+
+    @Override
+    public void configure(float sampleRate, int channels)
+    {
+        this.channels = channels;
+        this.coefficients = new float[this.bands.size()][];
+        this.state = new float[this.bands.size()][channels * 2];
+        for (int i = 0; i < this.bands.size(); i++)
+        {
+            this.coefficients[i] = design(this.bands.get(i), sampleRate);
+        }
+    }
+
+    /**
+     * Works out the filter coefficients for a band.
+     *
+     * @param band       - The band.
+     * @param sampleRate - The number of frames per second.
+     * @return The coefficients b0, b1, b2, a1, and a2, divided through by
+     * a0.
+     */
+    private static float[] design(Band band, float sampleRate)
+    {
+        double a = Math.pow(10, band.gain / 40);
+        double w0 = 2 * Math.PI * Math.min(band.frequency, sampleRate * 0.49) / sampleRate;
+        double cos = Math.cos(w0);
+        double alpha = Math.sin(w0) / (2 * band.q);
+        double b0, b1, b2, a0, a1, a2, root;
+        switch (band.type)
+        {
+        case LOWSHELF -> {
+            root = 2 * Math.sqrt(a) * alpha;
+            b0 = a * ((a + 1) - (a - 1) * cos + root);
+            b1 = 2 * a * ((a - 1) - (a + 1) * cos);
+            b2 = a * ((a + 1) - (a - 1) * cos - root);
+            a0 = (a + 1) + (a - 1) * cos + root;
+            a1 = -2 * ((a - 1) + (a + 1) * cos);
+            a2 = (a + 1) + (a - 1) * cos - root;
+        }
+        case HIGHSHELF -> {
+            root = 2 * Math.sqrt(a) * alpha;
+            b0 = a * ((a + 1) + (a - 1) * cos + root);
+            b1 = -2 * a * ((a - 1) + (a + 1) * cos);
+            b2 = a * ((a + 1) + (a - 1) * cos - root);
+            a0 = (a + 1) - (a - 1) * cos + root;
+            a1 = 2 * ((a - 1) - (a + 1) * cos);
+            a2 = (a + 1) - (a - 1) * cos - root;
+        }
+        default -> {
+            b0 = 1 + alpha * a;
+            b1 = -2 * cos;
+            b2 = 1 - alpha * a;
+            a0 = 1 + alpha / a;
+            a1 = -2 * cos;
+            a2 = 1 - alpha / a;
+        }
+        }
+        return new float[]{(float) (b0 / a0), (float) (b1 / a0), (float) (b2 / a0),
+                (float) (a1 / a0), (float) (a2 / a0)};
+    }
+
+    @Override
+    public void process(float[] samples, int length)
+    {
+        float[] c, z;
+        float b0, b1, b2, a1, a2, z1, z2, in, out;
+        for (int band = 0; band < this.coefficients.length; band++)
+        {
+            c = this.coefficients[band];
+            z = this.state[band];
+            b0 = c[0];
+            b1 = c[1];
+            b2 = c[2];
+            a1 = c[3];
+            a2 = c[4];
+            for (int channel = 0; channel < this.channels; channel++)
+            {
+                /*
+                 * Transposed direct form II, which keeps the state in two
+                 * values per channel.
+                 */
+                z1 = z[channel * 2];
+                z2 = z[channel * 2 + 1];
+                for (int i = channel; i < length; i += this.channels)
+                {
+                    in = samples[i];
+                    out = b0 * in + z1;
+                    z1 = b1 * in - a1 * out + z2;
+                    z2 = b2 * in - a2 * out;
+                    samples[i] = out;
+                }
+                /*
+                 * Let the filter settle to zero during silence, rather than
+                 * slowly working through denormal numbers.
+                 */
+                z[channel * 2] = Math.abs(z1) < 1e-20F ? 0 : z1;
+                z[channel * 2 + 1] = Math.abs(z2) < 1e-20F ? 0 : z2;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "equalizer " + this.bands;
+    }
+}
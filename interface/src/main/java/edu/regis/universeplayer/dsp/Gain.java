@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+/**
+ * Makes audio louder or quieter by a fixed amount. This is the preamp in
+ * front of the equalizer.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class Gain implements DspStage
+{
+    private final SampleKernels kernels;
+    private volatile float gain = 1;
+
+    /**
+     * Creates a stage that leaves the volume alone until it is set.
+     *
+     * @param kernels - The loops to process samples with.
+     */
+    public Gain(SampleKernels kernels)
+    {
+        this.kernels = kernels;
+    }
+
+    /**
+     * Creates a stage with a set gain.
+     *
+     * @param kernels  - The loops to process samples with.
+     * @param decibels - The gain, in decibels.
+     */
+    public Gain(SampleKernels kernels, float decibels)
+    {
+        this(kernels);
+        this.setDecibels(decibels);
+    }
+
+    /**
+     * Sets how much to change the volume.
+     *
+     * @param decibels - The gain, in decibels. Positive values make the
+     *                 audio louder.
+     */
+    public void setDecibels(float decibels)
+    {
+        this.gain = (float) Math.pow(10, decibels / 20);
+    }
+
+    /**
+     * Obtains how much the volume is changed.
+     *
+     * @return The gain, in decibels.
+     */
+    public float getDecibels()
+    {
+        return (float) (20 * Math.log10(this.gain));
+    }
+
+    @Override
+    public void configure(float sampleRate, int channels)
+    {
+    }
+
+    @Override
+    public void process(float[] samples, int length)
+    {
+        float gain = this.gain;
+        if (gain != 1)
+        {
+            this.kernels.scale(samples, length, gain);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("gain %+.1f dB", this.getDecibels());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+/**
+ * Keeps boosted audio from clipping. Whenever a block would go over the
+ * ceiling, the volume is brought down across that block, and it recovers
+ * slowly once the audio is quieter again. Anything still over the ceiling,
+ * such as a peak early in a block, is clipped.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class Limiter implements DspStage
+{
+    private final SampleKernels kernels;
+    private final float ceiling;
+    private final float release;
+    /**
+     * How much of the way back to full volume the gain recovers for every
+     * frame of audio.
+     */
+    private double recovery;
+    private int channels;
+    private float gain = 1;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param kernels - The loops to process samples with.
+     * @param ceiling - The loudest the audio may be, in decibels below full
+     *                scale.
+     * @param release - How long the volume takes to recover, in seconds.
+     */
+    public Limiter(SampleKernels kernels, float ceiling, float release)
+    {
+        this.kernels = kernels;
+        this.ceiling = (float) Math.pow(10, Math.min(0, ceiling) / 20);
+        this.release = release;
+    }
+
+    @Override
+    public void configure(float sampleRate, int channels)
+    {
+        this.channels = channels;
+        this.recovery = 1 / (this.release * sampleRate);
+        this.gain = 1;
+    }
+
+    @Override
+    public void process(float[] samples, int length)
+    {
+        float peak = this.kernels.peak(samples, length);
+        float target = peak > this.ceiling ? this.ceiling / peak : 1;
+        float next;
+        if (target < this.gain)
+        {
+            next = target;
+        }
+        else
+        {
+            next = (float) (this.gain + (target - this.gain) * (1 - Math
+                    .exp(-this.recovery * length / this.channels)));
+        }
+        if (next != 1 || this.gain != 1)
+        {
+            this.kernels.ramp(samples, length, this.gain, next);
+            this.kernels.clip(samples, length, this.ceiling);
+        }
+        this.gain = next;
+    }
+
+    /**
+     * Obtains how much the limiter is currently turning the audio down.
+     *
+     * @return The gain, from 0 to 1.
+     */
+    public float getGain()
+    {
+        return this.gain;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("limiter %.1f dB", 20 * Math.log10(this.ceiling));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evens out the volume between songs using the ReplayGain tags in their
+ * files. Songs without tags are played as they are.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class ReplayGain extends Gain
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(ReplayGain.class);
+
+    /**
+     * The gains already read, by file, so that seeking does not read the
+     * tags again. Files without tags map to zero.
+     */
+    private static final Map<String, Float> gains = new ConcurrentHashMap<>();
+
+    /**
+     * Which of the tags to use.
+     */
+    public enum Mode
+    {
+        /**
+         * Evens out the volume of every song.
+         */
+        TRACK,
+        /**
+         * Evens out the volume of every album, keeping the differences
+         * between songs on the same album.
+         */
+        ALBUM
+    }
+
+    private final Mode mode;
+
+    /**
+     * Creates a new stage.
+     *
+     * @param kernels - The loops to process samples with.
+     * @param mode    - Which of the tags to use.
+     */
+    public ReplayGain(SampleKernels kernels, Mode mode)
+    {
+        super(kernels);
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the gain from the tags in a song's file. This runs FFPROBE the
+     * first time each file is seen.
+     *
+     * @param file - The song's file.
+     */
+    public void load(File file)
+    {
+        String key = this.mode + ":" + file.getAbsolutePath();
+        Float gain = gains.get(key);
+        if (gain == null)
+        {
+            gain = read(file, this.mode);
+            gains.put(key, gain);
+        }
+        this.setDecibels(gain);
+    }
+
+    /**
+     * Reads a ReplayGain tag with FFPROBE.
+     *
+     * @param file - The file to read.
+     * @param mode - Which tag to read.
+     * @return The gain in decibels, or 0 if the file has no such tag.
+     */
+    private static float read(File file, Mode mode)
+    {
+        String tag = "TAG:REPLAYGAIN_" + mode + "_GAIN=";
+        String line;
+        Process process = null;
+        try
+        {
+            process = new ProcessBuilder("ffprobe", "-v", "error",
+                    "-show_entries", "format_tags:stream_tags", "-of",
+                    "default=noprint_wrappers=1", file.getAbsolutePath())
+                    .redirectErrorStream(true).start();
+            try (Scanner scanner = new Scanner(process.getInputStream()))
+            {
+                while (scanner.hasNextLine())
+                {
+                    line = scanner.nextLine().trim();
+                    if (line.toUpperCase(Locale.ROOT).startsWith(tag))
+                    {
+                        return Float.parseFloat(line.substring(tag.length())
+                                                    .replaceAll("(?i)\\s*dB$", "")
+                                                    .trim());
+                    }
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            logger.warn("Could not read ReplayGain from {}", file, e);
+        }
+        finally
+        {
+            if (process != null)
+            {
+                /*
+                 * The tag may be found before FFPROBE is done, so there is no
+                 * need to wait for the rest.
+                 */
+                process.destroy();
+                try
+                {
+                    if (!process.waitFor(1, TimeUnit.SECONDS))
+                    {
+                        process.destroyForcibly();
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    process.destroyForcibly();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReplayGain " + this.mode.toString().toLowerCase() + " " + super
+                .toString();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The loops that do most of the work in the DSP stages. These are written
+ * once with plain Java and once with the incubating vector API, which runs
+ * several samples through each instruction, and the vector version is used
+ * whenever the JVM was started with that module.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class SampleKernels
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(SampleKernels.class);
+
+    /**
+     * The name of the module holding the vector API.
+     */
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    private static final SampleKernels SCALAR = new SampleKernels();
+    private static SampleKernels vector;
+    private static boolean vectorChecked;
+
+    /**
+     * Obtains the fastest kernels available.
+     *
+     * @return The vector kernels if the vector API can be used, or the plain
+     * ones otherwise.
+     */
+    public static SampleKernels get()
+    {
+        SampleKernels kernels = getVector();
+        return kernels == null ? SCALAR : kernels;
+    }
+
+    /**
+     * Obtains the kernels written in plain Java.
+     *
+     * @return The scalar kernels.
+     */
+    public static SampleKernels getScalar()
+    {
+        return SCALAR;
+    }
+
+    /**
+     * Obtains the kernels written with the vector API.
+     *
+     * @return The vector kernels, or null if the JVM was not started with
+     * the vector module.
+     */
+    public static synchronized SampleKernels getVector()
+    {
+        if (!vectorChecked)
+        {
+            vectorChecked = true;
+            /*
+             * The vector class cannot even be loaded without the module, so
+             * check for it first.
+             */
+            if (ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent())
+            {
+                try
+                {
+                    vector = new VectorKernels();
+                    logger.debug("Using vector DSP kernels");
+                }
+                catch (LinkageError e)
+                {
+                    logger.warn("Could not load vector DSP kernels", e);
+                }
+            }
+            else
+            {
+                logger.debug("{} is not available, so DSP runs without " +
+                        "vector instructions", VECTOR_MODULE);
+            }
+        }
+        return vector;
+    }
+
+    SampleKernels()
+    {
+    }
+
+    /**
+     * Multiplies samples by a gain.
+     *
+     * @param samples - The samples to change.
+     * @param length  - How many samples to change.
+     * @param gain    - The amount to multiply by.
+     */
+    public void scale(float[] samples, int length, float gain)
+    {
+        this.scale(samples, 0, length, gain);
+    }
+
+    /*
+     * These versions work on part of the array, so that the vector kernels
+     * can hand them whatever is left over after their last full vector.
+     */
+
+    void scale(float[] samples, int first, int end, float gain)
+    {
+        for (int i = first; i < end; i++)
+        {
+            samples[i] *= gain;
+        }
+    }
+
+    /**
+     * Multiplies samples by a gain that changes steadily across them.
+     *
+     * @param samples - The samples to change.
+     * @param length  - How many samples to change.
+     * @param from    - The gain for the first sample.
+     * @param to      - The gain after the last sample.
+     */
+    public void ramp(float[] samples, int length, float from, float to)
+    {
+        this.ramp(samples, 0, length, from, (to - from) / length);
+    }
+
+    void ramp(float[] samples, int first, int end, float from, float step)
+    {
+        for (int i = first; i < end; i++)
+        {
+            samples[i] *= from + step * i;
+        }
+    }
+
+    /**
+     * Finds the loudest sample.
+     *
+     * @param samples - The samples to look through.
+     * @param length  - How many samples to look through.
+     * @return The largest absolute value of any sample.
+     */
+    public float peak(float[] samples, int length)
+    {
+        return this.peak(samples, 0, length, 0);
+    }
+
+    float peak(float[] samples, int first, int end, float peak)
+    {
+        for (int i = first; i < end; i++)
+        {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    /**
+     * Keeps samples within a limit.
+     *
+     * @param samples - The samples to change.
+     * @param length  - How many samples to change.
+     * @param limit   - The largest absolute value a sample may have.
+     */
+    public void clip(float[] samples, int length, float limit)
+    {
+        this.clip(samples, 0, length, limit);
+    }
+
+    void clip(float[] samples, int first, int end, float limit)
+    {
+        for (int i = first; i < end; i++)
+        {
+            samples[i] = Math.max(-limit, Math.min(limit, samples[i]));
+        }
+    }
+
+    /**
+     * Converts signed 16-bit little-endian PCM into samples between -1 and
+     * 1.
+     *
+     * @param src    - The PCM data.
+     * @param off    - Where the data starts in the array.
+     * @param dst    - The array to put the samples in.
+     * @param length - How many samples to convert.
+     */
+    public void fromPcm16(byte[] src, int off, float[] dst, int length)
+    {
+        for (int i = 0; i < length; i++, off += 2)
+        {
+            dst[i] = (short) (src[off] & 0xFF | src[off + 1] << 8) / 32768F;
+        }
+    }
+
+    /**
+     * Converts samples between -1 and 1 into signed 16-bit little-endian
+     * PCM, clipping anything outside of that.
+     *
+     * @param src    - The samples.
+     * @param dst    - The array to put the PCM data in.
+     * @param off    - Where to start in the array.
+     * @param length - How many samples to convert.
+     */
+    public void toPcm16(float[] src, byte[] dst, int off, int length)
+    {
+        int value;
+        for (int i = 0; i < length; i++, off += 2)
+        {
+            value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE,
+                    Math.round(src[i] * 32768F)));
+            dst[off] = (byte) value;
+            dst[off + 1] = (byte) (value >> 8);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "scalar";
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+/**
+ * Speeds audio up or slows it down without changing its pitch, using WSOLA
+ * (waveform similarity overlap-add). The audio is cut into short sequences
+ * that are played at their normal rate, and sequences are skipped or
+ * repeated to change the overall speed. Each sequence is taken from
+ * wherever near its nominal place it lines up best with the end of the one
+ * before, and the two are crossfaded, so that the joins are not heard.
+ * <p>
+ * Unlike a {@link DspStage}, this changes how much audio there is, so audio
+ * is written in and read back out separately. Everything it needs is
+ * created when it is configured.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class TimeStretch
+{
+    /**
+     * The slowest speed allowed.
+     */
+    public static final float MIN_SPEED = 0.5F;
+    /**
+     * The fastest speed allowed.
+     */
+    public static final float MAX_SPEED = 2;
+    /**
+     * How long each sequence is, in seconds. Longer sequences suit music,
+     * and shorter ones speech.
+     */
+    private static final float SEQUENCE_SECONDS = 0.04F;
+    /**
+     * How far past its nominal place a sequence may be taken from.
+     */
+    private static final float SEEK_SECONDS = 0.015F;
+    /**
+     * How long sequences crossfade into each other.
+     */
+    private static final float OVERLAP_SECONDS = 0.008F;
+
+    private final SampleKernels kernels;
+    private final float speed;
+    private int channels;
+    /*
+     * Lengths, in frames.
+     */
+    private int sequence;
+    private int seek;
+    private int overlap;
+    /**
+     * The most input needed to make the next sequence.
+     */
+    private int required;
+    /**
+     * How far the input moves for each sequence, in frames.
+     */
+    private double skip;
+    private double skipFraction;
+
+    /**
+     * Audio waiting to be stretched, as interleaved samples.
+     */
+    private float[] input = new float[0];
+    private int inputStart;
+    private int inputEnd;
+    /**
+     * The end of the last sequence, which the next one fades in over.
+     */
+    private float[] mid = new float[0];
+    /**
+     * The end of the last sequence mixed down to one channel and weighted
+     * towards its middle, to compare candidates for the next sequence with.
+     */
+    private float[] reference = new float[0];
+    /**
+     * Stretched audio waiting to be read.
+     */
+    private float[] output = new float[0];
+    private int outputStart;
+    private int outputEnd;
+    /**
+     * Space to convert samples in.
+     */
+    private float[] scratch = new float[0];
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Creates a time stretcher.
+     *
+     * @param kernels - The loops to convert samples with.
+     * @param speed   - How fast to play the audio, where 2 is twice as fast.
+     *                This is kept between {@link #MIN_SPEED} and
+     *                {@link #MAX_SPEED}.
+     */
+    public TimeStretch(SampleKernels kernels, float speed)
+    {
+        this.kernels = kernels;
+        this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+    }
+
+    /**
+     * Prepares for a stream of audio, dropping anything left over from the
+     * last one.
+     *
+     * @param sampleRate - The number of frames per second.
+     * @param channels   - The number of samples in each frame.
+     * @param blockSize  - The most bytes that will be written at once.
+     */
+    public void configure(float sampleRate, int channels, int blockSize)
+    {
+        int blockFrames = Math.max(1, blockSize / (channels * 2));
+        this.channels = channels;
+        this.sequence = Math.round(sampleRate * SEQUENCE_SECONDS);
+        this.seek = Math.round(sampleRate * SEEK_SECONDS);
+        this.overlap = Math.round(sampleRate * OVERLAP_SECONDS);
+        this.skip = this.speed * (this.sequence - this.overlap);
+        this.required = this.seek + Math.max(this.sequence, (int) Math.ceil(this.skip));
+        this.input = new float[(this.required + blockFrames) * channels];
+        this.output = new float[(this.required + blockFrames) * channels];
+        this.mid = new float[this.overlap * channels];
+        this.reference = new float[this.overlap];
+        this.scratch = new float[blockFrames * channels];
+        this.inputStart = this.inputEnd = 0;
+        this.outputStart = this.outputEnd = 0;
+        this.skipFraction = 0;
+        this.started = false;
+        this.finished = false;
+    }
+
+    /**
+     * Obtains the speed the audio is played at.
+     *
+     * @return The speed, where 2 is twice as fast.
+     */
+    public float getSpeed()
+    {
+        return this.speed;
+    }
+
+    /**
+     * Adds signed 16-bit little-endian PCM to be stretched. Everything that
+     * can be read must be read before more is written.
+     *
+     * @param pcm    - The audio data.
+     * @param off    - Where the audio starts in the array.
+     * @param length - How many bytes to add. This must be a whole number of
+     *               frames, and no more than the block size.
+     */
+    public void write(byte[] pcm, int off, int length)
+    {
+        int count = length / 2;
+        if (this.inputEnd + count > this.input.length)
+        {
+            System.arraycopy(this.input, this.inputStart, this.input, 0, this.inputEnd - this.inputStart);
+            this.inputEnd -= this.inputStart;
+            this.inputStart = 0;
+        }
+        this.kernels.fromPcm16(pcm, off, this.scratch, count);
+        System.arraycopy(this.scratch, 0, this.input, this.inputEnd, count);
+        this.inputEnd += count;
+    }
+
+    /**
+     * Marks that nothing more will be written, so that what is left is read
+     * out as it is.
+     */
+    public void finish()
+    {
+        this.finished = true;
+    }
+
+    /**
+     * Reads stretched audio as signed 16-bit little-endian PCM.
+     *
+     * @param pcm    - The array to read into.
+     * @param off    - Where to start in the array.
+     * @param length - The most bytes to read.
+     * @return The number of bytes read, which is a whole number of frames,
+     * or 0 if more audio has to be written first.
+     */
+    public int read(byte[] pcm, int off, int length)
+    {
+        int count;
+        if (this.outputStart == this.outputEnd)
+        {
+            this.outputStart = this.outputEnd = 0;
+            if (this.inputEnd - this.inputStart >= this.required * this.channels)
+            {
+                this.stretch();
+            }
+            else if (this.finished)
+            {
+                this.flush();
+            }
+        }
+        count = Math.min(Math.min(length / 2, this.scratch.length), this.outputEnd - this.outputStart);
+        count -= count % this.channels;
+        System.arraycopy(this.output, this.outputStart, this.scratch, 0, count);
+        this.kernels.toPcm16(this.scratch, pcm, off, count);
+        this.outputStart += count;
+        return count * 2;
+    }
+
+    /**
+     * Makes the next sequence of output.
+     */
+    private void stretch()
+    {
+        int channels = this.channels, base, fade = this.overlap * channels;
+        int body = (this.sequence - this.overlap) * channels, skip;
+        float in;
+        if (!this.started)
+        {
+            /*
+             * Start exactly where the audio starts, with nothing to fade
+             * from.
+             */
+            this.started = true;
+            base = this.inputStart;
+            System.arraycopy(this.input, base, this.mid, 0, fade);
+        }
+        else
+        {
+            base = this.inputStart + this.findBest() * channels;
+        }
+        for (int i = 0; i < fade; i += channels)
+        {
+            in = (float) (i / channels) / this.overlap;
+            for (int c = i; c < i + channels; c++)
+            {
+                this.output[c] = this.mid[c] + (this.input[base + c] - this.mid[c]) * in;
+            }
+        }
+        System.arraycopy(this.input, base + fade, this.output, fade, body - fade);
+        System.arraycopy(this.input, base + body, this.mid, 0, fade);
+        this.outputEnd = body;
+        this.updateReference();
+
+        this.skipFraction += this.skip;
+        skip = (int) this.skipFraction;
+        this.skipFraction -= skip;
+        this.inputStart += skip * channels;
+    }
+
+    /**
+     * Works out what the next sequence is compared against. The ends of the
+     * overlap count for less, since they are faded down the most.
+     */
+    private void updateReference()
+    {
+        float sum;
+        for (int i = 0; i < this.overlap; i++)
+        {
+            sum = 0;
+            for (int c = 0; c < this.channels; c++)
+            {
+                sum += this.mid[i * this.channels + c];
+            }
+            this.reference[i] = sum * i * (this.overlap - i);
+        }
+    }
+
+    /**
+     * Finds where near its nominal place the next sequence lines up best
+     * with the end of the last one.
+     *
+     * @return How many frames past the nominal place to start the sequence.
+     */
+    private int findBest()
+    {
+        int channels = this.channels, best = 0, index;
+        double energy = 0, score, bestScore = Double.NEGATIVE_INFINITY;
+        float correlation, sample;
+        float[] input = this.input, reference = this.reference;
+        for (int i = 0; i < this.overlap; i++)
+        {
+            energy += square(this.mono(this.inputStart + i * channels));
+        }
+        for (int offset = 0; offset < this.seek; offset++)
+        {
+            correlation = 0;
+            index = this.inputStart + offset * channels;
+            if (channels == 2)
+            {
+                for (int i = 0; i < reference.length; i++, index += 2)
+                {
+                    correlation += reference[i] * (input[index] + input[index + 1]);
+                }
+            }
+            else
+            {
+                for (int i = 0; i < reference.length; i++, index += channels)
+                {
+                    correlation += reference[i] * this.mono(index);
+                }
+            }
+            /*
+             * Normalise by how loud the candidate is, so that loud parts are
+             * not picked just for being loud.
+             */
+            score = correlation / Math.sqrt(energy + 1e-9);
+            if (score > bestScore)
+            {
+                bestScore = score;
+                best = offset;
+            }
+            sample = this.mono(this.inputStart + (offset + this.overlap) * channels);
+            energy += square(sample) - square(this.mono(this.inputStart + offset * channels));
+        }
+        return best;
+    }
+
+    private float mono(int index)
+    {
+        float sum = 0;
+        for (int c = 0; c < this.channels; c++)
+        {
+            sum += this.input[index + c];
+        }
+        return sum;
+    }
+
+    private static double square(float value)
+    {
+        return (double) value * value;
+    }
+
+    /**
+     * Fades the end of the last sequence into whatever audio is left, and
+     * passes that through unstretched.
+     */
+    private void flush()
+    {
+        int left = this.inputEnd - this.inputStart;
+        int fade = this.started ? Math.min(this.mid.length, left) : 0;
+        int channels = this.channels;
+        float in;
+        if (this.started && left == 0)
+        {
+            System.arraycopy(this.mid, 0, this.output, 0, this.mid.length);
+            this.outputEnd = this.mid.length;
+        }
+        else
+        {
+            for (int i = 0; i < fade; i += channels)
+            {
+                in = (float) (i / channels) / (fade / channels);
+                for (int c = i; c < i + channels; c++)
+                {
+                    this.output[c] = this.mid[c] + (this.input[this.inputStart + c] - this.mid[c]) * in;
+                }
+            }
+            System.arraycopy(this.input, this.inputStart + fade, this.output, fade, left - fade);
+            this.outputEnd = left;
+        }
+        this.inputStart = this.inputEnd;
+        this.started = false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "time stretch at " + this.speed + "x";
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.dsp;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The sample loops written with the vector API. Each works on as many
+ * samples at once as the processor's widest registers hold, and leaves the
+ * few samples after the last full vector to the plain loops. This class may
+ * only be loaded if the JVM was started with the vector module, which
+ * {@link SampleKernels#getVector()} checks.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class VectorKernels extends SampleKernels
+{
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    /**
+     * The index of each lane in a vector, used to build gain ramps.
+     */
+    private static final FloatVector LANES;
+
+    static
+    {
+        float[] lanes = new float[SPECIES.length()];
+        for (int i = 0; i < lanes.length; i++)
+        {
+            lanes[i] = i;
+        }
+        LANES = FloatVector.fromArray(SPECIES, lanes, 0);
+    }
+
+    @Override
+    public void scale(float[] samples, int length, float gain)
+    {
+        int bound = SPECIES.loopBound(length), i;
+        for (i = 0; i < bound; i += SPECIES.length())
+        {
+            FloatVector.fromArray(SPECIES, samples, i).mul(gain)
+                       .intoArray(samples, i);
+        }
+        this.scale(samples, i, length, gain);
+    }
+
+    @Override
+    public void ramp(float[] samples, int length, float from, float to)
+    {
+        int bound = SPECIES.loopBound(length), i;
+        float step = (to - from) / length;
+        FloatVector steps = LANES.mul(step);
+        for (i = 0; i < bound; i += SPECIES.length())
+        {
+            FloatVector.fromArray(SPECIES, samples, i)
+                       .mul(steps.add(from + step * i))
+                       .intoArray(samples, i);
+        }
+        this.ramp(samples, i, length, from, step);
+    }
+
+    @Override
+    public float peak(float[] samples, int length)
+    {
+        int bound = SPECIES.loopBound(length), i;
+        FloatVector peak = FloatVector.zero(SPECIES);
+        for (i = 0; i < bound; i += SPECIES.length())
+        {
+            peak = peak.max(FloatVector.fromArray(SPECIES, samples, i).abs());
+        }
+        return this.peak(samples, i, length, peak
+                .reduceLanes(VectorOperators.MAX));
+    }
+
+    @Override
+    public void clip(float[] samples, int length, float limit)
+    {
+        int bound = SPECIES.loopBound(length), i;
+        for (i = 0; i < bound; i += SPECIES.length())
+        {
+            FloatVector.fromArray(SPECIES, samples, i).max(-limit).min(limit)
+                       .intoArray(samples, i);
+        }
+        this.clip(samples, i, length, limit);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "vector (" + SPECIES.length() + " lanes)";
+    }
+}
@@ -5,10 +5,12 @@
 package edu.regis.universeplayer.gui;
 
 import java.awt.*;
+import java.awt.event.ActionEvent;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 import javax.swing.*;
@@ -19,6 +21,7 @@ import edu.regis.universeplayer.PlayerEnvironment;
 import edu.regis.universeplayer.data.Album;
 import edu.regis.universeplayer.data.AlbumProvider;
 import edu.regis.universeplayer.data.CollectionType;
+import edu.regis.universeplayer.data.FacetIndex;
 import edu.regis.universeplayer.data.Song;
 import edu.regis.universeplayer.data.SongProvider;
 
@@ -28,8 +31,10 @@ import edu.regis.universeplayer.data.SongProvider;
  * @author William Hubbard
  * @version 0.1
  */
-public class CollectionList extends ScrollablePanel
+public class CollectionList extends ScrollablePanel implements FacetIndex.FacetListener
 {
+    private static final ResourceBundle langs = ResourceBundle.getBundle("lang.interface", Locale.getDefault());
+
     /**
      * The type of collections being displayed.
      */
@@ -38,6 +43,14 @@ public class CollectionList extends ScrollablePanel
      * A link between the JLabel and the object they point towards.
      */
     private Map<JButton, Object> labelMap = new HashMap<>();
+    /**
+     * The facet values currently selected, by facet. Songs must match at least one value of every facet listed.
+     */
+    private final EnumMap<CollectionType, Set<Object>> filter = new EnumMap<>(CollectionType.class);
+    /**
+     * Whether a refresh of the facet counts has already been queued on the event thread.
+     */
+    private final AtomicBoolean countsPending = new AtomicBoolean(false);
     
     /**
      * A list of all things interested in knowing when we click a collection.
@@ -65,6 +78,10 @@ public class CollectionList extends ScrollablePanel
                 labelMap.keySet().stream().findFirst().ifPresent(JButton::requestFocusInWindow);
             }
         });
+        if (PlayerEnvironment.getFacets() != null)
+        {
+            PlayerEnvironment.getFacets().addFacetListener(this);
+        }
     }
     
     /**
@@ -108,7 +125,10 @@ public class CollectionList extends ScrollablePanel
                 .collect(Collectors.toList()));
         case year -> this.addYears(objects.stream().sorted().map(ob -> (Integer) ob)
                 .collect(Collectors.toList()));
+        case codec -> this.addCodecs(objects.stream().sorted().map(ob -> (String) ob)
+                .collect(Collectors.toList()));
         }
+        this.updateCounts();
     }
     
     /**
@@ -143,21 +163,7 @@ public class CollectionList extends ScrollablePanel
             artistLabel.setText(artist);
             artistLabel.setHorizontalTextPosition(JLabel.CENTER);
             artistLabel.setVerticalTextPosition(JLabel.BOTTOM);
-            artistLabel.addActionListener(mouseEvent -> {
-                if (album)
-                {
-                    this.triggerSongDisplayListeners(PlayerEnvironment.getAlbums()
-                            .getAlbumsFromArtist(artist).stream()
-                            .flatMap(album2 -> PlayerEnvironment.getSongs().getSongsFromAlbum(album2)
-                                    .stream())
-                            .collect(Collectors.toList()));
-                }
-                else
-                {
-                    this.triggerSongDisplayListeners(new ArrayList<>(PlayerEnvironment.getSongs()
-                            .getSongsFromArtist(artist)));
-                }
-            });
+            artistLabel.addActionListener(mouseEvent -> this.selectFacet(artist, mouseEvent));
             this.add(artistLabel);
             this.labelMap.put(artistLabel, artist);
         }
@@ -186,8 +192,7 @@ public class CollectionList extends ScrollablePanel
             albumLabel.setText(album.name);
             albumLabel.setHorizontalTextPosition(JLabel.CENTER);
             albumLabel.setVerticalTextPosition(JLabel.BOTTOM);
-            albumLabel.addActionListener(mouseEvent -> this.triggerSongDisplayListeners(new ArrayList<>(PlayerEnvironment.getSongs()
-                    .getSongsFromAlbum(album))));
+            albumLabel.addActionListener(mouseEvent -> this.selectFacet(album, mouseEvent));
             this.add(albumLabel);
             this.labelMap.put(albumLabel, album);
         }
@@ -224,11 +229,7 @@ public class CollectionList extends ScrollablePanel
             genreLabel.setText(genre);
             genreLabel.setHorizontalTextPosition(JLabel.CENTER);
             genreLabel.setVerticalTextPosition(JLabel.BOTTOM);
-            genreLabel.addActionListener(mouseEvent -> this.triggerSongDisplayListeners(PlayerEnvironment.getAlbums()
-                    .getAlbumsFromGenre(genre).stream()
-                    .flatMap(album2 -> PlayerEnvironment.getSongs().getSongsFromAlbum(album2)
-                            .stream())
-                    .collect(Collectors.toList())));
+            genreLabel.addActionListener(mouseEvent -> this.selectFacet(genre, mouseEvent));
             this.add(genreLabel);
             this.labelMap.put(genreLabel, genre);
         }
@@ -265,16 +266,124 @@ public class CollectionList extends ScrollablePanel
             yearLabel.setText(year.toString());
             yearLabel.setHorizontalTextPosition(JLabel.CENTER);
             yearLabel.setVerticalTextPosition(JLabel.BOTTOM);
-            yearLabel.addActionListener(mouseEvent -> this.triggerSongDisplayListeners(PlayerEnvironment.getAlbums()
-                    .getAlbumsFromYear(year).stream()
-                    .flatMap(album2 -> PlayerEnvironment.getSongs().getSongsFromAlbum(album2)
-                            .stream())
-                    .collect(Collectors.toList())));
+            yearLabel.addActionListener(mouseEvent -> this.selectFacet(year, mouseEvent));
             this.add(yearLabel);
             this.labelMap.put(yearLabel, year);
         }
     }
     
+    /**
+     * Updates the display to show a list of audio codecs.
+     *
+     * @param codecs - The list of codecs to display.
+     */
+    private void addCodecs(List<String> codecs)
+    {
+        JButton codecLabel;
+        
+        for (String codec : codecs)
+        {
+            codecLabel = new JButton();
+            setButtonLook(codecLabel);
+            codecLabel.setText(codec);
+            codecLabel.setHorizontalTextPosition(JLabel.CENTER);
+            codecLabel.setVerticalTextPosition(JLabel.BOTTOM);
+            codecLabel.addActionListener(mouseEvent -> this.selectFacet(codec, mouseEvent));
+            this.add(codecLabel);
+            this.labelMap.put(codecLabel, codec);
+        }
+    }
+    
+    /**
+     * Called when a collection is clicked. A plain click replaces the filter with just that collection, while a
+     * control-click adds it to (or removes it from) the current filter. Either way, the songs matching the new filter
+     * are displayed.
+     *
+     * @param value - The facet value clicked.
+     * @param event - The click event.
+     */
+    private void selectFacet(Object value, ActionEvent event)
+    {
+        FacetIndex facets = PlayerEnvironment.getFacets();
+        Set<Object> selected;
+        if ((event.getModifiers() & ActionEvent.CTRL_MASK) == 0)
+        {
+            this.filter.clear();
+        }
+        selected = this.filter.computeIfAbsent(this.type, t -> new HashSet<>());
+        if (!selected.remove(value))
+        {
+            selected.add(value);
+        }
+        if (selected.isEmpty())
+        {
+            this.filter.remove(this.type);
+        }
+        this.updateCounts();
+        if (this.filter.isEmpty())
+        {
+            this.triggerSongDisplayListeners(new ArrayList<>(PlayerEnvironment.getSongs().getSongs()));
+        }
+        else
+        {
+            this.triggerSongDisplayListeners(facets.getSongs(facets.select(this.filter)));
+        }
+    }
+    
+    /**
+     * Clears any collections selected, so that facet counts cover the entire library again.
+     */
+    public void clearFilter()
+    {
+        this.filter.clear();
+        this.updateCounts();
+    }
+    
+    /**
+     * Refreshes the song count shown next to each collection, as well as which ones are highlighted as selected.
+     * This must be called from the event dispatch thread.
+     */
+    private void updateCounts()
+    {
+        FacetIndex facets = PlayerEnvironment.getFacets();
+        Set<Object> selected = this.filter.get(this.type);
+        Map<Object, Integer> counts;
+        Object value;
+        String name;
+        if (facets == null)
+        {
+            return;
+        }
+        counts = facets.getCounts(this.type, this.labelMap.values(), this.filter);
+        for (Map.Entry<JButton, Object> entry : this.labelMap.entrySet())
+        {
+            value = entry.getValue();
+            name = value instanceof Album ? ((Album) value).name : String.valueOf(value);
+            entry.getKey().setText(new Formatter().format(langs.getString("collections.count"), name,
+                    counts.get(value)).toString());
+            entry.getKey().setFont(entry.getKey().getFont()
+                    .deriveFont(selected != null && selected.contains(value) ? Font.BOLD : Font.PLAIN));
+        }
+    }
+    
+    /**
+     * Called whenever songs are re-indexed. As songs are often written in large bursts, this only queues a refresh
+     * of the counts if one is not already waiting.
+     *
+     * @param index - The index that changed.
+     */
+    @Override
+    public void onFacetChange(FacetIndex index)
+    {
+        if (this.countsPending.compareAndSet(false, true))
+        {
+            SwingUtilities.invokeLater(() -> {
+                this.countsPending.set(false);
+                this.updateCounts();
+            });
+        }
+    }
+    
     private void setButtonLook(JButton button)
     {
         button.setFocusPainted(true);
@@ -48,6 +48,7 @@ public class Collections extends JPanel
         this.add(label = this.createButton(Interface.getInstance().actions.get("view.albums")));
         this.add(label = this.createButton(Interface.getInstance().actions.get("view.genres")));
         this.add(label = this.createButton(Interface.getInstance().actions.get("view.years")));
+        this.add(label = this.createButton(Interface.getInstance().actions.get("view.codecs")));
         this.add(new JLabel("\u23AF".repeat(6)));
         this.add(label = this.createButton(Interface.getInstance().actions.get("view.playlists")));
         this.add(new JLabel("\u23AF".repeat(6)));
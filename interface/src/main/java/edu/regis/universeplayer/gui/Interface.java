@@ -278,6 +278,7 @@ public class Interface extends JFrame implements SongDisplayListener, ComponentL
                     {
                         if (this.isEnabled())
                         {
+                            collectionList.clearFilter();
                             collectionTypes
                                     .triggerSongDisplayListeners(new ArrayList<>(PlayerEnvironment
                                             .getSongs()
@@ -355,6 +356,26 @@ public class Interface extends JFrame implements SongDisplayListener, ComponentL
         });
         action.putValue(Action.MNEMONIC_KEY, KeyEvent.VK_Y);
 
+        this.actions.put("view.codecs", action = new AbstractAction(langs
+                .getString("actions.view.codecs"))
+        {
+            @Override
+            public void actionPerformed(ActionEvent e)
+            {
+                FacetIndex facets = PlayerEnvironment.getFacets();
+                /*
+                 * Codecs are only known once the facet index is built.
+                 */
+                if (this.isEnabled() && facets != null)
+                {
+                    collectionTypes
+                            .triggerCollectionDisplayListeners(CollectionType.codec, facets
+                                    .getValues(CollectionType.codec));
+                }
+            }
+        });
+        action.putValue(Action.MNEMONIC_KEY, KeyEvent.VK_C);
+
         this.actions.put("view.playlists", action = new AbstractAction(langs
                 .getString("actions.view.playlists"))
         {
@@ -469,8 +490,7 @@ public class Interface extends JFrame implements SongDisplayListener, ComponentL
         this.getContentPane().add(controls, BorderLayout.PAGE_END);
 
         this.queueList.addFocusListener(this);
-        Queue.getInstance().addQueueChangeListener(this.queueList);
-        Queue.getInstance().addSongChangeListener(this.queueList);
+        this.queueList.listenTo(Queue.getInstance());
         this.getContentPane().add(queueList, BorderLayout.LINE_END);
 
         this.songList.addFocusListener(this);
@@ -516,6 +536,7 @@ public class Interface extends JFrame implements SongDisplayListener, ComponentL
         collectionsMenu.add(new JMenuItem(actions.get("view.albums")));
         collectionsMenu.add(new JMenuItem(actions.get("view.genres")));
         collectionsMenu.add(new JMenuItem(actions.get("view.years")));
+        collectionsMenu.add(new JMenuItem(actions.get("view.codecs")));
         collectionsMenu.add(new JMenuItem(actions.get("view.playlists")));
 
         playbackMenu.add(new JMenuItem(actions.get("playback.clear")));
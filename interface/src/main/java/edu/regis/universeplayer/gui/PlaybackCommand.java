@@ -12,5 +12,5 @@ package edu.regis.universeplayer.gui;
  */
 public enum PlaybackCommand
 {
-    PLAY, PAUSE, NEXT, PREVIOUS, SEEK
+    PLAY, PAUSE, NEXT, PREVIOUS, SEEK, SPEED
 }
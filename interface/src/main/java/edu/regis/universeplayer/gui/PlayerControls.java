@@ -4,6 +4,7 @@
 
 package edu.regis.universeplayer.gui;
 
+import edu.regis.universeplayer.ConfigManager;
 import edu.regis.universeplayer.PlaybackListener;
 import edu.regis.universeplayer.PlaybackStatus;
 import edu.regis.universeplayer.player.Player;
@@ -12,6 +13,7 @@ import edu.regis.universeplayer.browserCommands.QueryFuture;
 import edu.regis.universeplayer.data.PlaybackEvent;
 import edu.regis.universeplayer.data.Queue;
 import edu.regis.universeplayer.data.Song;
+import edu.regis.universeplayer.player.PlaybackClock;
 import edu.regis.universeplayer.player.PlayerManager;
 
 import org.slf4j.Logger;
@@ -24,12 +26,14 @@ import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.text.DecimalFormat;
 import java.util.LinkedList;
 import java.util.Locale;
 import java.util.ResourceBundle;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
 
 /**
  * This panel contains the buttons necessary for controlling the playback of
@@ -44,15 +48,35 @@ public class PlayerControls extends JPanel implements PlaybackListener
             .getLogger(PlayerControls.class);
     private static final ResourceBundle langs = ResourceBundle
             .getBundle("lang.interface", Locale.getDefault());
+    /**
+     * How many times a second the progress bar follows the song.
+     */
+    private static final int FRAME_RATE = 10;
+    /**
+     * The speeds the speed button steps through.
+     */
+    private static final float[] SPEEDS = {1, 1.25F, 1.5F, 1.75F, 2};
     private final ImageIcon PLAY_ICON, PAUSE_ICON;
 
     private final JButton playButton;
     private final JButton nextButton;
     private final JButton prevButton;
+    private final JButton speedButton;
     private final JProgressBar progress;
     private final JProgressBar updateProgress;
+    private final SpectrumPanel spectrum;
 
     private final ForkJoinPool service = new ForkJoinPool();
+    private final SeekThrottle seeker;
+    /**
+     * Moves the progress bar along while a song plays. It reads the player's
+     * clock once a frame, whatever rate the player updates it at.
+     */
+    private final Timer ticker;
+    /**
+     * The number of clock updates the progress bar was last drawn from.
+     */
+    private long lastUpdate = -1;
 
     /**
      * A list of all things interested in knowing when we trigger a command.
@@ -114,22 +138,52 @@ public class PlayerControls extends JPanel implements PlaybackListener
         this.nextButton.setPreferredSize(BUTTON_SIZE);
         buttonCont.add(this.nextButton);
 
+        this.speedButton = new JButton(formatSpeed(PlayerManager.getPlayers()
+                                                                .getSpeed()));
+        this.speedButton.setToolTipText(langs.getString("actions.playback.speed"));
+        this.speedButton.setMargin(new Insets(0, 0, 0, 0));
+        this.speedButton.setPreferredSize(new Dimension(48, BUTTON_SIZE.height));
+        this.speedButton.addActionListener(e -> this.nextSpeed());
+        buttonCont.add(this.speedButton);
+
+        this.spectrum = new SpectrumPanel(() -> PlayerManager.getPlayers()
+                                                             .getSpectrum(), ConfigManager.getVisualiserFps());
+        this.spectrum.setVisible(false);
+        buttonCont.add(this.spectrum);
+
         progressLayout = new SpringLayout();
         progressCont = new JPanel(progressLayout);
         this.add(progressCont);
 
+        this.seeker = new SeekThrottle(ConfigManager.getSeekInterval(),
+                value -> PlayerManager.getPlayers().seek(value)
+                                      .whenComplete((result, e) ->
+                                      {
+                                          if (e != null && !(e instanceof CancellationException))
+                                          {
+                                              this.showCommandError(e);
+                                          }
+                                      }));
         this.progress = new JProgressBar();
-        this.progress.addMouseListener(new MouseAdapter()
+        this.ticker = new Timer(1000 / FRAME_RATE, e -> this.tick());
+        MouseAdapter seekListener = new MouseAdapter()
         {
             @Override
-            public void mouseClicked(MouseEvent e)
+            public void mousePressed(MouseEvent e)
             {
-                seek((float) e.getX() / (float) e.getComponent()
-                                                 .getWidth() * ((JProgressBar) e
-                        .getComponent()).getMaximum());
-                logger.debug("Changing time");
+                this.mouseDragged(e);
             }
-        });
+
+            @Override
+            public void mouseDragged(MouseEvent e)
+            {
+                float position = Math.max(0, Math.min(1, (float) e
+                        .getX() / (float) e.getComponent().getWidth()));
+                seek(position * progress.getMaximum());
+            }
+        };
+        this.progress.addMouseListener(seekListener);
+        this.progress.addMouseMotionListener(seekListener);
         this.add(this.progress);
 
         this.updateProgress = new JProgressBar();
@@ -181,76 +235,118 @@ public class PlayerControls extends JPanel implements PlaybackListener
 
     private void seek(float value)
     {
+        /*
+         * Move the bar right away rather than waiting for the player to
+         * report back, since dragged seeks are held back for a while.
+         */
+        this.progress.setValue((int) value);
+        this.seeker.seek(value);
+        this.triggerCommandListeners(PlaybackCommand.SEEK, value);
+    }
+
+    /**
+     * Moves on to the next speed in the list, going back to normal speed
+     * after the fastest.
+     */
+    protected void nextSpeed()
+    {
+        float current = PlayerManager.getPlayers().getSpeed();
+        float speed = SPEEDS[0];
+        for (float option : SPEEDS)
+        {
+            if (option > current + 0.01F)
+            {
+                speed = option;
+                break;
+            }
+        }
+        this.setSpeed(speed);
+    }
+
+    /**
+     * Changes how fast songs play.
+     *
+     * @param speed - The new speed, where 1 is normal.
+     */
+    protected void setSpeed(float speed)
+    {
+        this.speedButton.setText(formatSpeed(speed));
         this.service.execute(() -> {
-            ForkJoinTask<Void> status = PlayerManager.getPlayers().seek(value);
-            status.join();
-            if (status.isCompletedAbnormally())
+            try
+            {
+                PlayerManager.getPlayers().setSpeed(speed).join();
+            }
+            catch (CancellationException e)
+            {
+                /*
+                 * A later command made this one pointless.
+                 */
+            }
+            catch (CompletionException e)
             {
-                logger.error("Could not run command",
-                        status.getException());
-                JOptionPane.showMessageDialog(this,
-                        status.getException(),
-                        status.getException().getMessage(),
-                        JOptionPane.ERROR_MESSAGE);
+                this.showCommandError(e.getCause());
             }
         });
-        this.triggerCommandListeners(PlaybackCommand.SEEK, value);
+        this.triggerCommandListeners(PlaybackCommand.SPEED, speed);
+    }
+
+    private static String formatSpeed(float speed)
+    {
+        return new DecimalFormat("0.0#").format(speed) + "\u00D7";
+    }
+
+    /**
+     * Logs and displays an error from a playback command.
+     *
+     * @param e - The error thrown.
+     */
+    private void showCommandError(Throwable e)
+    {
+        logger.error("Could not run command", e);
+        JOptionPane.showMessageDialog(this, e, e.getMessage(),
+                JOptionPane.ERROR_MESSAGE);
     }
 
     protected void play()
     {
         this.service.execute(() -> {
+            CompletableFuture<Void> command = null;
             try
             {
-                ForkJoinTask status =
-                        PlayerManager.getPlayers().getStatus();
-                status.join();
-                if (status.isCompletedNormally())
+                switch (PlayerManager.getPlayers().getStatus().join())
                 {
-                    switch ((PlaybackStatus) status.get())
+                case PAUSED -> command = PlayerManager.getPlayers().play();
+                case STOPPED, EMPTY -> {
+                    if (Queue.getInstance().size() > 0)
                     {
-                    case PAUSED -> status = PlayerManager.getPlayers()
-                                                               .play();
-                    case STOPPED, EMPTY -> {
-                        if (Queue.getInstance().size() > 0)
+                        if (Queue.getInstance()
+                                 .getCurrentSong() == null)
                         {
-                            if (Queue.getInstance()
-                                     .getCurrentSong() == null)
-                            {
-                                Queue.getInstance().skipToSong(0);
-                                status = null;
-                            }
-                            else
-                            {
-                                status = PlayerManager.getPlayers().play();
-                            }
+                            Queue.getInstance().skipToSong(0);
+                        }
+                        else
+                        {
+                            command = PlayerManager.getPlayers().play();
                         }
-                    }
-                    default -> {
-                        status = null;
-                    }
-                    }
-                    if (status != null)
-                    {
-                        status.join();
                     }
                 }
-                if (status != null && status.isCompletedAbnormally())
+                default -> {
+                }
+                }
+                if (command != null)
                 {
-                    logger.error("Could not run command",
-                            status.getException());
-                    JOptionPane.showMessageDialog(this,
-                            status.getException(),
-                            status.getException().getMessage(),
-                            JOptionPane.ERROR_MESSAGE);
+                    command.join();
                 }
             }
-            catch (ExecutionException | InterruptedException e)
+            catch (CancellationException e)
+            {
+                /*
+                 * A later command made this one pointless.
+                 */
+            }
+            catch (CompletionException e)
             {
-                logger.error("Could not get current playback status", e);
-                JOptionPane.showMessageDialog(this, e.getMessage(), langs
-                        .getString(
-                                "error.command"), JOptionPane.ERROR_MESSAGE);
+                this.showCommandError(e.getCause());
             }
         });
         this.triggerCommandListeners(PlaybackCommand.PLAY, null);
@@ -261,34 +357,21 @@ public class PlayerControls extends JPanel implements PlaybackListener
         this.service.execute(() -> {
             try
             {
-                ForkJoinTask status =
-                        PlayerManager.getPlayers().getStatus();
-                status.join();
-                if (status.isCompletedNormally())
+                if (PlayerManager.getPlayers().getStatus()
+                                 .join() == PlaybackStatus.PLAYING)
                 {
-                    if (status.get() == PlaybackStatus.PLAYING)
-                    {
-                        status =
-                                PlayerManager.getPlayers().pause();
-                        status.join();
-                    }
-                }
-                if (status.isCompletedAbnormally())
-                {
-                    logger.error("Could not run command",
-                            status.getException());
-                    JOptionPane.showMessageDialog(this,
-                            status.getException(),
-                            status.getException().getMessage(),
-                            JOptionPane.ERROR_MESSAGE);
+                    PlayerManager.getPlayers().pause().join();
                 }
             }
-            catch (ExecutionException | InterruptedException e)
+            catch (CancellationException e)
+            {
+                /*
+                 * A later command made this one pointless.
+                 */
+            }
+            catch (CompletionException e)
             {
-                logger.error("Could not get current playback status", e);
-                JOptionPane.showMessageDialog(this, e.getMessage(), langs
-                        .getString(
-                                "error.command"), JOptionPane.ERROR_MESSAGE);
+                this.showCommandError(e.getCause());
             }
         });
         this.triggerCommandListeners(PlaybackCommand.PAUSE, null);
@@ -300,57 +383,44 @@ public class PlayerControls extends JPanel implements PlaybackListener
     protected void togglePlayback()
     {
         this.service.execute(() -> {
+            CompletableFuture<Void> command = null;
             try
             {
-                ForkJoinTask status =
-                        PlayerManager.getPlayers().getStatus();
-                status.join();
-                if (status.isCompletedNormally())
+                switch (PlayerManager.getPlayers().getStatus().join())
                 {
-                    switch ((PlaybackStatus) status.get())
+                case PAUSED -> command = PlayerManager.getPlayers().play();
+                case PLAYING -> command = PlayerManager.getPlayers().pause();
+                case STOPPED, EMPTY -> {
+                    if (Queue.getInstance().size() > 0)
                     {
-                    case PAUSED -> status = PlayerManager.getPlayers()
-                                                               .play();
-                    case PLAYING -> status = PlayerManager.getPlayers()
-                                                                .pause();
-                    case STOPPED, EMPTY -> {
-                        if (Queue.getInstance().size() > 0)
+                        if (Queue.getInstance()
+                                 .getCurrentSong() == null)
                         {
-                            if (Queue.getInstance()
-                                     .getCurrentSong() == null)
-                            {
-                                Queue.getInstance().skipToSong(0);
-                                status = null;
-                            }
-                            else
-                            {
-                                status = PlayerManager.getPlayers().play();
-                            }
+                            Queue.getInstance().skipToSong(0);
+                        }
+                        else
+                        {
+                            command = PlayerManager.getPlayers().play();
                         }
                     }
-                    default -> status = null;
-                    }
-                    if (status != null)
-                    {
-                        status.join();
-                    }
                 }
-                if (status != null && status.isCompletedAbnormally())
+                default -> {
+                }
+                }
+                if (command != null)
                 {
-                    logger.error("Could not run command",
-                            status.getException());
-                    JOptionPane.showMessageDialog(this,
-                            status.getException(),
-                            status.getException().getMessage(),
-                            JOptionPane.ERROR_MESSAGE);
+                    command.join();
                 }
             }
-            catch (ExecutionException | InterruptedException e)
+            catch (CancellationException e)
+            {
+                /*
+                 * A later command made this one pointless.
+                 */
+            }
+            catch (CompletionException e)
             {
-                logger.error("Could not get current playback status", e);
-                JOptionPane.showMessageDialog(this, e.getMessage(), langs
-                        .getString(
-                                "error.command"), JOptionPane.ERROR_MESSAGE);
+                this.showCommandError(e.getCause());
             }
         });
         this.triggerCommandListeners(PlaybackCommand.PLAY, null);
@@ -434,6 +504,21 @@ public class PlayerControls extends JPanel implements PlaybackListener
         }
     }
 
+    /**
+     * Moves the progress bar to the position on the current player's clock.
+     */
+    private void tick()
+    {
+        PlaybackClock clock = PlayerManager.getPlayers().getClock();
+        if (clock == null || clock.getUpdates() == this.lastUpdate || this.seeker
+                .isSeeking())
+        {
+            return;
+        }
+        this.lastUpdate = clock.getUpdates();
+        this.progress.setValue((int) clock.getPosition());
+    }
+
     @Override
     public void onPlaybackChanged(PlaybackEvent status)
     {
@@ -443,7 +528,29 @@ public class PlayerControls extends JPanel implements PlaybackListener
             case PLAYING -> this.playButton.setIcon(PAUSE_ICON);
             case PAUSED, STOPPED, EMPTY -> this.playButton.setIcon(PLAY_ICON);
             }
-            this.progress.setValue((int) status.getInfo().getPlayTime());
+            /*
+             * The clock only needs reading while the song is moving.
+             */
+            if (status.getInfo().getStatus() == PlaybackStatus.PLAYING)
+            {
+                this.ticker.start();
+            }
+            else
+            {
+                this.ticker.stop();
+            }
+            this.spectrum.setVisible(PlayerManager.getPlayers()
+                                                  .getSpectrum() != null);
+            switch (status.getInfo().getStatus())
+            {
+            case PLAYING -> this.spectrum.start();
+            case PAUSED -> this.spectrum.stop();
+            default -> this.spectrum.clear();
+            }
+            if (!this.seeker.isSeeking())
+            {
+                this.progress.setValue((int) status.getInfo().getPlayTime());
+            }
             this.progress.setMaximum((int) (status.getInfo()
                                                   .getSong().duration / 1000));
         });
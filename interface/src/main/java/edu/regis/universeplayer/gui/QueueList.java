@@ -7,6 +7,7 @@ package edu.regis.universeplayer.gui;
 import com.wordpress.tips4java.ScrollablePanel;
 import edu.regis.universeplayer.ClickListener;
 import edu.regis.universeplayer.data.Queue;
+import edu.regis.universeplayer.data.QueueChangeEvent;
 import edu.regis.universeplayer.data.Song;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,9 +17,9 @@ import java.awt.*;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
 import java.awt.event.MouseEvent;
-import java.util.Formatter;
 import java.util.Locale;
 import java.util.ResourceBundle;
+import java.util.function.IntSupplier;
 
 public class QueueList extends JPanel implements Queue.SongChangeListener, Queue.QueueChangeListener
 {
@@ -28,6 +29,11 @@ public class QueueList extends JPanel implements Queue.SongChangeListener, Queue
     final JPanel header;
     final ScrollablePanel songList;
     private int currentHighlight = 0;
+    /**
+     * The version of the queue the rows show, or -1 until they have been
+     * filled from a snapshot. Only used on the event dispatch thread.
+     */
+    private long version = -1;
     
     private final JButton clearButton;
     
@@ -143,102 +149,213 @@ public class QueueList extends JPanel implements Queue.SongChangeListener, Queue
         });
     }
     
+    /**
+     * Starts following a queue, filling the list with the songs already in
+     * it.
+     * <p>
+     * The queue may already be changing, since it is restored from its
+     * journal while the window is built. Events only carry the changes, so
+     * the rows are filled from a snapshot taken on the event dispatch
+     * thread after the listener is registered, and events that the
+     * snapshot already covers are dropped.
+     * </p>
+     *
+     * @param queue - The queue to follow.
+     */
+    public void listenTo(Queue queue)
+    {
+        queue.addQueueChangeListener(this);
+        queue.addSongChangeListener(this);
+        SwingUtilities.invokeLater(() -> {
+            Queue.Snapshot snapshot = queue.getSnapshot();
+            int index = 0;
+            this.songList.removeAll();
+            for (Song song : snapshot.getSongs())
+            {
+                this.addRow(queue, song, index++);
+            }
+            this.version = snapshot.getVersion();
+            this.songList.setFocusable(this.songList.getComponentCount() > 0);
+            this.highlight(snapshot.getCurrentIndex());
+            this.validate();
+            this.repaint();
+        });
+    }
+    
     @Override
     public void onSongChange(Queue queue)
     {
-        if (this.currentHighlight >= 0)
+        int index = queue.getCurrentIndex();
+        SwingUtilities.invokeLater(() -> this.highlight(index));
+    }
+    
+    @Override
+    public void onQueueChange(QueueChangeEvent event)
+    {
+        SwingUtilities.invokeLater(() -> {
+            if (event.getVersion() <= this.version)
+            {
+                return;
+            }
+            this.version = event.getVersion();
+            /*
+             * Rows may shift, so the highlight is found again afterwards.
+             */
+            this.highlight(-1);
+            for (QueueChangeEvent.Change change : event.getChanges())
+            {
+                this.applyChange(event.getSource(), change);
+            }
+            this.songList.setFocusable(this.songList.getComponentCount() > 0);
+            this.highlight(event.getCurrentIndex());
+            this.validate();
+            this.repaint();
+        });
+    }
+    
+    /**
+     * Brings the list of songs up to date with a single change to the queue.
+     * Only the rows that changed are touched.
+     *
+     * @param queue  - The queue that changed.
+     * @param change - The change to apply.
+     */
+    private void applyChange(Queue queue, QueueChangeEvent.Change change)
+    {
+        Component songLabel, durationLabel;
+        int index = change.getIndex();
+        switch (change.getType())
+        {
+        case INSERTED -> {
+            for (Song song : change.getSongs())
+            {
+                this.addRow(queue, song, index++);
+            }
+        }
+        case REMOVED -> {
+            for (int i = 0; i < change.getCount(); i++)
+            {
+                this.songList.remove(index * 2 + 1);
+                this.songList.remove(index * 2);
+            }
+        }
+        case MOVED -> {
+            songLabel = this.songList.getComponent(index * 2);
+            durationLabel = this.songList.getComponent(index * 2 + 1);
+            this.songList.remove(durationLabel);
+            this.songList.remove(songLabel);
+            this.songList.add(songLabel, change.getTarget() * 2);
+            this.songList.add(durationLabel, change.getTarget() * 2 + 1);
+        }
+        case RESET -> {
+            this.songList.removeAll();
+            for (Song song : change.getSongs())
+            {
+                this.addRow(queue, song, index++);
+            }
+        }
+        }
+    }
+    
+    /**
+     * Marks the row of the current song.
+     *
+     * @param index - The index of the current song, or -1 for none.
+     */
+    private void highlight(int index)
+    {
+        int rows = this.songList.getComponentCount() / 2;
+        if (this.currentHighlight >= 0 && this.currentHighlight < rows)
         {
             this.songList.getComponent(this.currentHighlight * 2).setForeground(Color.BLACK);
         }
-        this.currentHighlight = queue.getCurrentIndex();
+        this.currentHighlight = index < rows ? index : -1;
         if (this.currentHighlight >= 0)
         {
             this.songList.getComponent(this.currentHighlight * 2).setForeground(Color.BLUE);
         }
     }
     
-    @Override
-    public void onQueueChange(Queue queue)
+    /**
+     * Creates the components for a song and adds them to the list.
+     *
+     * @param queue - The queue the song is in.
+     * @param song  - The song to add.
+     * @param index - The row to add the song at.
+     */
+    private void addRow(Queue queue, Song song, int index)
     {
-        Formatter dateForm;
+        JButton songLabel = new JButton(song.title);
         JLabel durationLabel;
-        GridBagConstraints c;
-        this.songList.removeAll();
-        int i = 0;
-        for (Song song : queue)
-        {
-            SongMenu menu = new SongMenu(song, queue);
-            JButton songLabel = new JButton(song.title);
-            songLabel.setFocusPainted(true);
-            songLabel.setMargin(new Insets(0, 0, 0, 0));
-            songLabel.setContentAreaFilled(false);
-            songLabel.setBorderPainted(false);
-            songLabel.setOpaque(false);
-            songLabel.setHorizontalAlignment(JLabel.LEFT);
-            int songIndex = i;
-            songLabel.addMouseListener((ClickListener) e -> {
-                if (e.getButton() == MouseEvent.BUTTON1)
-                {
-                    if (e.getClickCount() == 2)
-                    {
-                        queue.skipToSong(songIndex);
-                    }
-                }
-                else if (e.getButton() == MouseEvent.BUTTON3)
-                {
-                    menu.show(songLabel, e.getX(), e.getY());
-                }
-            });
-            dateForm = new Formatter();
-            durationLabel = new JLabel(dateForm.format("%1$tM:%1$tS", song.duration).toString());
-            durationLabel.setHorizontalAlignment(JLabel.RIGHT);
-            durationLabel.addMouseListener((ClickListener) e -> {
+        /*
+         * Rows move around as the queue changes, so the index of a row is
+         * looked up when it is used.
+         */
+        IntSupplier songIndex = () -> this.songList.getComponentZOrder(songLabel) / 2;
+        SongMenu menu = new SongMenu(queue, songIndex);
+        songLabel.setFocusPainted(true);
+        songLabel.setMargin(new Insets(0, 0, 0, 0));
+        songLabel.setContentAreaFilled(false);
+        songLabel.setBorderPainted(false);
+        songLabel.setOpaque(false);
+        songLabel.setHorizontalAlignment(JLabel.LEFT);
+        songLabel.addMouseListener((ClickListener) e -> {
+            if (e.getButton() == MouseEvent.BUTTON1)
+            {
                 if (e.getClickCount() == 2)
                 {
-                    queue.skipToSong(songIndex);
+                    queue.skipToSong(songIndex.getAsInt());
                 }
-            });
-            dateForm.close();
-            
-            c = new GridBagConstraints();
-            c.gridx = 0;
-            c.gridy = i;
-            c.anchor = GridBagConstraints.WEST;
-            c.insets = new Insets(0, 0, 0, 5);
-            c.fill = GridBagConstraints.HORIZONTAL;
-            this.songList.add(songLabel);
-            
-            c = new GridBagConstraints();
-            c.gridx = 1;
-            c.gridy = i;
-            c.anchor = GridBagConstraints.EAST;
-            c.insets = new Insets(0, 0, 0, 0);
-            this.songList.add(durationLabel);
-            
-            songLabel.setForeground(Color.BLACK);
-            i++;
-        }
-        this.songList.setFocusable(queue.size() > 0);
-        this.currentHighlight = queue.getCurrentIndex();
-        if (this.currentHighlight >= 0)
-        {
-            this.songList.getComponent(queue.getCurrentIndex() * 2).setForeground(Color.BLUE);
-        }
-        this.validate();
+            }
+            else if (e.getButton() == MouseEvent.BUTTON3)
+            {
+                menu.show(songLabel, e.getX(), e.getY());
+            }
+        });
+        durationLabel = new JLabel(String.format("%1$tM:%1$tS", song.duration));
+        durationLabel.setHorizontalAlignment(JLabel.RIGHT);
+        durationLabel.addMouseListener((ClickListener) e -> {
+            if (e.getClickCount() == 2)
+            {
+                queue.skipToSong(songIndex.getAsInt());
+            }
+        });
+        
+        songLabel.setForeground(Color.BLACK);
+        this.songList.add(songLabel, index * 2);
+        this.songList.add(durationLabel, index * 2 + 1);
     }
     
     private static class SongMenu extends JPopupMenu
     {
-        public SongMenu(Song song, Queue queue)
+        public SongMenu(Queue queue, IntSupplier index)
         {
             final JMenuItem play = new JMenuItem(langs.getString("actions.play"));
             final JMenuItem remove = new JMenuItem(langs.getString("actions.remove"));
+            final JMenuItem moveUp = new JMenuItem(langs.getString("actions.moveUp"));
+            final JMenuItem moveDown = new JMenuItem(langs.getString("actions.moveDown"));
             
-            play.addActionListener(e -> queue.skipToSong(queue.indexOf(song)));
-            remove.addActionListener(e -> queue.remove(song));
+            play.addActionListener(e -> queue.skipToSong(index.getAsInt()));
+            remove.addActionListener(e -> queue.remove(index.getAsInt()));
+            moveUp.addActionListener(e -> {
+                int i = index.getAsInt();
+                if (i > 0)
+                {
+                    queue.move(i, i - 1);
+                }
+            });
+            moveDown.addActionListener(e -> {
+                int i = index.getAsInt();
+                if (i < queue.size() - 1)
+                {
+                    queue.move(i, i + 1);
+                }
+            });
             
             this.add(play);
             this.add(remove);
+            this.add(moveUp);
+            this.add(moveDown);
         }
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.gui;
+
+import javax.swing.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Limits how often seeks are sent while the progress bar is dragged. At most
+ * one seek goes out per interval, and the newest position always wins: a
+ * position that arrives too soon is held until the interval is up, replacing
+ * any position already held, so the place the user lets go of is always
+ * sent. This is meant to be used on the event dispatch thread only.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+class SeekThrottle
+{
+    private final Function<Float, CompletableFuture<?>> sender;
+    private final Timer timer;
+    private final int interval;
+
+    /**
+     * The position waiting to be sent, or NaN if there is none.
+     */
+    private float pending = Float.NaN;
+    /**
+     * When the last seek was sent, in milliseconds.
+     */
+    private long lastSent;
+    /**
+     * The seeks sent that the player has not finished yet.
+     */
+    private int inFlight;
+
+    /**
+     * Creates a new throttle.
+     *
+     * @param interval - The shortest time between two seeks, in
+     *                 milliseconds.
+     * @param sender   - Sends a seek to the player, returning a future that
+     *                 completes once the player has moved.
+     */
+    SeekThrottle(int interval, Function<Float, CompletableFuture<?>> sender)
+    {
+        this.interval = interval;
+        this.sender = sender;
+        this.timer = new Timer(interval, e -> this.flush());
+        this.timer.setRepeats(false);
+    }
+
+    /**
+     * Asks to seek to a position.
+     *
+     * @param time - The position to move to, in seconds.
+     */
+    void seek(float time)
+    {
+        long wait = this.lastSent + this.interval - System.currentTimeMillis();
+        this.pending = time;
+        if (wait <= 0 && !this.timer.isRunning())
+        {
+            this.flush();
+        }
+        else if (!this.timer.isRunning())
+        {
+            this.timer.setInitialDelay((int) Math.max(wait, 1));
+            this.timer.restart();
+        }
+    }
+
+    /**
+     * Sends the position waiting, if there is one.
+     */
+    private void flush()
+    {
+        float time = this.pending;
+        if (Float.isNaN(time))
+        {
+            return;
+        }
+        this.pending = Float.NaN;
+        this.lastSent = System.currentTimeMillis();
+        this.inFlight++;
+        this.sender.apply(time).whenComplete((result, e) -> SwingUtilities
+                .invokeLater(() -> this.inFlight--));
+    }
+
+    /**
+     * Checks whether a seek is still on its way. Until it arrives, the
+     * positions the player reports are from before the seek, and showing
+     * them would make the progress bar jump back.
+     *
+     * @return True if a seek is waiting to be sent or has not finished.
+     */
+    boolean isSeeking()
+    {
+        return !Float.isNaN(this.pending) || this.inFlight > 0;
+    }
+}
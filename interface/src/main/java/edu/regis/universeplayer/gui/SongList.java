@@ -106,12 +106,35 @@ public class SongList extends ScrollablePanel
                 try
                 {
                     logger.debug("Sorting {} songs...", songs.size());
-                    Map<Album, List<Song>> albums =
-                            songs.stream().filter(s -> s.album != null).sorted()
-                                                         .collect(Collectors
-                                                                 .groupingBy(song -> song.album, Collectors
-                                                                         .mapping(song -> (Song) song, Collectors
-                                                                                 .toList())));
+                    FacetIndex facets = PlayerEnvironment.getFacets();
+                    List<? extends Song> sorted;
+                    if (facets != null)
+                    {
+                        /*
+                         * The index already has every song in album order, so
+                         * we only need to pick out the ones being displayed.
+                         */
+                        sorted = facets.getSorted(FacetIndex.SortOrder.album,
+                                facets.getIds(songs));
+                    }
+                    else
+                    {
+                        sorted = songs.stream().sorted()
+                                      .collect(Collectors.toList());
+                    }
+                    /*
+                     * Songs from the same album are next to each other, so the
+                     * albums come out in order as well.
+                     */
+                    Map<Album, List<Song>> albums = new LinkedHashMap<>();
+                    for (Song song : sorted)
+                    {
+                        if (song.album != null)
+                        {
+                            albums.computeIfAbsent(song.album,
+                                    album -> new ArrayList<>()).add(song);
+                        }
+                    }
                     logger.debug("Listing {} albums ({} songs)",
                             albums.size(), songs.size());
                     GridBagConstraints c = new GridBagConstraints();
@@ -127,7 +150,7 @@ public class SongList extends ScrollablePanel
 
                     LinkedHashMap<JComponent, GridBagConstraints> albumInfos =
                             new LinkedHashMap<>();
-                    albums.keySet().stream().sorted().forEach((album) -> {
+                    albums.keySet().forEach((album) -> {
                         List<Song> songCollection = albums.get(album);
 
                         AlbumInfo albumInfo = new AlbumInfo(album);
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.gui;
+
+import edu.regis.universeplayer.player.SpectrumAnalyser;
+
+import javax.swing.*;
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Draws the spectrum of what is playing as a row of bars, with the overall
+ * level as a thin bar along the bottom. The levels are worked out by the
+ * player's {@link SpectrumAnalyser} on its own thread, and this only copies
+ * out the latest ones, no more often than the frame rate it was given.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+class SpectrumPanel extends JComponent
+{
+    private final Supplier<SpectrumAnalyser> source;
+    private final Timer timer;
+    private float[] bands = new float[0];
+    private float level;
+    /**
+     * The version of the snapshot last drawn.
+     */
+    private long lastVersion = -1;
+    /**
+     * Whether to stop redrawing once the bars stop moving.
+     */
+    private boolean stopping;
+
+    /**
+     * Creates a panel.
+     *
+     * @param source    - Provides the analyser of the current player, or null
+     *                  if it has none.
+     * @param frameRate - The most times a second to redraw the bars.
+     */
+    SpectrumPanel(Supplier<SpectrumAnalyser> source, int frameRate)
+    {
+        this.source = source;
+        this.timer = new Timer(1000 / frameRate, e -> this.update());
+        this.setPreferredSize(new Dimension(120, 32));
+        this.setOpaque(false);
+    }
+
+    /**
+     * Starts following the current player.
+     */
+    void start()
+    {
+        this.stopping = false;
+        this.timer.start();
+    }
+
+    /**
+     * Stops redrawing once the bars have finished falling.
+     */
+    void stop()
+    {
+        this.stopping = true;
+    }
+
+    /**
+     * Clears the bars.
+     */
+    void clear()
+    {
+        this.timer.stop();
+        Arrays.fill(this.bands, 0);
+        this.level = 0;
+        this.lastVersion = -1;
+        this.repaint();
+    }
+
+    /**
+     * Copies the latest levels from the analyser and redraws if they
+     * changed.
+     */
+    private void update()
+    {
+        SpectrumAnalyser analyser = this.source.get();
+        if (analyser == null || analyser.getVersion() == this.lastVersion)
+        {
+            /*
+             * The analyser stops publishing once every bar has fallen.
+             */
+            if (this.stopping && (analyser == null || this.isFlat()))
+            {
+                this.timer.stop();
+            }
+            return;
+        }
+        if (this.bands.length != analyser.getBands())
+        {
+            this.bands = new float[analyser.getBands()];
+        }
+        this.lastVersion = analyser.getVersion();
+        this.level = analyser.read(this.bands);
+        this.repaint();
+    }
+
+    private boolean isFlat()
+    {
+        for (float band : this.bands)
+        {
+            if (band > 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        Insets insets = this.getInsets();
+        int width = this.getWidth() - insets.left - insets.right;
+        int height = this.getHeight() - insets.top - insets.bottom - 3;
+        int x, barHeight;
+        if (this.bands.length == 0 || width <= 0 || height <= 0)
+        {
+            return;
+        }
+        g.setColor(this.getForeground());
+        for (int i = 0; i < this.bands.length; i++)
+        {
+            x = insets.left + i * width / this.bands.length;
+            barHeight = Math.round(this.bands[i] * height);
+            g.fillRect(x, insets.top + height - barHeight, Math.max(1,
+                    (i + 1) * width / this.bands.length + insets.left - x - 1), barHeight);
+        }
+        g.fillRect(insets.left, insets.top + height + 1, Math
+                .round(this.level * width), 2);
+    }
+}
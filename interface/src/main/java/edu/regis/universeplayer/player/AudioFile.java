@@ -4,6 +4,8 @@
 
 package edu.regis.universeplayer.player;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -21,13 +23,19 @@ public class AudioFile extends InputStream
      */
     private final WaveReader header;
     /**
-     * Contains a link to the process reading the audio file.
+     * Contains a link to the process reading the audio file, or null if it
+     * is being read from a WAV file directly.
      */
     private final Process process;
     /**
      * The stream for the actual audio data.
      */
     private InputStream stream;
+    /**
+     * Used by {@link #read()}, so that single bytes can be read without
+     * creating an array each time. Bulk reads should be used where possible.
+     */
+    private final byte[] single = new byte[1];
 
     /**
      * Creates an audio file from a stream
@@ -43,6 +51,32 @@ public class AudioFile extends InputStream
         this.header.openWave();
     }
 
+    /**
+     * Opens a WAV file already on disk, such as one in the decoded audio
+     * cache.
+     *
+     * @param file  - The WAV file to read.
+     * @param start - Where in the file to start, in seconds.
+     * @throws IOException - Thrown when the file cannot be read or is not a
+     *                     WAV file.
+     */
+    AudioFile(File file, float start) throws IOException
+    {
+        this.process = null;
+        this.stream = new FileInputStream(file);
+        this.header = new WaveReader(this.stream);
+        try
+        {
+            this.header.openWave();
+            this.header.skipFrames((long) (start * this.header.getSampleRate()));
+        }
+        catch (IOException e)
+        {
+            this.stream.close();
+            throw e;
+        }
+    }
+
     public WaveReader getHeader()
     {
         return this.header;
@@ -64,18 +98,32 @@ public class AudioFile extends InputStream
     @Override
     public int read() throws IOException
     {
-        return this.stream.read();
+        return this.read(this.single, 0, 1) < 0 ? -1 : this.single[0] & 0xFF;
+    }
+
+    /**
+     * Reads audio data. This goes through the header reader, since it has
+     * already buffered the start of the data while reading the header.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        return this.header.read(b, off, len);
     }
 
     @Override
     public int available() throws IOException
     {
-        return this.process.isAlive() ? Integer.MAX_VALUE : super.available();
+        return this.process != null && this.process.isAlive() ? Integer.MAX_VALUE : super.available();
     }
 
     @Override
     public void close() throws IOException {
         super.close();
         this.header.closeWaveFile();
+        if (this.process != null)
+        {
+            this.process.destroy();
+        }
     }
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Streams what the {@link JavaSoundPlayer} plays over HTTP as an endless WAV
+ * file, so that it can be heard in other rooms. Each listener is a sink of
+ * its own, so a listener on a slow connection only has audio skipped for
+ * itself, and never holds up playback or the other listeners.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class AudioStreamServer
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(AudioStreamServer.class);
+
+    /**
+     * The path the stream is served at.
+     */
+    public static final String PATH = "/stream.wav";
+    /**
+     * What the WAV header gives as the size of the data, since it is not
+     * known.
+     */
+    private static final int UNKNOWN_SIZE = 0xFFFFFFFF;
+
+    private final JavaSoundPlayer player;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Set<Listener> listeners = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Starts serving the stream.
+     *
+     * @param player - The player to stream.
+     * @param port   - The port to listen on, or 0 for any free port.
+     * @throws IOException - Thrown if the port could not be listened on.
+     */
+    public AudioStreamServer(JavaSoundPlayer player, int port) throws IOException
+    {
+        this.player = player;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Audio Stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server.createContext(PATH, this::handle);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+        logger.info("Streaming what is played at http://localhost:{}{}",
+                this.getPort(), PATH);
+    }
+
+    /**
+     * Obtains the port the stream is served on.
+     *
+     * @return The port.
+     */
+    public int getPort()
+    {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * Sends the stream to a listener until they disconnect or the server is
+     * closed.
+     *
+     * @param exchange - The request.
+     * @throws IOException - Thrown if the response could not be sent.
+     */
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        Listener listener;
+        try
+        {
+            if (!exchange.getRequestMethod().equals("GET"))
+            {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "audio/wav");
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            listener = new Listener(exchange);
+            this.listeners.add(listener);
+            this.player.addSink(listener);
+            try
+            {
+                listener.closed.await();
+            }
+            catch (InterruptedException e)
+            {
+                this.player.removeSink(listener);
+            }
+            this.listeners.remove(listener);
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Disconnects every listener and stops serving the stream.
+     */
+    public void close()
+    {
+        this.server.stop(0);
+        for (Listener listener : this.listeners)
+        {
+            this.player.removeSink(listener);
+        }
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Creates the header of a WAV file of unknown length.
+     *
+     * @param format - The format of the audio.
+     * @return The header.
+     */
+    private static byte[] getHeader(AudioFormat format)
+    {
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(UNKNOWN_SIZE);
+        header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16);
+        header.putShort((short) 1).putShort((short) format.getChannels());
+        header.putInt((int) format.getSampleRate());
+        header.putInt((int) format.getFrameRate() * format.getFrameSize());
+        header.putShort((short) format.getFrameSize())
+              .putShort((short) format.getSampleSizeInBits());
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(UNKNOWN_SIZE);
+        return header.array();
+    }
+
+    /**
+     * A single connection the stream is sent to.
+     */
+    private static class Listener implements PcmSink
+    {
+        private final String address;
+        private final OutputStream out;
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private AudioFormat format;
+
+        private Listener(HttpExchange exchange)
+        {
+            this.address = exchange.getRemoteAddress().toString();
+            this.out = exchange.getResponseBody();
+        }
+
+        @Override
+        public void open(AudioFormat format) throws IOException
+        {
+            if (this.format != null)
+            {
+                throw new IOException("The stream cannot change from " + this
+                        .format + " to " + format);
+            }
+            this.format = format;
+            this.out.write(getHeader(format));
+        }
+
+        @Override
+        public void write(byte[] pcm, int off, int length) throws IOException
+        {
+            this.out.write(pcm, off, length);
+            this.out.flush();
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                this.out.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Could not close the stream to {}", this.address, e);
+            }
+            this.closed.countDown();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "stream to " + this.address;
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package edu.regis.universeplayer.player;
 
 import edu.regis.universeplayer.AbstractTask;
+import edu.regis.universeplayer.ConfigManager;
 import edu.regis.universeplayer.NumberPing;
 import edu.regis.universeplayer.PlaybackInfo;
 import edu.regis.universeplayer.PlaybackListener;
@@ -22,6 +23,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.LinkedList;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This serves as a central point for controlling the browser process.
@@ -49,9 +51,33 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
 
     private final ForkJoinPool service = new ForkJoinPool();
     private final LinkedList<PlaybackListener> listeners = new LinkedList<>();
+    private final PlaybackClock clock = new PlaybackClock();
     private boolean error = false;
+    /**
+     * The last status the browser reported, so that the stream of time
+     * updates it sends while playing only produces an event when something
+     * other than the position changes.
+     */
+    private PlaybackInfo lastUpdate;
+    /**
+     * The latest state of the browser, kept so that status, time, and length
+     * queries can usually be answered without asking it.
+     */
+    private volatile Mirror mirror;
+    /**
+     * How many queries were sent to the browser.
+     */
+    private final AtomicLong roundTrips = new AtomicLong();
+    /**
+     * How many queries were answered from the mirrored state instead.
+     */
+    private final AtomicLong roundTripsAvoided = new AtomicLong();
 
-    private InternetSong currentSong;
+    private volatile InternetSong currentSong;
+    /**
+     * The song open in the browser's prefetch tab, or null if there is none.
+     */
+    private volatile InternetSong prefetchedSong;
 
     private Browser browserRef = null;
 
@@ -158,7 +184,7 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
                 {
                     Future<?> command =
                             getBrowser()
-                                    .sendObject(new CommandLoadSong(song.location));
+                                    .sendObject(new CommandLoadSong(song.location, song.id));
                     CommandReturn<Boolean> returnOb = (CommandReturn<Boolean>) command
                             .get();
                     if (!returnOb.getConfirmation().wasSuccessful())
@@ -169,6 +195,67 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
                     }
                     else
                     {
+                        currentSong = song;
+                        mirror = null;
+                        /*
+                         * The browser swaps the prefetch tab in if it holds
+                         * this song, so it has nothing prefetched anymore.
+                         */
+                        if (song.equals(prefetchedSong))
+                        {
+                            prefetchedSong = null;
+                        }
+                        return true;
+                    }
+                }
+                catch (IOException | InterruptedException | ExecutionException e)
+                {
+                    this.completeExceptionally(e);
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens a song in a muted background tab, so that loading it later only
+     * has to switch tabs.
+     *
+     * @param song - The song expected to play next, or null to close the tab.
+     * @return A confirmation of command success.
+     */
+    @Override
+    public ForkJoinTask<Void> prefetch(InternetSong song)
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                if (song == null ? prefetchedSong == null : song
+                        .equals(prefetchedSong))
+                {
+                    return true;
+                }
+                try
+                {
+                    Future<?> command =
+                            getBrowser()
+                                    .sendObject(song == null ?
+                                            new CommandPrefetchSong(null, 0) :
+                                            new CommandPrefetchSong(song.location, song.id));
+                    CommandReturn<Boolean> returnOb = (CommandReturn<Boolean>) command
+                            .get();
+                    if (!returnOb.getConfirmation().wasSuccessful())
+                    {
+                        prefetchedSong = null;
+                        this.completeExceptionally(returnOb.getConfirmation()
+                                                           .getError());
+                        return false;
+                    }
+                    else
+                    {
+                        prefetchedSong = song;
                         return true;
                     }
                 }
@@ -194,6 +281,9 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             {
                 try
                 {
+                    logger.info("Browser state queries: {} answered locally, " +
+                            "{} sent to the browser", roundTripsAvoided
+                            .get(), roundTrips.get());
                     Future<?> command =
                             getBrowser()
                                     .sendObject(new CommandQuit());
@@ -261,6 +351,11 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             @Override
             protected boolean exec()
             {
+                /*
+                 * Ask the browser directly until the page reports the new
+                 * state.
+                 */
+                mirror = null;
                 try
                 {
                     Future<?> command =
@@ -296,6 +391,11 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             @Override
             protected boolean exec()
             {
+                /*
+                 * Ask the browser directly until the page reports the new
+                 * state.
+                 */
+                mirror = null;
                 try
                 {
                     Future<?> command =
@@ -331,14 +431,27 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             @Override
             protected boolean exec()
             {
+                PlaybackInfo state = getMirror();
+                PlaybackStatus current;
                 try
                 {
-                    Future<?> command = getBrowser()
-                            .sendObject(new QueryStatus());
-                    CommandReturn<String> returnOb =
-                            (CommandReturn<String>) command.get();
+                    Future<?> command;
+                    CommandReturn<String> returnOb = null;
                     CommandReturn<?> confirmation;
-                    if (!returnOb.getConfirmation().wasSuccessful())
+                    if (state != null)
+                    {
+                        current = state.getStatus();
+                    }
+                    else
+                    {
+                        roundTrips.incrementAndGet();
+                        command = getBrowser().sendObject(new QueryStatus());
+                        returnOb = (CommandReturn<String>) command.get();
+                        current = returnOb.getConfirmation().wasSuccessful() ?
+                                PlaybackStatus.valueOf(returnOb
+                                        .getReturnValue()) : null;
+                    }
+                    if (current == null)
                     {
                         this.completeExceptionally(returnOb.getConfirmation()
                                                            .getError());
@@ -346,20 +459,23 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
                     }
                     else
                     {
-                        switch (PlaybackStatus
-                                .valueOf(returnOb.getReturnValue()))
+                        mirror = null;
+                        switch (current)
                         {
                         case PLAYING -> command =
                                 getBrowser()
                                         .sendObject(new CommandSetPlayback(CommandSetPlayback.Playback.PAUSE));
                         case PAUSED, STOPPED, FINISHED -> command = getBrowser()
                                 .sendObject(new CommandSetPlayback(CommandSetPlayback.Playback.PLAY));
+                        default -> {
+                            return true;
+                        }
                         }
                         confirmation =
                                 (CommandReturn<?>) command.get();
                         if (!confirmation.getConfirmation().wasSuccessful())
                         {
-                            this.completeExceptionally(returnOb
+                            this.completeExceptionally(confirmation
                                     .getConfirmation().getError());
                             return false;
                         }
@@ -404,6 +520,8 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
                     }
                     else
                     {
+                        currentSong = null;
+                        mirror = null;
                         return true;
                     }
                 }
@@ -424,6 +542,11 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             @Override
             protected boolean exec()
             {
+                /*
+                 * Ask the browser directly until the page reports the new
+                 * state.
+                 */
+                mirror = null;
                 try
                 {
                     Future<?> command =
@@ -464,8 +587,16 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
             @Override
             protected boolean exec()
             {
+                PlaybackInfo state = getMirror();
+                PlaybackStatus status;
+                if (state != null)
+                {
+                    this.complete(state.getStatus());
+                    return true;
+                }
                 try
                 {
+                    roundTrips.incrementAndGet();
                     Future<?> command = getBrowser()
                             .sendObject(new QueryStatus());
                     CommandReturn<String> returnOb =
@@ -478,8 +609,11 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
                     }
                     else
                     {
-                        this.complete(PlaybackStatus
-                                .valueOf(returnOb.getReturnValue()));
+                        status = PlaybackStatus.valueOf(returnOb
+                                .getReturnValue());
+                        mirror = new Mirror(new PlaybackInfo(currentSong,
+                                clock.getPosition(), status));
+                        this.complete(status);
                         return true;
                     }
                 }
@@ -495,13 +629,142 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
     @Override
     public ForkJoinTask<Float> getCurrentTime()
     {
-        return null;
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                PlaybackInfo state = getMirror();
+                if (state != null)
+                {
+                    this.complete(clock.getPosition());
+                    return true;
+                }
+                try
+                {
+                    roundTrips.incrementAndGet();
+                    Future<?> command = getBrowser()
+                            .sendObject(new QueryTime());
+                    CommandReturn<Number> returnOb =
+                            (CommandReturn<Number>) command.get();
+                    if (!returnOb.getConfirmation().wasSuccessful())
+                    {
+                        this.completeExceptionally(returnOb.getConfirmation()
+                                                           .getError());
+                        return false;
+                    }
+                    else
+                    {
+                        /*
+                         * The page answers in milliseconds.
+                         */
+                        clock.set(returnOb.getReturnValue().longValue());
+                        this.complete(clock.getPosition());
+                        return true;
+                    }
+                }
+                catch (IOException | InterruptedException | ExecutionException e)
+                {
+                    this.completeExceptionally(e);
+                    return false;
+                }
+            }
+        });
+    }
+
+    @Override
+    public PlaybackClock getClock()
+    {
+        return this.clock;
     }
 
     @Override
     public ForkJoinTask<Float> getLength()
     {
-        return null;
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                PlaybackInfo state = getMirror();
+                if (state != null && state.getSong() != null && state
+                        .getSong().duration > 0)
+                {
+                    this.complete(state.getSong().duration / 1000F);
+                    return true;
+                }
+                try
+                {
+                    roundTrips.incrementAndGet();
+                    Future<?> command = getBrowser()
+                            .sendObject(new QueryLength());
+                    CommandReturn<Number> returnOb =
+                            (CommandReturn<Number>) command.get();
+                    if (!returnOb.getConfirmation().wasSuccessful())
+                    {
+                        this.completeExceptionally(returnOb.getConfirmation()
+                                                           .getError());
+                        return false;
+                    }
+                    else
+                    {
+                        /*
+                         * The page answers in milliseconds.
+                         */
+                        this.complete(returnOb.getReturnValue()
+                                              .floatValue() / 1000F);
+                        return true;
+                    }
+                }
+                catch (IOException | InterruptedException | ExecutionException e)
+                {
+                    this.completeExceptionally(e);
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Obtains the state the browser last reported, if it can still be
+     * trusted. The page reports the position several times a second while
+     * playing, and reports every change between playing and pausing as it
+     * happens, so the state only goes stale if a playing song stops being
+     * heard from, or once this player sends a command that changes it.
+     *
+     * @return The mirrored state, or null if the browser has to be asked.
+     */
+    private PlaybackInfo getMirror()
+    {
+        Mirror state = this.mirror;
+        if (state == null || state.info.getStatus() == PlaybackStatus.PLAYING && System
+                .nanoTime() - state.time > TimeUnit.MILLISECONDS.toNanos(ConfigManager
+                .getBrowserStateMillis()))
+        {
+            return null;
+        }
+        this.roundTripsAvoided.incrementAndGet();
+        return state.info;
+    }
+
+    /**
+     * Obtains how many queries were answered without asking the browser.
+     *
+     * @return The number of round trips avoided.
+     */
+    public long getRoundTripsAvoided()
+    {
+        return this.roundTripsAvoided.get();
+    }
+
+    /**
+     * Obtains how many queries had to be sent to the browser.
+     *
+     * @return The number of round trips made.
+     */
+    public long getRoundTrips()
+    {
+        return this.roundTrips.get();
     }
 
     /**
@@ -601,11 +864,49 @@ public class BrowserPlayer implements Player<InternetSong>, UpdateListener
     public void onUpdate(Object object, MessageRunner runner)
     {
         PlaybackEvent status;
+        PlaybackInfo info;
+        InternetSong song = this.currentSong;
         if (object instanceof PlaybackInfo)
         {
-            status = new PlaybackEvent(this, (PlaybackInfo) object);
+            info = (PlaybackInfo) object;
+            /*
+             * The browser only knows what the page tells it about the song, so
+             * swap in the library song the update refers to.
+             */
+            if (song != null && info.getSongId() == song.id)
+            {
+                info = new PlaybackInfo(song, info.getPlayTime(), info
+                        .getStatus());
+            }
+            this.clock.set(info.getPlayTime());
+            this.mirror = new Mirror(info);
+            if (this.lastUpdate != null && this.lastUpdate.getStatus() == info
+                    .getStatus() && this.lastUpdate.getSongId() == info
+                    .getSongId())
+            {
+                return;
+            }
+            this.lastUpdate = info;
+            status = new PlaybackEvent(this, info);
             logger.info("Internet playback {}", status.getInfo());
             this.listeners.forEach(l -> l.onPlaybackChanged(status));
         }
     }
+
+    /**
+     * A state reported by the browser, along with when it arrived.
+     */
+    private static final class Mirror
+    {
+        private final PlaybackInfo info;
+        /**
+         * When the state arrived, from {@link System#nanoTime()}.
+         */
+        private final long time = System.nanoTime();
+
+        private Mirror(PlaybackInfo info)
+        {
+            this.info = info;
+        }
+    }
 }
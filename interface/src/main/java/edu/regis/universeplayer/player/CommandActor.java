@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the commands sent to a single player one at a time, in the order they
+ * were sent. Commands that a newer command makes pointless are dropped
+ * before they start: loading a song drops any load, seek, playback change,
+ * or prefetch still waiting, and seeking drops any seek still waiting. The
+ * futures of dropped commands are cancelled, so that a burst of clicks only
+ * runs the last of them.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class CommandActor
+{
+    private static final Logger logger =
+            LoggerFactory.getLogger(CommandActor.class);
+
+    private final String name;
+    private final ExecutorService thread;
+    /**
+     * The commands waiting to run, oldest first.
+     */
+    private final ArrayDeque<Command<?>> mailbox = new ArrayDeque<>();
+    /**
+     * Whether the thread is working through the mailbox.
+     */
+    private boolean draining;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * The total time completed commands took from being sent to finishing,
+     * in nanoseconds.
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Creates a new actor with its own thread.
+     *
+     * @param name - The name of the player, used to name the thread.
+     */
+    public CommandActor(String name)
+    {
+        this.name = name;
+        this.thread = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread thread = new Thread(r, name + " Commands");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sends a command.
+     *
+     * @param kind    - What sort of command this is, which decides what it
+     *                replaces.
+     * @param command - The command to run. Exceptions it throws complete the
+     *                returned future.
+     * @param <T>     - The type of value the command returns.
+     * @return A future for the result of the command. It is cancelled if a
+     * later command replaces this one before it runs.
+     */
+    public <T> CompletableFuture<T> submit(Kind kind, Callable<T> command)
+    {
+        Command<T> entry = new Command<>(kind, command);
+        Command<?> waiting;
+        synchronized (this)
+        {
+            for (Iterator<Command<?>> it = this.mailbox.iterator(); it
+                    .hasNext(); )
+            {
+                waiting = it.next();
+                if (kind.replaces(waiting.kind))
+                {
+                    it.remove();
+                    waiting.future.cancel(false);
+                    this.dropped.incrementAndGet();
+                }
+            }
+            this.mailbox.add(entry);
+            if (!this.draining)
+            {
+                this.draining = true;
+                this.thread.execute(this::drain);
+            }
+        }
+        return entry.future;
+    }
+
+    /**
+     * Runs commands until the mailbox is empty.
+     */
+    private void drain()
+    {
+        Command<?> command;
+        while (true)
+        {
+            synchronized (this)
+            {
+                command = this.mailbox.poll();
+                if (command == null)
+                {
+                    this.draining = false;
+                    return;
+                }
+            }
+            command.run();
+        }
+    }
+
+    /**
+     * Stops the thread once the commands already sent have run.
+     */
+    public void shutdown()
+    {
+        this.thread.shutdown();
+    }
+
+    /**
+     * Obtains how many commands have finished running, whether they
+     * succeeded or not.
+     *
+     * @return The number of commands run.
+     */
+    public long getCompletedCount()
+    {
+        return this.completed.get();
+    }
+
+    /**
+     * Obtains how many commands were dropped because later commands replaced
+     * them.
+     *
+     * @return The number of commands dropped.
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+
+    /**
+     * Obtains the average time commands took from being sent to finishing.
+     *
+     * @return The average latency, in milliseconds.
+     */
+    public double getAverageLatency()
+    {
+        long count = this.completed.get();
+        return count == 0 ? 0 : this.totalLatency.get() / 1e6 / count;
+    }
+
+    /**
+     * Obtains the longest time a command took from being sent to finishing.
+     *
+     * @return The greatest latency, in milliseconds.
+     */
+    public double getMaxLatency()
+    {
+        return this.maxLatency.get() / 1e6;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d run, %d dropped, %.1f ms average, %.1f " +
+                        "ms max", this.name, this.getCompletedCount(),
+                this.getDroppedCount(), this.getAverageLatency(),
+                this.getMaxLatency());
+    }
+
+    /**
+     * The sorts of commands a player can be sent.
+     */
+    public enum Kind
+    {
+        /**
+         * Loads or stops a song. This replaces every waiting command that
+         * changes what is playing.
+         */
+        LOAD,
+        /**
+         * Moves within the current song. Only the last seek matters.
+         */
+        SEEK,
+        /**
+         * Plays or pauses the current song.
+         */
+        PLAYBACK,
+        /**
+         * Changes how fast songs play. Only the last change matters, and it
+         * carries over to whatever song is loaded next.
+         */
+        SPEED,
+        /**
+         * Gets the song after the current one ready.
+         */
+        PREFETCH,
+        /**
+         * Asks about the player without changing anything. These always run.
+         */
+        QUERY;
+
+        /**
+         * Checks whether a command of this kind makes a waiting command
+         * pointless.
+         *
+         * @param waiting - The kind of the waiting command.
+         * @return True if the waiting command should be dropped.
+         */
+        boolean replaces(Kind waiting)
+        {
+            return switch (this)
+                    {
+                        case LOAD -> waiting != QUERY && waiting != SPEED;
+                        case SEEK -> waiting == SEEK;
+                        case SPEED -> waiting == SPEED;
+                        case PREFETCH -> waiting == PREFETCH;
+                        default -> false;
+                    };
+        }
+    }
+
+    /**
+     * A command waiting in the mailbox.
+     *
+     * @param <T> - The type of value the command returns.
+     */
+    private class Command<T>
+    {
+        private final Kind kind;
+        private final Callable<T> command;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long sent = System.nanoTime();
+
+        private Command(Kind kind, Callable<T> command)
+        {
+            this.kind = kind;
+            this.command = command;
+        }
+
+        private void run()
+        {
+            long latency;
+            /*
+             * Whoever sent the command may have given up on it already.
+             */
+            if (this.future.isDone())
+            {
+                return;
+            }
+            try
+            {
+                this.future.complete(this.command.call());
+            }
+            catch (Throwable e)
+            {
+                logger.debug("{} command failed", name, e);
+                this.future.completeExceptionally(e);
+            }
+            latency = System.nanoTime() - this.sent;
+            completed.incrementAndGet();
+            totalLatency.addAndGet(latency);
+            maxLatency.accumulateAndGet(latency, Math::max);
+        }
+    }
+}
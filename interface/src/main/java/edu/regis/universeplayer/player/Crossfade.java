@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.co.caprica.vlcj.player.base.MediaPlayer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fades one media player out while fading another in. The volumes are
+ * stepped by a task scheduled on a single shared thread, which only runs
+ * while a fade is in progress, so nothing is polled between songs.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class Crossfade
+{
+    private static final Logger logger =
+            LoggerFactory.getLogger(Crossfade.class);
+
+    /**
+     * The volume of a player that is not being faded.
+     */
+    static final int FULL_VOLUME = 100;
+    /**
+     * How often the volumes are updated, in milliseconds.
+     */
+    private static final long STEP = 20;
+
+    private static final ScheduledThreadPoolExecutor scheduler;
+
+    static
+    {
+        scheduler = new ScheduledThreadPoolExecutor(1, r ->
+        {
+            Thread thread = new Thread(r, "Crossfade");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    private final Channel from;
+    private final Channel to;
+    private final long duration;
+    private final Curve curve;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+    private ScheduledFuture<?> task;
+    private long start;
+
+    /**
+     * Creates a fade. Nothing happens until it is started.
+     *
+     * @param from     - The player to fade out. It is stopped at the end.
+     * @param to       - The player to fade in. It should be paused at the
+     *                 start of the next song.
+     * @param duration - How long the fade takes, in milliseconds.
+     * @param curve    - The shape of the fade.
+     */
+    Crossfade(MediaPlayer from, MediaPlayer to, long duration, Curve curve)
+    {
+        this(Channel.of(from), Channel.of(to), duration, curve);
+    }
+
+    /**
+     * Creates a fade between two channels. Nothing happens until it is
+     * started.
+     *
+     * @param from     - The channel to fade out. It is stopped at the end.
+     * @param to       - The channel to fade in.
+     * @param duration - How long the fade takes, in milliseconds.
+     * @param curve    - The shape of the fade.
+     */
+    Crossfade(Channel from, Channel to, long duration, Curve curve)
+    {
+        this.from = from;
+        this.to = to;
+        this.duration = duration;
+        this.curve = curve;
+    }
+
+    /**
+     * Starts the incoming player silently and begins the fade. This does
+     * nothing if the fade was already finished, since starting is submitted
+     * to the incoming player and may run after the fade was cut short.
+     */
+    synchronized void start()
+    {
+        if (this.done.isDone())
+        {
+            return;
+        }
+        this.to.setVolume(0);
+        this.to.play();
+        this.start = System.nanoTime();
+        this.task = scheduler.scheduleAtFixedRate(this::step, 0, STEP,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Jumps to the end of the fade, stopping the outgoing player right away.
+     */
+    void finish()
+    {
+        synchronized (this)
+        {
+            if (this.done.isDone())
+            {
+                return;
+            }
+            if (this.task != null)
+            {
+                this.task.cancel(false);
+            }
+            this.from.stop();
+            this.from.setVolume(FULL_VOLUME);
+            this.to.setVolume(FULL_VOLUME);
+        }
+        this.done.complete(null);
+    }
+
+    /**
+     * Obtains a future that completes once the fade is over.
+     *
+     * @return The future for the fade.
+     */
+    CompletableFuture<Void> getDone()
+    {
+        return this.done;
+    }
+
+    private void step()
+    {
+        double progress = (System.nanoTime() - this.start) / 1e6 / this.duration;
+        try
+        {
+            if (progress >= 1)
+            {
+                this.finish();
+                return;
+            }
+            synchronized (this)
+            {
+                /*
+                 * The fade may have been finished from another thread after
+                 * this step was already due, so stop here rather than undo
+                 * the volumes it restored.
+                 */
+                if (this.done.isDone())
+                {
+                    this.task.cancel(false);
+                    return;
+                }
+                this.from.setVolume((int) Math.round(FULL_VOLUME * this.curve
+                        .gain(1 - progress)));
+                this.to.setVolume((int) Math.round(FULL_VOLUME * this.curve
+                        .gain(progress)));
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Could not fade between songs", e);
+            this.finish();
+        }
+    }
+
+    /**
+     * The parts of a player that a fade controls.
+     */
+    interface Channel
+    {
+        void setVolume(int volume);
+
+        void play();
+
+        void stop();
+
+        /**
+         * Wraps a VLC media player.
+         *
+         * @param player - The player to control.
+         * @return A channel for the player.
+         */
+        static Channel of(MediaPlayer player)
+        {
+            return new Channel()
+            {
+                @Override
+                public void setVolume(int volume)
+                {
+                    player.audio().setVolume(volume);
+                }
+
+                @Override
+                public void play()
+                {
+                    player.controls().play();
+                }
+
+                @Override
+                public void stop()
+                {
+                    player.controls().stop();
+                }
+            };
+        }
+    }
+
+    /**
+     * The shape of the volume ramps.
+     */
+    enum Curve
+    {
+        /**
+         * Volumes change at a steady rate. The overall loudness dips in the
+         * middle of the fade.
+         */
+        LINEAR
+                {
+                    @Override
+                    double gain(double progress)
+                    {
+                        return progress;
+                    }
+                },
+        /**
+         * Volumes follow a quarter of a sine wave, which keeps the overall
+         * loudness steady when the songs are unrelated.
+         */
+        EQUAL_POWER
+                {
+                    @Override
+                    double gain(double progress)
+                    {
+                        return Math.sin(progress * Math.PI / 2);
+                    }
+                };
+
+        /**
+         * Finds the gain of the incoming song at a point in the fade. The
+         * outgoing song uses the same curve backwards.
+         *
+         * @param progress - How far through the fade it is, from 0 to 1.
+         * @return The gain, from 0 to 1.
+         */
+        abstract double gain(double progress);
+
+        /**
+         * Looks up a curve by name, such as from the settings.
+         *
+         * @param name - The name of the curve, in any case.
+         * @return The matching curve, or {@link #EQUAL_POWER} if the name is
+         * not known.
+         */
+        static Curve fromName(String name)
+        {
+            try
+            {
+                return valueOf(name.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException | NullPointerException e)
+            {
+                logger.warn("Unknown crossfade curve {}", name);
+                return EQUAL_POWER;
+            }
+        }
+    }
+}
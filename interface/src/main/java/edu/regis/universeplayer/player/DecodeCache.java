@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import edu.regis.universeplayer.ConfigManager;
+import edu.regis.universeplayer.data.LocalSong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps decoded copies of recently played and upcoming songs on disk, so
+ * that starting or seeking in them does not have to read and decode the
+ * original file again. Songs are decoded by FFMPEG in the background, one at
+ * a time, and the least recently used ones are deleted once the cache grows
+ * past the size in the settings.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class DecodeCache
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(DecodeCache.class);
+
+    private static final String EXTENSION = ".wav";
+    private static final String PARTIAL = ".part";
+
+    private static DecodeCache instance;
+
+    private final File dir;
+    private final long maxSize;
+    /**
+     * The size of every cached file, by file name, with the least recently
+     * used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75F, true);
+    /**
+     * The names of the files currently being decoded.
+     */
+    private final Set<String> pending = new HashSet<>();
+    private final ExecutorService service = Executors
+            .newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Decode Cache");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+
+    private long size;
+    private long hits;
+    private long misses;
+    /**
+     * How many bytes of original files did not need to be read again.
+     */
+    private long bytesSaved;
+
+    /**
+     * Obtains the cache, creating it the first time.
+     *
+     * @return The cache, or null if it is turned off in the settings.
+     */
+    public static synchronized DecodeCache getInstance()
+    {
+        if (instance == null && ConfigManager.isDecodeCacheEnabled())
+        {
+            instance = new DecodeCache(new File(ConfigManager
+                    .getDataDir(), "decoded"), ConfigManager
+                    .getDecodeCacheSize());
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a cache, picking up any files already in it.
+     *
+     * @param dir     - The directory to keep decoded files in.
+     * @param maxSize - How large the cache may grow, in bytes.
+     */
+    DecodeCache(File dir, long maxSize)
+    {
+        File[] files;
+        this.dir = dir;
+        this.maxSize = maxSize;
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            logger.error("Could not create decode cache {}", dir);
+        }
+        files = dir.listFiles();
+        if (files != null)
+        {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files)
+            {
+                if (file.getName().endsWith(EXTENSION))
+                {
+                    this.entries.put(file.getName(), file.length());
+                    this.size += file.length();
+                }
+                else if (file.getName().endsWith(PARTIAL))
+                {
+                    /*
+                     * Left over from a decode that never finished.
+                     */
+                    file.delete();
+                }
+            }
+        }
+        this.evict();
+    }
+
+    /**
+     * Looks for a decoded copy of a song that is being loaded, counting the
+     * lookup towards the hit ratio.
+     *
+     * @param song - The song to look for.
+     * @return The decoded WAV file, or null if the song is not cached.
+     */
+    public synchronized File get(LocalSong song)
+    {
+        File file = this.peek(song);
+        this.countLoad(song, file != null);
+        return file;
+    }
+
+    /**
+     * Looks for a decoded copy of a song without counting the lookup, such as
+     * when the song is only being readied to play next. Once it does play,
+     * {@link #countLoad(LocalSong, boolean)} should be called.
+     *
+     * @param song - The song to look for.
+     * @return The decoded WAV file, or null if the song is not cached.
+     */
+    public synchronized File peek(LocalSong song)
+    {
+        String name = getName(song.file);
+        File file = new File(this.dir, name);
+        if (this.entries.get(name) != null && file.isFile())
+        {
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+        if (this.entries.remove(name) != null)
+        {
+            this.recount();
+        }
+        return null;
+    }
+
+    /**
+     * Counts a song being loaded towards the hit ratio. WAV files are never
+     * cached, so they are not counted at all.
+     *
+     * @param song   - The song that was loaded.
+     * @param cached - Whether it was played from the cache.
+     */
+    public synchronized void countLoad(LocalSong song, boolean cached)
+    {
+        if (isWave(song.file))
+        {
+            return;
+        }
+        if (cached)
+        {
+            this.hits++;
+            this.bytesSaved += song.file.length();
+        }
+        else
+        {
+            this.misses++;
+        }
+    }
+
+    /**
+     * Decodes a song into the cache in the background, unless it is already
+     * cached or being decoded. Songs that are already WAV files are left
+     * alone.
+     *
+     * @param song - The song to decode.
+     */
+    public synchronized void fill(LocalSong song)
+    {
+        String name = getName(song.file);
+        if (isWave(song.file) || this.entries.containsKey(name) || !this.pending
+                .add(name))
+        {
+            return;
+        }
+        this.service.submit(() -> {
+            try
+            {
+                this.decode(song.file, name);
+            }
+            catch (IOException | InterruptedException e)
+            {
+                logger.error("Could not cache {}", song, e);
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    this.pending.remove(name);
+                }
+            }
+        });
+    }
+
+    /**
+     * Decodes a file with FFMPEG and adds it to the cache.
+     *
+     * @param source - The original file.
+     * @param name   - The name of the decoded file.
+     * @throws IOException          - Thrown if FFMPEG could not be run or the
+     *                              file could not be written.
+     * @throws InterruptedException - Thrown if the thread was interrupted
+     *                              while waiting for FFMPEG.
+     */
+    private void decode(File source, String name) throws IOException, InterruptedException
+    {
+        File partial = new File(this.dir, name + PARTIAL);
+        File file = new File(this.dir, name);
+        long start = System.nanoTime();
+        Process process = LocalPlayer.convertFile(source);
+        try (InputStream in = process.getInputStream();
+             OutputStream out = new FileOutputStream(partial))
+        {
+            in.transferTo(out);
+        }
+        catch (IOException e)
+        {
+            process.destroy();
+            partial.delete();
+            throw e;
+        }
+        if (process.waitFor() != 0 || !fixSizes(partial))
+        {
+            partial.delete();
+            throw new IOException("FFMPEG could not decode " + source);
+        }
+        if (!partial.renameTo(file))
+        {
+            partial.delete();
+            throw new IOException("Could not move " + partial + " to " + file);
+        }
+        logger.debug("Cached {} ({} MB) in {} ms", source, file.length() / 1048576,
+                (System.nanoTime() - start) / 1000000);
+        synchronized (this)
+        {
+            this.entries.put(name, file.length());
+            this.size += file.length();
+            this.evict();
+        }
+    }
+
+    /**
+     * Fills in the sizes in a WAV header. FFMPEG leaves them unset when it
+     * writes to a pipe, since it cannot go back and change them.
+     *
+     * @param file - The WAV file.
+     * @return False if the file has no data chunk.
+     * @throws IOException - Thrown if the file could not be changed.
+     */
+    private static boolean fixSizes(File file) throws IOException
+    {
+        try (RandomAccessFile wav = new RandomAccessFile(file, "rw"))
+        {
+            long position = 12, chunkSize;
+            byte[] id = new byte[4];
+            writeInt(wav, 4, wav.length() - 8);
+            while (position + 8 <= wav.length())
+            {
+                wav.seek(position);
+                wav.readFully(id);
+                chunkSize = Integer.reverseBytes(wav.readInt()) & 0xFFFFFFFFL;
+                if (new String(id, StandardCharsets.US_ASCII).equals("data"))
+                {
+                    writeInt(wav, position + 4, wav.length() - position - 8);
+                    return true;
+                }
+                position += 8 + chunkSize + (chunkSize & 1);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Writes a little-endian size into a file.
+     *
+     * @param file     - The file to write to.
+     * @param position - Where in the file to write.
+     * @param value    - The size, which is capped at the largest a WAV file
+     *                 can hold.
+     * @throws IOException - Thrown if the file could not be written.
+     */
+    private static void writeInt(RandomAccessFile file, long position, long value) throws IOException
+    {
+        file.seek(position);
+        file.writeInt(Integer.reverseBytes((int) Math.min(value, 0xFFFFFFFEL)));
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits in its
+     * size. A file that cannot be deleted stays in the cache, and counts
+     * towards its size, until a later eviction manages to delete it.
+     */
+    private synchronized void evict()
+    {
+        Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet()
+                                                                 .iterator();
+        Map.Entry<String, Long> entry;
+        File file;
+        while (this.size > this.maxSize && iterator.hasNext())
+        {
+            entry = iterator.next();
+            file = new File(this.dir, entry.getKey());
+            if (!file.delete() && file.exists())
+            {
+                logger.warn("Could not delete cached file {}", entry.getKey());
+                continue;
+            }
+            iterator.remove();
+            this.size -= entry.getValue();
+        }
+    }
+
+    private void recount()
+    {
+        this.size = this.entries.values().stream().mapToLong(Long::longValue)
+                                .sum();
+    }
+
+    /**
+     * Checks whether a song is already a WAV file, and so is never cached.
+     *
+     * @param source - The original file.
+     * @return True if the file is a WAV file.
+     */
+    private static boolean isWave(File source)
+    {
+        return source.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Names the decoded copy of a file. The name changes if the file is
+     * edited, so that an old copy is never played.
+     *
+     * @param source - The original file.
+     * @return The name of the decoded copy.
+     */
+    private static String getName(File source)
+    {
+        StringBuilder name = new StringBuilder();
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte b : digest.digest((source.getAbsolutePath() + "|" + source
+                    .lastModified() + "|" + source.length())
+                    .getBytes(StandardCharsets.UTF_8)))
+            {
+                name.append(String.format("%02x", b));
+            }
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return name.append(EXTENSION).toString();
+    }
+
+    /**
+     * Obtains the portion of lookups that found the song cached.
+     *
+     * @return The hit ratio, from 0 to 1.
+     */
+    public synchronized double getHitRatio()
+    {
+        return this.hits + this.misses == 0 ? 0 : (double) this.hits / (this
+                .hits + this.misses);
+    }
+
+    /**
+     * Obtains how much of the original files did not need to be read again
+     * because they were cached.
+     *
+     * @return The bytes saved.
+     */
+    public synchronized long getBytesSaved()
+    {
+        return this.bytesSaved;
+    }
+
+    /**
+     * Stops decoding songs. Anything only partly decoded is deleted the next
+     * time the cache is opened.
+     */
+    public void shutdown()
+    {
+        this.service.shutdownNow();
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return String.format("%d hits, %d misses (%.0f%% hit ratio), %d MB " +
+                        "not read again, %d of %d MB cached", this.hits, this.misses,
+                this.getHitRatio() * 100, this.bytesSaved / 1048576,
+                this.size / 1048576, this.maxSize / 1048576);
+    }
+}
@@ -0,0 +1,832 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import com.intervigil.wave.WaveReader;
+
+import edu.regis.universeplayer.AbstractTask;
+import edu.regis.universeplayer.ConfigManager;
+import edu.regis.universeplayer.PlaybackInfo;
+import edu.regis.universeplayer.PlaybackListener;
+import edu.regis.universeplayer.PlaybackStatus;
+import edu.regis.universeplayer.data.LocalSong;
+import edu.regis.universeplayer.data.PlaybackEvent;
+import edu.regis.universeplayer.data.Song;
+import edu.regis.universeplayer.dsp.DspChain;
+import edu.regis.universeplayer.dsp.SampleKernels;
+import edu.regis.universeplayer.dsp.TimeStretch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.swing.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays files on the local file system without VLC. FFMPEG decodes the file
+ * to PCM, one thread copies that into a {@link PcmFanOut}, and another
+ * copies it from there to a Java Sound line. Seeking starts FFMPEG again
+ * from the new position, unless the song is in the {@link DecodeCache}, in
+ * which case the decoded copy is read directly. Playing faster or slower
+ * runs the decoded audio through a {@link TimeStretch}.
+ * <p>
+ * What is played can also be passed on to any number of {@link PcmSink}s,
+ * such as a network stream, each of which reads from the same buffer as the
+ * sound line through a cursor of its own. A player made to be shared
+ * converts every song to the same format, so that sinks added at any point
+ * never see the format change.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class JavaSoundPlayer implements Player<LocalSong>
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(JavaSoundPlayer.class);
+
+    /**
+     * How many bytes are read from FFMPEG at a time.
+     */
+    private static final int CHUNK_SIZE = 8192;
+    /**
+     * How many ranges of frequencies the visualiser shows.
+     */
+    private static final int SPECTRUM_BANDS = 24;
+    /**
+     * The sample rate songs are converted to when the player is shared.
+     */
+    public static final int SHARED_SAMPLE_RATE = 44100;
+    /**
+     * The number of channels songs are converted to when the player is
+     * shared.
+     */
+    public static final int SHARED_CHANNELS = 2;
+
+    private final ForkJoinPool service = new ForkJoinPool();
+    private final LinkedList<PlaybackListener> listeners = new LinkedList<>();
+    private final PlaybackClock clock = new PlaybackClock();
+    /**
+     * Analyses what is being played for the visualiser, or null if the
+     * visualiser is turned off.
+     */
+    private final SpectrumAnalyser spectrum = ConfigManager
+            .isVisualiserEnabled() ? new SpectrumAnalyser(SPECTRUM_BANDS,
+            ConfigManager.getVisualiserFps()) : null;
+    private final CopyOnWriteArrayList<SinkPump> sinks = new CopyOnWriteArrayList<>();
+    /**
+     * Whether every song is converted to the shared format.
+     */
+    private final boolean shared;
+
+    private volatile LocalSong currentSong;
+    private volatile PlaybackStatus status = PlaybackStatus.EMPTY;
+    private volatile float speed = 1;
+    /**
+     * The decoder and sound line for the current song, or null if nothing is
+     * loaded.
+     */
+    private Stream stream;
+
+    /**
+     * Creates a player that plays each song in its own format.
+     */
+    public JavaSoundPlayer()
+    {
+        this(false);
+    }
+
+    /**
+     * Creates a player.
+     *
+     * @param shared - Whether what is played will be passed on to sinks, in
+     *               which case every song is converted to
+     *               {@link #SHARED_SAMPLE_RATE} and {@link #SHARED_CHANNELS}.
+     *               This has to be decided up front, since a sink can be
+     *               added partway through a song.
+     */
+    public JavaSoundPlayer(boolean shared)
+    {
+        this.shared = shared;
+    }
+
+    @Override
+    public Song getCurrentSong()
+    {
+        return this.currentSong;
+    }
+
+    @Override
+    public ForkJoinTask<Void> loadSong(LocalSong song)
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                try
+                {
+                    startStream(song, 0, true, true);
+                    return true;
+                }
+                catch (IOException | LineUnavailableException e)
+                {
+                    this.completeExceptionally(new RuntimeException("Could not play " +
+                            "song " + song, e));
+                    return false;
+                }
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> play()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    try
+                    {
+                        if (stream != null && status == PlaybackStatus.PAUSED)
+                        {
+                            stream.resume();
+                            setStatus(PlaybackStatus.PLAYING);
+                        }
+                        else if (stream == null && currentSong != null)
+                        {
+                            startStream(currentSong, 0, true, true);
+                        }
+                        return true;
+                    }
+                    catch (IOException | LineUnavailableException e)
+                    {
+                        this.completeExceptionally(e);
+                        return false;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> pause()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    if (stream != null && status == PlaybackStatus.PLAYING)
+                    {
+                        stream.pause();
+                        setStatus(PlaybackStatus.PAUSED);
+                    }
+                    return true;
+                }
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> togglePlayback()
+    {
+        return this.status == PlaybackStatus.PLAYING ? this.pause() : this
+                .play();
+    }
+
+    @Override
+    public ForkJoinTask<Void> stopSong()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    if (stream != null)
+                    {
+                        stream.close();
+                        stream = null;
+                        clock.set(0L);
+                        setStatus(PlaybackStatus.STOPPED);
+                    }
+                    return true;
+                }
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> seek(float time)
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    if (currentSong == null)
+                    {
+                        return true;
+                    }
+                    try
+                    {
+                        startStream(currentSong, Math.max(0, time),
+                                status != PlaybackStatus.PAUSED, false);
+                        return true;
+                    }
+                    catch (IOException | LineUnavailableException e)
+                    {
+                        this.completeExceptionally(e);
+                        return false;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> setSpeed(float speed)
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    float newSpeed = Math.max(TimeStretch.MIN_SPEED, Math
+                            .min(TimeStretch.MAX_SPEED, speed));
+                    if (newSpeed == JavaSoundPlayer.this.speed)
+                    {
+                        return true;
+                    }
+                    JavaSoundPlayer.this.speed = newSpeed;
+                    if (stream == null)
+                    {
+                        return true;
+                    }
+                    /*
+                     * Start again from where the song is now, so that the
+                     * audio already buffered at the old speed is not heard.
+                     */
+                    try
+                    {
+                        startStream(currentSong, clock.getPosition(),
+                                status != PlaybackStatus.PAUSED, false);
+                        return true;
+                    }
+                    catch (IOException | LineUnavailableException e)
+                    {
+                        this.completeExceptionally(e);
+                        return false;
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public float getSpeed()
+    {
+        return this.speed;
+    }
+
+    @Override
+    public ForkJoinTask<PlaybackStatus> getStatus()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                this.complete(status);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Float> getCurrentTime()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                this.complete(clock.getPosition());
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public PlaybackClock getClock()
+    {
+        return this.clock;
+    }
+
+    @Override
+    public SpectrumAnalyser getSpectrum()
+    {
+        return this.spectrum;
+    }
+
+    @Override
+    public ForkJoinTask<Float> getLength()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                LocalSong song = currentSong;
+                this.complete(song == null ? 0 : song.duration / 1000F);
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public ForkJoinTask<Void> close()
+    {
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                synchronized (JavaSoundPlayer.this)
+                {
+                    if (stream != null)
+                    {
+                        stream.close();
+                        stream = null;
+                    }
+                    if (spectrum != null)
+                    {
+                        spectrum.close();
+                    }
+                    /*
+                     * Give the sinks a moment to finish, so that recordings
+                     * are left with a proper header.
+                     */
+                    for (SinkPump pump : sinks)
+                    {
+                        pump.close();
+                        pump.join(1000);
+                    }
+                    return true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts passing what is played on to a sink as well as the sound card.
+     * The sink starts from the next audio played. Unless the player is
+     * shared, the sink is opened again each time the format changes.
+     *
+     * @param sink - The sink to add.
+     */
+    public void addSink(PcmSink sink)
+    {
+        SinkPump pump = new SinkPump(sink, this.sinks::remove);
+        logger.info("Sending audio to {}", sink);
+        this.sinks.add(pump);
+        synchronized (this)
+        {
+            if (this.stream != null)
+            {
+                pump.follow(this.stream.buffer, this.stream.line.getFormat());
+            }
+        }
+    }
+
+    /**
+     * Stops passing what is played on to a sink, and closes it.
+     *
+     * @param sink - The sink to remove.
+     */
+    public void removeSink(PcmSink sink)
+    {
+        for (SinkPump pump : this.sinks)
+        {
+            if (pump.getSink() == sink)
+            {
+                pump.close();
+            }
+        }
+    }
+
+    @Override
+    public void addPlaybackListener(PlaybackListener listener)
+    {
+        if (!this.hasPlaybackListener(listener))
+        {
+            this.listeners.add(listener);
+        }
+    }
+
+    @Override
+    public boolean hasPlaybackListener(PlaybackListener listener)
+    {
+        return this.listeners.contains(listener);
+    }
+
+    @Override
+    public void removePlaybackListener(PlaybackListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Replaces the current stream with one for a song.
+     *
+     * @param song  - The song to play.
+     * @param start - Where to start in the song, in seconds.
+     * @param play  - Whether to start playing right away, or wait paused.
+     * @param load  - Whether the song is being loaded, rather than started
+     *              again after a seek or a change of speed. Only loads count
+     *              towards the decode cache's hit ratio.
+     * @throws IOException              - Thrown if FFMPEG could not be
+     *                                  started or its output is not
+     *                                  understood.
+     * @throws LineUnavailableException - Thrown if no sound line can play
+     *                                  the song.
+     */
+    private synchronized void startStream(LocalSong song, float start,
+                                          boolean play, boolean load) throws IOException, LineUnavailableException
+    {
+        if (this.stream != null)
+        {
+            this.stream.close();
+            this.stream = null;
+        }
+        this.currentSong = song;
+        this.clock.set(start);
+        this.stream = new Stream(song, start, this.speed, load);
+        if (play)
+        {
+            this.stream.resume();
+            this.setStatus(PlaybackStatus.PLAYING);
+        }
+        else
+        {
+            this.setStatus(PlaybackStatus.PAUSED);
+        }
+    }
+
+    /**
+     * Changes the status of the player and tells the listeners.
+     *
+     * @param status - The new status.
+     */
+    private void setStatus(PlaybackStatus status)
+    {
+        PlaybackEvent event = new PlaybackEvent(this, new PlaybackInfo(this
+                .currentSong, this.clock.getPosition(), status));
+        this.status = status;
+        SwingUtilities.invokeLater(() -> this.listeners
+                .forEach(playbackListener -> playbackListener
+                        .onPlaybackChanged(event)));
+    }
+
+    /**
+     * Called from the output thread once a stream has played to the end.
+     *
+     * @param finished - The stream that finished.
+     */
+    private void finished(Stream finished)
+    {
+        synchronized (this)
+        {
+            if (finished != this.stream)
+            {
+                return;
+            }
+            this.stream = null;
+        }
+        logger.debug("Java Sound player finished {}", finished.song);
+        finished.close();
+        this.setStatus(PlaybackStatus.FINISHED);
+    }
+
+    /**
+     * Checks whether audio is already in the format songs are converted to
+     * when the player is shared.
+     *
+     * @param header - The header of the audio.
+     * @return Whether the audio is in the shared format.
+     */
+    private static boolean isShared(WaveReader header)
+    {
+        return header.getSampleRate() == SHARED_SAMPLE_RATE && header
+                .getChannels() == SHARED_CHANNELS && header.getPcmFormat() == 16;
+    }
+
+    /**
+     * A running copy of FFMPEG, or a cached decoded file, and the sound line
+     * it is played through, starting from a single point in a song.
+     */
+    private class Stream
+    {
+        private final LocalSong song;
+        private final float start;
+        /**
+         * How fast the song plays. Each second of the sound line covers this
+         * many seconds of the song.
+         */
+        private final float speed;
+        private final AudioFile file;
+        private final SourceDataLine line;
+        private final PcmFanOut buffer;
+        /**
+         * Where the sound line is reading from the buffer.
+         */
+        private final PcmFanOut.Cursor played;
+        private final Thread decoder;
+        private final Thread output;
+        private volatile boolean closed;
+        private volatile boolean paused = true;
+        /**
+         * Whether the sound line played everything, in which case the sinks
+         * are left to read what they have not got to yet.
+         */
+        private volatile boolean ended;
+        /**
+         * Whether what is played is passed on to the spectrum analyser.
+         */
+        private final boolean analysed;
+
+        private Stream(LocalSong song, float start, float speed, boolean load) throws IOException, LineUnavailableException
+        {
+            DecodeCache cache = DecodeCache.getInstance();
+            File cached = cache == null ? null : cache.peek(song);
+            AudioFile file = cached == null ? null : new AudioFile(cached, start);
+            WaveReader header;
+            AudioFormat format;
+            int bytesPerSecond;
+            this.song = song;
+            this.start = start;
+            if (file != null && shared && !isShared(file.getHeader()))
+            {
+                file.close();
+                file = null;
+            }
+            if (cache != null && load)
+            {
+                cache.countLoad(song, file != null);
+            }
+            if (file == null)
+            {
+                if (cache != null && cached == null)
+                {
+                    cache.fill(song);
+                }
+                file = shared ? new AudioFile(LocalPlayer.convertFile(song.file,
+                        start, SHARED_SAMPLE_RATE, SHARED_CHANNELS)) : LocalPlayer
+                        .getAudioStream(song.file, start);
+            }
+            this.file = file;
+            try
+            {
+                header = this.file.getHeader();
+                format = new AudioFormat(header.getSampleRate(), header
+                        .getPcmFormat(), header.getChannels(), true, false);
+                bytesPerSecond = (int) format.getFrameRate() * format
+                        .getFrameSize();
+                this.buffer = new PcmFanOut((int) ((long) bytesPerSecond * ConfigManager
+                        .getAudioBufferMillis() / 1000), (int) ((long) bytesPerSecond * ConfigManager
+                        .getSinkBacklogMillis() / 1000), format.getFrameSize());
+                this.played = this.buffer.addCursor(true);
+                this.line = AudioSystem.getSourceDataLine(format);
+                this.line.open(format, Math.max(format.getFrameSize(),
+                        (int) ((long) bytesPerSecond * ConfigManager
+                                .getAudioLatencyMillis() / 1000) / format
+                                .getFrameSize() * format.getFrameSize()));
+            }
+            catch (LineUnavailableException | IllegalArgumentException e)
+            {
+                this.file.close();
+                throw e;
+            }
+            /*
+             * The effects and the time stretch only work on 16-bit audio.
+             */
+            this.speed = format.getSampleSizeInBits() == 16 ? speed : 1;
+            this.analysed = spectrum != null && format.getSampleSizeInBits() == 16;
+            if (this.analysed)
+            {
+                spectrum.configure(format.getSampleRate(), format.getChannels());
+            }
+            for (SinkPump pump : sinks)
+            {
+                pump.follow(this.buffer, format);
+            }
+            this.decoder = new Thread(this::decode, "Java Sound Decoder");
+            this.output = new Thread(this::output, "Java Sound Output");
+            this.decoder.setDaemon(true);
+            this.output.setDaemon(true);
+            this.decoder.start();
+            this.output.start();
+        }
+
+        /**
+         * Copies decoded audio from FFMPEG into the buffer, through any
+         * effects turned on in the settings and the time stretch, until the
+         * song ends or the stream is closed.
+         */
+        private void decode()
+        {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            byte[] stretched = null;
+            AudioFormat format = this.line.getFormat();
+            DspChain chain = null;
+            TimeStretch stretch = null;
+            int read, filled = 0, whole;
+            if (format.getSampleSizeInBits() == 16)
+            {
+                chain = DspChain.fromSettings(this.song.file);
+                if (chain.isEmpty())
+                {
+                    chain = null;
+                }
+                else
+                {
+                    chain.configure(format.getSampleRate(), format
+                            .getChannels(), chunk.length);
+                    logger.debug("Processing {} with {}", this.song, chain);
+                }
+            }
+            if (this.speed != 1)
+            {
+                stretch = new TimeStretch(SampleKernels.get(), this.speed);
+                stretch.configure(format.getSampleRate(), format.getChannels(), chunk.length);
+                stretched = new byte[chunk.length];
+            }
+            try
+            {
+                while (!this.closed && (read = this.file.read(chunk, filled,
+                        chunk.length - filled)) >= 0)
+                {
+                    filled += read;
+                    /*
+                     * The effects work on whole frames, so hold back any
+                     * partial frame until the rest of it is read.
+                     */
+                    whole = chain == null && stretch == null ? filled : filled
+                            - filled % format.getFrameSize();
+                    if (chain != null)
+                    {
+                        chain.process(chunk, 0, whole);
+                    }
+                    if (stretch != null)
+                    {
+                        stretch.write(chunk, 0, whole);
+                        if (!this.drain(stretch, stretched))
+                        {
+                            break;
+                        }
+                    }
+                    else if (!this.buffer.write(chunk, 0, whole, () -> this.closed))
+                    {
+                        break;
+                    }
+                    filled -= whole;
+                    System.arraycopy(chunk, whole, chunk, 0, filled);
+                }
+                if (stretch != null && !this.closed)
+                {
+                    stretch.finish();
+                    this.drain(stretch, stretched);
+                }
+            }
+            catch (IOException e)
+            {
+                if (!this.closed)
+                {
+                    logger.error("Could not decode {}", this.song, e);
+                }
+            }
+            this.buffer.finish();
+        }
+
+        /**
+         * Copies everything the time stretch has ready into the buffer.
+         *
+         * @param stretch   - The time stretch.
+         * @param stretched - Space to read the stretched audio into.
+         * @return False if the stream was closed while waiting for room.
+         */
+        private boolean drain(TimeStretch stretch, byte[] stretched)
+        {
+            int read;
+            while ((read = stretch.read(stretched, 0, stretched.length)) > 0)
+            {
+                if (!this.buffer.write(stretched, 0, read, () -> this.closed))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Copies audio from the buffer to the sound line, keeping the clock
+         * up to date, until the song ends or the stream is closed.
+         */
+        private void output()
+        {
+            byte[] chunk = new byte[Math.max(this.line.getBufferSize() / 2,
+                    this.line.getFormat().getFrameSize())];
+            int read;
+            while (!this.closed)
+            {
+                if (this.paused)
+                {
+                    LockSupport.park(this);
+                    continue;
+                }
+                read = this.played.read(chunk, 0, chunk.length, () -> this.closed || this.paused);
+                if (read < 0)
+                {
+                    if (this.closed)
+                    {
+                        return;
+                    }
+                    this.line.drain();
+                    if (!this.closed)
+                    {
+                        this.ended = true;
+                        finished(this);
+                    }
+                    return;
+                }
+                this.line.write(chunk, 0, read);
+                if (this.analysed)
+                {
+                    spectrum.write(chunk, 0, read);
+                }
+                clock.set(this.start + this.line.getMicrosecondPosition() / 1e6F * this.speed);
+            }
+        }
+
+        private void resume()
+        {
+            this.paused = false;
+            this.line.start();
+            LockSupport.unpark(this.output);
+        }
+
+        private void pause()
+        {
+            this.paused = true;
+            this.line.stop();
+        }
+
+        /**
+         * Stops FFMPEG and releases the sound line. The stream cannot be
+         * used again.
+         */
+        private void close()
+        {
+            this.closed = true;
+            if (!this.ended)
+            {
+                this.buffer.close();
+            }
+            this.line.stop();
+            this.line.flush();
+            this.line.close();
+            LockSupport.unpark(this.output);
+            try
+            {
+                this.file.close();
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not close FFMPEG", e);
+            }
+        }
+    }
+}
@@ -6,6 +6,7 @@ package edu.regis.universeplayer.player;
 import com.intervigil.wave.WaveReader;
 
 import edu.regis.universeplayer.AbstractTask;
+import edu.regis.universeplayer.ConfigManager;
 import edu.regis.universeplayer.PlaybackInfo;
 import edu.regis.universeplayer.PlaybackListener;
 import edu.regis.universeplayer.PlaybackStatus;
@@ -47,10 +48,46 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
             .getLogger(LocalPlayer.class);
 
     private final MediaPlayerFactory playerFactory;
-    private final AudioPlayerComponent player;
+    /**
+     * The player for the current song.
+     */
+    private volatile AudioPlayerComponent player;
+    /**
+     * A second player that holds the next song, paused at its start, so that
+     * it can take over the moment the current song finishes. It is only
+     * created once a song is prefetched.
+     */
+    private volatile AudioPlayerComponent standby;
+    /**
+     * The song waiting in the standby player, or null if there is none.
+     */
+    private LocalSong nextSong;
+    /**
+     * Whether the standby player reads its song from the decode cache.
+     */
+    private boolean nextCached;
+    /**
+     * The fade into the current song, or null if it did not fade in.
+     */
+    private Crossfade fade;
+    /**
+     * A prefetch waiting for the fade to end, or null if there is none. A
+     * newer prefetch cancels it.
+     */
+    private CompletableFuture<Void> pendingPrefetch;
+    /**
+     * How long songs fade into each other, in milliseconds. This is read
+     * from the settings whenever a song is prefetched.
+     */
+    private volatile long fadeDuration;
+    /**
+     * How fast songs play. VLC keeps the pitch the same at any rate.
+     */
+    private volatile float speed = 1;
 
     private final ForkJoinPool service = new ForkJoinPool();
     private final LinkedList<PlaybackListener> listeners = new LinkedList<>();
+    private final PlaybackClock clock = new PlaybackClock();
 
     private int currentId;
 
@@ -125,13 +162,23 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
             @Override
             protected boolean exec()
             {
+                endFade();
                 if (currentSong != null)
                 {
                     stopSong();
                 }
+                /*
+                 * Skipping ahead to the prefetched song can use the standby
+                 * player too.
+                 */
+                if (takeOver(song))
+                {
+                    return true;
+                }
                 currentSong = song;
+                clock.set(0L);
                 if (!player.mediaPlayer().media()
-                           .play(song.file.getAbsolutePath()))
+                           .play(getMediaPath(song, true)))
                 {
                     this.completeExceptionally(new RuntimeException("Could not play " +
                             "song " + song));
@@ -145,12 +192,250 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
         });
     }
 
+    @Override
+    public ForkJoinTask<Void> prefetch(LocalSong song)
+    {
+        Crossfade current;
+        synchronized (this)
+        {
+            if (this.pendingPrefetch != null)
+            {
+                this.pendingPrefetch.cancel(false);
+                this.pendingPrefetch = null;
+            }
+            current = this.fade;
+            if (current != null && !current.getDone().isDone())
+            {
+                /*
+                 * The standby player is still fading out the last song.
+                 * Waiting for it here would hold up every command behind
+                 * this one, so the song is loaded once the fade is over.
+                 */
+                this.pendingPrefetch = current.getDone().thenRunAsync(() -> {
+                    try
+                    {
+                        this.standBy(song);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.error("Could not prefetch song {}", song, e);
+                    }
+                }, this.service);
+                return this.service.submit(new AbstractTask<>()
+                {
+                    @Override
+                    protected boolean exec()
+                    {
+                        return true;
+                    }
+                });
+            }
+        }
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                standBy(song);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Loads a song into the standby player, paused at its start.
+     *
+     * @param song - The song to load, or null to clear the standby player.
+     * @throws RuntimeException If the song could not be opened.
+     */
+    private void standBy(LocalSong song)
+    {
+        AudioPlayerComponent next;
+        String path;
+        this.fadeDuration = ConfigManager.getCrossfadeDuration();
+        synchronized (this)
+        {
+            if (song == this.nextSong)
+            {
+                return;
+            }
+            this.nextSong = null;
+            if (this.standby == null)
+            {
+                if (song == null)
+                {
+                    return;
+                }
+                this.standby = new AudioPlayerComponent();
+                this.standby.mediaPlayer().events()
+                            .addMediaPlayerEventListener(this);
+                this.applySpeed(this.standby);
+            }
+            next = this.standby;
+        }
+        if (song == null)
+        {
+            next.mediaPlayer().controls().stop();
+            return;
+        }
+        /*
+         * Starting the song paused opens the file and the audio output, and
+         * decodes the first block, so that all that is left when the current
+         * song ends is to unpause it.
+         */
+        path = getMediaPath(song, false);
+        if (!next.mediaPlayer().media().startPaused(path))
+        {
+            throw new RuntimeException("Could not prefetch song " + song);
+        }
+        synchronized (this)
+        {
+            if (next == this.standby)
+            {
+                this.nextSong = song;
+                this.nextCached = !path.equals(song.file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Finds the file to play for a song, preferring its decoded copy if one
+     * is cached.
+     *
+     * @param song - The song to play.
+     * @param load - Whether the song is played right away, rather than
+     *             prefetched. Only then is the lookup counted, and the song
+     *             decoded into the cache if it is not there yet.
+     * @return The path to hand to VLC.
+     */
+    private static String getMediaPath(LocalSong song, boolean load)
+    {
+        DecodeCache cache = DecodeCache.getInstance();
+        File cached = cache == null ? null : load ? cache.get(song) : cache
+                .peek(song);
+        if (cached != null)
+        {
+            logger.debug("Playing {} from the decode cache", song);
+            return cached.getAbsolutePath();
+        }
+        if (cache != null && load)
+        {
+            cache.fill(song);
+        }
+        return song.file.getAbsolutePath();
+    }
+
+    /**
+     * Counts a prefetched song towards the decode cache's hit ratio once it
+     * starts playing.
+     *
+     * @param song   - The song that started.
+     * @param cached - Whether it was read from the cache.
+     */
+    private static void countLoad(LocalSong song, boolean cached)
+    {
+        DecodeCache cache = DecodeCache.getInstance();
+        if (cache != null)
+        {
+            cache.countLoad(song, cached);
+        }
+    }
+
+    /**
+     * Switches to the standby player if it holds the requested song.
+     *
+     * @param song - The song to play.
+     * @return True if the standby player took over, false if the song was
+     * not prefetched.
+     */
+    private synchronized boolean takeOver(LocalSong song)
+    {
+        AudioPlayerComponent next = this.standby;
+        if (song == null || !song.equals(this.nextSong))
+        {
+            return false;
+        }
+        this.standby = this.player;
+        this.player = next;
+        this.currentSong = song;
+        this.nextSong = null;
+        countLoad(song, this.nextCached);
+        next.mediaPlayer().submit(() -> next.mediaPlayer().controls().play());
+        logger.debug("Switched to prefetched song {}", song);
+        return true;
+    }
+
+    /**
+     * Starts fading into the prefetched song if crossfading is turned on and
+     * the current song is close enough to its end. The queue is told that the
+     * current song finished once the fade starts.
+     *
+     * @param mediaPlayer - The player for the current song.
+     * @param time        - How far into the current song it is, in
+     *                    milliseconds.
+     */
+    private void startFade(MediaPlayer mediaPlayer, long time)
+    {
+        long duration = this.fadeDuration;
+        long remaining;
+        LocalSong song;
+        AudioPlayerComponent next;
+        Crossfade newFade;
+        if (duration <= 0)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (this.nextSong == null || this.fade != null && !this.fade
+                    .getDone().isDone())
+            {
+                return;
+            }
+            remaining = mediaPlayer.status().length() - time;
+            if (remaining <= 0 || remaining > duration)
+            {
+                return;
+            }
+            song = this.currentSong;
+            next = this.standby;
+            this.standby = this.player;
+            this.player = next;
+            this.currentSong = this.nextSong;
+            this.nextSong = null;
+            countLoad(this.currentSong, this.nextCached);
+            newFade = new Crossfade(mediaPlayer, next.mediaPlayer(), remaining,
+                    Crossfade.Curve.fromName(ConfigManager.getCrossfadeCurve()));
+            this.fade = newFade;
+        }
+        logger.debug("Fading from {} into {} over {} ms", song,
+                this.currentSong, remaining);
+        next.mediaPlayer().submit(newFade::start);
+        this.fireStatus(song, time, PlaybackStatus.FINISHED);
+    }
+
+    /**
+     * Cuts short any fade in progress, silencing the song fading out.
+     */
+    private void endFade()
+    {
+        Crossfade current;
+        synchronized (this)
+        {
+            current = this.fade;
+            this.fade = null;
+        }
+        if (current != null)
+        {
+            current.finish();
+        }
+    }
+
     @Override
     public ForkJoinTask<Void> play()
     {
-        this.player.mediaPlayer().submit(() -> this.player.mediaPlayer()
-                                                          .controls()
-                                                          .play());
+        MediaPlayer mediaPlayer = this.player.mediaPlayer();
+        mediaPlayer.submit(() -> mediaPlayer.controls().play());
         return this.service.submit(new AbstractTask<>()
         {
             @Override
@@ -164,10 +449,9 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public ForkJoinTask<Void> pause()
     {
-        this.player.mediaPlayer()
-                   .submit(() -> this.player.mediaPlayer()
-                                            .controls()
-                                            .pause());
+        this.endFade();
+        MediaPlayer mediaPlayer = this.player.mediaPlayer();
+        mediaPlayer.submit(() -> mediaPlayer.controls().pause());
         return this.service.submit(new AbstractTask<>()
         {
             @Override
@@ -212,10 +496,9 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public ForkJoinTask<Void> stopSong()
     {
-        this.player.mediaPlayer()
-                   .submit(() -> this.player.mediaPlayer()
-                                            .controls()
-                                            .stop());
+        this.endFade();
+        MediaPlayer mediaPlayer = this.player.mediaPlayer();
+        mediaPlayer.submit(() -> mediaPlayer.controls().stop());
         return this.service.submit(new AbstractTask<>()
         {
             @Override
@@ -229,10 +512,8 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public ForkJoinTask<Void> seek(float time)
     {
-        this.player.mediaPlayer()
-                   .submit(() -> this.player.mediaPlayer()
-                                            .controls()
-                                            .setTime((long) (time * 1000)));
+        MediaPlayer mediaPlayer = this.player.mediaPlayer();
+        mediaPlayer.submit(() -> mediaPlayer.controls().setTime((long) (time * 1000)));
         return this.service.submit(new AbstractTask<>()
         {
             @Override
@@ -281,6 +562,50 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
         });
     }
 
+    @Override
+    public ForkJoinTask<Void> setSpeed(float speed)
+    {
+        this.speed = speed;
+        this.applySpeed(this.player);
+        this.applySpeed(this.standby);
+        return this.service.submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public float getSpeed()
+    {
+        return this.speed;
+    }
+
+    /**
+     * Sets the rate of one of the VLC players to the current speed. VLC
+     * keeps the rate for every song the player plays after this.
+     *
+     * @param component - The player, or null if it has not been created.
+     */
+    private void applySpeed(AudioPlayerComponent component)
+    {
+        MediaPlayer mediaPlayer;
+        if (component != null)
+        {
+            mediaPlayer = component.mediaPlayer();
+            mediaPlayer.submit(() -> mediaPlayer.controls().setRate(this.speed));
+        }
+    }
+
+    @Override
+    public PlaybackClock getClock()
+    {
+        return this.clock;
+    }
+
     @Override
     public ForkJoinTask<Float> getLength()
     {
@@ -304,7 +629,12 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
             @Override
             protected boolean exec()
             {
+                endFade();
                 player.release();
+                if (standby != null)
+                {
+                    standby.release();
+                }
                 return true;
             }
         });
@@ -345,6 +675,22 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
         return new AudioFile(convertFile(file));
     }
 
+    /**
+     * Obtains an input stream for the requested file, starting partway
+     * through.
+     *
+     * @param file  - The file to read
+     * @param start - Where in the file to start, in seconds.
+     * @return An raw stream for the file
+     * @throws FileNotFoundException - Thrown should the file not exist.
+     * @throws IOException           - Thrown should an error occur when reading
+     *                               the file
+     */
+    public static AudioFile getAudioStream(File file, float start) throws IOException
+    {
+        return new AudioFile(convertFile(file, start));
+    }
+
     /**
      * Converts any audio file to a stream containing WAV audio file data
      * (courtesy of FFMPEG).
@@ -356,6 +702,44 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
      *                               the file
      */
     protected static Process convertFile(File file) throws FileNotFoundException, IOException
+    {
+        return convertFile(file, 0);
+    }
+
+    /**
+     * Converts any audio file to a stream containing WAV audio file data
+     * (courtesy of FFMPEG), starting partway through. FFMPEG seeks in the
+     * input, so this is quick however far in the start is.
+     *
+     * @param file  - The file to convert
+     * @param start - Where in the file to start, in seconds.
+     * @return An input stream containing the file data
+     * @throws FileNotFoundException - Thrown should the file not exist.
+     * @throws IOException           - Thrown should an error occur when reading
+     *                               the file
+     */
+    protected static Process convertFile(File file, float start) throws FileNotFoundException, IOException
+    {
+        return convertFile(file, start, 0, 0);
+    }
+
+    /**
+     * Converts any audio file to a stream containing WAV audio file data
+     * (courtesy of FFMPEG), resampled and remixed to a set format so that
+     * it can be mixed with other songs.
+     *
+     * @param file       - The file to convert
+     * @param start      - Where in the file to start, in seconds.
+     * @param sampleRate - The number of frames per second to convert to, or 0
+     *                   to keep the file's own rate.
+     * @param channels   - The number of channels to convert to, or 0 to keep
+     *                   the file's own channels.
+     * @return An input stream containing the file data
+     * @throws FileNotFoundException - Thrown should the file not exist.
+     * @throws IOException           - Thrown should an error occur when reading
+     *                               the file
+     */
+    protected static Process convertFile(File file, float start, int sampleRate, int channels) throws FileNotFoundException, IOException
     {
         LinkedList<String> args = new LinkedList<>();
         if (!file.isFile())
@@ -367,8 +751,33 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
         args.add("-loglevel");
         args.add("error");
         args.add("-y");
+        if (start > 0)
+        {
+            args.add("-ss");
+            args.add(Float.toString(start));
+        }
         args.add("-i");
         args.add(file.getAbsolutePath());
+        /*
+         * Keep the header down to the format and data chunks, which is all
+         * the wave reader understands.
+         */
+        args.add("-map_metadata");
+        args.add("-1");
+        args.add("-fflags");
+        args.add("+bitexact");
+        args.add("-acodec");
+        args.add("pcm_s16le");
+        if (sampleRate > 0)
+        {
+            args.add("-ar");
+            args.add(Integer.toString(sampleRate));
+        }
+        if (channels > 0)
+        {
+            args.add("-ac");
+            args.add(Integer.toString(channels));
+        }
         args.add("-f");
         args.add("wav");
         args.add("pipe:1");
@@ -425,11 +834,13 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public void playing(MediaPlayer mediaPlayer)
     {
+        if (mediaPlayer != this.player.mediaPlayer())
+        {
+            return;
+        }
         logger.debug("Local player playing.");
-        SwingUtilities.invokeLater(() -> this.listeners
-                .forEach(playbackListener -> playbackListener
-                        .onPlaybackChanged(new PlaybackEvent(this, new PlaybackInfo(this.currentSong, mediaPlayer
-                                .status().time(), PlaybackStatus.PLAYING)))));
+        this.fireStatus(this.currentSong, mediaPlayer.status().time(),
+                PlaybackStatus.PLAYING);
     }
 
     /**
@@ -440,11 +851,13 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public void paused(MediaPlayer mediaPlayer)
     {
+        if (mediaPlayer != this.player.mediaPlayer())
+        {
+            return;
+        }
         logger.debug("Local player paused.");
-        SwingUtilities.invokeLater(() -> this.listeners
-                .forEach(playbackListener -> playbackListener
-                        .onPlaybackChanged(new PlaybackEvent(this, new PlaybackInfo(this.currentSong, mediaPlayer
-                                .status().time(), PlaybackStatus.PAUSED)))));
+        this.fireStatus(this.currentSong, mediaPlayer.status().time(),
+                PlaybackStatus.PAUSED);
     }
 
     /**
@@ -460,11 +873,13 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public void stopped(MediaPlayer mediaPlayer)
     {
+        if (mediaPlayer != this.player.mediaPlayer())
+        {
+            return;
+        }
         logger.debug("Local player stopped prematurely.");
-        SwingUtilities.invokeLater(() -> this.listeners
-                .forEach(playbackListener -> playbackListener
-                        .onPlaybackChanged(new PlaybackEvent(this, new PlaybackInfo(this.currentSong, mediaPlayer
-                                .status().time(), PlaybackStatus.STOPPED)))));
+        this.fireStatus(this.currentSong, mediaPlayer.status().time(),
+                PlaybackStatus.STOPPED);
     }
 
     /**
@@ -497,11 +912,22 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public void finished(MediaPlayer mediaPlayer)
     {
+        LocalSong song = this.currentSong;
+        if (mediaPlayer != this.player.mediaPlayer())
+        {
+            return;
+        }
         logger.debug("Local player finished.");
-        SwingUtilities.invokeLater(() -> this.listeners
-                .forEach(playbackListener -> playbackListener
-                        .onPlaybackChanged(new PlaybackEvent(this, new PlaybackInfo(this.currentSong, mediaPlayer
-                                .status().time(), PlaybackStatus.FINISHED)))));
+        /*
+         * Start the next song right away rather than waiting on the queue,
+         * which finds out about it through the event below.
+         */
+        synchronized (this)
+        {
+            this.takeOver(this.nextSong);
+        }
+        this.fireStatus(song, mediaPlayer.status().time(),
+                PlaybackStatus.FINISHED);
     }
 
     /**
@@ -513,9 +939,36 @@ public class LocalPlayer implements Player<LocalSong>, MediaPlayerEventListener
     @Override
     public void timeChanged(MediaPlayer mediaPlayer, long newTime)
     {
+        if (mediaPlayer != this.player.mediaPlayer())
+        {
+            return;
+        }
+        /*
+         * This fires many times a second, so only the clock is updated.
+         * Anything showing the position reads it from there.
+         */
+        this.clock.set(newTime);
+        this.startFade(mediaPlayer, newTime);
+    }
+
+    /**
+     * Tells the listeners that playback started, paused, or stopped.
+     *
+     * @param song   - The song the change happened to.
+     * @param time   - The position in the song, in milliseconds.
+     * @param status - The new status of the player.
+     */
+    private void fireStatus(LocalSong song, long time, PlaybackStatus status)
+    {
+        PlaybackEvent event = new PlaybackEvent(this, new PlaybackInfo(song,
+                time / 1000F, status));
+        if (status != PlaybackStatus.FINISHED)
+        {
+            this.clock.set(time);
+        }
         SwingUtilities.invokeLater(() -> this.listeners
                 .forEach(playbackListener -> playbackListener
-                        .onPlaybackChanged(new PlaybackEvent(this, new PlaybackInfo(this.currentSong, newTime / 1000F, PlaybackStatus.PLAYING)))));
+                        .onPlaybackChanged(event)));
     }
 
     /**
@@ -0,0 +1,379 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A fixed-size buffer of audio written once by one thread and read by any
+ * number of others, each through its own {@link Cursor}. Like
+ * {@link PcmRingBuffer}, no side takes a lock.
+ * <p>
+ * Gating cursors hold the writer back: it never gets more than its lead
+ * ahead of the slowest of them, so the sound card sets the pace. Every other
+ * cursor only follows the gating ones, and the writer never waits for it. A
+ * cursor that falls so far behind that its audio is written over has been
+ * lapped, and jumps forward to what the gating cursors are reading, counting
+ * what it skipped as dropped. The space behind the gating cursors is how far
+ * a slow reader can fall behind before that happens.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class PcmFanOut
+{
+    /**
+     * How long a side waits before checking again whether it was stopped,
+     * in case it was never woken.
+     */
+    private static final long WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final byte[] data;
+    private final int frameSize;
+    /**
+     * The most bytes the writer may be ahead of the slowest gating cursor.
+     */
+    private final int lead;
+    private final CopyOnWriteArrayList<Cursor> cursors = new CopyOnWriteArrayList<>();
+    /**
+     * The total number of bytes ever written.
+     */
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * The total number of bytes the writer has started to write. Anything
+     * more than the size of the buffer before this may already be written
+     * over.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile boolean finished;
+    private volatile boolean closed;
+    private volatile Thread writer;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param lead      - The most bytes the writer may get ahead of the
+     *                  gating cursors.
+     * @param backlog   - The most bytes other cursors may fall behind the
+     *                  gating ones before they are lapped.
+     * @param frameSize - The size of a single frame of audio, in bytes. Both
+     *                  sizes are rounded up to whole frames.
+     */
+    public PcmFanOut(int lead, int backlog, int frameSize)
+    {
+        this.frameSize = frameSize;
+        this.lead = Math.max(1, (lead + frameSize - 1) / frameSize) * frameSize;
+        this.data = new byte[this.lead + Math.max(0, (backlog + frameSize - 1) / frameSize) * frameSize];
+    }
+
+    /**
+     * Adds a reader, starting from what the gating cursors are about to
+     * read, or from the newest audio if there are none.
+     *
+     * @param gating - Whether the writer waits for this reader.
+     * @return The new reader.
+     */
+    public Cursor addCursor(boolean gating)
+    {
+        Cursor cursor = new Cursor(gating);
+        cursor.position = this.getLimit();
+        this.cursors.add(cursor);
+        return cursor;
+    }
+
+    /**
+     * Obtains the size of a frame of audio.
+     *
+     * @return The size, in bytes.
+     */
+    public int getFrameSize()
+    {
+        return this.frameSize;
+    }
+
+    /**
+     * Copies all of the given bytes into the buffer, waiting for the gating
+     * cursors to make room as needed. Only one thread may write to the
+     * buffer.
+     *
+     * @param src     - The bytes to write.
+     * @param off     - Where the bytes start in the array.
+     * @param len     - How many bytes to write.
+     * @param stopped - Checked while waiting. If it becomes true, the write
+     *                gives up.
+     * @return False if the write gave up.
+     */
+    public boolean write(byte[] src, int off, int len, BooleanSupplier stopped)
+    {
+        long head;
+        int index, count;
+        this.writer = Thread.currentThread();
+        while (len > 0)
+        {
+            head = this.written.get();
+            count = Math.min(len, this.lead - (int) (head - this.getSlowestGate(head)));
+            if (count <= 0)
+            {
+                if (stopped.getAsBoolean() || this.closed)
+                {
+                    return false;
+                }
+                LockSupport.parkNanos(this, WAIT);
+                continue;
+            }
+            index = (int) (head % this.data.length);
+            if (index + count > this.data.length)
+            {
+                count = this.data.length - index;
+            }
+            /*
+             * Readers behind the gating cursors may still be copying what is
+             * about to be written over, so tell them before touching it.
+             */
+            this.claimed.set(head + count);
+            VarHandle.storeStoreFence();
+            System.arraycopy(src, off, this.data, index, count);
+            this.written.set(head + count);
+            off += count;
+            len -= count;
+            this.wakeReaders();
+        }
+        return true;
+    }
+
+    /**
+     * Marks that nothing more will be written, so that the readers stop once
+     * they have read everything.
+     */
+    public void finish()
+    {
+        this.finished = true;
+        this.wakeReaders();
+    }
+
+    /**
+     * Stops every reader and the writer, whether or not everything was read.
+     */
+    public void close()
+    {
+        this.closed = true;
+        this.wakeReaders();
+        LockSupport.unpark(this.writer);
+    }
+
+    /**
+     * Finds where the slowest gating cursor is.
+     *
+     * @param head - What to return if there are no gating cursors.
+     * @return The position of the slowest gating cursor.
+     */
+    private long getSlowestGate(long head)
+    {
+        long slowest = head;
+        for (Cursor cursor : this.cursors)
+        {
+            if (cursor.gating)
+            {
+                slowest = Math.min(slowest, cursor.position);
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * Finds how far other cursors may read, which is as far as the gating
+     * cursors have read, so that nothing is passed on before it is played.
+     *
+     * @return The position other cursors may read up to.
+     */
+    private long getLimit()
+    {
+        return this.getSlowestGate(this.written.get());
+    }
+
+    /**
+     * Wakes every reader that may be waiting for audio.
+     */
+    private void wakeReaders()
+    {
+        for (Cursor cursor : this.cursors)
+        {
+            LockSupport.unpark(cursor.reader);
+        }
+    }
+
+    /**
+     * Wakes the readers that follow the gating ones.
+     */
+    private void wakeFollowers()
+    {
+        for (Cursor cursor : this.cursors)
+        {
+            if (!cursor.gating)
+            {
+                LockSupport.unpark(cursor.reader);
+            }
+        }
+    }
+
+    /**
+     * One reader's place in the buffer. Only one thread may read through a
+     * cursor.
+     */
+    public final class Cursor
+    {
+        private final boolean gating;
+        /**
+         * The total number of bytes this cursor has read or skipped.
+         */
+        private volatile long position;
+        private volatile Thread reader;
+        private volatile long dropped;
+        private volatile int laps;
+
+        private Cursor(boolean gating)
+        {
+            this.gating = gating;
+        }
+
+        /**
+         * Copies whole frames out of the buffer, waiting for some to arrive
+         * if there are none to read.
+         *
+         * @param dst     - The array to copy into.
+         * @param off     - Where to start copying in the array.
+         * @param len     - The most bytes to read.
+         * @param stopped - Checked while waiting. If it becomes true, the read
+         *                gives up.
+         * @return The number of bytes read, 0 if the read gave up, or -1 if
+         * the buffer was closed, or the writer has finished and everything
+         * it wrote has been read.
+         */
+        public int read(byte[] dst, int off, int len, BooleanSupplier stopped)
+        {
+            long tail, limit;
+            int index, count, first;
+            this.reader = Thread.currentThread();
+            while (true)
+            {
+                if (closed)
+                {
+                    return -1;
+                }
+                tail = this.position;
+                limit = this.gating ? written.get() : getLimit();
+                count = Math.min(len, (int) (limit - tail)) / frameSize * frameSize;
+                if (count > 0)
+                {
+                    index = (int) (tail % data.length);
+                    first = Math.min(count, data.length - index);
+                    System.arraycopy(data, index, dst, off, first);
+                    System.arraycopy(data, 0, dst, off + first, count - first);
+                    /*
+                     * Only the gating cursors are safe from the writer. For
+                     * the rest, the oldest byte copied is the first to be
+                     * written over, so if it is still there, all of them are.
+                     */
+                    VarHandle.loadLoadFence();
+                    if (this.gating || claimed.get() - tail <= data.length)
+                    {
+                        break;
+                    }
+                    this.skip(getLimit());
+                    continue;
+                }
+                /*
+                 * Check the written count again after seeing the flag, since
+                 * the writer sets the flag after its last write. Other
+                 * cursors wait for the gating ones to play the rest first.
+                 */
+                if (finished && written.get() - tail < frameSize)
+                {
+                    return -1;
+                }
+                if (stopped.getAsBoolean())
+                {
+                    return 0;
+                }
+                LockSupport.parkNanos(this, WAIT);
+            }
+            this.position = tail + count;
+            if (this.gating)
+            {
+                LockSupport.unpark(writer);
+                wakeFollowers();
+            }
+            return count;
+        }
+
+        /**
+         * Jumps forward after being lapped.
+         *
+         * @param to - Where to jump to.
+         */
+        private void skip(long to)
+        {
+            this.dropped += to - this.position;
+            this.laps++;
+            this.position = to;
+        }
+
+        /**
+         * Obtains how much audio this cursor has skipped after being lapped.
+         *
+         * @return The number of bytes skipped.
+         */
+        public long getDropped()
+        {
+            return this.dropped;
+        }
+
+        /**
+         * Obtains how many times this cursor has been lapped.
+         *
+         * @return The number of times it had to skip audio.
+         */
+        public int getLaps()
+        {
+            return this.laps;
+        }
+
+        /**
+         * Obtains how far this cursor is behind the newest audio.
+         *
+         * @return The number of bytes written but not yet read.
+         */
+        public long getBacklog()
+        {
+            return written.get() - this.position;
+        }
+
+        /**
+         * Checks whether this cursor is falling behind, which is when it has
+         * used over half of the space it has before being lapped.
+         *
+         * @return Whether the cursor is reading too slowly.
+         */
+        public boolean isLagging()
+        {
+            return !this.gating && getLimit() - this.position > (data.length - lead) / 2;
+        }
+
+        /**
+         * Stops reading through this cursor, so that the writer no longer
+         * waits for it.
+         */
+        public void remove()
+        {
+            cursors.remove(this);
+            LockSupport.unpark(writer);
+        }
+    }
+}
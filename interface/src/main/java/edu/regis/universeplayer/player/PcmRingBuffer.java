@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A fixed-size buffer of audio passed from one thread decoding it to one
+ * thread playing it. Neither side takes a lock: each only moves its own
+ * counter forward, and a side that has to wait parks until the other one
+ * wakes it. Reads only ever return whole frames, so that what is read can be
+ * written straight to a sound line.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class PcmRingBuffer
+{
+    /**
+     * How long a side waits before checking again whether it was stopped,
+     * in case it was never woken.
+     */
+    private static final long WAIT = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final byte[] data;
+    private final int frameSize;
+    /**
+     * The total number of bytes ever written.
+     */
+    private final AtomicLong written = new AtomicLong();
+    /**
+     * The total number of bytes ever read.
+     */
+    private final AtomicLong read = new AtomicLong();
+    private volatile boolean finished;
+    private volatile Thread writer;
+    private volatile Thread reader;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param capacity  - The most bytes the buffer can hold. This is rounded
+     *                  up to a whole number of frames.
+     * @param frameSize - The size of a single frame of audio, in bytes.
+     */
+    PcmRingBuffer(int capacity, int frameSize)
+    {
+        this.frameSize = frameSize;
+        this.data = new byte[Math.max(1, (capacity + frameSize - 1) / frameSize) * frameSize];
+    }
+
+    /**
+     * Copies all of the given bytes into the buffer, waiting for room as
+     * needed. Only one thread may write to the buffer.
+     *
+     * @param src     - The bytes to write.
+     * @param off     - Where the bytes start in the array.
+     * @param len     - How many bytes to write.
+     * @param stopped - Checked while waiting. If it becomes true, the write
+     *                gives up.
+     * @return False if the write gave up.
+     */
+    boolean write(byte[] src, int off, int len, BooleanSupplier stopped)
+    {
+        long head;
+        int index, count;
+        this.writer = Thread.currentThread();
+        while (len > 0)
+        {
+            head = this.written.get();
+            count = Math.min(len, this.data.length - (int) (head - this.read.get()));
+            if (count == 0)
+            {
+                if (stopped.getAsBoolean())
+                {
+                    return false;
+                }
+                LockSupport.parkNanos(this, WAIT);
+                continue;
+            }
+            index = (int) (head % this.data.length);
+            if (index + count > this.data.length)
+            {
+                count = this.data.length - index;
+            }
+            System.arraycopy(src, off, this.data, index, count);
+            this.written.set(head + count);
+            off += count;
+            len -= count;
+            LockSupport.unpark(this.reader);
+        }
+        return true;
+    }
+
+    /**
+     * Copies whole frames out of the buffer, waiting for some to arrive if
+     * it is empty. Only one thread may read from the buffer.
+     *
+     * @param dst     - The array to copy into.
+     * @param off     - Where to start copying in the array.
+     * @param len     - The most bytes to read.
+     * @param stopped - Checked while waiting. If it becomes true, the read
+     *                gives up.
+     * @return The number of bytes read, 0 if the read gave up, or -1 if the
+     * writer has finished and everything it wrote has been read.
+     */
+    int read(byte[] dst, int off, int len, BooleanSupplier stopped)
+    {
+        long tail;
+        int index, count, first;
+        this.reader = Thread.currentThread();
+        while (true)
+        {
+            tail = this.read.get();
+            count = (int) (this.written.get() - tail);
+            count = Math.min(len, count) / this.frameSize * this.frameSize;
+            if (count > 0)
+            {
+                break;
+            }
+            /*
+             * Check the written count again after seeing the flag, since the
+             * writer sets the flag after its last write.
+             */
+            if (this.finished && this.written.get() - tail < this.frameSize)
+            {
+                return -1;
+            }
+            if (stopped.getAsBoolean())
+            {
+                return 0;
+            }
+            LockSupport.parkNanos(this, WAIT);
+        }
+        index = (int) (tail % this.data.length);
+        first = Math.min(count, this.data.length - index);
+        System.arraycopy(this.data, index, dst, off, first);
+        System.arraycopy(this.data, 0, dst, off + first, count - first);
+        this.read.set(tail + count);
+        LockSupport.unpark(this.writer);
+        return count;
+    }
+
+    /**
+     * Marks that nothing more will be written, so that the reader stops once
+     * it has read everything.
+     */
+    void finish()
+    {
+        this.finished = true;
+        LockSupport.unpark(this.reader);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import javax.sound.sampled.AudioFormat;
+
+import java.io.IOException;
+
+/**
+ * Somewhere other than the sound card that what the {@link JavaSoundPlayer}
+ * plays is sent to, such as a file or a network stream. Each sink is given
+ * the audio on its own thread, after the sound card has been given it, and a
+ * sink that cannot keep up has audio skipped rather than holding up
+ * playback.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public interface PcmSink
+{
+    /**
+     * Called before any audio is written, and again whenever the format of
+     * the audio changes.
+     *
+     * @param format - The format of the audio that follows.
+     * @throws IOException - Thrown if the sink cannot take audio in that
+     *                     format. The sink is then removed.
+     */
+    void open(AudioFormat format) throws IOException;
+
+    /**
+     * Passes on some of what was played.
+     *
+     * @param pcm    - The audio data, which is a whole number of frames.
+     * @param off    - Where the audio starts in the array.
+     * @param length - How many bytes of audio there are.
+     * @throws IOException - Thrown if the audio could not be written. The
+     *                     sink is then removed.
+     */
+    void write(byte[] pcm, int off, int length) throws IOException;
+
+    /**
+     * Called once the sink has been removed from the player, or the player
+     * is closed.
+     */
+    void close();
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds how far a player is through its song. Players overwrite it as often
+ * as they like without creating any objects or waking any other thread, and
+ * whoever needs the position, such as the progress bar, reads it on their
+ * own schedule. Changes in whether the player is playing are still sent out
+ * as playback events.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class PlaybackClock
+{
+    /**
+     * The position in the song, in milliseconds.
+     */
+    private final AtomicLong position = new AtomicLong();
+    /**
+     * How many times the position has been set, used to tell whether it
+     * changed between two readings.
+     */
+    private final AtomicLong updates = new AtomicLong();
+
+    /**
+     * Sets the position in the song.
+     *
+     * @param millis - The new position, in milliseconds.
+     */
+    public void set(long millis)
+    {
+        this.position.set(millis);
+        this.updates.incrementAndGet();
+    }
+
+    /**
+     * Sets the position in the song.
+     *
+     * @param seconds - The new position, in seconds.
+     */
+    public void set(float seconds)
+    {
+        this.set(Math.round(seconds * 1000.0));
+    }
+
+    /**
+     * Obtains the position in the song.
+     *
+     * @return The position, in seconds.
+     */
+    public float getPosition()
+    {
+        return this.position.get() / 1000F;
+    }
+
+    /**
+     * Obtains how many times the position has been set. Two readings with the
+     * same count saw the same position.
+     *
+     * @return The number of updates so far.
+     */
+    public long getUpdates()
+    {
+        return this.updates.get();
+    }
+}
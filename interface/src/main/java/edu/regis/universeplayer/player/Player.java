@@ -4,12 +4,14 @@
 
 package edu.regis.universeplayer.player;
 
+import edu.regis.universeplayer.AbstractTask;
 import edu.regis.universeplayer.PlaybackListener;
 import edu.regis.universeplayer.PlaybackStatus;
 import edu.regis.universeplayer.browserCommands.QueryFuture;
 import edu.regis.universeplayer.data.Song;
 
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.ForkJoinTask;
 
 /**
@@ -37,6 +39,28 @@ public interface Player<T extends Song>
      */
     ForkJoinTask<Void> loadSong(T song);
     
+    /**
+     * Gets a song ready to play once the current one finishes, so that there
+     * is no gap between them. If the player moves on to the song by itself,
+     * {@link #getCurrentSong()} returns it and loading it again is not
+     * needed. Players that cannot do this simply ignore the request.
+     *
+     * @param song - The song expected to play next, or null to drop any song
+     *             that was already prepared.
+     * @return A confirmation of whether the command was successful or not.
+     */
+    default ForkJoinTask<Void> prefetch(T song)
+    {
+        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                return true;
+            }
+        });
+    }
+    
     /**
      * Enables playback of the current song, if one is active.
      *
@@ -71,6 +95,37 @@ public interface Player<T extends Song>
      */
     ForkJoinTask<Void> seek(float time);
     
+    /**
+     * Changes how fast songs play, without changing their pitch. The times
+     * the player reports stay in the song's own time, so seeking works the
+     * same at any speed. Players that cannot change speed ignore this.
+     *
+     * @param speed - The new speed, where 1 is normal and 2 is twice as
+     *              fast.
+     * @return A confirmation of whether the command was successful or not.
+     */
+    default ForkJoinTask<Void> setSpeed(float speed)
+    {
+        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
+        {
+            @Override
+            protected boolean exec()
+            {
+                return true;
+            }
+        });
+    }
+    
+    /**
+     * Obtains how fast songs play.
+     *
+     * @return The speed, where 1 is normal.
+     */
+    default float getSpeed()
+    {
+        return 1;
+    }
+    
     /**
      * Obtains the player's current playback status.
      * @return A future for the request.
@@ -84,6 +139,25 @@ public interface Player<T extends Song>
      */
     ForkJoinTask<Float> getCurrentTime();
     
+    /**
+     * Obtains the clock the player keeps its position in. The player updates
+     * it as the song plays instead of sending a playback event each time.
+     *
+     * @return The player's clock.
+     */
+    PlaybackClock getClock();
+    
+    /**
+     * Obtains the analyser that works out the spectrum of what the player is
+     * playing. Only players that decode audio themselves can provide one.
+     *
+     * @return The player's analyser, or null if it does not have one.
+     */
+    default SpectrumAnalyser getSpectrum()
+    {
+        return null;
+    }
+    
     /**
      * Gets the length of the current song.
      *
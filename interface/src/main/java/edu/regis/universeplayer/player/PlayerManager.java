@@ -1,6 +1,7 @@
 package edu.regis.universeplayer.player;
 
 import edu.regis.universeplayer.AbstractTask;
+import edu.regis.universeplayer.ConfigManager;
 import edu.regis.universeplayer.PlaybackListener;
 import edu.regis.universeplayer.PlaybackStatus;
 import edu.regis.universeplayer.browserCommands.CommandConfirmation;
@@ -12,12 +13,20 @@ import edu.regis.universeplayer.data.Song;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import uk.co.caprica.vlcj.factory.discovery.NativeDiscovery;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 /**
  * The PlayerManager serves as the central access point for playing songs of any
@@ -48,6 +57,13 @@ public class PlayerManager implements PlaybackListener
     private final HashMap<Class<? extends Song>, Player> players =
             new HashMap<>();
 
+    /**
+     * The command threads for each player. Every command sent to a player
+     * goes through its actor, so that commands run in order and superseded
+     * ones are dropped.
+     */
+    private final HashMap<Player<?>, CommandActor> actors = new HashMap<>();
+
     /**
      * A reference to the player currently playing a song.
      */
@@ -58,6 +74,17 @@ public class PlayerManager implements PlaybackListener
      */
     private Song currentSong;
 
+    /**
+     * How fast songs play, shared by every player.
+     */
+    private volatile float speed = 1;
+
+    /**
+     * Streams what the built-in player plays over HTTP, or null if streaming
+     * is turned off.
+     */
+    private AudioStreamServer streamServer;
+
     public PlayerManager()
     {
         this.initPlayers();
@@ -95,7 +122,44 @@ public class PlayerManager implements PlaybackListener
      */
     private void initPlayers()
     {
-        this.initPlayer(LocalSong.class, new LocalPlayer());
+        int streamPort = ConfigManager.getStreamPort();
+        File recordFile = ConfigManager.getRecordFile();
+        JavaSoundPlayer javaSound;
+        /*
+         * Without VLC, local files are decoded with FFMPEG and played through
+         * Java Sound instead. VLC plays straight to the sound card, so only
+         * the built-in player can pass what it plays on to other places.
+         */
+        if (streamPort == 0 && recordFile == null && new NativeDiscovery()
+                .discover())
+        {
+            this.initPlayer(LocalSong.class, new LocalPlayer());
+        }
+        else
+        {
+            if (streamPort == 0 && recordFile == null)
+            {
+                logger.warn("VLC could not be found, so local songs will be " +
+                        "played through Java Sound");
+            }
+            javaSound = new JavaSoundPlayer(streamPort != 0 || recordFile != null);
+            this.initPlayer(LocalSong.class, javaSound);
+            if (recordFile != null)
+            {
+                javaSound.addSink(new WaveRecorder(recordFile));
+            }
+            if (streamPort != 0)
+            {
+                try
+                {
+                    this.streamServer = new AudioStreamServer(javaSound, streamPort);
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not stream on port {}", streamPort, e);
+                }
+            }
+        }
         this.initPlayer(InternetSong.class, new BrowserPlayer());
     }
 
@@ -106,16 +170,60 @@ public class PlayerManager implements PlaybackListener
         this.players.put(songType, player);
         if (!playerRegistered)
         {
+            this.actors.put(player, new CommandActor(player.getClass()
+                                                           .getSimpleName()));
             player.addPlaybackListener(this);
         }
     }
 
+    /**
+     * Obtains the command thread for a player.
+     *
+     * @param player - The player to send commands to.
+     * @return The actor for the player.
+     */
+    private CommandActor getActor(Player<?> player)
+    {
+        return this.actors.get(player);
+    }
+
     /**
      * Performs the necessary shutdown procedures for all players.
      */
     public void shutdownPlayers()
     {
-        this.players.values().forEach(Player::close);
+        if (this.streamServer != null)
+        {
+            this.streamServer.close();
+        }
+        for (Player player : new HashSet<Player>(this.players.values()))
+        {
+            /*
+             * Wait a little for each player, since the JVM may be exiting.
+             */
+            try
+            {
+                player.close().get(2, TimeUnit.SECONDS);
+            }
+            catch (ExecutionException | TimeoutException e)
+            {
+                logger.warn("Could not close {}", player, e);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (CommandActor actor : this.actors.values())
+        {
+            logger.debug("Player commands: {}", actor);
+            actor.shutdown();
+        }
+        if (DecodeCache.getInstance() != null)
+        {
+            logger.info("Decode cache: {}", DecodeCache.getInstance());
+            DecodeCache.getInstance().shutdown();
+        }
     }
 
     /**
@@ -138,6 +246,32 @@ public class PlayerManager implements PlaybackListener
         return this.currentSong;
     }
 
+    /**
+     * Obtains the clock of the active player, which holds how far it is
+     * through the current song.
+     *
+     * @return The clock of the current player, or null if no player has been
+     * used yet.
+     */
+    public PlaybackClock getClock()
+    {
+        Player<?> player = this.currentPlayer;
+        return player == null ? null : player.getClock();
+    }
+
+    /**
+     * Obtains the spectrum analyser of the active player, for the
+     * visualiser.
+     *
+     * @return The analyser of the current player, or null if it does not
+     * have one.
+     */
+    public SpectrumAnalyser getSpectrum()
+    {
+        Player<?> player = this.currentPlayer;
+        return player == null ? null : player.getSpectrum();
+    }
+
     /**
      * Creates a QueryFuture response for if no player is found.
      *
@@ -254,147 +388,225 @@ public class PlayerManager implements PlaybackListener
     }
 
     /**
-     * Loads up a requested song and immedietally begins playback.
+     * Loads up a requested song and immedietally begins playback. If this is
+     * sent again before the song is loaded, only the newest song is played.
      *
      * @param song - The song to load.
-     * @return The task that handles the request.
+     * @return A future for the request, which is cancelled if a later
+     * request replaces it.
      */
-    public ForkJoinTask<Void> playSong(Song song)
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> playSong(Song song)
     {
-        return ForkJoinPool.commonPool().submit(new AbstractTask<Void>()
+        Player<Song> player = (Player<Song>) this.getCompatiblePlayer(song);
+        Player<?> previousPlayer;
+        Song previousSong;
+        if (player == null)
         {
-            @Override
-            protected boolean exec()
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Unknown song type " + (song == null ? null : song
+                            .getClass())));
+        }
+        synchronized (this)
+        {
+            previousPlayer = this.currentPlayer;
+            previousSong = this.currentSong;
+            this.currentPlayer = player;
+            this.currentSong = song;
+        }
+        if (previousPlayer != null && previousPlayer != player && previousSong != null)
+        {
+            this.getActor(previousPlayer).submit(CommandActor.Kind.LOAD, () ->
             {
-                if (currentSong != null)
-                {
-                    currentPlayer.stopSong().join();
-                }
-                currentSong = null;
-                currentPlayer = getCompatiblePlayer(song);
-                if (currentPlayer == null)
-                {
-                    throw new IllegalArgumentException("Unknown song type " + song
-                            .getClass());
-                }
-                currentSong = song;
-                currentPlayer.loadSong(song).join();
-                return true;
+                previousPlayer.stopSong().join();
+                return null;
+            });
+        }
+        return this.getActor(player).submit(CommandActor.Kind.LOAD, () ->
+        {
+            /*
+             * The player may have moved on to a prefetched song on its
+             * own, in which case it is already playing.
+             */
+            if (song.equals(player.getCurrentSong()) && !song
+                    .equals(previousSong))
+            {
+                return null;
+            }
+            if (player.getCurrentSong() != null)
+            {
+                player.stopSong().join();
             }
+            player.loadSong(song).join();
+            return null;
         });
     }
 
+    /**
+     * Gets a song ready to play after the current one, if gapless playback
+     * or crossfading is turned on. Any other player holding a prefetched song
+     * lets it go. Local songs are also decoded into the decode cache, if it
+     * is turned on.
+     *
+     * @param song - The song expected to play next, or null if there is
+     *             none.
+     * @return A future for the request.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Void> prefetch(Song song)
+    {
+        DecodeCache cache = DecodeCache.getInstance();
+        if (cache != null && song instanceof LocalSong)
+        {
+            cache.fill((LocalSong) song);
+        }
+        Player<?> player = ConfigManager.isGapless() || ConfigManager
+                .getCrossfadeDuration() > 0 ? this.getCompatiblePlayer(song) :
+                null;
+        for (Player<?> other : new HashSet<>(this.players.values()))
+        {
+            if (other != player)
+            {
+                this.getActor(other).submit(CommandActor.Kind.PREFETCH, () ->
+                        other.prefetch(null).join());
+            }
+        }
+        if (player == null)
+        {
+            return CompletableFuture.completedFuture(null);
+        }
+        return this.getActor(player).submit(CommandActor.Kind.PREFETCH, () ->
+                ((Player<Song>) player).prefetch(song).join());
+    }
+
     /**
      * Obtains the playback status of the current player.
      *
-     * @return A task containing the status, or EMPTY if no player is being
+     * @return A future containing the status, or EMPTY if no player is being
      * used.
      */
-    public ForkJoinTask<PlaybackStatus> getStatus()
+    public CompletableFuture<PlaybackStatus> getStatus()
     {
-        if (this.currentPlayer != null)
+        Player<?> player = this.currentPlayer;
+        if (player != null)
         {
-            return this.currentPlayer.getStatus();
+            return this.getActor(player).submit(CommandActor.Kind.QUERY, () ->
+                    player.getStatus().join());
         }
         /*
          * If we have no player, then we return EMPTY.
          */
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
-        {
-            @Override
-            protected boolean exec()
-            {
-                complete(PlaybackStatus.EMPTY);
-                return true;
-            }
-        });
+        return CompletableFuture.completedFuture(PlaybackStatus.EMPTY);
     }
 
     /**
-     * Seeks to the specified time stamp.
+     * Seeks to the specified time stamp. If this is sent again before the
+     * seek happens, only the newest time is used.
      *
      * @param time - The time to seek to, in seconds.
-     * @return The task running this task.
+     * @return A future for the request, which is cancelled if a later
+     * request replaces it.
      */
-    public ForkJoinTask<Void> seek(float time)
+    public CompletableFuture<Void> seek(float time)
     {
-        if (this.currentPlayer != null)
+        Player<?> player = this.currentPlayer;
+        if (player != null)
         {
-            return this.currentPlayer.seek(time);
+            return this.getActor(player).submit(CommandActor.Kind.SEEK, () ->
+                    player.seek(time).join());
         }
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
-        {
-            @Override
-            protected boolean exec()
-            {
-                return true;
-            }
-        });
+        return CompletableFuture.completedFuture(null);
     }
 
-    public ForkJoinTask<Void> play()
+    /**
+     * Changes how fast songs play, without changing their pitch. Every
+     * player is told, so that the speed carries over when the next song
+     * needs a different player. Players that cannot change speed play at
+     * normal speed.
+     *
+     * @param speed - The new speed, where 1 is normal and 2 is twice as
+     *              fast.
+     * @return A future for the request to the current player, which is
+     * cancelled if a later change replaces it.
+     */
+    public CompletableFuture<Void> setSpeed(float speed)
     {
-        if (this.currentPlayer != null && this.currentSong != null)
-        {
-            return this.currentPlayer.play();
-        }
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
+        CompletableFuture<Void> current = CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> future;
+        this.speed = speed;
+        for (Player<?> player : new HashSet<>(this.players.values()))
         {
-            @Override
-            protected boolean exec()
+            future = this.getActor(player).submit(CommandActor.Kind.SPEED, () ->
+                    player.setSpeed(speed).join());
+            if (player == this.currentPlayer)
             {
-                return true;
+                current = future;
             }
-        });
+        }
+        return current;
     }
 
-    public ForkJoinTask<Void> pause()
+    /**
+     * Obtains how fast songs play.
+     *
+     * @return The speed last asked for, where 1 is normal.
+     */
+    public float getSpeed()
     {
-        if (this.currentPlayer != null && this.currentSong != null)
-        {
-            return this.currentPlayer.pause();
-        }
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
-        {
-            @Override
-            protected boolean exec()
-            {
-                return true;
-            }
-        });
+        return this.speed;
     }
 
-    public ForkJoinTask<Void> toggle()
+    public CompletableFuture<Void> play()
     {
-        if (this.currentPlayer != null && this.currentSong != null)
-        {
-            return this.currentPlayer.togglePlayback();
-        }
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
+        return this.sendPlayback(Player::play);
+    }
+
+    public CompletableFuture<Void> pause()
+    {
+        return this.sendPlayback(Player::pause);
+    }
+
+    public CompletableFuture<Void> toggle()
+    {
+        return this.sendPlayback(Player::togglePlayback);
+    }
+
+    /**
+     * Sends a command that plays or pauses the current song.
+     *
+     * @param command - The command to run on the current player.
+     * @return A future for the request.
+     */
+    private CompletableFuture<Void> sendPlayback(Function<Player<?>,
+            ForkJoinTask<Void>> command)
+    {
+        Player<?> player;
+        synchronized (this)
         {
-            @Override
-            protected boolean exec()
+            if (this.currentPlayer == null || this.currentSong == null)
             {
-                return true;
+                return CompletableFuture.completedFuture(null);
             }
-        });
+            player = this.currentPlayer;
+        }
+        return this.getActor(player).submit(CommandActor.Kind.PLAYBACK, () ->
+                command.apply(player).join());
     }
 
-    public ForkJoinTask<Void> stopSong()
+    public CompletableFuture<Void> stopSong()
     {
-        if (this.currentPlayer != null && this.currentSong != null)
+        Player<?> player;
+        synchronized (this)
         {
-            this.currentSong = null;
-            return this.currentPlayer.stopSong();
-        }
-        return ForkJoinPool.commonPool().submit(new AbstractTask<>()
-        {
-            @Override
-            protected boolean exec()
+            if (this.currentPlayer == null || this.currentSong == null)
             {
-                return true;
+                return CompletableFuture.completedFuture(null);
             }
-        });
+            player = this.currentPlayer;
+            this.currentSong = null;
+        }
+        return this.getActor(player).submit(CommandActor.Kind.LOAD, () ->
+                player.stopSong().join());
     }
 
     public void addPlaybackListener(PlaybackListener listener)
@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import com.intervigil.wave.WaveReader;
+import com.intervigil.wave.WaveWriter;
+import edu.regis.universeplayer.ConfigManager;
+import edu.regis.universeplayer.data.LocalSong;
+import edu.regis.universeplayer.data.Song;
+import edu.regis.universeplayer.dsp.DspChain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders a list of songs, such as the queue, into a single audio file, with
+ * the same effects and crossfades they would have when played. Several songs
+ * are decoded by FFMPEG at once, each into a buffer of its own, while they
+ * are mixed one after another into the output. Only a few seconds of each
+ * song are held in memory, so a mix of any length can be rendered. WAV
+ * files are written directly, and any other format, such as FLAC, is
+ * encoded by FFMPEG as the mix is written.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class QueueRenderer
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(QueueRenderer.class);
+
+    /**
+     * The number of frames per second everything is mixed at. Songs
+     * recorded at other rates are converted by FFMPEG.
+     */
+    public static final int SAMPLE_RATE = 44100;
+    /**
+     * The number of channels everything is mixed in.
+     */
+    public static final int CHANNELS = 2;
+    private static final int FRAME_SIZE = CHANNELS * 2;
+    /**
+     * How far each song being decoded may get ahead of the mix, in seconds.
+     */
+    private static final int BUFFER_SECONDS = 10;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final File output;
+    private final int threads;
+    private final Crossfade.Curve curve;
+    /**
+     * The end of the mix, held back so that the next song can fade in over
+     * it, as a ring.
+     */
+    private final byte[] held;
+    private int heldStart;
+    private int heldLength;
+    /**
+     * Room for the end of the last song and the start of the next while they
+     * are crossfaded.
+     */
+    private final byte[] tail;
+    private final byte[] head;
+
+    private WaveWriter wave;
+    private Process encoder;
+    private OutputStream encoderIn;
+
+    private long frames;
+    private int songs;
+    private long nanos;
+    private volatile boolean closed;
+
+    /**
+     * Creates a renderer that uses the crossfade and effects settings.
+     *
+     * @param output - The file to render to. Files ending in ".wav" are
+     *               written as WAV, and anything else is encoded by FFMPEG
+     *               in the format the extension names.
+     */
+    public QueueRenderer(File output)
+    {
+        long fade = ConfigManager.getCrossfadeDuration() * SAMPLE_RATE / 1000;
+        this.output = output;
+        this.threads = ConfigManager.getRenderThreads();
+        this.curve = Crossfade.Curve.fromName(ConfigManager.getCrossfadeCurve());
+        this.held = new byte[(int) Math.min(fade * FRAME_SIZE, Integer.MAX_VALUE / 2)];
+        this.tail = new byte[this.held.length];
+        this.head = new byte[this.held.length];
+    }
+
+    /**
+     * Renders songs to the output file, replacing anything already there.
+     * Songs that are not local files are skipped, as are songs that cannot
+     * be decoded.
+     *
+     * @param songs - The songs to render, in order.
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    public void render(List<? extends Song> songs) throws IOException
+    {
+        ArrayList<LocalSong> local = new ArrayList<>();
+        ArrayDeque<Track> decoding = new ArrayDeque<>();
+        ExecutorService decoders;
+        Iterator<LocalSong> next;
+        byte[] chunk = new byte[CHUNK_SIZE];
+        boolean success = false;
+        long start = System.nanoTime();
+        Track track;
+        for (Song song : songs)
+        {
+            if (song instanceof LocalSong)
+            {
+                local.add((LocalSong) song);
+            }
+            else
+            {
+                logger.warn("Skipping {}, which can only be played in the browser", song);
+            }
+        }
+        decoders = Executors.newFixedThreadPool(this.threads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "Render Decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        next = local.iterator();
+        this.open();
+        try
+        {
+            while (true)
+            {
+                /*
+                 * Keep the next few songs decoding while this one is mixed.
+                 */
+                while (decoding.size() < this.threads && next.hasNext())
+                {
+                    track = new Track(next.next());
+                    decoding.add(track);
+                    decoders.execute(track::decode);
+                }
+                if ((track = decoding.poll()) == null)
+                {
+                    break;
+                }
+                this.mix(track, chunk);
+            }
+            this.writeHeld(this.heldLength);
+            this.finish();
+            success = true;
+        }
+        finally
+        {
+            this.closed = true;
+            decoders.shutdownNow();
+            if (!success)
+            {
+                this.abort();
+            }
+        }
+        this.nanos = System.nanoTime() - start;
+        logger.info("Rendered {} songs, {} seconds of audio, to {} at {} times real time",
+                this.songs, String.format("%.0f", this.getDuration()), this.output,
+                String.format("%.1f", this.getSpeed()));
+    }
+
+    /**
+     * Obtains how much audio was rendered.
+     *
+     * @return The length of the output, in seconds.
+     */
+    public double getDuration()
+    {
+        return (double) this.frames / SAMPLE_RATE;
+    }
+
+    /**
+     * Obtains how many songs were rendered.
+     *
+     * @return The number of songs that made it into the output.
+     */
+    public int getSongs()
+    {
+        return this.songs;
+    }
+
+    /**
+     * Obtains how much faster than real time the last render ran.
+     *
+     * @return The length of audio rendered divided by the time it took.
+     */
+    public double getSpeed()
+    {
+        return this.getDuration() / Math.max(1, this.nanos) * TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Adds a song to the end of the mix.
+     *
+     * @param track - The song, which is already being decoded.
+     * @param chunk - Space to read the song into.
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    private void mix(Track track, byte[] chunk) throws IOException
+    {
+        int read, filled = 0, total = 0;
+        if (this.heldLength > 0)
+        {
+            while (filled < this.heldLength && (read = track.buffer
+                    .read(this.head, filled, this.heldLength - filled, () -> false)) >= 0)
+            {
+                filled += read;
+            }
+            this.crossfade(filled);
+            total = filled;
+        }
+        while ((read = track.buffer.read(chunk, 0, chunk.length, () -> false)) >= 0)
+        {
+            this.hold(chunk, 0, read);
+            total += read;
+        }
+        if (track.error != null)
+        {
+            logger.error("Could not decode {}", track.song, track.error);
+        }
+        if (total > 0)
+        {
+            this.songs++;
+        }
+    }
+
+    /**
+     * Fades the start of the next song, which has been read into the head
+     * buffer, in over the held end of the mix.
+     *
+     * @param length - How many bytes of the next song were read.
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    private void crossfade(int length) throws IOException
+    {
+        /*
+         * The fade is as long as the setting, unless either song is shorter.
+         */
+        int overlap = Math.min(this.heldLength, length), tailLength = this.heldLength;
+        int lead = tailLength - overlap, fadeFrames = overlap / FRAME_SIZE, index;
+        double progress, in, out;
+        int first = Math.min(tailLength, this.held.length - this.heldStart);
+        if (overlap == 0)
+        {
+            this.hold(this.head, 0, length);
+            return;
+        }
+        System.arraycopy(this.held, this.heldStart, this.tail, 0, first);
+        System.arraycopy(this.held, 0, this.tail, first, tailLength - first);
+        this.heldStart = 0;
+        this.heldLength = 0;
+        for (int frame = 0; frame < fadeFrames; frame++)
+        {
+            progress = (frame + 0.5) / fadeFrames;
+            in = this.curve.gain(progress);
+            out = this.curve.gain(1 - progress);
+            for (int i = frame * FRAME_SIZE; i < (frame + 1) * FRAME_SIZE; i += 2)
+            {
+                index = lead + i;
+                mixSample(this.head, i, (short) (this.tail[index] & 0xFF | this.tail[index + 1] << 8) * out
+                        + (short) (this.head[i] & 0xFF | this.head[i + 1] << 8) * in);
+            }
+        }
+        this.hold(this.tail, 0, lead);
+        this.hold(this.head, 0, length);
+    }
+
+    /**
+     * Writes a sample as signed 16-bit little-endian PCM, clipping it if it
+     * is out of range.
+     */
+    private static void mixSample(byte[] pcm, int index, double sample)
+    {
+        int value = (int) Math.round(Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample)));
+        pcm[index] = (byte) value;
+        pcm[index + 1] = (byte) (value >> 8);
+    }
+
+    /**
+     * Adds audio to the end of the mix, holding back as much as a crossfade
+     * needs and writing out whatever comes before that.
+     *
+     * @param src    - The audio.
+     * @param off    - Where the audio starts in the array.
+     * @param length - How many bytes to add.
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    private void hold(byte[] src, int off, int length) throws IOException
+    {
+        int overflow = this.heldLength + length - this.held.length, fromHeld, end, first;
+        if (overflow > 0)
+        {
+            fromHeld = Math.min(overflow, this.heldLength);
+            this.writeHeld(fromHeld);
+            overflow -= fromHeld;
+            this.write(src, off, overflow);
+            off += overflow;
+            length -= overflow;
+        }
+        if (length == 0)
+        {
+            return;
+        }
+        end = (this.heldStart + this.heldLength) % this.held.length;
+        first = Math.min(length, this.held.length - end);
+        System.arraycopy(src, off, this.held, end, first);
+        System.arraycopy(src, off + first, this.held, 0, length - first);
+        this.heldLength += length;
+    }
+
+    /**
+     * Writes out the oldest of the held audio.
+     *
+     * @param length - How many bytes to write.
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    private void writeHeld(int length) throws IOException
+    {
+        int first;
+        if (length == 0)
+        {
+            return;
+        }
+        first = Math.min(length, this.held.length - this.heldStart);
+        this.write(this.held, this.heldStart, first);
+        this.write(this.held, 0, length - first);
+        this.heldStart = (this.heldStart + length) % this.held.length;
+        this.heldLength -= length;
+    }
+
+    private void write(byte[] src, int off, int length) throws IOException
+    {
+        if (length == 0)
+        {
+            return;
+        }
+        if (this.wave != null)
+        {
+            this.wave.write(ByteBuffer.wrap(src, off, length));
+        }
+        else
+        {
+            this.encoderIn.write(src, off, length);
+        }
+        this.frames += length / FRAME_SIZE;
+    }
+
+    /**
+     * Creates the output file, or starts FFMPEG encoding it.
+     *
+     * @throws IOException - Thrown if the output could not be created.
+     */
+    private void open() throws IOException
+    {
+        if (this.output.getName().toLowerCase(Locale.ROOT).endsWith(".wav"))
+        {
+            this.wave = new WaveWriter(this.output, SAMPLE_RATE, CHANNELS, 16);
+            if (!this.wave.createWaveFile())
+            {
+                throw new IOException("Could not create " + this.output);
+            }
+        }
+        else
+        {
+            this.encoder = new ProcessBuilder("ffmpeg", "-hide_banner",
+                    "-loglevel", "error", "-y", "-f", "s16le", "-ar", Integer
+                    .toString(SAMPLE_RATE), "-ac", Integer.toString(CHANNELS),
+                    "-i", "pipe:0", this.output.getAbsolutePath())
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            this.encoderIn = new BufferedOutputStream(this.encoder
+                    .getOutputStream(), CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Finishes writing the output file.
+     *
+     * @throws IOException - Thrown if the output could not be written.
+     */
+    private void finish() throws IOException
+    {
+        if (this.wave != null)
+        {
+            this.wave.closeWaveFile();
+            return;
+        }
+        this.encoderIn.close();
+        try
+        {
+            if (this.encoder.waitFor() != 0)
+            {
+                throw new IOException("FFMPEG could not encode " + this.output);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding " + this.output, e);
+        }
+    }
+
+    /**
+     * Gives up on the output, deleting whatever was written.
+     */
+    private void abort()
+    {
+        if (this.encoder != null)
+        {
+            this.encoder.destroy();
+        }
+        else if (this.wave != null)
+        {
+            try
+            {
+                this.wave.closeWaveFile();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Could not close {}", this.output, e);
+            }
+        }
+        if (this.output.exists() && !this.output.delete())
+        {
+            logger.warn("Could not delete the unfinished {}", this.output);
+        }
+    }
+
+    /**
+     * Opens a song as audio in the mixing format. WAV files that are
+     * already in that format, or that the decode cache has a copy of, are
+     * read directly. Everything else is converted by FFMPEG.
+     *
+     * @param song - The song to open.
+     * @return The song's audio.
+     * @throws IOException - Thrown if the song could not be read.
+     */
+    private static AudioFile open(LocalSong song) throws IOException
+    {
+        DecodeCache cache = DecodeCache.getInstance();
+        File decoded = cache == null ? null : cache.get(song);
+        AudioFile file;
+        WaveReader header;
+        if (decoded == null && song.file.getName().toLowerCase(Locale.ROOT)
+                                        .endsWith(".wav"))
+        {
+            decoded = song.file;
+        }
+        if (decoded != null)
+        {
+            try
+            {
+                file = new AudioFile(decoded, 0);
+                header = file.getHeader();
+                if (header.getSampleRate() == SAMPLE_RATE && header
+                        .getChannels() == CHANNELS && header.getPcmFormat() == 16
+                        && header.getAudioFormat() == WaveReader.FORMAT_PCM)
+                {
+                    return file;
+                }
+                file.close();
+            }
+            catch (IOException e)
+            {
+                logger.debug("Could not read {} directly", decoded, e);
+            }
+        }
+        return new AudioFile(LocalPlayer.convertFile(song.file, 0, SAMPLE_RATE, CHANNELS));
+    }
+
+    /**
+     * A song being decoded ahead of the mix.
+     */
+    private class Track
+    {
+        private final LocalSong song;
+        private final PcmRingBuffer buffer = new PcmRingBuffer(BUFFER_SECONDS
+                * SAMPLE_RATE * FRAME_SIZE, FRAME_SIZE);
+        private volatile IOException error;
+
+        private Track(LocalSong song)
+        {
+            this.song = song;
+        }
+
+        /**
+         * Decodes the song into its buffer, running it through the effects
+         * on the way, until the song ends or the render stops.
+         */
+        private void decode()
+        {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            DspChain chain;
+            int read, filled = 0, whole;
+            try (AudioFile file = open(this.song))
+            {
+                chain = DspChain.fromSettings(this.song.file);
+                chain.configure(SAMPLE_RATE, CHANNELS, chunk.length);
+                while (!closed && (read = file.read(chunk, filled, chunk.length - filled)) >= 0)
+                {
+                    filled += read;
+                    whole = filled - filled % FRAME_SIZE;
+                    if (!chain.isEmpty())
+                    {
+                        chain.process(chunk, 0, whole);
+                    }
+                    if (!this.buffer.write(chunk, 0, whole, () -> closed))
+                    {
+                        break;
+                    }
+                    filled -= whole;
+                    System.arraycopy(chunk, whole, chunk, 0, filled);
+                }
+            }
+            catch (IOException e)
+            {
+                this.error = e;
+            }
+            finally
+            {
+                this.buffer.finish();
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Feeds a {@link PcmSink} on its own thread, reading what the player has
+ * played through a cursor of its own, and moving on to the next stream once
+ * one ends. A sink that is too slow only falls behind on its own cursor, and
+ * is told about it in the log.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+final class SinkPump
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(SinkPump.class);
+
+    /**
+     * How many bytes are passed to the sink at a time.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    private final PcmSink sink;
+    private final Consumer<SinkPump> onClose;
+    private final Thread thread;
+    /**
+     * The stream to follow once the current one ends.
+     */
+    private final AtomicReference<Source> next = new AtomicReference<>();
+    private volatile boolean closed;
+
+    /**
+     * Starts feeding a sink.
+     *
+     * @param sink    - The sink to feed.
+     * @param onClose - Called once the sink has been closed, whether because
+     *                the pump was closed or because the sink failed.
+     */
+    SinkPump(PcmSink sink, Consumer<SinkPump> onClose)
+    {
+        this.sink = sink;
+        this.onClose = onClose;
+        this.thread = new Thread(this::run, "Sink: " + sink);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Obtains the sink this feeds.
+     *
+     * @return The sink.
+     */
+    PcmSink getSink()
+    {
+        return this.sink;
+    }
+
+    /**
+     * Follows a new stream once the current one has ended or been closed.
+     *
+     * @param buffer - The buffer the stream is played from.
+     * @param format - The format of the audio in the buffer.
+     */
+    void follow(PcmFanOut buffer, AudioFormat format)
+    {
+        Source skipped = this.next.getAndSet(new Source(buffer.addCursor(false), format));
+        if (skipped != null)
+        {
+            skipped.cursor.remove();
+        }
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * Stops feeding the sink, and closes it.
+     */
+    void close()
+    {
+        this.closed = true;
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * Waits for the sink to be closed after the pump is.
+     *
+     * @param millis - The longest to wait, in milliseconds.
+     */
+    void join(long millis)
+    {
+        try
+        {
+            this.thread.join(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run()
+    {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        Source source = null;
+        AudioFormat opened = null;
+        long dropped = 0;
+        boolean lagging = false;
+        int read;
+        try
+        {
+            while (!this.closed)
+            {
+                if (source == null)
+                {
+                    source = this.next.getAndSet(null);
+                    if (source == null)
+                    {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    if (opened == null || !opened.matches(source.format))
+                    {
+                        this.sink.open(source.format);
+                        opened = source.format;
+                    }
+                    dropped = 0;
+                }
+                read = source.cursor.read(chunk, 0, chunk.length, () -> this.closed);
+                if (read < 0)
+                {
+                    source.cursor.remove();
+                    source = null;
+                    continue;
+                }
+                if (source.cursor.isLagging() != lagging)
+                {
+                    lagging = !lagging;
+                    if (lagging)
+                    {
+                        logger.warn("{} is falling behind playback", this.sink);
+                    }
+                }
+                if (source.cursor.getDropped() != dropped)
+                {
+                    logger.warn("{} could not keep up, so {} ms of audio were skipped", this.sink,
+                            (long) ((source.cursor.getDropped() - dropped) * 1000 / (source.format
+                                    .getFrameRate() * source.format.getFrameSize())));
+                    dropped = source.cursor.getDropped();
+                }
+                if (read > 0)
+                {
+                    this.sink.write(chunk, 0, read);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Stopped sending audio to {}", this.sink, e);
+        }
+        finally
+        {
+            if (source != null)
+            {
+                source.cursor.remove();
+            }
+            this.sink.close();
+            this.onClose.accept(this);
+        }
+    }
+
+    /**
+     * A stream to read from.
+     */
+    private static final class Source
+    {
+        private final PcmFanOut.Cursor cursor;
+        private final AudioFormat format;
+
+        private Source(PcmFanOut.Cursor cursor, AudioFormat format)
+        {
+            this.cursor = cursor;
+            this.format = format;
+        }
+    }
+}
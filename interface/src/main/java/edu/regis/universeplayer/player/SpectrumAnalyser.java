@@ -0,0 +1,435 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Works out how loud each range of frequencies is in the audio being played,
+ * for the visualiser. The player copies what it plays in with
+ * {@link #write(byte[], int, int)}, and a thread of the analyser's own runs
+ * a windowed FFT over the latest audio a set number of times a second. The
+ * result is published as a snapshot that any thread can copy out with
+ * {@link #read(float[])} without taking a lock or holding up the analyser.
+ * Nothing is created after the analyser is constructed.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public final class SpectrumAnalyser
+{
+    /**
+     * The number of samples in each FFT.
+     */
+    private static final int SIZE = 2048;
+    private static final int HALF = SIZE / 2;
+    /**
+     * The quietest level shown, in decibels below full scale.
+     */
+    private static final float FLOOR = -70;
+    /**
+     * The lowest frequency shown, in hertz.
+     */
+    private static final float LOWEST = 40;
+    /**
+     * How much of the full height a band falls each second once the sound
+     * in it stops.
+     */
+    private static final float FALL = 1.5F;
+
+    private final int bands;
+    private final long interval;
+    private final Thread thread;
+
+    /*
+     * Written by the player.
+     */
+    /**
+     * The latest audio, mixed down to one channel, as a ring.
+     */
+    private final float[] ring = new float[SIZE];
+    /**
+     * The total number of samples ever written to the ring.
+     */
+    private final AtomicLong written = new AtomicLong();
+    private volatile float sampleRate = 44100;
+    private volatile int channels = 2;
+    private volatile boolean idle;
+
+    /*
+     * Only used by the analyser thread.
+     */
+    private final float[] window = new float[SIZE];
+    private final float[] re = new float[HALF];
+    private final float[] im = new float[HALF];
+    private final float[] cos = new float[HALF];
+    private final float[] sin = new float[HALF];
+    private final int[] reversed = new int[HALF];
+    private final float[] levels;
+    /**
+     * The first FFT bin of each band, with one extra entry for the end of
+     * the last band.
+     */
+    private final int[] edges;
+    private float edgeRate;
+    private long analysed;
+    /**
+     * How many FFTs have been run.
+     */
+    private volatile long analyses;
+    private volatile boolean closed;
+
+    /*
+     * The published snapshot.
+     */
+    /**
+     * Odd while the snapshot is being written, and changed every time it is
+     * published.
+     */
+    private final AtomicLong version = new AtomicLong();
+    private final float[] snapshot;
+    private float snapshotLevel;
+
+    /**
+     * Creates an analyser and starts its thread.
+     *
+     * @param bands     - How many ranges of frequencies to split the audio
+     *                  into.
+     * @param frameRate - How many times a second to analyse the audio.
+     */
+    public SpectrumAnalyser(int bands, int frameRate)
+    {
+        this.bands = bands;
+        this.interval = TimeUnit.SECONDS.toNanos(1) / frameRate;
+        this.levels = new float[bands];
+        this.snapshot = new float[bands];
+        this.edges = new int[bands + 1];
+        for (int i = 0; i < SIZE; i++)
+        {
+            this.window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (SIZE - 1)));
+        }
+        for (int i = 0; i < HALF; i++)
+        {
+            /*
+             * The twiddle factors of the full-size FFT. Every other one is
+             * also a twiddle factor of the half-size FFT.
+             */
+            this.cos[i] = (float) Math.cos(Math.PI * i / HALF);
+            this.sin[i] = (float) -Math.sin(Math.PI * i / HALF);
+            this.reversed[i] = Integer.reverse(i) >>> Integer
+                    .numberOfLeadingZeros(HALF - 1);
+        }
+        this.thread = new Thread(this::run, "Spectrum Analyser");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Sets the format of the audio that is about to be written.
+     *
+     * @param sampleRate - The number of frames per second.
+     * @param channels   - The number of samples in each frame.
+     */
+    public void configure(float sampleRate, int channels)
+    {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+    }
+
+    /**
+     * Adds audio that is being played. Only one thread may write to the
+     * analyser.
+     *
+     * @param pcm    - Signed 16-bit little-endian PCM.
+     * @param off    - Where the audio starts in the array.
+     * @param length - How many bytes to add, which must be a whole number of
+     *               frames.
+     */
+    public void write(byte[] pcm, int off, int length)
+    {
+        int channels = this.channels, frameSize = channels * 2;
+        long head = this.written.get();
+        float sum;
+        for (int end = off + length; off < end; off += frameSize)
+        {
+            sum = 0;
+            for (int i = off; i < off + frameSize; i += 2)
+            {
+                sum += (short) (pcm[i] & 0xFF | pcm[i + 1] << 8);
+            }
+            this.ring[(int) (head++ % SIZE)] = sum / (channels * 32768F);
+        }
+        this.written.set(head);
+        if (this.idle)
+        {
+            LockSupport.unpark(this.thread);
+        }
+    }
+
+    /**
+     * Copies out the latest levels.
+     *
+     * @param bands - The array to copy the level of each band into, from 0
+     *              for silent to 1 for full scale. It should have room for
+     *              every band.
+     * @return The overall level, from 0 to 1.
+     */
+    public float read(float[] bands)
+    {
+        long before;
+        float level;
+        while (true)
+        {
+            before = this.version.get();
+            if ((before & 1) == 0)
+            {
+                System.arraycopy(this.snapshot, 0, bands, 0, Math
+                        .min(bands.length, this.bands));
+                level = this.snapshotLevel;
+                /*
+                 * Make sure the copy is finished before checking that the
+                 * snapshot did not change during it.
+                 */
+                VarHandle.loadLoadFence();
+                if (this.version.get() == before)
+                {
+                    return level;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Obtains a number that changes every time new levels are published,
+     * so that readers can skip snapshots they have already seen.
+     *
+     * @return The snapshot version.
+     */
+    public long getVersion()
+    {
+        return this.version.get();
+    }
+
+    /**
+     * Obtains how many times the audio has been analysed. Each analysis is a
+     * single FFT of the same size, so this is a measure of how much work the
+     * analyser has done.
+     *
+     * @return The number of FFTs run so far.
+     */
+    public long getAnalyses()
+    {
+        return this.analyses;
+    }
+
+    /**
+     * Obtains how many ranges of frequencies the audio is split into.
+     *
+     * @return The number of bands.
+     */
+    public int getBands()
+    {
+        return this.bands;
+    }
+
+    /**
+     * Stops the analyser thread.
+     */
+    public void close()
+    {
+        this.closed = true;
+        LockSupport.unpark(this.thread);
+    }
+
+    private void run()
+    {
+        long next = System.nanoTime(), head;
+        boolean silent;
+        while (!this.closed)
+        {
+            LockSupport.parkNanos(this, next - System.nanoTime());
+            next = Math.max(next + this.interval, System.nanoTime());
+            head = this.written.get();
+            if (head != this.analysed)
+            {
+                this.analysed = head;
+                this.publish(this.analyse(head));
+            }
+            else
+            {
+                /*
+                 * Let the bars fall once the audio stops, then sleep until
+                 * more arrives.
+                 */
+                silent = true;
+                for (int i = 0; i < this.bands; i++)
+                {
+                    this.levels[i] = Math.max(0, this.levels[i] - FALL * this.interval / 1e9F);
+                    silent &= this.levels[i] == 0;
+                }
+                this.publish(0);
+                if (silent)
+                {
+                    this.idle = true;
+                    if (this.written.get() == this.analysed)
+                    {
+                        LockSupport.park(this);
+                    }
+                    this.idle = false;
+                    next = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs an FFT over the latest audio and updates the band levels.
+     *
+     * @param head - The number of samples written so far.
+     * @return The overall level.
+     */
+    private float analyse(long head)
+    {
+        int start = (int) (head % SIZE);
+        float a, b, peak = 0, level, fall = FALL * this.interval / 1e9F;
+        float zr, zi, cr, ci, er, ei, or, oi, xr, xi, magnitude;
+        this.updateEdges();
+        /*
+         * Pack the real samples into a complex array of half the size, even
+         * samples as the real parts and odd ones as the imaginary parts, so
+         * that a half-size complex FFT does the work of a full-size real one.
+         * The writer may be partway through overwriting the oldest samples,
+         * which only costs a little accuracy.
+         */
+        for (int i = 0; i < HALF; i++)
+        {
+            a = this.ring[(start + 2 * i) % SIZE];
+            b = this.ring[(start + 2 * i + 1) % SIZE];
+            peak = Math.max(peak, Math.max(Math.abs(a), Math.abs(b)));
+            this.re[this.reversed[i]] = a * this.window[2 * i];
+            this.im[this.reversed[i]] = b * this.window[2 * i + 1];
+        }
+        this.fft();
+        this.analyses++;
+        for (int band = 0; band < this.bands; band++)
+        {
+            magnitude = 0;
+            for (int k = this.edges[band]; k < this.edges[band + 1]; k++)
+            {
+                /*
+                 * Separate the spectra of the even and odd samples, then
+                 * combine them into bin k of the full-size FFT.
+                 */
+                zr = this.re[k];
+                zi = this.im[k];
+                cr = this.re[(HALF - k) % HALF];
+                ci = -this.im[(HALF - k) % HALF];
+                er = (zr + cr) / 2;
+                ei = (zi + ci) / 2;
+                or = (zi - ci) / 2;
+                oi = -(zr - cr) / 2;
+                xr = er + this.cos[k] * or - this.sin[k] * oi;
+                xi = ei + this.cos[k] * oi + this.sin[k] * or;
+                magnitude = Math.max(magnitude, xr * xr + xi * xi);
+            }
+            /*
+             * A full-scale sine wave comes out of a Hann window at a quarter
+             * of the FFT size.
+             */
+            level = toLevel((float) Math.sqrt(magnitude) * 4 / SIZE);
+            this.levels[band] = Math.max(level, this.levels[band] - fall);
+        }
+        return toLevel(peak);
+    }
+
+    /**
+     * Converts an amplitude into the height of a bar.
+     *
+     * @param amplitude - The amplitude, where 1 is full scale.
+     * @return The height, from 0 to 1, on a decibel scale.
+     */
+    private static float toLevel(float amplitude)
+    {
+        return Math.max(0, Math.min(1, (20 * (float) Math.log10(amplitude) - FLOOR) / -FLOOR));
+    }
+
+    /**
+     * Works out which FFT bins fall in each band, spacing the bands evenly
+     * on a logarithmic scale between the lowest frequency shown and the
+     * highest one in the audio.
+     */
+    private void updateEdges()
+    {
+        float rate = this.sampleRate, highest = Math.min(16000, rate / 2);
+        if (rate == this.edgeRate)
+        {
+            return;
+        }
+        this.edgeRate = rate;
+        for (int i = 0; i <= this.bands; i++)
+        {
+            this.edges[i] = Math.min(HALF - 1, Math.max(1, Math.round((float) (LOWEST * Math
+                    .pow(highest / LOWEST, (double) i / this.bands)) * SIZE / rate)));
+            /*
+             * Give every band at least one bin of its own.
+             */
+            if (i > 0 && this.edges[i] <= this.edges[i - 1])
+            {
+                this.edges[i] = Math.min(HALF, this.edges[i - 1] + 1);
+            }
+        }
+    }
+
+    /**
+     * An iterative radix-2 FFT over the half-size complex array, which has
+     * already been put in bit-reversed order.
+     */
+    private void fft()
+    {
+        int step, even, odd;
+        float wr, wi, tr, ti;
+        for (int size = 2; size <= HALF; size <<= 1)
+        {
+            step = HALF / size;
+            for (int start = 0; start < HALF; start += size)
+            {
+                for (int j = 0; j < size / 2; j++)
+                {
+                    wr = this.cos[j * step * 2];
+                    wi = this.sin[j * step * 2];
+                    even = start + j;
+                    odd = even + size / 2;
+                    tr = wr * this.re[odd] - wi * this.im[odd];
+                    ti = wr * this.im[odd] + wi * this.re[odd];
+                    this.re[odd] = this.re[even] - tr;
+                    this.im[odd] = this.im[even] - ti;
+                    this.re[even] += tr;
+                    this.im[even] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the band levels as the new snapshot.
+     *
+     * @param level - The overall level.
+     */
+    private void publish(float level)
+    {
+        this.version.incrementAndGet();
+        /*
+         * Readers must see the version change before any of the new levels.
+         */
+        VarHandle.storeStoreFence();
+        System.arraycopy(this.levels, 0, this.snapshot, 0, this.bands);
+        this.snapshotLevel = level;
+        this.version.incrementAndGet();
+    }
+}
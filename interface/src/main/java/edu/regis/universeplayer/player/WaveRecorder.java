@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import com.intervigil.wave.WaveWriter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.AudioFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records everything the player plays to a single WAV file. The file is
+ * started over each time the player starts, and finished once the recorder
+ * is closed.
+ *
+ * @author William Hubbard
+ * @version 0.1
+ */
+public class WaveRecorder implements PcmSink
+{
+    private static final Logger logger = LoggerFactory
+            .getLogger(WaveRecorder.class);
+
+    private final File file;
+    private WaveWriter writer;
+    private AudioFormat format;
+
+    /**
+     * Creates a recorder.
+     *
+     * @param file - The file to record to.
+     */
+    public WaveRecorder(File file)
+    {
+        this.file = file;
+    }
+
+    @Override
+    public void open(AudioFormat format) throws IOException
+    {
+        if (this.writer != null)
+        {
+            throw new IOException("Cannot record " + format + " to " + this
+                    .file + ", which holds " + this.format);
+        }
+        this.format = format;
+        this.writer = new WaveWriter(this.file, (int) format
+                .getSampleRate(), format.getChannels(), format
+                .getSampleSizeInBits());
+        if (!this.writer.createWaveFile())
+        {
+            throw new IOException("Could not create " + this.file);
+        }
+    }
+
+    @Override
+    public void write(byte[] pcm, int off, int length) throws IOException
+    {
+        this.writer.write(ByteBuffer.wrap(pcm, off, length));
+    }
+
+    @Override
+    public void close()
+    {
+        if (this.writer == null)
+        {
+            return;
+        }
+        try
+        {
+            this.writer.closeWaveFile();
+            logger.info("Recorded {} seconds to {}", this.writer
+                    .getBytesWritten() / (long) (this.format
+                    .getFrameRate() * this.format.getFrameSize()), this.file);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not finish {}", this.file, e);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "recording to " + this.file;
+    }
+}
@@ -70,16 +70,18 @@ public class BrowserTest
     public void testDataQuery() throws IOException
     {
         logger.info("Retrieving song data");
-        InternetSong song = new InternetSong();
         URL url = new URL("https://www.youtube.com/watch?v=cvX4B7GjU6s");
-        song.location = url;
-        song.title = "First Wave";
-        song.artists = new String[]{"Trocadero"};
-        song.duration = 224541;
-        song.album = new Album();
-        song.album.name = "Ghosts That Linger";
-        song.album.year = 2009;
-        song.album.artists = new String[]{"Rooster Teeth Records / Trocadero"};
+        InternetSong song = new InternetSong.Builder()
+                .setLocation(url)
+                .setTitle("First Wave")
+                .setArtists("Trocadero")
+                .setDuration(224541)
+                .setAlbum(new Album.Builder()
+                        .setName("Ghosts That Linger")
+                        .setYear(2009)
+                        .setArtists("Rooster Teeth Records / Trocadero")
+                        .build())
+                .build();
 
         assertEquals(song,
                 BrowserPlayer.getInstance()
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.regis.universeplayer.player.CommandActor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sends bursts of commands to a player actor, the way someone hammering the
+ * next button would, and checks that only the commands that still matter
+ * run.
+ */
+public class CommandActorTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(CommandActorTest.class);
+
+    /**
+     * How long each fake song takes to load, in milliseconds.
+     */
+    private static final long LOAD_TIME = 20;
+    private static final int CLICKS = 100;
+
+    private static Void load(AtomicReference<Integer> loaded, AtomicInteger loads, int song) throws InterruptedException
+    {
+        Thread.sleep(LOAD_TIME);
+        loaded.set(song);
+        loads.incrementAndGet();
+        return null;
+    }
+
+    @Test
+    public void testClickStorm() throws Exception
+    {
+        CommandActor actor = new CommandActor("Test");
+        AtomicReference<Integer> loaded = new AtomicReference<>();
+        AtomicInteger loads = new AtomicInteger();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        long last;
+
+        for (int i = 0; i < CLICKS; i++)
+        {
+            int song = i;
+            long sent = System.nanoTime();
+            CompletableFuture<Void> future = actor.submit(CommandActor.Kind.LOAD, () -> load(loaded, loads, song));
+            future.whenComplete((result, e) ->
+            {
+                if (e == null)
+                {
+                    latencies.add(System.nanoTime() - sent);
+                }
+            });
+            futures.add(future);
+            actor.submit(CommandActor.Kind.SEEK, () -> null);
+            Thread.sleep(1);
+        }
+        CompletableFuture.allOf(futures.stream().map(f -> f.handle((r, e) -> r))
+                                       .toArray(CompletableFuture[]::new))
+                         .get(10, TimeUnit.SECONDS);
+        last = TimeUnit.NANOSECONDS.toMillis(latencies.get(latencies.size() - 1));
+
+        logger.info("{} loads sent, {} run; {}; last load took {} ms, versus {} ms running every load", CLICKS, loads
+                .get(), actor, last, CLICKS * LOAD_TIME);
+        assertEquals("The last song was not the one loaded", Integer.valueOf(CLICKS - 1), loaded.get());
+        assertFalse("The last load was dropped", futures.get(CLICKS - 1).isCancelled());
+        assertTrue("Every load ran", loads.get() < CLICKS / 2);
+        assertEquals(loads.get(), futures.stream().filter(f -> !f.isCancelled()).count());
+        assertTrue("The last load took " + last + " ms", last < LOAD_TIME * 5);
+        actor.shutdown();
+    }
+
+    @Test
+    public void testOrdering() throws Exception
+    {
+        CommandActor actor = new CommandActor("Test");
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<Void> firstSeek;
+        CompletableFuture<String> query;
+
+        actor.submit(CommandActor.Kind.LOAD, () ->
+        {
+            Thread.sleep(LOAD_TIME);
+            ran.add("load");
+            return null;
+        });
+        firstSeek = actor.submit(CommandActor.Kind.SEEK, () ->
+        {
+            ran.add("seek 1");
+            return null;
+        });
+        query = actor.submit(CommandActor.Kind.QUERY, () ->
+        {
+            ran.add("query");
+            return "status";
+        });
+        actor.submit(CommandActor.Kind.SEEK, () ->
+        {
+            ran.add("seek 2");
+            return null;
+        });
+        actor.submit(CommandActor.Kind.PLAYBACK, () ->
+        {
+            ran.add("play");
+            return null;
+        }).get(10, TimeUnit.SECONDS);
+
+        assertTrue(firstSeek.isCancelled());
+        assertEquals("status", query.get());
+        assertEquals(List.of("load", "query", "seek 2", "play"), ran);
+        actor.shutdown();
+    }
+
+    @Test
+    public void testFailure() throws Exception
+    {
+        CommandActor actor = new CommandActor("Test");
+        CompletableFuture<Void> failed = actor.submit(CommandActor.Kind.LOAD, () ->
+        {
+            throw new IllegalStateException("No song");
+        });
+        CompletableFuture<String> after = actor.submit(CommandActor.Kind.QUERY, () -> "still running");
+
+        assertEquals("still running", after.get(10, TimeUnit.SECONDS));
+        assertTrue(failed.isCompletedExceptionally());
+        assertFalse(failed.isCancelled());
+        actor.shutdown();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Random;
+
+import edu.regis.universeplayer.dsp.DspChain;
+import edu.regis.universeplayer.dsp.DspStage;
+import edu.regis.universeplayer.dsp.Equalizer;
+import edu.regis.universeplayer.dsp.Gain;
+import edu.regis.universeplayer.dsp.Limiter;
+import edu.regis.universeplayer.dsp.SampleKernels;
+import edu.regis.universeplayer.dsp.TimeStretch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the DSP stages, compares the vector kernels against the plain
+ * ones, and measures how many samples each stage gets through per second.
+ * The vector kernels are only tested if the tests were started with the
+ * vector module.
+ */
+public class DspTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(DspTest.class);
+    private static final int RATE = 44100;
+    private static final int CHANNELS = 2;
+    /**
+     * The size of a block, as the Java Sound player reads them.
+     */
+    private static final int BLOCK = 8192;
+
+    /**
+     * Creates a stereo sine wave.
+     *
+     * @param frequency - The frequency of the wave, in hertz.
+     * @param amplitude - The peak of the wave.
+     * @param frames    - How many frames to create.
+     * @return The interleaved samples.
+     */
+    private static float[] sine(float frequency, float amplitude, int frames)
+    {
+        float[] samples = new float[frames * CHANNELS];
+        for (int i = 0; i < samples.length; i++)
+        {
+            samples[i] = (float) Math.sin(2 * Math.PI * frequency * (i / CHANNELS) / RATE) * amplitude;
+        }
+        return samples;
+    }
+
+    private static float peak(float[] samples, int from)
+    {
+        float peak = 0;
+        for (int i = from; i < samples.length; i++)
+        {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    @Test
+    public void testKernels()
+    {
+        SampleKernels scalar = SampleKernels.getScalar();
+        SampleKernels vector = SampleKernels.getVector();
+        Random random = new Random(5);
+        float[] expected = new float[1003], actual;
+        for (int i = 0; i < expected.length; i++)
+        {
+            expected[i] = random.nextFloat() * 4 - 2;
+        }
+        actual = expected.clone();
+        if (vector == null)
+        {
+            logger.warn("The vector module is not available, so only the plain kernels were tested");
+            vector = scalar;
+        }
+
+        assertEquals(scalar.peak(expected, expected.length), vector.peak(actual, actual.length), 0);
+        scalar.scale(expected, expected.length, 0.7F);
+        vector.scale(actual, actual.length, 0.7F);
+        assertArrayEquals(expected, actual, 1e-6F);
+        scalar.ramp(expected, expected.length, 1, 0.25F);
+        vector.ramp(actual, actual.length, 1, 0.25F);
+        assertArrayEquals(expected, actual, 1e-5F);
+        scalar.clip(expected, expected.length, 0.5F);
+        vector.clip(actual, actual.length, 0.5F);
+        assertArrayEquals(expected, actual, 1e-5F);
+        assertEquals(0.5F, peak(actual, 0), 0);
+    }
+
+    @Test
+    public void testEqualizer()
+    {
+        List<Equalizer.Band> bands = Equalizer.parse("peak:1000:6:1, lowshelf:100:-6:0.7");
+        Equalizer equalizer = new Equalizer(bands);
+        float[] boosted = sine(1000, 0.25F, RATE / 2);
+        float[] cut = sine(50, 0.25F, RATE / 2);
+        float[] untouched = sine(10000, 0.25F, RATE / 2);
+
+        assertEquals(2, bands.size());
+        assertEquals(Equalizer.Type.LOWSHELF, bands.get(1).type);
+        for (float[] signal : new float[][]{boosted, cut, untouched})
+        {
+            equalizer.configure(RATE, CHANNELS);
+            equalizer.process(signal, signal.length);
+        }
+        /*
+         * Skip the first part, while the filters settle.
+         */
+        assertEquals(0.5, peak(boosted, RATE / 2), 0.02);
+        assertEquals(0.125, peak(cut, RATE / 2), 0.02);
+        assertEquals(0.25, peak(untouched, RATE / 2), 0.02);
+    }
+
+    @Test
+    public void testLimiter()
+    {
+        DspChain chain = new DspChain(SampleKernels.get())
+                .add(new Gain(SampleKernels.get(), 12))
+                .add(new Limiter(SampleKernels.get(), -1, 0.5F));
+        float[] signal = sine(440, 0.5F, RATE);
+        byte[] pcm = new byte[signal.length * 2];
+        float ceiling = (float) Math.pow(10, -1 / 20.0);
+        SampleKernels.getScalar().toPcm16(signal, pcm, 0, signal.length);
+
+        chain.configure(RATE, CHANNELS, BLOCK);
+        chain.process(pcm, 0, pcm.length);
+        SampleKernels.getScalar().fromPcm16(pcm, 0, signal, signal.length);
+        assertTrue("The limiter let through " + peak(signal, 0), peak(signal, 0) <= ceiling + 1e-4);
+        /*
+         * The song should still be about as loud as the limiter allows, not
+         * turned all the way down.
+         */
+        assertTrue(peak(signal, signal.length / 2) > ceiling * 0.9);
+    }
+
+    @Test
+    public void testTimeStretch()
+    {
+        final int RATE = 48000;
+        final int SECONDS = 20;
+        final float SPEED = 1.5F;
+        TimeStretch stretch = new TimeStretch(SampleKernels.get(), SPEED);
+        float[] signal = new float[RATE * SECONDS * CHANNELS];
+        byte[] pcm = new byte[signal.length * 2];
+        byte[] out = new byte[BLOCK];
+        short[] left = new short[signal.length];
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        int frames = 0, read, crossings = 0, from, to;
+        long allocated, start;
+        for (int i = 0; i < signal.length; i++)
+        {
+            signal[i] = (float) Math.sin(2 * Math.PI * 1000 * (i / CHANNELS) / RATE) * 0.5F;
+        }
+        SampleKernels.getScalar().toPcm16(signal, pcm, 0, signal.length);
+
+        stretch.configure(RATE, CHANNELS, BLOCK);
+        allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        start = System.nanoTime();
+        for (int off = 0; off <= pcm.length; off += BLOCK)
+        {
+            if (off < pcm.length)
+            {
+                stretch.write(pcm, off, Math.min(BLOCK, pcm.length - off));
+            }
+            else
+            {
+                stretch.finish();
+            }
+            while ((read = stretch.read(out, 0, out.length)) > 0)
+            {
+                for (int i = 0; i < read; i += 2 * CHANNELS)
+                {
+                    left[frames++] = (short) (out[i] & 0xFF | out[i + 1] << 8);
+                }
+            }
+        }
+        start = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+        logger.info("Time stretch ran at {} times real time for {} kHz stereo", String
+                .format("%.0f", SECONDS / (start / 1e9)), RATE / 1000);
+
+        assertEquals("The output should be shorter by the speed", RATE * SECONDS / SPEED, frames, RATE * 0.05);
+        assertTrue("The time stretch allocated " + allocated + " bytes", allocated < 1024);
+        assertTrue("The time stretch cannot keep up", start < SECONDS * 1e9 / 5);
+        /*
+         * Count the zero crossings of a stretch in the middle to check that
+         * the pitch did not change.
+         */
+        from = frames / 4;
+        to = from + RATE;
+        for (int i = from + 1; i < to; i++)
+        {
+            if ((left[i - 1] < 0) != (left[i] < 0))
+            {
+                crossings++;
+            }
+        }
+        assertEquals("A 1 kHz tone should stay at 1 kHz", 2000, crossings, 40);
+    }
+
+    /**
+     * Runs a stage over the same block repeatedly.
+     *
+     * @return The samples processed per second.
+     */
+    private static double measure(DspStage stage, float[] source, float[] block, int rounds)
+    {
+        long start;
+        stage.configure(RATE, CHANNELS);
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++)
+        {
+            System.arraycopy(source, 0, block, 0, block.length);
+            stage.process(block, block.length);
+        }
+        return (double) rounds * block.length / ((System.nanoTime() - start) / 1e9);
+    }
+
+    @Test
+    public void testThroughput()
+    {
+        final int ROUNDS = 5000;
+        float[] source = sine(997, 0.9F, BLOCK / CHANNELS / 2);
+        float[] block = new float[source.length];
+        byte[] pcm = new byte[BLOCK];
+        StringBuilder report = new StringBuilder("DSP throughput, in millions of samples per second:");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long allocated, start;
+
+        for (SampleKernels kernels : new SampleKernels[]{SampleKernels.getScalar(), SampleKernels.getVector()})
+        {
+            if (kernels == null)
+            {
+                continue;
+            }
+            DspStage[] stages = {
+                    new Gain(kernels, -3),
+                    new Equalizer(Equalizer.parse("lowshelf:100:3:0.7, peak:1000:-2:1.4, highshelf:8000:2:0.7")),
+                    new Limiter(kernels, -1, 0.5F)
+            };
+            DspChain chain = new DspChain(kernels);
+            report.append("\n  ").append(kernels).append(":");
+            for (DspStage stage : stages)
+            {
+                /*
+                 * Run once to let the JIT compile the loops, then again to
+                 * measure them.
+                 */
+                measure(stage, source, block, ROUNDS);
+                report.append(String.format(" %s %.0f,", stage.getClass().getSimpleName(),
+                        measure(stage, source, block, ROUNDS) / 1e6));
+                chain.add(stage);
+            }
+
+            chain.configure(RATE, CHANNELS, pcm.length);
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                chain.process(pcm, 0, pcm.length);
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++)
+            {
+                kernels.toPcm16(source, pcm, 0, source.length);
+                chain.process(pcm, 0, pcm.length);
+            }
+            report.append(String.format(" whole chain on 16-bit PCM %.0f",
+                    (double) ROUNDS * source.length / ((System.nanoTime() - start) / 1e9) / 1e6));
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocated;
+            assertTrue(kernels + " kernels allocated " + allocated / ROUNDS + " bytes per block",
+                    allocated / ROUNDS < 64);
+        }
+        logger.info(report.toString());
+    }
+}
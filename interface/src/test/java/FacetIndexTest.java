@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.regis.universeplayer.data.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Filters and sorts a small collection, filtering by several facets at
+ * once.
+ */
+public class FacetIndexTest
+{
+    private final Album rock = new Album.Builder().setId(1).setName("Rock Album").setGenres("Rock")
+                                                  .setYear(2000).build();
+    private final Album jazz = new Album.Builder().setId(2).setName("Jazz Album").setGenres("Jazz")
+                                                  .setYear(2001).build();
+    private final Album mixed = new Album.Builder().setId(3).setName("Mixed Album")
+                                                   .setGenres("Rock", "Jazz").setYear(2001).build();
+    private TestSongProvider provider;
+    private FacetIndex index;
+    private Song first, second, third, fourth;
+
+    private static Song createSong(int id, Album album, String... artists)
+    {
+        return new LocalSong.Builder().setFile(new File("song" + id + ".mp3")).setId(id)
+                                      .setTitle("Song " + id).setAlbum(album).setArtists(artists)
+                                      .build();
+    }
+
+    @Before
+    public void setUp()
+    {
+        this.first = createSong(1, this.rock, "X");
+        this.second = createSong(2, this.rock, "Y");
+        this.third = createSong(3, this.jazz, "X");
+        this.fourth = createSong(4, this.mixed, "Z", "X");
+        this.provider = new TestSongProvider(List.of(this.first, this.second, this.third, this.fourth));
+        this.index = new FacetIndex(this.provider);
+    }
+
+    private Set<Song> select(Map<CollectionType, ? extends Set<?>> filter)
+    {
+        return new HashSet<>(this.index.getSongs(this.index.select(filter)));
+    }
+
+    @Test
+    public void testSelect()
+    {
+        assertEquals(Set.of(this.first, this.second, this.third, this.fourth), this.select(Map.of()));
+        assertEquals("Values of the same facet should be combined", Set.of(this.first, this.second,
+                this.third), this.select(Map.of(CollectionType.album, Set.of(this.rock, this.jazz))));
+        assertEquals("Facets should be intersected", Set.of(this.first, this.fourth), this.select(Map
+                .of(CollectionType.genre, Set.of("Rock"), CollectionType.artist, Set.of("X"))));
+        assertEquals(Set.of(this.third, this.fourth), this.select(Map.of(CollectionType.genre, Set
+                .of("Jazz"), CollectionType.artist, Set.of("X", "Z"), CollectionType.year, Set.of(2001))));
+        assertEquals(Set.of(), this.select(Map.of(CollectionType.album, Set.of(this.jazz),
+                CollectionType.artist, Set.of("Y"))));
+        assertEquals("Empty facets should not be filtered on", Set.of(this.second), this.select(Map
+                .of(CollectionType.artist, Set.of("Y"), CollectionType.genre, Set.of())));
+    }
+
+    @Test
+    public void testCounts()
+    {
+        Map<CollectionType, Set<?>> filter = Map.of(CollectionType.genre, Set.of("Rock"),
+                CollectionType.artist, Set.of("X"));
+        /*
+         * The counted facet is left out of the filter.
+         */
+        assertEquals(Map.of("X", 2, "Y", 1, "Z", 1, "W", 0), this.index
+                .getCounts(CollectionType.artist, List.of("X", "Y", "Z", "W"), filter));
+        assertEquals(Map.of(this.rock, 1, this.jazz, 0, this.mixed, 1), this.index
+                .getCounts(CollectionType.album, List.of(this.rock, this.jazz, this.mixed), filter));
+        assertEquals(Map.of("Rock", 2, "Jazz", 2), this.index
+                .getCounts(CollectionType.genre, List.of("Rock", "Jazz"), filter));
+    }
+
+    @Test
+    public void testSameNamedAlbums()
+    {
+        Album hits = new Album.Builder().setId(4).setName("Greatest Hits").setArtists("X").build();
+        Album otherHits = new Album.Builder().setId(5).setName("Greatest Hits").setArtists("Y")
+                                             .build();
+        Song fifth = createSong(5, hits, "X");
+        Song sixth = createSong(6, otherHits, "Y");
+        Song seventh = createSong(7, otherHits, "Y");
+        this.index.onItemWritten(this.provider, fifth);
+        this.index.onItemWritten(this.provider, sixth);
+        this.index.onItemWritten(this.provider, seventh);
+
+        assertEquals(Set.of(fifth), this.select(Map.of(CollectionType.album, Set.of(hits))));
+        assertEquals(Set.of(sixth, seventh), this.select(Map.of(CollectionType.album, Set
+                .of(otherHits))));
+        assertEquals(Map.of(hits, 1, otherHits, 2), this.index
+                .getCounts(CollectionType.album, List.of(hits, otherHits), Map.of()));
+        assertTrue(this.index.getValues(CollectionType.album).containsAll(List.of(hits, otherHits)));
+    }
+
+    @Test
+    public void testSorted()
+    {
+        SongBitmap all = this.index.select(Map.of());
+        Song renamed = this.fourth.toBuilder().setTitle("A Song").build();
+        assertEquals(List.of(this.third, this.fourth, this.first, this.second), this.index
+                .getSorted(FacetIndex.SortOrder.album, all));
+        assertEquals(List.of(this.third, this.first, this.second, this.fourth), this.index
+                .getSorted(FacetIndex.SortOrder.artist, all));
+
+        this.index.onItemWritten(this.provider, renamed);
+        assertEquals(List.of(renamed, this.first, this.second, this.third), this.index
+                .getSorted(FacetIndex.SortOrder.title, all));
+    }
+
+    @Test
+    public void testSortedFew()
+    {
+        ArrayList<Song> added = new ArrayList<>();
+        SongBitmap few;
+        Song renamed;
+        /*
+         * Enough songs that picking out two of them skips the full order.
+         */
+        for (int i = 0; i < 40; i++)
+        {
+            added.add(createSong(100 - i, this.rock, "X"));
+            this.index.onItemWritten(this.provider, added.get(i));
+        }
+        few = this.index.getIds(List.of(added.get(3), this.second, added.get(30)));
+        assertEquals(List.of(this.second, added.get(30), added.get(3)), this.index
+                .getSorted(FacetIndex.SortOrder.title, few));
+
+        renamed = added.get(3).toBuilder().setTitle("A Song").build();
+        this.index.onItemWritten(this.provider, renamed);
+        this.index.onItemRemoved(this.provider, added.get(30));
+        assertEquals(List.of(renamed, this.second), this.index
+                .getSorted(FacetIndex.SortOrder.title, few));
+    }
+
+    @Test
+    public void testReindex()
+    {
+        Map<CollectionType, Set<?>> filter = Map.of(CollectionType.genre, Set.of("Rock"),
+                CollectionType.artist, Set.of("X"));
+        Song moved = this.third.withAlbum(this.rock);
+        this.index.onItemWritten(this.provider, moved);
+        assertEquals(Set.of(this.first, moved, this.fourth), this.select(filter));
+
+        this.index.onItemRemoved(this.provider, this.first);
+        assertEquals(Set.of(moved, this.fourth), this.select(filter));
+        assertFalse(this.index.getValues(CollectionType.album).contains(this.jazz));
+    }
+}
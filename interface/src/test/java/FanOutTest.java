@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.regis.universeplayer.player.PcmFanOut;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes numbered frames into a fan-out buffer read by a paced reader
+ * standing in for the sound card, a reader that keeps up with it, and one
+ * far too slow to. Only the paced reader should set how fast the writer
+ * goes, and the slow one should skip ahead rather than read anything torn.
+ */
+public class FanOutTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(FanOutTest.class);
+    private static final int FRAME = 4;
+    private static final int TOTAL = 512 * 1024;
+    private static final int CHUNK = 512;
+
+    /**
+     * Reads everything through a cursor, checking that each frame holds its
+     * own number.
+     *
+     * @param pause - How long to wait after each chunk, in milliseconds.
+     * @return The number of bytes read.
+     */
+    private static long drain(PcmFanOut.Cursor cursor, long pause) throws InterruptedException
+    {
+        byte[] chunk = new byte[CHUNK];
+        long received = 0;
+        int read, expected;
+        while ((read = cursor.read(chunk, 0, chunk.length, () -> false)) >= 0)
+        {
+            expected = (int) ((received + cursor.getDropped()) / FRAME);
+            for (int i = 0; i < read; i += FRAME, expected++)
+            {
+                assertEquals(expected, (chunk[i] & 0xFF) | (chunk[i + 1] & 0xFF) << 8
+                        | (chunk[i + 2] & 0xFF) << 16 | chunk[i + 3] << 24);
+            }
+            received += read;
+            if (pause > 0)
+            {
+                Thread.sleep(pause);
+            }
+        }
+        return received;
+    }
+
+    @Test
+    public void testSlowReader() throws InterruptedException
+    {
+        PcmFanOut buffer = new PcmFanOut(8 * 1024, 32 * 1024, FRAME);
+        PcmFanOut.Cursor played = buffer.addCursor(true);
+        PcmFanOut.Cursor fast = buffer.addCursor(false);
+        PcmFanOut.Cursor slow = buffer.addCursor(false);
+        long[] received = new long[3];
+        Thread[] readers = {
+                new Thread(() -> received[0] = this.run(played, 1)),
+                new Thread(() -> received[1] = this.run(fast, 0)),
+                new Thread(() -> received[2] = this.run(slow, 10)),
+        };
+        byte[] chunk = new byte[CHUNK];
+        long start, writing, reading;
+        for (Thread reader : readers)
+        {
+            reader.start();
+        }
+
+        start = System.nanoTime();
+        for (int frame = 0; frame < TOTAL / FRAME; )
+        {
+            for (int i = 0; i < CHUNK; i += FRAME, frame++)
+            {
+                chunk[i] = (byte) frame;
+                chunk[i + 1] = (byte) (frame >> 8);
+                chunk[i + 2] = (byte) (frame >> 16);
+                chunk[i + 3] = (byte) (frame >> 24);
+            }
+            assertTrue(buffer.write(chunk, 0, CHUNK, () -> false));
+        }
+        buffer.finish();
+        writing = System.nanoTime() - start;
+        readers[0].join();
+        reading = System.nanoTime() - start;
+        readers[1].join();
+        readers[2].join(TimeUnit.SECONDS.toMillis(30));
+
+        logger.info("Wrote in {} ms, played in {} ms, and the slow reader skipped {} KiB over {} laps",
+                TimeUnit.NANOSECONDS.toMillis(writing), TimeUnit.NANOSECONDS.toMillis(reading),
+                slow.getDropped() / 1024, slow.getLaps());
+        assertEquals(TOTAL, received[0]);
+        assertEquals("The reader keeping up should get everything", TOTAL, received[1]);
+        assertEquals(0, fast.getDropped());
+        assertTrue("The slow reader should have been lapped", slow.getLaps() > 0);
+        assertEquals(TOTAL, received[2] + slow.getDropped());
+        /*
+         * The slow reader alone would take over ten seconds.
+         */
+        assertTrue("Writing waited for the slow reader", writing < reading + TimeUnit.MILLISECONDS
+                .toNanos(100));
+        assertTrue("Writing took " + TimeUnit.NANOSECONDS.toMillis(writing) + " ms",
+                writing < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    private long run(PcmFanOut.Cursor cursor, long pause)
+    {
+        try
+        {
+            return drain(cursor, pause);
+        }
+        catch (InterruptedException e)
+        {
+            return -1;
+        }
+    }
+}
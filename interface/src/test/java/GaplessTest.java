@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.regis.universeplayer.PlaybackStatus;
+import edu.regis.universeplayer.data.LocalSong;
+import edu.regis.universeplayer.player.LocalPlayer;
+import uk.co.caprica.vlcj.factory.discovery.NativeDiscovery;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Measures the time between one song finishing and the next one starting.
+ * This needs VLC to be installed, and is skipped otherwise. The gap is
+ * measured from the finished event of the first song to the playing event of
+ * the second, which is the delay added on top of whatever silence the files
+ * themselves hold.
+ */
+public class GaplessTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(GaplessTest.class);
+    private static final int SAMPLE_RATE = 44100;
+
+    /**
+     * The most a prefetched song may take to start, in milliseconds.
+     */
+    private static final long MAX_GAP = 100;
+
+    @BeforeClass
+    public static void findVlc()
+    {
+        assumeTrue("VLC is not installed", new NativeDiscovery().discover());
+    }
+
+    /**
+     * Plays one song into another and measures the gap between them.
+     *
+     * @param prefetch - Whether to prefetch the second song, or load it once
+     *                 the first finishes like the queue used to.
+     * @return The gap, in milliseconds.
+     */
+    private static long measureGap(boolean prefetch) throws Exception
+    {
+        LocalPlayer player = new LocalPlayer();
+        LocalSong first = TestTones.create(SAMPLE_RATE, 1, 440, 2);
+        LocalSong second = TestTones.create(SAMPLE_RATE, 1, 660, 2);
+        AtomicLong finished = new AtomicLong();
+        AtomicLong started = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(1);
+        player.addPlaybackListener(event ->
+        {
+            long now = System.nanoTime();
+            if (event.getInfo().getStatus() == PlaybackStatus.FINISHED &&
+                    first.equals(event.getInfo().getSong()))
+            {
+                finished.set(now);
+                if (!prefetch)
+                {
+                    player.loadSong(second);
+                }
+            }
+            else if (event.getInfo().getStatus() == PlaybackStatus.PLAYING &&
+                    second.equals(event.getInfo().getSong()) &&
+                    started.compareAndSet(0, now))
+            {
+                done.countDown();
+            }
+        });
+        player.loadSong(first).join();
+        if (prefetch)
+        {
+            player.prefetch(second).join();
+        }
+        assertTrue("The second song never started", done.await(10, TimeUnit.SECONDS));
+        player.close().join();
+        return TimeUnit.NANOSECONDS.toMillis(started.get() - finished.get());
+    }
+
+    @Test
+    public void testPrefetchedGap() throws Exception
+    {
+        long cold = measureGap(false);
+        long prefetched = measureGap(true);
+        logger.info("Gap between songs: {} ms loaded on demand, {} ms prefetched",
+                cold, prefetched);
+        assertTrue("Gap of " + prefetched + " ms", prefetched < MAX_GAP);
+    }
+}
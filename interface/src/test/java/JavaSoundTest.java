@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
+import edu.regis.universeplayer.PlaybackStatus;
+import edu.regis.universeplayer.data.LocalSong;
+import edu.regis.universeplayer.player.AudioStreamServer;
+import edu.regis.universeplayer.player.JavaSoundPlayer;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Plays a file through the Java Sound player. This needs FFMPEG and a sound
+ * card, and is skipped otherwise.
+ */
+public class JavaSoundTest
+{
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SECONDS = 3;
+
+    @BeforeClass
+    public static void findOutput()
+    {
+        boolean ffmpeg;
+        try
+        {
+            ffmpeg = new ProcessBuilder("ffmpeg", "-version").start().waitFor() == 0;
+        }
+        catch (IOException | InterruptedException e)
+        {
+            ffmpeg = false;
+        }
+        assumeTrue("FFMPEG is not installed", ffmpeg);
+        assumeTrue("There is no sound output", AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class,
+                new AudioFormat(SAMPLE_RATE, 16, 1, true, false))));
+    }
+
+    @Test
+    public void testPlayback() throws Exception
+    {
+        JavaSoundPlayer player = new JavaSoundPlayer();
+        LinkedBlockingQueue<PlaybackStatus> events = new LinkedBlockingQueue<>();
+        player.addPlaybackListener(event -> events.add(event.getInfo().getStatus()));
+
+        player.loadSong(TestTones.create(SAMPLE_RATE, 1, 440, SECONDS)).join();
+        assertEquals(PlaybackStatus.PLAYING, events.poll(5, TimeUnit.SECONDS));
+
+        player.pause().join();
+        assertEquals(PlaybackStatus.PAUSED, events.poll(5, TimeUnit.SECONDS));
+        player.seek(SECONDS - 1).join();
+        assertEquals(PlaybackStatus.PAUSED, events.poll(5, TimeUnit.SECONDS));
+        assertEquals(SECONDS - 1, player.getClock().getPosition(), 0.01);
+
+        player.play().join();
+        assertEquals(PlaybackStatus.PLAYING, events.poll(5, TimeUnit.SECONDS));
+        assertEquals(PlaybackStatus.FINISHED, events.poll(5, TimeUnit.SECONDS));
+        assertTrue(player.getClock().getPosition() >= SECONDS - 0.5);
+        player.close().join();
+    }
+
+    /**
+     * Connects to the network stream partway through a song, then loads a
+     * song in a different format. The stream should carry on through both.
+     */
+    @Test
+    public void testStreamAcrossSongs() throws Exception
+    {
+        JavaSoundPlayer player = new JavaSoundPlayer(true);
+        AudioStreamServer server = new AudioStreamServer(player, 0);
+        HttpURLConnection connection;
+        ByteBuffer header;
+        byte[] audio;
+        player.loadSong(TestTones.create(48000, 1, 440, SECONDS)).join();
+        Thread.sleep(500);
+
+        connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + AudioStreamServer.PATH)
+                .openConnection();
+        connection.setReadTimeout(5000);
+        try (InputStream in = connection.getInputStream())
+        {
+            /*
+             * The header is only sent once the listener is following the
+             * first song.
+             */
+            header = ByteBuffer.wrap(in.readNBytes(44)).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(JavaSoundPlayer.SHARED_CHANNELS, header.getShort(22));
+            assertEquals(JavaSoundPlayer.SHARED_SAMPLE_RATE, header.getInt(24));
+
+            player.loadSong(TestTones.create(22050, 2, 660, SECONDS)).join();
+            audio = in.readNBytes(JavaSoundPlayer.SHARED_SAMPLE_RATE * JavaSoundPlayer.SHARED_CHANNELS * 2 * 3 / 2);
+            assertEquals("The listener was dropped at the second song",
+                    JavaSoundPlayer.SHARED_SAMPLE_RATE * JavaSoundPlayer.SHARED_CHANNELS * 2 * 3 / 2, audio.length);
+        }
+        server.close();
+        player.close().join();
+    }
+}
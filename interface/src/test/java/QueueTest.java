@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.regis.universeplayer.data.Queue;
+import edu.regis.universeplayer.data.*;
+
+import static org.junit.Assert.*;
+
+public class QueueTest
+{
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 10000;
+
+    private static List<Song> createSongs(int count)
+    {
+        ArrayList<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            try
+            {
+                songs.add(new InternetSong.Builder()
+                        .setLocation(new URL("https://example.com/" + i))
+                        .setTitle("Song " + i).setId(i + 1).build());
+            }
+            catch (MalformedURLException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+        return songs;
+    }
+
+    /**
+     * Plays through a queue from the current song to the end.
+     *
+     * @param queue - The queue to play through.
+     * @return The songs in the order they played.
+     */
+    private static List<Song> playThrough(Queue queue)
+    {
+        ArrayList<Song> played = new ArrayList<>();
+        queue.setRepeat(false);
+        played.add(queue.getCurrentSong());
+        for (Song song = queue.skipNext(); song != null; song = queue.skipNext())
+        {
+            played.add(song);
+        }
+        return played;
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception
+    {
+        Queue queue = new Queue();
+        List<Song> songs = createSongs(64);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger notifications = new AtomicInteger();
+        List<Future<?>> results = new ArrayList<>();
+
+        /*
+         * Listeners that remove and add themselves while being notified.
+         */
+        queue.addQueueChangeListener(new Queue.QueueChangeListener()
+        {
+            @Override
+            public void onQueueChange(QueueChangeEvent event)
+            {
+                notifications.incrementAndGet();
+                event.getSource().removeQueueChangeListener(this);
+                event.getSource().addQueueChangeListener(this);
+            }
+        });
+        queue.addSongChangeListener(q -> q.getSnapshot());
+
+        for (int t = 0; t < THREADS; t++)
+        {
+            long seed = t;
+            results.add(executor.submit(() ->
+            {
+                Random random = new Random(seed);
+                long lastVersion = -1;
+                start.await();
+                for (int i = 0; i < OPERATIONS; i++)
+                {
+                    switch (random.nextInt(9))
+                    {
+                        case 0 -> queue.add(songs.get(random.nextInt(songs.size())));
+                        case 1 -> queue.addAll(songs.subList(0, random.nextInt(8)));
+                        case 2 -> queue.remove(songs.get(random.nextInt(songs.size())));
+                        case 3 -> queue.retainAll(songs.subList(random.nextInt(songs.size()), songs.size()));
+                        case 4 -> queue.skipNext();
+                        case 5 -> queue.skipPrev();
+                        case 6 -> queue.setShuffle(random.nextBoolean());
+                        default ->
+                        {
+                            Queue.Snapshot snapshot = queue.getSnapshot();
+                            assertTrue(snapshot.getVersion() >= lastVersion);
+                            lastVersion = snapshot.getVersion();
+                            assertTrue(snapshot.getCurrentIndex() < snapshot
+                                    .getSongs().size());
+                            for (Song song : queue)
+                            {
+                                assertNotNull(song);
+                            }
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> result : results)
+        {
+            result.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        Queue.Snapshot snapshot = queue.getSnapshot();
+        assertEquals(queue.size(), snapshot.getSongs().size());
+        assertEquals(queue.getVersion(), snapshot.getVersion());
+        assertEquals(queue.getCurrentSong(), snapshot.getCurrentSong());
+        assertEquals(snapshot.getSongs(), new ArrayList<>(queue));
+        assertTrue(notifications.get() > 0);
+
+        /*
+         * Without shuffling, the play order should match the queued order.
+         */
+        queue.setShuffle(false);
+        if (!queue.isEmpty())
+        {
+            queue.skipToSong(0);
+            assertEquals(snapshot.getSongs(), playThrough(queue));
+        }
+    }
+
+    @Test
+    public void testSnapshotsAreShared()
+    {
+        Queue queue = new Queue();
+        List<Song> songs = createSongs(10);
+        queue.addAll(songs);
+        Queue.Snapshot first = queue.getSnapshot();
+        assertSame(first, queue.getSnapshot());
+        assertEquals(songs, first.getSongs());
+
+        queue.skipNext();
+        Queue.Snapshot second = queue.getSnapshot();
+        assertNotSame(first, second);
+        assertTrue(second.getVersion() > first.getVersion());
+        assertEquals(songs, second.getSongs());
+        assertEquals(queue.getCurrentSong(), second.getCurrentSong());
+
+        List<Song> reversed = new ArrayList<>(songs);
+        Collections.reverse(reversed);
+        queue.clear();
+        queue.addAll(reversed);
+        assertEquals(reversed, queue.getSnapshot().getSongs());
+        assertEquals(songs, first.getSongs());
+    }
+
+    @Test
+    public void testChangeEvents()
+    {
+        Queue queue = new Queue();
+        List<Song> songs = createSongs(30);
+        List<Song> mirror = new ArrayList<>();
+        List<QueueChangeEvent> events = new ArrayList<>();
+        Random random = new Random(7);
+
+        /*
+         * Keep a copy of the queue up to date using only the events.
+         */
+        queue.addQueueChangeListener(event ->
+        {
+            events.add(event);
+            for (QueueChangeEvent.Change change : event.getChanges())
+            {
+                switch (change.getType())
+                {
+                    case INSERTED -> mirror.addAll(change.getIndex(), change.getSongs());
+                    case REMOVED -> mirror.subList(change.getIndex(),
+                            change.getIndex() + change.getCount()).clear();
+                    case MOVED -> mirror.add(change.getTarget(),
+                            mirror.remove(change.getIndex()));
+                    case RESET ->
+                    {
+                        mirror.clear();
+                        mirror.addAll(change.getSongs());
+                    }
+                }
+            }
+        });
+
+        queue.addAll(songs);
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).getChanges().size());
+        assertEquals(songs.size(), events.get(0).getChanges().get(0).getCount());
+
+        events.clear();
+        queue.removeAll(songs.subList(5, 15));
+        assertEquals(1, events.size());
+        assertEquals(1, events.get(0).getChanges().size());
+        assertEquals(QueueChangeEvent.Type.REMOVED, events.get(0).getChanges()
+                .get(0).getType());
+        assertEquals(10, events.get(0).getChanges().get(0).getCount());
+        assertEquals(queue, mirror);
+
+        for (int i = 0; i < 2000; i++)
+        {
+            switch (random.nextInt(8))
+            {
+                case 0, 1 -> queue.add(random.nextInt(queue.size() + 1),
+                        songs.get(random.nextInt(songs.size())));
+                case 2 -> queue.addAll(random.nextInt(queue.size() + 1),
+                        songs.subList(0, random.nextInt(4)));
+                case 3 -> queue.removeAll(songs.subList(random.nextInt(songs
+                        .size()), songs.size()));
+                case 4 -> queue.set(random.nextInt(queue.size()),
+                        songs.get(random.nextInt(songs.size())));
+                case 5 -> queue.move(random.nextInt(queue.size()),
+                        random.nextInt(queue.size()));
+                case 6 -> queue.setShuffle(random.nextBoolean());
+                default -> queue.clear();
+            }
+            if (queue.isEmpty())
+            {
+                queue.addAll(songs);
+            }
+            assertEquals(queue, mirror);
+        }
+    }
+
+    @Test
+    public void testJournalRoundTrip() throws IOException
+    {
+        File file = File.createTempFile("queue", ".journal");
+        List<Song> songs = createSongs(20);
+        SongProvider<Song> provider = new TestSongProvider(songs);
+        Random random = new Random(4);
+        Queue queue = new Queue();
+        QueueJournal journal = new QueueJournal(file);
+        file.deleteOnExit();
+        journal.restore(queue, provider);
+        for (int i = 0; i < 5000; i++)
+        {
+            switch (random.nextInt(9))
+            {
+                case 0, 1 -> queue.add(random.nextInt(queue.size() + 1),
+                        songs.get(random.nextInt(songs.size())));
+                case 2 -> queue.remove(songs.get(random.nextInt(songs.size())));
+                case 8 -> {
+                    if (!queue.isEmpty())
+                    {
+                        queue.move(random.nextInt(queue.size()),
+                                random.nextInt(queue.size()));
+                    }
+                }
+                case 3 -> queue.skipNext();
+                case 4 -> queue.skipPrev();
+                case 5 -> queue.setShuffle(random.nextBoolean());
+                case 6 -> queue.setRepeat(random.nextBoolean());
+                default -> journal.recordPosition(queue.getCurrentSong(), i);
+            }
+        }
+        if (queue.getCurrentSong() == null)
+        {
+            queue.skipNext();
+        }
+
+        /*
+         * Leave the journal open and add half of a record to the end, as if
+         * the program crashed while writing.
+         */
+        journal.flush();
+        try (FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.write(new byte[]{0, 0, 0, 40, 1, 0, 0});
+        }
+
+        Queue restored = new Queue();
+        QueueJournal restoredJournal = new QueueJournal(file);
+        Queue.Snapshot snapshot = queue.getSnapshot();
+        restoredJournal.restore(restored, provider);
+        assertEquals(snapshot.getSongs(), restored.getSnapshot().getSongs());
+        assertEquals(snapshot.getCurrentIndex(), restored.getCurrentIndex());
+        assertEquals(snapshot.isShuffling(), restored.isShuffling());
+        assertEquals(snapshot.isRepeating(), restored.isRepeating());
+        assertEquals(playThrough(queue), playThrough(restored));
+        restoredJournal.close();
+        journal.close();
+    }
+}
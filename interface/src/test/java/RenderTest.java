@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import com.intervigil.wave.WaveReader;
+import com.intervigil.wave.WaveWriter;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.List;
+import java.util.Properties;
+
+import edu.regis.universeplayer.ConfigManager;
+import edu.regis.universeplayer.PlayerEnvironment;
+import edu.regis.universeplayer.data.LocalSong;
+import edu.regis.universeplayer.data.Queue;
+import edu.regis.universeplayer.data.QueueJournal;
+import edu.regis.universeplayer.data.Song;
+import edu.regis.universeplayer.player.PlayerManager;
+import edu.regis.universeplayer.player.QueueRenderer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Renders a few WAV files into one with a crossfade between each. WAV files
+ * already in the mixing format are read without FFMPEG, so this runs
+ * anywhere.
+ */
+public class RenderTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(RenderTest.class);
+    private static final int RATE = QueueRenderer.SAMPLE_RATE;
+    private static final int SECONDS = 5;
+
+    private final Properties settings = ConfigManager.getProperties();
+    private final String crossfade = this.settings.getProperty("crossfadeSeconds");
+    private final String curve = this.settings.getProperty("crossfadeCurve");
+
+    @After
+    public void restoreSettings()
+    {
+        this.settings.setProperty("crossfadeSeconds", this.crossfade);
+        this.settings.setProperty("crossfadeCurve", this.curve);
+    }
+
+    /**
+     * Creates a stereo song holding a single level the whole way through,
+     * which makes the fades easy to follow.
+     */
+    private static LocalSong createLevel(int level) throws IOException
+    {
+        File file = File.createTempFile("level", ".wav");
+        WaveWriter writer = new WaveWriter(file, RATE, 2, 16);
+        ByteBuffer pcm = ByteBuffer.allocate(RATE * SECONDS * 4).order(ByteOrder.LITTLE_ENDIAN);
+        file.deleteOnExit();
+        while (pcm.hasRemaining())
+        {
+            pcm.putShort((short) level);
+        }
+        pcm.flip();
+        writer.createWaveFile();
+        writer.write(pcm);
+        writer.closeWaveFile();
+        return new LocalSong.Builder().setFile(file).setTitle("Level " + level).setId(level)
+                                      .setDuration(SECONDS * 1000).build();
+    }
+
+    @Test
+    public void testCrossfade() throws IOException
+    {
+        File output = File.createTempFile("render", ".wav");
+        LocalSong missing = new LocalSong.Builder().setFile(new File(output.getParentFile(), "missing.wav"))
+                                                   .setTitle("Missing").setId(1).build();
+        QueueRenderer renderer;
+        WaveReader reader;
+        ShortBuffer samples;
+        output.deleteOnExit();
+        this.settings.setProperty("crossfadeSeconds", "1");
+        this.settings.setProperty("crossfadeCurve", "linear");
+
+        renderer = new QueueRenderer(output);
+        renderer.render(List.of(createLevel(10000), missing, createLevel(20000), createLevel(10000)));
+        logger.info("Rendered at {} times real time", String.format("%.0f", renderer.getSpeed()));
+        assertEquals(3, renderer.getSongs());
+        assertEquals("Each fade overlaps two songs by a second", SECONDS * 3 - 2, renderer.getDuration(), 1e-9);
+
+        reader = new WaveReader(output);
+        reader.openWave();
+        assertEquals(RATE, reader.getSampleRate());
+        assertEquals(2, reader.getChannels());
+        samples = ShortBuffer.allocate(RATE * (SECONDS * 3 - 2) * 2);
+        while (samples.hasRemaining() && reader.read(samples) > 0)
+        {
+        }
+        assertFalse("The output is too short", samples.hasRemaining());
+        reader.closeWaveFile();
+
+        /*
+         * The first fade runs from 4 to 5 seconds, and the second from 8 to
+         * 9 seconds.
+         */
+        assertEquals(10000, samples.get(RATE * 2 * 2));
+        assertEquals(15000, samples.get(RATE * 9 / 2 * 2), 10);
+        assertEquals(20000, samples.get(RATE * 6 * 2 + 1));
+        assertEquals(15000, samples.get(RATE * 17 / 2 * 2 + 1), 10);
+        assertEquals(10000, samples.get(samples.capacity() - 1));
+        assertTrue("Rendering ran at " + renderer.getSpeed() + " times real time", renderer.getSpeed() > 10);
+    }
+
+    /**
+     * Renders a queue saved in a journal the way the --render option does,
+     * which should not start any players or play anything.
+     */
+    @Test
+    public void testRenderSaved() throws IOException, ParseException, ReflectiveOperationException
+    {
+        File journalFile = File.createTempFile("queue", ".journal");
+        File output = File.createTempFile("render", ".wav");
+        List<Song> songs = List.of(createLevel(10000), createLevel(20000));
+        TestSongProvider provider = new TestSongProvider(songs);
+        Queue saved = new Queue();
+        QueueJournal journal = new QueueJournal(journalFile);
+        Field players = PlayerManager.class.getDeclaredField("INSTANCE");
+        CommandLine cmd = new DefaultParser().parse(new Options().addOption(Option.builder()
+                .longOpt("render").hasArg().build()), new String[]{"--render", output.getPath()});
+        WaveReader reader;
+        journalFile.deleteOnExit();
+        output.deleteOnExit();
+        this.settings.setProperty("crossfadeSeconds", "0");
+
+        journal.restore(saved, provider).join();
+        saved.addAll(songs);
+        journal.close();
+
+        players.setAccessible(true);
+        assertNull(players.get(null));
+        PlayerEnvironment.render(cmd, new QueueJournal(journalFile), provider,
+                new PrintStream(OutputStream.nullOutputStream()));
+        assertNull("Rendering started the players", players.get(null));
+
+        reader = new WaveReader(output);
+        reader.openWave();
+        assertEquals(RATE * SECONDS * 2, reader.getDataSize() / 4);
+        reader.closeWaveFile();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import edu.regis.universeplayer.ConfigManager;
+import edu.regis.universeplayer.data.DatabaseManager;
+import edu.regis.universeplayer.data.DatabaseProvider;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replaces items in a provider while another thread writes newer versions of
+ * them, which should never be lost to a replacement made from an older one.
+ */
+public class ReplaceItemsTest
+{
+    private static File dataDir;
+
+    /**
+     * Keeps the provider's table out of the real database.
+     */
+    @BeforeClass
+    public static void useTempDatabase() throws IOException
+    {
+        dataDir = Files.createTempDirectory("universalmusic").toFile();
+        DatabaseManager.close();
+        ConfigManager.setDataDir(dataDir);
+    }
+
+    @AfterClass
+    public static void dropTable() throws SQLException
+    {
+        Connection db = DatabaseManager.getDb();
+        synchronized (db)
+        {
+            try (Statement state = db.createStatement())
+            {
+                state.execute("DROP TABLE IF EXISTS replace_test;");
+            }
+        }
+        DatabaseManager.close();
+        ConfigManager.setDataDir(null);
+        for (File file : dataDir.listFiles())
+        {
+            file.delete();
+        }
+        dataDir.delete();
+    }
+
+    @Test
+    public void testConcurrentWrite() throws InterruptedException
+    {
+        ItemProvider provider = new ItemProvider();
+        AtomicReference<Item> replacement = new AtomicReference<>();
+        Item newer = new Item(1, "newer");
+        provider.joinUpdate();
+        provider.put(new Item(1, "stale"));
+
+        provider.replace(item -> {
+            /*
+             * The newer version equals the stale one, since both share an ID.
+             */
+            Thread writer = new Thread(() -> provider.put(newer));
+            writer.start();
+            try
+            {
+                writer.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            replacement.set(new Item(item.id, item.version + ", replaced"));
+            return replacement.get();
+        });
+
+        assertEquals(newer, replacement.get());
+        assertSame("A replacement made from an older version overwrote a newer one", newer,
+                provider.get(ItemProvider.KEY));
+
+        provider.replace(item -> new Item(item.id, item.version + ", replaced"));
+        assertEquals("newer, replaced", provider.get(ItemProvider.KEY).version);
+    }
+
+    /**
+     * An item that, like songs, is equal to anything with the same ID.
+     */
+    private static class Item
+    {
+        private final int id;
+        private final String version;
+
+        private Item(int id, String version)
+        {
+            this.id = id;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof Item && ((Item) o).id == this.id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return this.id;
+        }
+    }
+
+    /**
+     * Keeps a single item in memory. Nothing is ever written to its table.
+     */
+    private static class ItemProvider extends DatabaseProvider<Item>
+    {
+        private static final String KEY = "only";
+
+        private void put(Item item)
+        {
+            this.putItem(item);
+        }
+
+        private Item get(String key)
+        {
+            return this.getItem(key);
+        }
+
+        private void replace(UnaryOperator<Item> replace)
+        {
+            this.replaceItems(item -> true, replace);
+        }
+
+        @Override
+        protected String getDatabaseTable()
+        {
+            return "replace_test";
+        }
+
+        @Override
+        protected String createDatabaseTable()
+        {
+            return "CREATE TABLE replace_test (id INTEGER PRIMARY KEY, name TEXT);";
+        }
+
+        @Override
+        protected Item readResult(ResultSet result)
+        {
+            return null;
+        }
+
+        @Override
+        protected Map<String, Object> serializeItem(Item item)
+        {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("name", KEY);
+            return values;
+        }
+
+        @Override
+        protected int getId(Item item)
+        {
+            return item.id;
+        }
+
+        @Override
+        protected Item withId(Item item, int id)
+        {
+            return new Item(id, item.version);
+        }
+
+        @Override
+        protected String stringifyResult(Item data)
+        {
+            return data.version;
+        }
+
+        @Override
+        protected ForkJoinTask<?>[] onComplete()
+        {
+            return null;
+        }
+    }
+}
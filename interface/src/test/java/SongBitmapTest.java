@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import edu.regis.universeplayer.data.SongBitmap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks song bitmaps against plain sets of ids. Each block of 65536 ids is
+ * kept as a sorted array until it holds more than 4096 of them, and as a
+ * bitmap after that, so the sets here mix sparse and dense blocks.
+ */
+public class SongBitmapTest
+{
+    /**
+     * One more than the most ids an array container holds.
+     */
+    private static final int DENSE = 4097;
+
+    /**
+     * Fills a bitmap and a reference set with the same ids.
+     *
+     * @param set   - The reference set to fill.
+     * @param block - Which block of 65536 ids to use.
+     * @param count - How many ids to add.
+     * @param step  - The distance between ids.
+     * @return The filled bitmap.
+     */
+    private static SongBitmap fill(TreeSet<Integer> set, int block, int count, int step)
+    {
+        SongBitmap bitmap = new SongBitmap();
+        for (int i = 0; i < count; i++)
+        {
+            bitmap.add((block << 16) + i * step);
+            set.add((block << 16) + i * step);
+        }
+        return bitmap;
+    }
+
+    private static void assertMatches(TreeSet<Integer> expected, SongBitmap actual)
+    {
+        assertEquals(expected.size(), actual.getCardinality());
+        assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), actual.toArray());
+    }
+
+    @Test
+    public void testContainerSwitch()
+    {
+        TreeSet<Integer> expected = new TreeSet<>();
+        SongBitmap bitmap = fill(expected, 0, DENSE - 1, 3);
+        assertMatches(expected, bitmap);
+
+        assertTrue(bitmap.add(DENSE * 3));
+        expected.add(DENSE * 3);
+        assertFalse("An id was added twice", bitmap.add(DENSE * 3));
+        assertMatches(expected, bitmap);
+        assertTrue(bitmap.contains(3));
+        assertFalse(bitmap.contains(4));
+
+        /*
+         * Back under the limit, and then empty.
+         */
+        assertTrue(bitmap.remove(0));
+        assertTrue(bitmap.remove(3));
+        assertFalse("An id was removed twice", bitmap.remove(3));
+        expected.remove(0);
+        expected.remove(3);
+        assertMatches(expected, bitmap);
+        for (int id : expected)
+        {
+            assertTrue(bitmap.remove(id));
+        }
+        assertTrue(bitmap.isEmpty());
+        assertEquals(0, bitmap.toArray().length);
+    }
+
+    @Test
+    public void testOperations()
+    {
+        TreeSet<Integer> sparse = new TreeSet<>(), dense = new TreeSet<>();
+        TreeSet<Integer> and, or;
+        /*
+         * Both sets have an array block and a bitmap block, in opposite
+         * blocks, plus a block the other does not have at all.
+         */
+        SongBitmap first = fill(sparse, 0, 100, 7);
+        SongBitmap second = fill(dense, 0, 20000, 2);
+        fill(sparse, 1, 30000, 2).forEach(first::add);
+        fill(dense, 1, 300, 11).forEach(second::add);
+        fill(sparse, 2, 50, 1).forEach(first::add);
+        fill(dense, 3, DENSE, 1).forEach(second::add);
+        and = new TreeSet<>(sparse);
+        and.retainAll(dense);
+        or = new TreeSet<>(sparse);
+        or.addAll(dense);
+
+        assertMatches(and, first.and(second));
+        assertMatches(and, second.and(first));
+        assertMatches(or, first.or(second));
+        assertMatches(or, second.or(first));
+        assertEquals(and.size(), first.andCardinality(second));
+        assertEquals(and.size(), second.andCardinality(first));
+        assertMatches(sparse, first);
+        assertMatches(dense, second);
+    }
+
+    @Test
+    public void testRandom()
+    {
+        Random random = new Random(26);
+        TreeSet<Integer> expected = new TreeSet<>(), other = new TreeSet<>();
+        SongBitmap bitmap = new SongBitmap(), otherBitmap = new SongBitmap();
+        int id;
+        for (int i = 0; i < 200000; i++)
+        {
+            id = random.nextInt(3 << 16);
+            if (random.nextInt(4) == 0)
+            {
+                assertEquals(expected.remove(id), bitmap.remove(id));
+            }
+            else
+            {
+                assertEquals(expected.add(id), bitmap.add(id));
+            }
+            id = random.nextInt(3 << 16);
+            if (other.add(id))
+            {
+                otherBitmap.add(id);
+            }
+        }
+        assertMatches(expected, bitmap);
+        assertMatches(expected, new SongBitmap(bitmap));
+        expected.retainAll(other);
+        assertEquals(expected.size(), bitmap.andCardinality(otherBitmap));
+        assertMatches(expected, bitmap.and(otherBitmap));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.regis.universeplayer.player.SpectrumAnalyser;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays a tone into the spectrum analyser as fast as a sound card would, and
+ * checks that it shows up in the right band. Rather than timing the
+ * analyser, which depends on the machine, this counts its FFTs, which should
+ * be kept to its frame rate however often audio arrives, and stop once the
+ * audio does.
+ */
+public class SpectrumTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(SpectrumTest.class);
+    private static final int RATE = 44100;
+    private static final int BANDS = 24;
+    private static final int FRAME_RATE = 30;
+
+    @Test
+    public void testTone() throws InterruptedException
+    {
+        final int BLOCK = RATE / 100;
+        final int SECONDS = 2;
+        SpectrumAnalyser analyser = new SpectrumAnalyser(BANDS, FRAME_RATE);
+        byte[] block = new byte[BLOCK * 4];
+        float[] bands = new float[BANDS];
+        long analyses, start, version;
+        float level;
+        int loudest = 0, blocks = 0;
+        short sample;
+
+        analyser.configure(RATE, 2);
+        start = System.nanoTime();
+        for (int frame = 0; frame < RATE * SECONDS; frame += BLOCK)
+        {
+            for (int i = 0; i < BLOCK; i++)
+            {
+                sample = (short) (Math.sin(2 * Math.PI * 1000 * (frame + i) / RATE) * 16384);
+                block[i * 4] = block[i * 4 + 2] = (byte) sample;
+                block[i * 4 + 1] = block[i * 4 + 3] = (byte) (sample >> 8);
+            }
+            analyser.write(block, 0, block.length);
+            blocks++;
+            Thread.sleep(10);
+        }
+        analyses = analyser.getAnalyses();
+        start = System.nanoTime() - start;
+
+        version = analyser.getVersion();
+        level = analyser.read(bands);
+        assertEquals(0, version & 1);
+        for (int i = 0; i < BANDS; i++)
+        {
+            if (bands[i] > bands[loudest])
+            {
+                loudest = i;
+            }
+        }
+        /*
+         * The bands are spaced evenly on a log scale from 40 Hz to 16 kHz.
+         */
+        assertEquals((int) (BANDS * Math.log(1000 / 40.0) / Math.log(16000 / 40.0)), loudest);
+        assertEquals("A tone at half of full scale", (70 - 6) / 70F, bands[loudest], 0.03);
+        assertTrue("Band 0 shows " + bands[0], bands[0] < 0.3);
+        assertEquals((70 - 6) / 70F, level, 0.03);
+        logger.info("The analyser ran {} FFTs for {} blocks", analyses, blocks);
+        assertTrue("The analyser never ran", analyses > 0);
+        assertTrue("The analyser ran " + analyses + " FFTs in " + start / 1000000 + " ms",
+                analyses <= FRAME_RATE * start / 1e9 + 2);
+        assertTrue(analyses < blocks / 2);
+
+        Thread.sleep(1000);
+        assertNotEquals("The bars should fall once audio stops", version, analyser.getVersion());
+        analyser.read(bands);
+        assertEquals(0, bands[loudest], 0);
+        analyses = analyser.getAnalyses();
+        version = analyser.getVersion();
+        Thread.sleep(200);
+        assertEquals("The analyser ran without audio", analyses, analyser.getAnalyses());
+        assertEquals("The analyser should sleep once the bars have fallen", version, analyser
+                .getVersion());
+        analyser.close();
+    }
+}
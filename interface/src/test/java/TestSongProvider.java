@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import edu.regis.universeplayer.data.*;
+
+/**
+ * A song collection that is already loaded.
+ */
+class TestSongProvider implements SongProvider<Song>
+{
+    private final Set<Song> songs;
+
+    TestSongProvider(Collection<Song> songs)
+    {
+        this.songs = new HashSet<>(songs);
+    }
+
+    @Override
+    public AlbumProvider getAlbumProvider()
+    {
+        return null;
+    }
+
+    @Override
+    public void joinUpdate()
+    {
+    }
+
+    @Override
+    public int getUpdateProgress()
+    {
+        return 0;
+    }
+
+    @Override
+    public int getTotalUpdates()
+    {
+        return 0;
+    }
+
+    @Override
+    public String getUpdateText()
+    {
+        return null;
+    }
+
+    @Override
+    public Set<Song> getCollection()
+    {
+        return this.songs;
+    }
+
+    @Override
+    public void addUpdateListener(UpdateListener listener)
+    {
+    }
+
+    @Override
+    public void removeUpdateListener(UpdateListener listener)
+    {
+    }
+
+    @Override
+    public void addCollectionListener(CollectionListener listener)
+    {
+    }
+
+    @Override
+    public void removeCollectionListener(CollectionListener listener)
+    {
+    }
+}
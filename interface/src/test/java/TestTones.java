@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import com.intervigil.wave.WaveWriter;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.regis.universeplayer.data.LocalSong;
+
+/**
+ * Creates short WAV files holding a single tone for the player tests.
+ */
+final class TestTones
+{
+    private TestTones()
+    {
+    }
+
+    /**
+     * Creates a temporary WAV file holding a sine wave, the same in every
+     * channel.
+     *
+     * @param sampleRate - The number of frames per second.
+     * @param channels   - The number of channels.
+     * @param frequency  - The pitch of the tone, in hertz. This is also used
+     *                   as the song's ID.
+     * @param seconds    - How long the tone is.
+     * @return A song for the file.
+     */
+    static LocalSong create(int sampleRate, int channels, int frequency, int seconds) throws IOException
+    {
+        File file = File.createTempFile("tone", ".wav");
+        WaveWriter writer = new WaveWriter(file, sampleRate, channels, 16);
+        short[] samples = new short[sampleRate * seconds * channels];
+        file.deleteOnExit();
+        for (int i = 0; i < samples.length; i++)
+        {
+            samples[i] = (short) (Math.sin(2 * Math.PI * frequency * (i / channels) / sampleRate) * 8000);
+        }
+        writer.createWaveFile();
+        writer.write(samples, 0, samples.length);
+        writer.closeWaveFile();
+        return new LocalSong.Builder().setFile(file).setTitle(frequency + " Hz").setId(frequency)
+                                      .setDuration(seconds * 1000).build();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+import com.intervigil.wave.WaveReader;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the sample formats the wave reader supports, including the headers
+ * FFMPEG writes to a pipe, and compares the speed of the buffer reads
+ * against reading the way the library used to.
+ */
+public class WaveReaderTest
+{
+    private static final Logger logger = LoggerFactory.getLogger(WaveReaderTest.class);
+    private static final int SAMPLES = 10000;
+
+    /**
+     * Creates a test signal.
+     *
+     * @return Samples between -1 and 1.
+     */
+    private static float[] createSignal()
+    {
+        float[] samples = new float[SAMPLES];
+        for (int i = 0; i < samples.length; i++)
+        {
+            samples[i] = (float) Math.sin(i * 0.05) * 0.9F;
+        }
+        return samples;
+    }
+
+    /**
+     * Writes a wave file in memory.
+     *
+     * @param samples   - The samples to encode.
+     * @param format    - The audio format code.
+     * @param bits      - The bits per sample.
+     * @param streaming - Whether to leave the sizes unset, add a metadata
+     *                  chunk, and use the extensible format chunk, the way
+     *                  FFMPEG does when writing to a pipe.
+     * @return The file contents.
+     */
+    private static byte[] encode(float[] samples, int format, int bits, boolean streaming)
+    {
+        int bytes = bits / 8;
+        ByteBuffer file = ByteBuffer.allocate(200 + samples.length * bytes).order(ByteOrder.LITTLE_ENDIAN);
+        file.put("RIFF".getBytes()).putInt(streaming ? -1 : 0).put("WAVE".getBytes());
+        file.put("fmt ".getBytes()).putInt(streaming ? 40 : 16);
+        file.putShort((short) (streaming ? 0xFFFE : format)).putShort((short) 1).putInt(44100)
+            .putInt(44100 * bytes).putShort((short) bytes).putShort((short) bits);
+        if (streaming)
+        {
+            file.putShort((short) 22).putShort((short) bits).putInt(4).putShort((short) format).put(new byte[14]);
+            file.put("LIST".getBytes()).putInt(5).put(new byte[]{1, 2, 3, 4, 5, 0});
+        }
+        file.put("data".getBytes()).putInt(streaming ? -1 : samples.length * bytes);
+        for (float sample : samples)
+        {
+            if (format == WaveReader.FORMAT_FLOAT)
+            {
+                file.putFloat(sample);
+            }
+            else
+            {
+                switch (bits)
+                {
+                case 8 -> file.put((byte) (Math.round(sample * 127) + 128));
+                case 16 -> file.putShort((short) Math.round(sample * 32767));
+                case 24 -> {
+                    int value = Math.round(sample * 8388607);
+                    file.put((byte) value).putShort((short) (value >> 8));
+                }
+                default -> file.putInt((int) Math.round(sample * 2147483647.0));
+                }
+            }
+        }
+        if (!streaming)
+        {
+            file.put("junk".getBytes()).putInt(4).putInt(0x7F7F7F7F);
+        }
+        return Arrays.copyOf(file.array(), file.position());
+    }
+
+    /**
+     * Wraps data in a stream that hands it out a few bytes at a time, like a
+     * pipe might, so that samples are split between reads.
+     */
+    private static InputStream trickle(byte[] data)
+    {
+        return new ByteArrayInputStream(data)
+        {
+            @Override
+            public synchronized int read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+
+    private static void checkFormat(int format, int bits, boolean streaming) throws IOException
+    {
+        float[] signal = createSignal();
+        byte[] data = encode(signal, format, bits, streaming);
+        String name = (format == WaveReader.FORMAT_FLOAT ? "float" : "PCM") + " " + bits + (streaming ? " streamed" : "");
+        float tolerance = bits == 8 ? 0.02F : 0.0001F;
+        WaveReader reader = new WaveReader(trickle(data));
+        FloatBuffer floats = FloatBuffer.allocate(SAMPLES + 10);
+        ShortBuffer shorts = ShortBuffer.allocate(SAMPLES + 10);
+
+        reader.openWave();
+        assertEquals(name, format, reader.getAudioFormat());
+        assertEquals(name, bits, reader.getPcmFormat());
+        assertEquals(name, streaming ? -1 : SAMPLES * bits / 8, reader.getDataSize());
+        while (reader.read(floats) >= 0)
+        {
+        }
+        assertEquals(name, SAMPLES, floats.position());
+        for (int i = 0; i < SAMPLES; i++)
+        {
+            assertEquals(name + " sample " + i, signal[i], floats.get(i), tolerance);
+        }
+
+        reader = new WaveReader(trickle(data));
+        reader.openWave();
+        while (reader.read(shorts) >= 0)
+        {
+        }
+        assertEquals(name, SAMPLES, shorts.position());
+        for (int i = 0; i < SAMPLES; i++)
+        {
+            assertEquals(name + " sample " + i, signal[i] * 32768, shorts.get(i), bits == 8 ? 400 : 2);
+        }
+    }
+
+    @Test
+    public void testFormats() throws IOException
+    {
+        for (boolean streaming : new boolean[]{false, true})
+        {
+            checkFormat(WaveReader.FORMAT_PCM, 8, streaming);
+            checkFormat(WaveReader.FORMAT_PCM, 16, streaming);
+            checkFormat(WaveReader.FORMAT_PCM, 24, streaming);
+            checkFormat(WaveReader.FORMAT_PCM, 32, streaming);
+            checkFormat(WaveReader.FORMAT_FLOAT, 32, streaming);
+        }
+    }
+
+    /**
+     * Reads 16-bit samples the way the reader did before buffers were
+     * supported: a new array for every call, and one sample converted at a
+     * time.
+     */
+    private static long readLegacy(InputStream in, int chunk) throws IOException
+    {
+        long sum = 0;
+        short[] dst = new short[chunk];
+        while (true)
+        {
+            byte[] buf = new byte[chunk * 2];
+            int index = 0;
+            int bytesRead = in.read(buf, 0, chunk * 2);
+            if (bytesRead < 0)
+            {
+                return sum;
+            }
+            for (int i = 0; i < bytesRead; i += 2)
+            {
+                dst[index] = (short) (buf[i] & 0xFF | ((buf[i + 1] & 0xFF) << 8));
+                index++;
+            }
+            for (int i = 0; i < index; i++)
+            {
+                sum += dst[i];
+            }
+        }
+    }
+
+    private static long readBuffered(WaveReader reader, int chunk) throws IOException
+    {
+        long sum = 0;
+        ShortBuffer dst = ShortBuffer.allocate(chunk);
+        while (reader.read(dst) >= 0)
+        {
+            dst.flip();
+            while (dst.hasRemaining())
+            {
+                sum += dst.get();
+            }
+            dst.clear();
+        }
+        return sum;
+    }
+
+    @Test
+    public void testThroughput() throws IOException
+    {
+        final int CHUNK = 1024;
+        final int ROUNDS = 5;
+        float[] signal = new float[4 * 1024 * 1024];
+        for (int i = 0; i < signal.length; i++)
+        {
+            signal[i] = (float) Math.sin(i * 0.01);
+        }
+        byte[] data = encode(signal, WaveReader.FORMAT_PCM, 16, false);
+        double megabytes = signal.length * 2 / 1e6;
+        long legacyTime = Long.MAX_VALUE, bufferTime = Long.MAX_VALUE, legacySum = 0, bufferSum = 0;
+
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            long start = System.nanoTime();
+            InputStream in = new ByteArrayInputStream(data, 44, signal.length * 2);
+            legacySum = readLegacy(new BufferedInputStream(in, 4096), CHUNK);
+            legacyTime = Math.min(legacyTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            WaveReader reader = new WaveReader(new ByteArrayInputStream(data));
+            reader.openWave();
+            bufferSum = readBuffered(reader, CHUNK);
+            bufferTime = Math.min(bufferTime, System.nanoTime() - start);
+        }
+        assertEquals(legacySum, bufferSum);
+        logger.info("Reading 16-bit samples: {} MB/s per-call arrays, {} MB/s reused buffers",
+                Math.round(megabytes / (legacyTime / 1e9)), Math.round(megabytes / (bufferTime / 1e9)));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fades between stand-ins for two players, cutting the fade short at the
+ * awkward moments. This sits in the player package since fades are only
+ * used from within it.
+ */
+public class CrossfadeTest
+{
+    /**
+     * Long enough that no fade here ends on its own.
+     */
+    private static final long DURATION = 60_000;
+
+    @Test
+    public void testFinishBeforeStart() throws InterruptedException
+    {
+        FakeChannel from = new FakeChannel(), to = new FakeChannel();
+        Crossfade fade = new Crossfade(from, to, DURATION, Crossfade.Curve.LINEAR);
+
+        fade.finish();
+        assertTrue(fade.getDone().isDone());
+        int calls = to.calls.size();
+        /*
+         * Starting is submitted to the incoming player, so it can run after
+         * the fade was already cut short.
+         */
+        fade.start();
+        Thread.sleep(100);
+
+        assertEquals("A finished fade started the incoming player", calls, to.calls.size());
+        assertFalse(to.calls.contains("play"));
+        assertEquals(List.of("stop", "volume 100"), from.calls);
+    }
+
+    @Test
+    public void testFinishWhileFading() throws InterruptedException
+    {
+        FakeChannel from = new FakeChannel(), to = new FakeChannel();
+        Crossfade fade = new Crossfade(from, to, DURATION, Crossfade.Curve.LINEAR);
+        int fromCalls, toCalls;
+
+        fade.start();
+        Thread.sleep(100);
+        fade.finish();
+        fromCalls = from.calls.size();
+        toCalls = to.calls.size();
+        Thread.sleep(100);
+
+        assertTrue("The fade never stepped", to.calls.size() > 3);
+        assertEquals("The fade kept stepping after it finished", fromCalls, from.calls.size());
+        assertEquals(toCalls, to.calls.size());
+        assertEquals("volume 100", from.calls.get(fromCalls - 1));
+        assertEquals("volume 100", to.calls.get(toCalls - 1));
+    }
+
+    /**
+     * Records what a fade does to it.
+     */
+    private static class FakeChannel implements Crossfade.Channel
+    {
+        private final List<String> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void setVolume(int volume)
+        {
+            this.calls.add("volume " + volume);
+        }
+
+        @Override
+        public void play()
+        {
+            this.calls.add("play");
+        }
+
+        @Override
+        public void stop()
+        {
+            this.calls.add("stop");
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2021 William Hubbard. All Rights Reserved.
+ */
+
+package edu.regis.universeplayer.player;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import edu.regis.universeplayer.data.LocalSong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which lookups count towards the decode cache's hit ratio. Nothing
+ * is decoded, so this does not need FFMPEG.
+ */
+public class DecodeCacheTest
+{
+    @Test
+    public void testCounting() throws IOException
+    {
+        File dir = Files.createTempDirectory("decoded").toFile();
+        DecodeCache cache = new DecodeCache(dir, 1024 * 1024);
+        LocalSong mp3 = new LocalSong.Builder().setFile(new File(dir, "song.mp3")).build();
+        LocalSong wave = new LocalSong.Builder().setFile(new File(dir, "song.wav")).build();
+        dir.deleteOnExit();
+
+        assertNull(cache.peek(mp3));
+        assertTrue("Prefetching counted a lookup", cache.toString().startsWith("0 hits, 0 misses"));
+        assertNull(cache.get(mp3));
+        assertTrue(cache.toString().startsWith("0 hits, 1 misses"));
+        cache.countLoad(mp3, true);
+        assertEquals(0.5, cache.getHitRatio(), 0);
+
+        assertNull(cache.get(wave));
+        cache.countLoad(wave, false);
+        assertTrue("WAV files, which are never cached, were counted", cache.toString()
+                .startsWith("1 hits, 1 misses"));
+        cache.shutdown();
+    }
+}
@@ -20,6 +20,10 @@
 package com.intervigil.wave;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 
 import com.intervigil.wave.exception.InvalidWaveException;
 
@@ -30,14 +34,45 @@ public class WaveReader {
     private static final int WAV_DATA_CHUNK_ID = 0x64617461; // "data"
     private static final int STREAM_BUFFER_SIZE = 4096;
 
+    /**
+     * Audio format codes from the format chunk
+     */
+    public static final int FORMAT_PCM = 1;
+    public static final int FORMAT_FLOAT = 3;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
+
+    /**
+     * Chunk size written by encoders that cannot go back and fill in the
+     * real size, such as ffmpeg writing to a pipe
+     */
+    private static final long UNKNOWN_SIZE = 0xFFFFFFFFL;
+
     private File mInFile;
     private BufferedInputStream mInStream;
 
     private int mSampleRate;
     private int mChannels;
     private int mSampleBits;
+    private int mAudioFormat;
     private int mFileSize;
     private int mDataSize;
+    /**
+     * Bytes left in the data chunk, or -1 if the length is not known
+     */
+    private long mRemaining;
+
+    /**
+     * Scratch space for header fields, reused for every field
+     */
+    private final ByteBuffer mField = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Raw sample data waiting to be converted, reused between reads
+     */
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Interleaved samples for the split-channel reads, grown as needed
+     */
+    private short[] mInterleaved = new short[0];
 
 
     /**
@@ -71,7 +106,9 @@ public class WaveReader {
     }
 
     /**
-     * Open WAV file for reading
+     * Open WAV file for reading. Chunks other than the format and data
+     * chunks are skipped, and a data chunk with no length set (as written
+     * to a pipe) is read until the stream ends.
      *
      * @throws FileNotFoundException if input file does not exist
      * @throws InvalidWaveException if input file is not a valid WAVE file
@@ -86,54 +123,80 @@ public class WaveReader {
             mInStream = new BufferedInputStream(fileStream, STREAM_BUFFER_SIZE);
         }
 
-        int headerId = readUnsignedInt(mInStream);  // should be "RIFF"
+        int headerId = readUnsignedInt();  // should be "RIFF"
         if (headerId != WAV_HEADER_CHUNK_ID) {
             throw new InvalidWaveException(String.format("Invalid WAVE header chunk ID: %d", headerId));
         }
-        mFileSize = readUnsignedIntLE(mInStream);  // length of header
-        int format = readUnsignedInt(mInStream);  // should be "WAVE"
+        mFileSize = readUnsignedIntLE();  // length of header
+        int format = readUnsignedInt();  // should be "WAVE"
         if (format != WAV_FORMAT) {
             throw new InvalidWaveException("Invalid WAVE format");
         }
-        
-        int formatId = readUnsignedInt(mInStream);  // should be "fmt "
-        if (formatId != WAV_FORMAT_CHUNK_ID) {
-            throw new InvalidWaveException("Invalid WAVE format chunk ID");
-        }
-        int formatSize = readUnsignedIntLE(mInStream);
-        if (formatSize != 16) {
-            
-        }
-        int audioFormat = readUnsignedShortLE(mInStream);
-        if (audioFormat != 1) {
-            throw new InvalidWaveException("Not PCM WAVE format");
+
+        boolean hasFormat = false;
+        while (true) {
+            int chunkId = readUnsignedInt();
+            long chunkSize = readUnsignedIntLE() & 0xFFFFFFFFL;
+            if (chunkId == WAV_FORMAT_CHUNK_ID) {
+                readFormat(chunkSize);
+                hasFormat = true;
+            } else if (chunkId == WAV_DATA_CHUNK_ID) {
+                if (!hasFormat) {
+                    throw new InvalidWaveException("WAVE data chunk before format chunk");
+                }
+                if (chunkSize == UNKNOWN_SIZE || chunkSize == 0) {
+                    mDataSize = -1;
+                    mRemaining = -1;
+                } else {
+                    mDataSize = (int) Math.min(chunkSize, Integer.MAX_VALUE);
+                    mRemaining = chunkSize;
+                }
+                return;
+            } else {
+                skip(chunkSize + (chunkSize & 1));
+            }
         }
-        mChannels = readUnsignedShortLE(mInStream);
-        mSampleRate = readUnsignedIntLE(mInStream);
-        int byteRate = readUnsignedIntLE(mInStream);
-        int blockAlign = readUnsignedShortLE(mInStream);
-        mSampleBits = readUnsignedShortLE(mInStream);
-        
-        int dataId = readUnsignedInt(mInStream);
-        if (dataId != WAV_DATA_CHUNK_ID) {
-            throw new InvalidWaveException("Invalid WAVE data chunk ID");
-        }
-        mDataSize = readUnsignedIntLE(mInStream);
     }
 
     /**
-     * Writes a short to a {@link ByteArrayOutputStream}.
-     * @param stream - The stream to write to.
-     * @param num - The number to write.
-     * @throws IOException
-     * @author William Hubbard, 7/24/2021
-     * @author java.io.DataOutputStream#writeShort(int)
+     * Reads the body of the format chunk
+     *
+     * @param chunkSize  size of the chunk body
+     * @author William Hubbard
      */
-    private void writeShort(ByteArrayOutputStream stream, short num) throws IOException {
-        byte[] buf = new byte[2];
-        buf[0] = (byte)(num >>> 8);
-        buf[1] = (byte)(num >>> 0);
-        stream.write(buf);
+    private void readFormat(long chunkSize) throws IOException {
+        if (chunkSize < 16) {
+            throw new InvalidWaveException("Invalid WAVE format chunk size");
+        }
+        mAudioFormat = readUnsignedShortLE();
+        mChannels = readUnsignedShortLE();
+        mSampleRate = readUnsignedIntLE();
+        int byteRate = readUnsignedIntLE();
+        int blockAlign = readUnsignedShortLE();
+        mSampleBits = readUnsignedShortLE();
+        long read = 16;
+        if (mAudioFormat == FORMAT_EXTENSIBLE && chunkSize >= 40) {
+            readUnsignedShortLE(); // extension size
+            readUnsignedShortLE(); // valid bits per sample
+            readUnsignedIntLE(); // channel mask
+            mAudioFormat = readUnsignedShortLE(); // start of the sub-format GUID
+            read += 10;
+        }
+        skip(chunkSize - read + (chunkSize & 1));
+
+        if (mAudioFormat != FORMAT_PCM && mAudioFormat != FORMAT_FLOAT) {
+            throw new InvalidWaveException("Not PCM WAVE format");
+        }
+        if (mAudioFormat == FORMAT_PCM && mSampleBits != 8 && mSampleBits != 16
+                && mSampleBits != 24 && mSampleBits != 32) {
+            throw new InvalidWaveException(String.format("Unsupported PCM sample size: %d", mSampleBits));
+        }
+        if (mAudioFormat == FORMAT_FLOAT && mSampleBits != 32) {
+            throw new InvalidWaveException(String.format("Unsupported float sample size: %d", mSampleBits));
+        }
+        if (mChannels <= 0) {
+            throw new InvalidWaveException("Invalid WAVE channel count");
+        }
     }
 
     /**
@@ -144,30 +207,26 @@ public class WaveReader {
      * @author Ethan Chen, com.intervigil.wave.WaveWriter#writeWaveHeader()
      */
     public byte[] getHeaderBytes() throws IOException {
-        // rewind to beginning of the file
-        ByteArrayOutputStream stream = new ByteArrayOutputStream(44);
-
-        int bytesPerSec = (mSampleBits + 7) / 8;
-
-        stream.write("RIFF".getBytes()); // WAV chunk header
-        stream.write(Integer.reverseBytes(36)); // WAV chunk size
-        stream.write("WAVE".getBytes()); // WAV format
-
-        stream.write("fmt ".getBytes()); // format subchunk header
-        stream.write(Integer.reverseBytes(16)); // format subchunk size
-        writeShort(stream, Short.reverseBytes((short) 1)); // audio format
-        writeShort(stream, Short.reverseBytes((short) mChannels)); // number of channels
-        stream.write(Integer.reverseBytes(mSampleRate)); // sample rate
-        stream.write(Integer.reverseBytes(mSampleRate * mChannels * bytesPerSec)); // byte rate
-        writeShort(stream, Short.reverseBytes((short) (mChannels * bytesPerSec))); // block align
-        writeShort(stream, Short.reverseBytes((short) mSampleBits)); // bits per sample
-
-        stream.write("data".getBytes()); // data subchunk header
-        stream.write(Integer.reverseBytes(0)); // data subchunk size
-
-        stream.close();
-
-        return stream.toByteArray();
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        int bytesPerSample = getBytesPerSample();
+
+        header.putInt(Integer.reverseBytes(WAV_HEADER_CHUNK_ID)); // WAV chunk header
+        header.putInt(36); // WAV chunk size
+        header.putInt(Integer.reverseBytes(WAV_FORMAT)); // WAV format
+
+        header.putInt(Integer.reverseBytes(WAV_FORMAT_CHUNK_ID)); // format subchunk header
+        header.putInt(16); // format subchunk size
+        header.putShort((short) mAudioFormat); // audio format
+        header.putShort((short) mChannels); // number of channels
+        header.putInt(mSampleRate); // sample rate
+        header.putInt(mSampleRate * mChannels * bytesPerSample); // byte rate
+        header.putShort((short) (mChannels * bytesPerSample)); // block align
+        header.putShort((short) mSampleBits); // bits per sample
+
+        header.putInt(Integer.reverseBytes(WAV_DATA_CHUNK_ID)); // data subchunk header
+        header.putInt(0); // data subchunk size
+
+        return header.array();
     }
 
     /**
@@ -196,6 +255,27 @@ public class WaveReader {
     public int getPcmFormat() {
         return mSampleBits;
     }
+
+    /**
+     * Get how samples are encoded
+     *
+     * @return {@link #FORMAT_PCM} for integer samples, or
+     * {@link #FORMAT_FLOAT} for floating point samples
+     * @author William Hubbard
+     */
+    public int getAudioFormat() {
+        return mAudioFormat;
+    }
+
+    /**
+     * Get the size of a single sample of a single channel
+     *
+     * @return number of bytes per sample
+     * @author William Hubbard
+     */
+    public int getBytesPerSample() {
+        return (mSampleBits + 7) / 8;
+    }
     
     /**
      * Get file size
@@ -210,7 +290,8 @@ public class WaveReader {
      * Get input file's audio data size
      * Basically file size without headers included
      *
-     * @return audio data size in bytes
+     * @return audio data size in bytes, or -1 if the header did not say,
+     * such as for a file written to a pipe
      */
     public int getDataSize() {
         return mDataSize;
@@ -219,14 +300,176 @@ public class WaveReader {
     /**
      * Get input file length
      *
-     * @return length of file in seconds
+     * @return length of file in seconds, or -1 if the data size is not known
      */
     public int getLength() {
-        if (mSampleRate == 0 || mChannels == 0 || (mSampleBits + 7) / 8 == 0) {
+        if (mDataSize < 0) {
+            return -1;
+        } else if (mSampleRate == 0 || mChannels == 0 || getBytesPerSample() == 0) {
+            return 0;
+        } else {
+            return mDataSize / (mSampleRate * mChannels * getBytesPerSample());
+        }
+    }
+
+    /**
+     * Read raw audio data from input file, in whatever sample format the
+     * file uses
+     *
+     * @param dst  output buffer
+     * @param offset  index in the buffer to start writing at
+     * @param length  largest number of bytes to read
+     *
+     * @return number of bytes read, or -1 at the end of the audio data
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public int read(byte[] dst, int offset, int length) throws IOException {
+        if (mRemaining == 0) {
+            return -1;
+        }
+        if (mRemaining > 0 && length > mRemaining) {
+            length = (int) mRemaining;
+        }
+        int read = mInStream.read(dst, offset, length);
+        if (read > 0 && mRemaining > 0) {
+            mRemaining -= read;
+        }
+        return read;
+    }
+
+    /**
+     * Read raw audio data from input file into a buffer, in whatever sample
+     * format the file uses. This blocks until at least one byte is read.
+     *
+     * @param dst  output buffer, filled from its position up to its limit
+     *
+     * @return number of bytes read, or -1 at the end of the audio data
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        int read;
+        if (!dst.hasRemaining()) {
             return 0;
+        }
+        if (dst.hasArray()) {
+            read = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
         } else {
-            return mDataSize / (mSampleRate * mChannels * ((mSampleBits + 7) / 8));
+            read = read(mBuffer.array(), 0, Math.min(dst.remaining(), mBuffer.capacity()));
+            if (read > 0) {
+                dst.put(mBuffer.array(), 0, read);
+            }
         }
+        return read;
+    }
+
+    /**
+     * Read interleaved samples from input file as 16-bit integers, whatever
+     * format the file uses. Samples with more precision are rounded down.
+     * This blocks until at least one sample is read.
+     *
+     * @param dst  output buffer, filled from its position up to its limit
+     *
+     * @return number of samples read (across all channels), or -1 at the
+     * end of the audio data
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public int read(ShortBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int samples = fillSamples(dst.remaining());
+        if (samples < 0) {
+            return -1;
+        }
+        if (mAudioFormat == FORMAT_FLOAT) {
+            for (int i = 0; i < samples; i++) {
+                float value = mBuffer.getFloat() * 32768F;
+                dst.put((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+            }
+        } else {
+            switch (mSampleBits) {
+            case 8:
+                for (int i = 0; i < samples; i++) {
+                    dst.put((short) (((mBuffer.get() & 0xFF) - 128) << 8));
+                }
+                break;
+            case 16:
+                dst.put(mBuffer.asShortBuffer());
+                break;
+            case 24:
+                for (int i = 0; i < samples; i++) {
+                    mBuffer.get();
+                    dst.put(mBuffer.getShort());
+                }
+                break;
+            default:
+                for (int i = 0; i < samples; i++) {
+                    dst.put((short) (mBuffer.getInt() >> 16));
+                }
+                break;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Read interleaved samples from input file as floating point numbers
+     * between -1 and 1, whatever format the file uses. This blocks until at
+     * least one sample is read.
+     *
+     * @param dst  output buffer, filled from its position up to its limit
+     *
+     * @return number of samples read (across all channels), or -1 at the
+     * end of the audio data
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public int read(FloatBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        int samples = fillSamples(dst.remaining());
+        if (samples < 0) {
+            return -1;
+        }
+        if (mAudioFormat == FORMAT_FLOAT) {
+            dst.put(mBuffer.asFloatBuffer());
+        } else {
+            switch (mSampleBits) {
+            case 8:
+                for (int i = 0; i < samples; i++) {
+                    dst.put(((mBuffer.get() & 0xFF) - 128) / 128F);
+                }
+                break;
+            case 16:
+                for (int i = 0; i < samples; i++) {
+                    dst.put(mBuffer.getShort() / 32768F);
+                }
+                break;
+            case 24:
+                for (int i = 0; i < samples; i++) {
+                    int low = mBuffer.get() & 0xFF;
+                    dst.put((mBuffer.getShort() << 8 | low) / 8388608F);
+                }
+                break;
+            default:
+                for (int i = 0; i < samples; i++) {
+                    dst.put(mBuffer.getInt() / 2147483648F);
+                }
+                break;
+            }
+        }
+        return samples;
     }
 
     /**
@@ -243,17 +486,7 @@ public class WaveReader {
         if (mChannels != 1) {
             return -1;
         }
-
-        byte[] buf = new byte[numSamples * 2];
-        int index = 0;
-        int bytesRead = mInStream.read(buf, 0, numSamples * 2);
-
-        for (int i = 0; i < bytesRead; i+=2) {
-            dst[index] = byteToShortLE(buf[i], buf[i+1]);
-            index++;
-        }
-
-        return index;
+        return Math.max(0, read(ShortBuffer.wrap(dst, 0, numSamples)));
     }
 
     /**
@@ -271,21 +504,45 @@ public class WaveReader {
         if (mChannels != 2) {
             return -1;
         }
-        byte[] buf = new byte[numSamples * 4];
-        int index = 0;
-        int bytesRead = mInStream.read(buf, 0, numSamples * 4);
-
-        for (int i = 0; i < bytesRead; i+=2) {
-            short val = byteToShortLE(buf[0], buf[i+1]);
-            if (i % 4 == 0) {
-                left[index] = val;
-            } else {
-                right[index] = val;
-                index++;
+        if (numSamples <= 0) {
+            return 0;
+        }
+        if (mInterleaved.length < numSamples * 2) {
+            mInterleaved = new short[numSamples * 2];
+        }
+        ShortBuffer interleaved = ShortBuffer.wrap(mInterleaved, 0, numSamples * 2);
+        /*
+         * Keep reading until the last frame is whole
+         */
+        while (interleaved.position() == 0 || interleaved.position() % 2 != 0) {
+            if (read(interleaved) < 0) {
+                break;
             }
         }
+        int frames = interleaved.position() / 2;
+        for (int i = 0; i < frames; i++) {
+            left[i] = mInterleaved[i * 2];
+            right[i] = mInterleaved[i * 2 + 1];
+        }
+        return frames;
+    }
 
-        return index;
+    /**
+     * Skip ahead in the audio data. For files this seeks rather than
+     * reading the skipped data.
+     *
+     * @param frames  number of frames (one sample for every channel) to skip
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public void skipFrames(long frames) throws IOException {
+        long bytes = frames * mChannels * getBytesPerSample();
+        if (mRemaining >= 0) {
+            bytes = Math.min(bytes, mRemaining);
+            mRemaining -= bytes;
+        }
+        skip(bytes);
     }
 
     /**
@@ -298,47 +555,79 @@ public class WaveReader {
             mInStream.close();
         }
     }
-    
-    private static short byteToShortLE(byte b1, byte b2) {
-        return (short) (b1 & 0xFF | ((b2 & 0xFF) << 8));
+
+    /**
+     * Reads whole samples into the conversion buffer, leaving it ready to
+     * be read from
+     *
+     * @param maxSamples  most samples wanted
+     *
+     * @return number of samples in the buffer, or -1 at the end of the
+     * audio data
+     * @author William Hubbard
+     */
+    private int fillSamples(int maxSamples) throws IOException {
+        int sampleSize = getBytesPerSample();
+        int wanted = Math.min(maxSamples, mBuffer.capacity() / sampleSize) * sampleSize;
+        byte[] array = mBuffer.array();
+        int filled = 0;
+        while (filled == 0 || filled % sampleSize != 0) {
+            int read = read(array, filled, wanted - filled);
+            if (read < 0) {
+                break;
+            }
+            filled += read;
+        }
+        int samples = filled / sampleSize;
+        mBuffer.clear();
+        mBuffer.limit(samples * sampleSize);
+        return samples == 0 ? -1 : samples;
     }
 
-    private static int readUnsignedInt(BufferedInputStream in) throws IOException {
-        int ret;
-        byte[] buf = new byte[4];
-        ret = in.read(buf);
-        if (ret == -1) {
-            return -1;
-        } else {
-            return (((buf[0] & 0xFF) << 24)
-                    | ((buf[1] & 0xFF) << 16)
-                    | ((buf[2] & 0xFF) << 8)
-                    | (buf[3] & 0xFF));
+    /**
+     * Fills the field buffer with the next bytes of the header
+     *
+     * @param length  number of bytes to read, up to 4
+     * @author William Hubbard
+     */
+    private void readField(int length) throws IOException {
+        mField.clear();
+        int filled = 0;
+        while (filled < length) {
+            int read = mInStream.read(mField.array(), filled, length - filled);
+            if (read < 0) {
+                throw new EOFException("WAVE header ended early");
+            }
+            filled += read;
         }
+        mField.limit(length);
     }
-    
-    private static int readUnsignedIntLE(BufferedInputStream in) throws IOException {
-        int ret;
-        byte[] buf = new byte[4];
-        ret = in.read(buf);
-        if (ret == -1) {
-            return -1;
-        } else {
-            return (buf[0] & 0xFF
-                    | ((buf[1] & 0xFF) << 8)
-                    | ((buf[2] & 0xFF) << 16)
-                    | ((buf[3] & 0xFF) << 24));
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long skipped = mInStream.skip(length);
+            if (skipped <= 0) {
+                if (mInStream.read() < 0) {
+                    throw new EOFException("WAVE header ended early");
+                }
+                skipped = 1;
+            }
+            length -= skipped;
         }
     }
+
+    private int readUnsignedInt() throws IOException {
+        readField(4);
+        return mField.order(ByteOrder.BIG_ENDIAN).getInt(0);
+    }
     
-    private static short readUnsignedShortLE(BufferedInputStream in) throws IOException {
-        int ret;
-        byte[] buf = new byte[2];
-        ret = in.read(buf, 0, 2);
-        if (ret == -1) {
-            return -1;
-        } else {
-            return byteToShortLE(buf[0], buf[1]);
-        }
+    private int readUnsignedIntLE() throws IOException {
+        readField(4);
+        return mField.order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+    }
+    
+    private int readUnsignedShortLE() throws IOException {
+        readField(2);
+        return mField.order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xFFFF;
     }
-}
\ No newline at end of file
+}
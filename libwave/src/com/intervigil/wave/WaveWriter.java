@@ -24,10 +24,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class WaveWriter {
     private static final int OUTPUT_STREAM_BUFFER = 16384;
 
+    /**
+     * Chunk size written when the data is too long for the header, which
+     * readers take to mean the data runs to the end of the file
+     */
+    private static final long UNKNOWN_SIZE = 0xFFFFFFFFL;
+
     private File mOutFile;
     private BufferedOutputStream mOutStream;
 
@@ -35,7 +42,7 @@ public class WaveWriter {
     private int mChannels;
     private int mSampleBits;
 
-    private int mBytesWritten;
+    private long mBytesWritten;
 
 
     /**
@@ -146,6 +153,43 @@ public class WaveWriter {
         }
     }
 
+    /**
+     * Write raw audio data to output file. The data must already be in the
+     * file's format, little-endian and with the channels interleaved, which
+     * lets long streams be written without going through a sample at a time.
+     *
+     * @param src  buffer holding the audio data between its position and
+     *             limit; its position is moved to its limit
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
+    public void write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            mOutStream.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(length, OUTPUT_STREAM_BUFFER)];
+            while (src.hasRemaining()) {
+                int count = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, count);
+                mOutStream.write(chunk, 0, count);
+            }
+        }
+        mBytesWritten += length;
+    }
+
+    /**
+     * Get the amount of audio data written so far
+     *
+     * @return number of bytes written, not counting the header
+     * @author William Hubbard
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
     /**
      * Close output WAV file and write WAV header. WaveWriter
      * cannot be used again following this call.
@@ -160,15 +204,25 @@ public class WaveWriter {
         writeWaveHeader();
     }
 
+    /**
+     * Writes the header at the start of the file. Data longer than a
+     * header can describe is marked with the unknown size, as a pipe would
+     * be, rather than having its size wrap around.
+     *
+     * @throws IOException if file I/O error occurs
+     * @author William Hubbard
+     */
     private void writeWaveHeader() throws IOException {
         // rewind to beginning of the file
         RandomAccessFile file = new RandomAccessFile(this.mOutFile, "rw");
         file.seek(0);
 
         int bytesPerSec = (mSampleBits + 7) / 8;
+        long dataSize = mBytesWritten + 36 > UNKNOWN_SIZE ? UNKNOWN_SIZE : mBytesWritten;
+        long chunkSize = Math.min(mBytesWritten + 36, UNKNOWN_SIZE);
 
         file.writeBytes("RIFF"); // WAV chunk header
-        file.writeInt(Integer.reverseBytes(mBytesWritten + 36)); // WAV chunk size
+        file.writeInt(Integer.reverseBytes((int) chunkSize)); // WAV chunk size
         file.writeBytes("WAVE"); // WAV format
 
         file.writeBytes("fmt "); // format subchunk header
@@ -181,7 +235,7 @@ public class WaveWriter {
         file.writeShort(Short.reverseBytes((short) mSampleBits)); // bits per sample
 
         file.writeBytes("data"); // data subchunk header
-        file.writeInt(Integer.reverseBytes(mBytesWritten)); // data subchunk size
+        file.writeInt(Integer.reverseBytes((int) dataSize)); // data subchunk size
 
         file.close();
         file = null;